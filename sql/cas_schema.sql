@@ -13,12 +13,14 @@ CREATE TABLE IF NOT EXISTS adherents (
     ip VARCHAR(255),
     chambre_id INT,
     created_at DATETIME,
-    updated_at DATETIME,
+    updated_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP,
     edminet TINYINT,
     is_naina TINYINT,
     mailinglist TINYINT,
     mail_membership INT,
     ldap_login VARCHAR(255),
     datesignedhosting DATETIME,
-    datesignedadhesion DATETIME
+    datesignedadhesion DATETIME,
+    INDEX idx_adherents_updated_at (updated_at),
+    UNIQUE INDEX idx_adherents_login (login)
 );
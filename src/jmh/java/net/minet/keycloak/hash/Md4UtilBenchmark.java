@@ -0,0 +1,32 @@
+package net.minet.keycloak.hash;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of one MD4/UTF-16LE digest, the unit of work of every password check.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class Md4UtilBenchmark {
+
+    @Param({"8", "16", "64"})
+    int length;
+
+    String password;
+
+    @Setup
+    public void setup() {
+        password = "p".repeat(length);
+    }
+
+    @Benchmark
+    public String md4Hex() {
+        return Md4Util.md4Hex(password);
+    }
+}
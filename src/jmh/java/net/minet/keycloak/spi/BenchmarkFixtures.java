@@ -0,0 +1,130 @@
+package net.minet.keycloak.spi;
+
+import net.minet.keycloak.hash.Md4Util;
+import org.h2.jdbcx.JdbcDataSource;
+import org.keycloak.common.util.MultivaluedHashMap;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.storage.federated.UserFederatedStorageProvider;
+import org.mockito.Mockito;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+
+import static org.mockito.ArgumentMatchers.any;
+
+/**
+ * Shared fixtures for the benchmarks: an embedded H2 database in MySQL mode
+ * with the production {@code adherents} schema, and stub-only Keycloak mocks
+ * that do not record invocations (so they do not leak over long runs).
+ */
+final class BenchmarkFixtures {
+
+    /** Password of user {@code n} is {@code "password" + n}. */
+    static final String PASSWORD_PREFIX = "password";
+
+    private BenchmarkFixtures() {
+    }
+
+    /**
+     * Crée une base H2 en mémoire avec {@code rows} adhérents. Un adhérent sur
+     * {@code plaintextEvery} garde un mot de passe en clair pour exercer la
+     * branche historique de {@code isValid}.
+     */
+    static DataSource database(String name, int rows, int plaintextEvery) throws Exception {
+        JdbcDataSource ds = new JdbcDataSource();
+        ds.setURL("jdbc:h2:mem:" + name + ";MODE=MYSQL;DB_CLOSE_DELAY=-1");
+        try (Connection c = ds.getConnection(); Statement st = c.createStatement()) {
+            st.execute("DROP TABLE IF EXISTS adherents");
+            st.execute("""
+                CREATE TABLE adherents (
+                    id INT AUTO_INCREMENT PRIMARY KEY,
+                    nom VARCHAR(255),
+                    prenom VARCHAR(255),
+                    mail VARCHAR(255),
+                    login VARCHAR(255),
+                    password VARCHAR(255),
+                    date_de_depart DATE,
+                    commentaires TEXT,
+                    mode_association TINYINT,
+                    access_token TEXT,
+                    subnet VARCHAR(255),
+                    ip VARCHAR(255),
+                    chambre_id INT,
+                    created_at DATETIME,
+                    updated_at DATETIME,
+                    edminet TINYINT,
+                    is_naina TINYINT,
+                    mailinglist TINYINT,
+                    mail_membership INT,
+                    ldap_login VARCHAR(255),
+                    datesignedhosting DATETIME,
+                    datesignedadhesion DATETIME
+                )
+                """);
+            st.execute("CREATE INDEX adherents_login ON adherents (login)");
+            st.execute("CREATE INDEX adherents_mail ON adherents (mail)");
+            c.setAutoCommit(false);
+            try (PreparedStatement ps = c.prepareStatement(
+                    "INSERT INTO adherents (id, nom, prenom, mail, login, password, created_at, updated_at, " +
+                    "is_naina, edminet, mailinglist, mode_association, ldap_login) VALUES (?,?,?,?,?,?,?,?,?,?,?,?,?)")) {
+                LocalDateTime created = LocalDateTime.of(2024, 1, 2, 3, 4, 5);
+                for (int i = 1; i <= rows; i++) {
+                    String password = PASSWORD_PREFIX + i;
+                    ps.setInt(1, i);
+                    ps.setString(2, "Nom" + i);
+                    ps.setString(3, "Prenom" + i);
+                    ps.setString(4, login(i) + "@example.com");
+                    ps.setString(5, login(i));
+                    ps.setString(6, plaintextEvery > 0 && i % plaintextEvery == 0 ? password : Md4Util.md4Hex(password));
+                    ps.setTimestamp(7, Timestamp.valueOf(created.plusMinutes(i)));
+                    ps.setTimestamp(8, Timestamp.valueOf(created.plusMinutes(i)));
+                    ps.setByte(9, (byte) (i % 2));
+                    ps.setByte(10, (byte) (i % 3 == 0 ? 1 : 0));
+                    ps.setByte(11, (byte) (i % 5 == 0 ? 1 : 0));
+                    ps.setByte(12, (byte) 1);
+                    ps.setString(13, login(i) + "LDAP");
+                    ps.addBatch();
+                    if (i % 1000 == 0) {
+                        ps.executeBatch();
+                    }
+                }
+                ps.executeBatch();
+            }
+            c.commit();
+        }
+        return ds;
+    }
+
+    /** Login of the seeded user {@code n}. */
+    static String login(int n) {
+        return "user" + n;
+    }
+
+    /**
+     * Session Keycloak minimale : le stockage fédéré est un stub sans état.
+     */
+    static KeycloakSession session() {
+        KeycloakSession session = Mockito.mock(KeycloakSession.class, Mockito.withSettings().stubOnly());
+        UserFederatedStorageProvider federated =
+                Mockito.mock(UserFederatedStorageProvider.class, Mockito.withSettings().stubOnly());
+        Mockito.when(federated.getAttributes(any(), any())).thenAnswer(inv -> new MultivaluedHashMap<String, String>());
+        Mockito.when(session.getProvider(UserFederatedStorageProvider.class)).thenReturn(federated);
+        return session;
+    }
+
+    static ComponentModel model() {
+        ComponentModel model = Mockito.mock(ComponentModel.class, Mockito.withSettings().stubOnly());
+        Mockito.when(model.getId()).thenReturn("bench");
+        return model;
+    }
+
+    static RealmModel realm() {
+        return Mockito.mock(RealmModel.class, Mockito.withSettings().stubOnly());
+    }
+}
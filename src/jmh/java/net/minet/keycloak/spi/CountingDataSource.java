@@ -0,0 +1,79 @@
+package net.minet.keycloak.spi;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * DataSource decorator counting connection checkouts and executed statements,
+ * used by the load harness to report round trips per login.
+ */
+final class CountingDataSource {
+    private static final Set<String> EXECUTE_METHODS =
+            Set.of("execute", "executeQuery", "executeUpdate", "executeLargeUpdate", "executeBatch");
+
+    final LongAdder checkouts = new LongAdder();
+    final LongAdder queries = new LongAdder();
+
+    private final DataSource delegate;
+
+    CountingDataSource(DataSource delegate) {
+        this.delegate = delegate;
+    }
+
+    /** Retourne la vue instrumentée de la datasource. */
+    DataSource dataSource() {
+        return proxy(DataSource.class, delegate, (target, method, args) -> {
+            Object result = invoke(target, method, args);
+            if ("getConnection".equals(method.getName())) {
+                checkouts.increment();
+                return proxy(Connection.class, result, this::connectionCall);
+            }
+            return result;
+        });
+    }
+
+    private Object connectionCall(Object target, Method method, Object[] args) throws Throwable {
+        Object result = invoke(target, method, args);
+        if (result instanceof PreparedStatement) {
+            return proxy(PreparedStatement.class, result, this::statementCall);
+        }
+        if (result instanceof Statement) {
+            return proxy(Statement.class, result, this::statementCall);
+        }
+        return result;
+    }
+
+    private Object statementCall(Object target, Method method, Object[] args) throws Throwable {
+        if (EXECUTE_METHODS.contains(method.getName())) {
+            queries.increment();
+        }
+        return invoke(target, method, args);
+    }
+
+    @FunctionalInterface
+    private interface Handler {
+        Object handle(Object target, Method method, Object[] args) throws Throwable;
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, Object target, Handler handler) {
+        InvocationHandler h = (p, method, args) -> handler.handle(target, method, args);
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, h);
+    }
+}
@@ -0,0 +1,210 @@
+package net.minet.keycloak.spi;
+
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.h2.jdbcx.JdbcDataSource;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserCredentialModel;
+import org.keycloak.models.UserModel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Load harness simulating a login storm against {@link FdpSQLUserStorageProvider}.
+ *
+ * <p>Each simulated login performs what Keycloak does for a password login
+ * followed by token issuance: {@code getUserByUsername}, {@code isValid}, then
+ * a fresh {@code getUserById} and the attribute reads done by protocol
+ * mappers. The embedded H2 database (MySQL mode) is seeded with
+ * {@code --users} adherents.</p>
+ *
+ * <p>Options, all as {@code --name=value}: {@code users} (10000),
+ * {@code threads} (64), {@code duration} seconds (30), {@code warmup}
+ * seconds (5), {@code think} time in milliseconds between two logins of the
+ * same client (0), {@code pool} connections (16) and {@code failures}, the
+ * percentage of logins using a wrong password (5).</p>
+ */
+public final class LoginStorm {
+
+    private final int users;
+    private final int threads;
+    private final int durationSeconds;
+    private final int warmupSeconds;
+    private final int thinkMillis;
+    private final int poolSize;
+    private final int failurePercent;
+
+    private LoginStorm(Map<String, String> options) {
+        this.users = intOption(options, "users", 10000);
+        this.threads = intOption(options, "threads", 64);
+        this.durationSeconds = intOption(options, "duration", 30);
+        this.warmupSeconds = intOption(options, "warmup", 5);
+        this.thinkMillis = intOption(options, "think", 0);
+        this.poolSize = intOption(options, "pool", 16);
+        this.failurePercent = intOption(options, "failures", 5);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (arg.startsWith("--") && arg.contains("=")) {
+                options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+            }
+        }
+        new LoginStorm(options).run();
+    }
+
+    private static int intOption(Map<String, String> options, String name, int defaultValue) {
+        String v = options.get(name);
+        return v == null ? defaultValue : Integer.parseInt(v);
+    }
+
+    /** Latencies of one client thread, in nanoseconds. */
+    private static final class Recorder {
+        long[] samples = new long[1 << 14];
+        int size;
+
+        void add(long nanos) {
+            if (size == samples.length) {
+                samples = Arrays.copyOf(samples, size * 2);
+            }
+            samples[size++] = nanos;
+        }
+    }
+
+    private void run() throws Exception {
+        System.out.printf(Locale.ROOT, "Seeding %d adherents...%n", users);
+        JdbcDataSource h2 = (JdbcDataSource) BenchmarkFixtures.database("storm", users, 10);
+        JdbcConnectionPool pool = JdbcConnectionPool.create(h2);
+        pool.setMaxConnections(poolSize);
+        CountingDataSource counting = new CountingDataSource(pool);
+        FdpSQLUserStorageProvider provider = new FdpSQLUserStorageProvider(
+                BenchmarkFixtures.session(), BenchmarkFixtures.model(), counting.dataSource());
+        RealmModel realm = BenchmarkFixtures.realm();
+
+        AtomicBoolean measuring = new AtomicBoolean(false);
+        AtomicBoolean running = new AtomicBoolean(true);
+        LongAdder logins = new LongAdder();
+        LongAdder rejected = new LongAdder();
+        LongAdder errors = new LongAdder();
+        List<Recorder> recorders = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(threads);
+
+        for (int t = 0; t < threads; t++) {
+            Recorder recorder = new Recorder();
+            recorders.add(recorder);
+            Thread thread = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                try {
+                    while (running.get()) {
+                        int n = random.nextInt(1, users + 1);
+                        boolean wrong = random.nextInt(100) < failurePercent;
+                        long start = System.nanoTime();
+                        boolean ok;
+                        try {
+                            ok = login(provider, realm, n, wrong);
+                        } catch (RuntimeException e) {
+                            errors.increment();
+                            ok = false;
+                        }
+                        long elapsed = System.nanoTime() - start;
+                        if (measuring.get()) {
+                            recorder.add(elapsed);
+                            logins.increment();
+                            if (!ok) rejected.increment();
+                        }
+                        if (thinkMillis > 0) {
+                            Thread.sleep(thinkMillis);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            }, "login-storm-" + t);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        System.out.printf(Locale.ROOT, "Warming up for %ds with %d clients...%n", warmupSeconds, threads);
+        TimeUnit.SECONDS.sleep(warmupSeconds);
+        long checkouts0 = counting.checkouts.sum();
+        long queries0 = counting.queries.sum();
+        measuring.set(true);
+        long start = System.nanoTime();
+        TimeUnit.SECONDS.sleep(durationSeconds);
+        measuring.set(false);
+        long elapsed = System.nanoTime() - start;
+        long checkouts = counting.checkouts.sum() - checkouts0;
+        long queries = counting.queries.sum() - queries0;
+        running.set(false);
+        done.await();
+        pool.dispose();
+
+        long[] all = merge(recorders);
+        long total = logins.sum();
+        double seconds = elapsed / 1e9;
+        System.out.printf(Locale.ROOT, "%n=== Login storm: %d users, %d clients, think %d ms, pool %d ===%n",
+                users, threads, thinkMillis, poolSize);
+        System.out.printf(Locale.ROOT, "logins              %d (%d rejected, %d errors)%n",
+                total, rejected.sum(), errors.sum());
+        System.out.printf(Locale.ROOT, "throughput          %.1f logins/s%n", total / seconds);
+        System.out.printf(Locale.ROOT, "latency p50         %.3f ms%n", percentile(all, 50) / 1e6);
+        System.out.printf(Locale.ROOT, "latency p95         %.3f ms%n", percentile(all, 95) / 1e6);
+        System.out.printf(Locale.ROOT, "latency p99         %.3f ms%n", percentile(all, 99) / 1e6);
+        System.out.printf(Locale.ROOT, "latency max         %.3f ms%n", (all.length == 0 ? 0 : all[all.length - 1]) / 1e6);
+        System.out.printf(Locale.ROOT, "checkouts per login %.2f%n", total == 0 ? 0.0 : (double) checkouts / total);
+        System.out.printf(Locale.ROOT, "queries per login   %.2f%n", total == 0 ? 0.0 : (double) queries / total);
+    }
+
+    /**
+     * Une connexion complète : authentification puis lecture des attributs lors
+     * de l'émission du jeton, dans une nouvelle recherche par identifiant.
+     */
+    private static boolean login(FdpSQLUserStorageProvider provider, RealmModel realm, int n, boolean wrongPassword) {
+        UserModel user = provider.getUserByUsername(realm, BenchmarkFixtures.login(n));
+        if (user == null) {
+            return false;
+        }
+        String password = BenchmarkFixtures.PASSWORD_PREFIX + (wrongPassword ? "-wrong" : n);
+        if (!provider.isValid(realm, user, UserCredentialModel.password(password))) {
+            return false;
+        }
+        UserModel tokenUser = provider.getUserById(realm, user.getId());
+        tokenUser.getEmail();
+        tokenUser.getFirstName();
+        tokenUser.getLastName();
+        tokenUser.getFirstAttribute("ldapLogin");
+        return !tokenUser.getAttributes().isEmpty();
+    }
+
+    private static long[] merge(List<Recorder> recorders) {
+        int size = recorders.stream().mapToInt(r -> r.size).sum();
+        long[] all = new long[size];
+        int pos = 0;
+        for (Recorder r : recorders) {
+            System.arraycopy(r.samples, 0, all, pos, r.size);
+            pos += r.size;
+        }
+        Arrays.sort(all);
+        return all;
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+}
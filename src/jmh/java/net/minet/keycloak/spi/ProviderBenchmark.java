@@ -0,0 +1,128 @@
+package net.minet.keycloak.spi;
+
+import net.minet.keycloak.spi.dao.ExternalUserDao;
+import net.minet.keycloak.spi.entity.ExternalUser;
+import org.h2.tools.SimpleResultSet;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserCredentialModel;
+import org.keycloak.models.UserModel;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import javax.sql.DataSource;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.LocalDateTime;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the provider's hot paths, from row mapping up to a full
+ * {@code getUserByUsername} + {@code isValid} login against embedded H2.
+ *
+ * <p>Throughput and sampled latency are reported for each benchmark; run with
+ * {@code -prof gc} (the default of the {@code bench} profile) to get the
+ * allocation rate.</p>
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProviderBenchmark {
+
+    @State(Scope.Thread)
+    public static class RowState {
+        SimpleResultSet rs;
+
+        @Setup
+        public void setup() {
+            rs = new SimpleResultSet();
+            rs.setAutoClose(false);
+            rs.addColumn("id", Types.INTEGER, 10, 0);
+            rs.addColumn("nom", Types.VARCHAR, 255, 0);
+            rs.addColumn("prenom", Types.VARCHAR, 255, 0);
+            rs.addColumn("mail", Types.VARCHAR, 255, 0);
+            rs.addColumn("login", Types.VARCHAR, 255, 0);
+            rs.addColumn("created_at", Types.TIMESTAMP, 0, 0);
+            rs.addColumn("is_naina", Types.TINYINT, 3, 0);
+            rs.addColumn("ldap_login", Types.VARCHAR, 255, 0);
+            rs.addRow(42, "Dupont", "Jean", "jean.dupont@example.com", "jdupont",
+                    Timestamp.valueOf(LocalDateTime.of(2025, 1, 1, 10, 0)), (byte) 1, "jdupontLDAP");
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class AdapterState {
+        KeycloakSession session;
+        RealmModel realm;
+        ComponentModel model;
+        ExternalUserDao dao;
+        ExternalUser user;
+        ExternalUserAdapter adapter;
+
+        @Setup
+        public void setup() throws Exception {
+            session = BenchmarkFixtures.session();
+            realm = BenchmarkFixtures.realm();
+            model = BenchmarkFixtures.model();
+            dao = new ExternalUserDao(BenchmarkFixtures.database("adapter", 10, 0));
+            user = dao.findById(1);
+            adapter = new ExternalUserAdapter(session, realm, model, user, dao);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class LoginState {
+        @Param({"10000"})
+        int rows;
+
+        RealmModel realm;
+        FdpSQLUserStorageProvider provider;
+
+        @Setup
+        public void setup() throws Exception {
+            DataSource ds = BenchmarkFixtures.database("login", rows, 10);
+            realm = BenchmarkFixtures.realm();
+            provider = new FdpSQLUserStorageProvider(BenchmarkFixtures.session(), BenchmarkFixtures.model(), ds);
+        }
+    }
+
+    @Benchmark
+    public ExternalUser mapRow(RowState state) throws SQLException {
+        state.rs.beforeFirst();
+        state.rs.next();
+        return ExternalUserMapper.map(state.rs);
+    }
+
+    @Benchmark
+    public LocalDateTime parseDateTimeEpochMillis() {
+        return ExternalUserAdapter.parseDateTime("1714694400000");
+    }
+
+    @Benchmark
+    public LocalDateTime parseDateTimeIso() {
+        return ExternalUserAdapter.parseDateTime("2025-02-03 04:05:06");
+    }
+
+    @Benchmark
+    public UserModel createAdapter(AdapterState state) {
+        return new ExternalUserAdapter(state.session, state.realm, state.model, state.user, state.dao);
+    }
+
+    @Benchmark
+    public Object getAttributes(AdapterState state) {
+        return state.adapter.getAttributes();
+    }
+
+    @Benchmark
+    public void login(LoginState state, Blackhole bh) {
+        int n = ThreadLocalRandom.current().nextInt(1, state.rows + 1);
+        UserModel user = state.provider.getUserByUsername(state.realm, BenchmarkFixtures.login(n));
+        bh.consume(state.provider.isValid(state.realm, user,
+                UserCredentialModel.password(BenchmarkFixtures.PASSWORD_PREFIX + n)));
+    }
+}
@@ -0,0 +1,135 @@
+package net.minet.keycloak.hash;
+
+import java.time.Duration;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded pool of threads computing password hashes.
+ *
+ * <p>Password checks from the user storage provider and from
+ * {@link Md4Utf16PasswordHashProvider#verify} hash on this pool instead of
+ * the calling Keycloak worker, so hashing spikes use at most
+ * {@code threads} cores. When the queue is full, or a hash waits longer than
+ * the timeout, the call is rejected with {@link RejectedExecutionException}.</p>
+ *
+ * <p>The shared instance is configured with {@code fdp.hashing.threads}
+ * (default: half the cores), {@code fdp.hashing.queue} (256) and
+ * {@code fdp.hashing.timeout-ms} (2000), or the matching {@code FDP_HASHING_*}
+ * variables. {@code threads = 0} hashes on the calling thread.</p>
+ */
+public final class HashingExecutor {
+
+    private static volatile HashingExecutor shared;
+
+    private final ThreadPoolExecutor pool;
+    private final long timeoutNanos;
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * @param threads    threads dédiés au hachage, {@code 0} pour hacher sur le thread appelant
+     * @param queueDepth hachages en attente au-delà desquels les appels sont rejetés
+     * @param timeout    attente maximale d'un hachage, file comprise
+     */
+    public HashingExecutor(int threads, int queueDepth, Duration timeout) {
+        this.timeoutNanos = timeout.toNanos();
+        if (threads <= 0) {
+            this.pool = null;
+            return;
+        }
+        AtomicInteger counter = new AtomicInteger();
+        BlockingQueue<Runnable> queue = queueDepth > 0 ? new ArrayBlockingQueue<>(queueDepth) : new SynchronousQueue<>();
+        this.pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, queue, r -> {
+            Thread t = new Thread(r, "fdp-hash-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /** Instance partagée par le provider de fédération et le provider de hachage. */
+    public static HashingExecutor shared() {
+        HashingExecutor executor = shared;
+        if (executor == null) {
+            synchronized (HashingExecutor.class) {
+                executor = shared;
+                if (executor == null) {
+                    int cores = Runtime.getRuntime().availableProcessors();
+                    executor = new HashingExecutor(
+                            Integer.parseInt(setting("fdp.hashing.threads", "FDP_HASHING_THREADS", String.valueOf(Math.max(1, cores / 2)))),
+                            Integer.parseInt(setting("fdp.hashing.queue", "FDP_HASHING_QUEUE", "256")),
+                            Duration.ofMillis(Long.parseLong(setting("fdp.hashing.timeout-ms", "FDP_HASHING_TIMEOUT_MS", "2000"))));
+                    shared = executor;
+                }
+            }
+        }
+        return executor;
+    }
+
+    private static String setting(String property, String env, String defaultValue) {
+        String value = System.getProperty(property, System.getenv(env));
+        return value == null || value.isBlank() ? defaultValue : value;
+    }
+
+    /**
+     * Calcule {@link Md4Util#md4Hex(String)} sur le pool.
+     *
+     * @throws RejectedExecutionException si le pool est saturé ou le hachage trop lent
+     */
+    public String md4Hex(String input) {
+        if (pool == null) {
+            return Md4Util.md4Hex(input);
+        }
+        Future<String> future;
+        try {
+            future = pool.submit(() -> Md4Util.md4Hex(input));
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            throw e;
+        }
+        try {
+            return future.get(timeoutNanos, TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(false);
+            rejected.increment();
+            throw new RejectedExecutionException("Password hashing timed out", e);
+        } catch (InterruptedException e) {
+            future.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while waiting for password hashing", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException re) {
+                throw re;
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /** Hachages en attente d'un thread. */
+    public int queued() {
+        return pool == null ? 0 : pool.getQueue().size();
+    }
+
+    /** Hachages en cours de calcul. */
+    public int active() {
+        return pool == null ? 0 : pool.getActiveCount();
+    }
+
+    /** Hachages rejetés faute de place ou de temps. */
+    public long rejected() {
+        return rejected.sum();
+    }
+
+    /** Hachages terminés sur le pool. */
+    public long completed() {
+        return pool == null ? 0 : pool.getCompletedTaskCount();
+    }
+}
@@ -3,9 +3,12 @@ package net.minet.keycloak.hash;
 import net.minet.keycloak.hash.Md4Util;
 
 import org.keycloak.credential.hash.PasswordHashProvider;
+import org.keycloak.models.ModelException;
 import org.keycloak.models.PasswordPolicy;
 import org.keycloak.models.credential.PasswordCredentialModel;
 
+import java.util.concurrent.RejectedExecutionException;
+
 /**
  * Fournisseur de hachage de mot de passe qui calcule un digest MD4 du mot de passe encodé en UTF-16.
  * Utilisé pour vérifier les mots de passe provenant de systèmes hérités.
@@ -70,14 +73,22 @@ public class Md4Utf16PasswordHashProvider implements PasswordHashProvider {
 
     /**
      * Vérifie si un mot de passe brut correspond à un mot de passe encodé.
+     * Le hachage est calculé sur le {@link HashingExecutor} partagé.
      *
      * @param rawPassword Le mot de passe brut.
      * @param credential  Les informations d'identification encodées.
      * @return `true` si le mot de passe correspond, sinon `false`.
+     * @throws ModelException si le pool de hachage est saturé
      */
     @Override
     public boolean verify(String rawPassword, PasswordCredentialModel credential) {
-        String hash = encode(rawPassword, credential.getPasswordCredentialData().getHashIterations());
+        String hash;
+        try {
+            hash = HashingExecutor.shared().md4Hex(rawPassword);
+        } catch (RejectedExecutionException e) {
+            // an error rather than a wrong password, which would feed brute-force detection
+            throw new ModelException("Password hashing overloaded", e);
+        }
         return hash.equalsIgnoreCase(credential.getPasswordSecretData().getValue());
     }
 
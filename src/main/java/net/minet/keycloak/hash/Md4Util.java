@@ -32,4 +32,20 @@ public final class Md4Util {
             throw new RuntimeException("MD4 algorithm not available", e);
         }
     }
+
+    /**
+     * Indique si une valeur stockée a la forme d'un hash MD4 hexadécimal (32 caractères),
+     * par opposition à un ancien mot de passe en clair.
+     */
+    public static boolean isMd4Hex(String value) {
+        if (value == null || value.length() != 32) {
+            return false;
+        }
+        for (int i = 0; i < 32; i++) {
+            if (Character.digit(value.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
 }
@@ -0,0 +1,245 @@
+package net.minet.keycloak.spi;
+
+import net.minet.keycloak.spi.dao.AdherentColumn;
+import net.minet.keycloak.spi.entity.ExternalUser;
+import org.jboss.logging.Logger;
+import org.keycloak.representations.userprofile.config.UPAttribute;
+import org.keycloak.representations.userprofile.config.UPConfig;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Compiled table of the attributes exposed from {@code adherents} columns.
+ *
+ * <p>The mapping is declared as {@code attribute=column} entries in the
+ * component configuration and compiled once into parallel arrays indexed by
+ * slot: {@link AdherentColumn}, value type, alias names and write permission.
+ * A binary search over the sorted aliases (attribute name, its snake_case form
+ * or the column name) resolves any of them to its slot; everything else is
+ * array access.</p>
+ */
+public final class AttributeMapping {
+    private static final Logger logger = Logger.getLogger(AttributeMapping.class);
+
+    /** Entrées par défaut, identiques aux attributs historiquement exposés. */
+    public static final List<String> DEFAULT_ENTRIES = List.of(
+            "email=mail", "firstName=prenom", "lastName=nom", "ldapLogin=ldap_login",
+            "createdAt=created_at", "isNaina=is_naina", "mailinglist=mailinglist");
+
+    /** Conversion entre la valeur de l'entité et sa représentation en attribut. */
+    enum Type {
+        STRING {
+            @Override
+            Object parse(String value) {
+                return value;
+            }
+        },
+        BYTE {
+            @Override
+            Object parse(String value) {
+                return Byte.valueOf(value);
+            }
+        },
+        /** Milliseconds since epoch in Keycloak, {@link LocalDateTime} in UTC in the entity. */
+        DATETIME {
+            @Override
+            Object parse(String value) {
+                return ExternalUserAdapter.parseDateTime(value);
+            }
+
+            @Override
+            String format(Object value) {
+                return String.valueOf(((LocalDateTime) value).toInstant(ZoneOffset.UTC).toEpochMilli());
+            }
+        };
+
+        abstract Object parse(String value);
+
+        String format(Object value) {
+            return value.toString();
+        }
+
+        /**
+         * Conversion d'une colonne pouvant porter un attribut.
+         *
+         * @throws IllegalArgumentException pour {@code id} et {@code login}, qui ne sont pas des attributs
+         */
+        static Type of(AdherentColumn column) {
+            if (column == AdherentColumn.ID || column == AdherentColumn.LOGIN) {
+                throw new IllegalArgumentException("Column cannot back an attribute: " + column.column());
+            }
+            return switch (column.type()) {
+                case STRING -> STRING;
+                case BYTE -> BYTE;
+                case DATETIME -> DATETIME;
+                case INT -> throw new IllegalArgumentException("Column cannot back an attribute: " + column.column());
+            };
+        }
+    }
+
+    /** Correspondance par défaut. */
+    public static final AttributeMapping DEFAULT = compile(DEFAULT_ENTRIES);
+
+    private final List<String> entries;
+    private final String[] attributes;
+    private final AdherentColumn[] columns;
+    private final Type[] types;
+    private final String[][] aliases;
+    private final boolean[] writable;
+    // every alias, sorted for a binary search, and the slot of each
+    private final String[] names;
+    private final int[] nameSlots;
+
+    private AttributeMapping(List<String> entries, String[] attributes, AdherentColumn[] columns, Type[] types,
+                             String[][] aliases, boolean[] writable, String[] names, int[] nameSlots) {
+        this.entries = entries;
+        this.attributes = attributes;
+        this.columns = columns;
+        this.types = types;
+        this.aliases = aliases;
+        this.writable = writable;
+        this.names = names;
+        this.nameSlots = nameSlots;
+    }
+
+    /**
+     * Compile des entrées {@code attribut=colonne}.
+     *
+     * @throws IllegalArgumentException si une entrée est mal formée, vise une colonne inconnue
+     *                                  ou réutilise un nom déjà attribué
+     */
+    public static AttributeMapping compile(List<String> entries) {
+        int n = entries.size();
+        String[] attributes = new String[n];
+        AdherentColumn[] columns = new AdherentColumn[n];
+        Type[] types = new Type[n];
+        String[][] aliases = new String[n][];
+        boolean[] writable = new boolean[n];
+        Map<String, Integer> slots = new TreeMap<>();
+        for (int i = 0; i < n; i++) {
+            String entry = entries.get(i).trim();
+            int equals = entry.indexOf('=');
+            if (equals <= 0 || equals == entry.length() - 1) {
+                throw new IllegalArgumentException("Expected attribute=column, got " + entry);
+            }
+            attributes[i] = entry.substring(0, equals).trim();
+            String column = entry.substring(equals + 1).trim();
+            columns[i] = AdherentColumn.of(column);
+            if (columns[i] == null) {
+                throw new IllegalArgumentException("Column cannot back an attribute: " + column);
+            }
+            types[i] = Type.of(columns[i]);
+            writable[i] = columns[i].updatable();
+            Set<String> names = new LinkedHashSet<>(List.of(attributes[i], camelToSnake(attributes[i]), column));
+            aliases[i] = names.toArray(String[]::new);
+            for (String name : aliases[i]) {
+                Integer previous = slots.putIfAbsent(name, i);
+                if (previous != null && previous != i) {
+                    throw new IllegalArgumentException("Attribute name mapped twice: " + name);
+                }
+            }
+        }
+        String[] names = slots.keySet().toArray(String[]::new);
+        int[] nameSlots = slots.values().stream().mapToInt(Integer::intValue).toArray();
+        return new AttributeMapping(List.copyOf(entries), attributes, columns, types, aliases, writable,
+                names, nameSlots);
+    }
+
+    private static String camelToSnake(String s) {
+        return s.replaceAll("([a-z])([A-Z]+)", "$1_$2").toLowerCase(Locale.ROOT);
+    }
+
+    /** Entrées dont la table est issue. */
+    public List<String> entries() {
+        return entries;
+    }
+
+    public int size() {
+        return attributes.length;
+    }
+
+    /** Emplacement d'un nom d'attribut ou de l'un de ses alias, {@code -1} s'il n'est pas mappé. */
+    public int slot(String name) {
+        int found = name == null ? -1 : Arrays.binarySearch(names, name);
+        return found < 0 ? -1 : nameSlots[found];
+    }
+
+    public String attribute(int slot) {
+        return attributes[slot];
+    }
+
+    public String column(int slot) {
+        return columns[slot].column();
+    }
+
+    /** Noms sous lesquels l'attribut est exposé : attribut, snake_case et colonne, sans doublon. */
+    public String[] aliases(int slot) {
+        return aliases[slot];
+    }
+
+    /** Indique si l'attribut peut être réécrit dans {@code adherents}. */
+    public boolean writable(int slot) {
+        return writable[slot];
+    }
+
+    public Object get(int slot, ExternalUser user) {
+        return columns[slot].get(user);
+    }
+
+    public void set(int slot, ExternalUser user, Object value) {
+        columns[slot].set(user, value);
+    }
+
+    /** Valeur d'attribut de l'utilisateur, {@code null} si la colonne est vide. */
+    public String format(int slot, ExternalUser user) {
+        Object value = get(slot, user);
+        return value == null ? null : types[slot].format(value);
+    }
+
+    /**
+     * Convertit une valeur fournie par Keycloak pour l'entité.
+     *
+     * @throws RuntimeException si la valeur n'est pas au format de la colonne
+     */
+    public Object parse(int slot, String value) {
+        return value == null || value.isBlank() ? null : types[slot].parse(value);
+    }
+
+    /**
+     * Compare la table au profil utilisateur déclaratif du realm et journalise
+     * les attributs déclarés d'un seul côté.
+     *
+     * @return les attributs mappés absents du profil
+     */
+    public List<String> checkProfile(UPConfig profile) {
+        Set<String> declared = new HashSet<>();
+        for (UPAttribute attribute : profile.getAttributes()) {
+            declared.add(attribute.getName());
+        }
+        List<String> undeclared = new ArrayList<>();
+        for (String attribute : attributes) {
+            if (!declared.contains(attribute)) {
+                undeclared.add(attribute);
+            }
+        }
+        if (!undeclared.isEmpty()) {
+            logger.warnf("Mapped attributes missing from the realm user profile, hidden by it: %s", undeclared);
+        }
+        for (String name : declared) {
+            if (slot(name) < 0 && !"username".equals(name)) {
+                logger.debugf("Attribute %s of the realm user profile is not backed by an adherents column", name);
+            }
+        }
+        return undeclared;
+    }
+}
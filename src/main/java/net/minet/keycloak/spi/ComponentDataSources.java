@@ -0,0 +1,148 @@
+package net.minet.keycloak.spi;
+
+import net.minet.keycloak.spi.dao.ExternalUserDao;
+import org.jboss.logging.Logger;
+import org.keycloak.component.ComponentModel;
+
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Connection pools of the federation components that declare their own
+ * database.
+ *
+ * <p>A pool is opened the first time a provider is created for a component
+ * and reused until the component is updated with different connection
+ * settings, removed, or the factory closes. Each component thus borrows from
+ * its own bounded pool, so a busy realm cannot exhaust the connections of the
+ * others. Components without a JDBC URL keep using the shared pool.</p>
+ */
+final class ComponentDataSources implements AutoCloseable {
+    private static final Logger logger = Logger.getLogger(ComponentDataSources.class);
+
+    /** URL JDBC propre au composant ; vide pour utiliser le pool partagé. */
+    static final String CONFIG_JDBC_URL = "jdbcUrl";
+    static final String CONFIG_USERNAME = "jdbcUsername";
+    static final String CONFIG_PASSWORD = "jdbcPassword";
+    static final String CONFIG_POOL_MIN_SIZE = "poolMinSize";
+    static final String CONFIG_POOL_MAX_SIZE = "poolMaxSize";
+
+    /**
+     * Paramètres de connexion d'un composant.
+     *
+     * @param url      URL JDBC, sans les options de pool
+     * @param username utilisateur de la base
+     * @param password mot de passe de la base
+     * @param minSize  connexions maintenues ouvertes
+     * @param maxSize  connexions au plus
+     */
+    record Settings(String url, String username, String password, int minSize, int maxSize) {
+
+        /** Paramètres du composant, ou {@code null} s'il n'a pas de base propre. */
+        static Settings of(ComponentModel model) {
+            String url = model.get(CONFIG_JDBC_URL);
+            if (url == null || url.isBlank()) {
+                return null;
+            }
+            return new Settings(url.trim(), model.get(CONFIG_USERNAME), model.get(CONFIG_PASSWORD),
+                    model.get(CONFIG_POOL_MIN_SIZE, 1), model.get(CONFIG_POOL_MAX_SIZE, 4));
+        }
+
+        @Override
+        public String toString() {
+            // never log the password
+            return url + " [" + minSize + ".." + maxSize + "]";
+        }
+    }
+
+    /** Pool d'un composant et le DAO qui l'utilise. */
+    record Pool(Settings settings, DataSource dataSource, ExternalUserDao userDao) {}
+
+    /** Ouvre la datasource et le DAO correspondant à des paramètres. */
+    @FunctionalInterface
+    interface Opener {
+        Pool open(Settings settings) throws Exception;
+    }
+
+    private final Map<String, Pool> pools = new ConcurrentHashMap<>();
+    private final Opener opener;
+
+    ComponentDataSources(Opener opener) {
+        this.opener = opener;
+    }
+
+    /**
+     * Pool du composant, ouvert au premier appel. Un pool ouvert avec d'autres
+     * paramètres est remplacé puis fermé.
+     *
+     * @return {@code null} si le composant utilise le pool partagé
+     */
+    Pool get(ComponentModel model) {
+        Settings settings = Settings.of(model);
+        Pool current = pools.get(model.getId());
+        if (current != null && Objects.equals(current.settings(), settings)) {
+            return current;
+        }
+        if (settings == null) {
+            close(model.getId());
+            return null;
+        }
+        List<Pool> replaced = new ArrayList<>(1);
+        Pool pool = pools.compute(model.getId(), (id, old) -> {
+            if (old != null && old.settings().equals(settings)) {
+                return old;
+            }
+            if (old != null) {
+                replaced.add(old);
+            }
+            return open(id, settings);
+        });
+        replaced.forEach(ComponentDataSources::close);
+        return pool;
+    }
+
+    private Pool open(String id, Settings settings) {
+        try {
+            Pool pool = opener.open(settings);
+            logger.infof("Opened connection pool for component %s: %s", id, settings);
+            return pool;
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to open connection pool for component " + id, e);
+        }
+    }
+
+    /** Ferme le pool d'un composant mis à jour ou supprimé. */
+    void close(String componentId) {
+        Pool pool = pools.remove(componentId);
+        if (pool != null) {
+            logger.infof("Closing connection pool for component %s", componentId);
+            close(pool);
+        }
+    }
+
+    /** Nombre de pools ouverts. */
+    int size() {
+        return pools.size();
+    }
+
+    @Override
+    public void close() {
+        for (String id : List.copyOf(pools.keySet())) {
+            close(id);
+        }
+    }
+
+    private static void close(Pool pool) {
+        if (pool.dataSource() instanceof AutoCloseable closeable) {
+            try {
+                closeable.close();
+            } catch (Exception e) {
+                logger.warnf("Failed to close connection pool %s: %s", pool.settings(), e.getMessage());
+            }
+        }
+    }
+}
@@ -1,73 +1,68 @@
 package net.minet.keycloak.spi;
 
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.function.Function;
 import java.util.function.BiConsumer;
 import javax.sql.DataSource;
-import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.SQLException;
-import java.sql.Timestamp;
-import java.sql.Date;
 import org.jboss.logging.Logger;
 
+import net.minet.keycloak.spi.dao.ExternalUserDao;
 import net.minet.keycloak.spi.entity.ExternalUser;
+import net.minet.keycloak.spi.entity.ExternalUserDetails;
+import net.minet.keycloak.spi.groups.VirtualGroups;
+import net.minet.keycloak.spi.provisioning.PendingProfiles;
+import net.minet.keycloak.spi.roles.RoleMappings;
 import org.keycloak.component.ComponentModel;
+import org.keycloak.models.GroupModel;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
 import org.keycloak.storage.adapter.AbstractUserAdapterFederatedStorage;
 
 /**
  * Adapter that exposes an {@link ExternalUser} to Keycloak.
  *
- * <p>Mapped attributes are stored under multiple aliases: the Java bean name,
- * a snake_case version and the actual column name. Updates to any alias keep
- * the underlying entity and all other aliases in sync.</p>
+ * <p>Mapped attributes are exposed under multiple aliases: the attribute name,
+ * a snake_case version and the actual column name. Every alias resolves to a
+ * slot of the compiled {@link AttributeMapping}, so reads and writes go
+ * straight to the underlying entity and all aliases stay in sync.</p>
  */
 public class ExternalUserAdapter extends AbstractUserAdapterFederatedStorage {
     private final ExternalUser user;
-    private final DataSource dataSource;
+    private final ExternalUserDao userDao;
+    private AttributeMapping mapping = AttributeMapping.DEFAULT;
+    private RoleMappings roleMappings;
+    private ExternalUserDetails details;
+    private PendingProfiles pending;
     private static final Logger logger = Logger.getLogger(ExternalUserAdapter.class);
 
-    // Mapping between exposed attribute names and database columns
-    private static final Map<String, String> ATTRIBUTE_COLUMNS = Map.ofEntries(
-            Map.entry("email", "mail"),
-            Map.entry("firstName", "prenom"),
-            Map.entry("lastName", "nom"),
-            Map.entry("ldapLogin", "ldap_login"),
-            Map.entry("createdAt", "created_at"),
-            Map.entry("isNaina", "is_naina")
+    // Extended columns, loaded by a secondary query the first time one of them is read
+    private static final Map<String, Function<ExternalUserDetails, Object>> DETAIL_GETTERS = Map.of(
+            "dateDeDepart", ExternalUserDetails::dateDeDepart,
+            "chambreId", ExternalUserDetails::chambreId,
+            "subnet", ExternalUserDetails::subnet,
+            "ip", ExternalUserDetails::ip,
+            "dateSignedAdhesion", ExternalUserDetails::dateSignedAdhesion
     );
 
-    // Setters used when persisting attribute changes back to the database
-    private static final Map<String, BiConsumer<ExternalUser, Object>> ATTRIBUTE_SETTERS = Map.ofEntries(
-            Map.entry("email", (u, v) -> u.setEmail((String) v)),
-            Map.entry("firstName", (u, v) -> u.setFirstName((String) v)),
-            Map.entry("lastName", (u, v) -> u.setLastName((String) v)),
-            Map.entry("ldapLogin", (u, v) -> u.setLdapLogin((String) v)),
-            Map.entry("createdAt", (u, v) -> u.setCreatedAt((java.time.LocalDateTime) v)),
-            Map.entry("isNaina", (u, v) -> u.setIsNaina((Byte) v))
+    // Every name an extended attribute answers to: attribute, snake_case and column names
+    private static final Map<String, String> DETAIL_ALIASES = Map.ofEntries(
+            Map.entry("dateDeDepart", "dateDeDepart"),
+            Map.entry("date_de_depart", "dateDeDepart"),
+            Map.entry("chambreId", "chambreId"),
+            Map.entry("chambre_id", "chambreId"),
+            Map.entry("subnet", "subnet"),
+            Map.entry("ip", "ip"),
+            Map.entry("dateSignedAdhesion", "dateSignedAdhesion"),
+            Map.entry("date_signed_adhesion", "dateSignedAdhesion"),
+            Map.entry("datesignedadhesion", "dateSignedAdhesion")
     );
 
-    // Accessors used to populate Keycloak with values from the entity
-    private static final Map<String, Function<ExternalUser, Object>> ATTRIBUTE_GETTERS = Map.ofEntries(
-            Map.entry("email", ExternalUser::getEmail),
-            Map.entry("firstName", ExternalUser::getFirstName),
-            Map.entry("lastName", ExternalUser::getLastName),
-            Map.entry("ldapLogin", ExternalUser::getLdapLogin),
-            Map.entry("createdAt", ExternalUser::getCreatedAt),
-            Map.entry("isNaina", ExternalUser::getIsNaina)
-    );
-
-    private static final Set<String> DATETIME_ATTRIBUTES = Set.of("createdAt");
-
-    private static final Map<String, Function<String, Object>> VALUE_PARSERS = Map.of(
-            "createdAt", ExternalUserAdapter::parseDateTime,
-            "isNaina", (String v) -> Byte.valueOf(v)
-    );
+    private static final Set<String> DATETIME_DETAILS = Set.of("dateSignedAdhesion");
 
     private static <T> T get(ExternalUser u, Function<ExternalUser, T> fn) {
         return fn.apply(u);
@@ -77,7 +72,8 @@ public class ExternalUserAdapter extends AbstractUserAdapterFederatedStorage {
         fn.accept(u, v);
     }
 
-    private static java.time.LocalDateTime parseDateTime(String value) {
+    // package-private for the JMH benchmarks
+    static java.time.LocalDateTime parseDateTime(String value) {
         if (value.matches("-?\\d+")) {
             long ms = Long.parseLong(value);
             return java.time.LocalDateTime.ofInstant(
@@ -99,94 +95,63 @@ public class ExternalUserAdapter extends AbstractUserAdapterFederatedStorage {
         throw new java.time.format.DateTimeParseException("Unparseable date", value, 0);
     }
 
-    /**
-     * Parse a string representation of an attribute value.
-     *
-     * <p>For {@code createdAt} the method accepts several formats:
-     * <ul>
-     *   <li>milliseconds since epoch</li>
-     *   <li>ISO-8601 date-time strings (e.g. {@code 2025-01-02T10:00})</li>
-     *   <li>"yyyy-MM-dd HH:mm:ss"</li>
-     *   <li>"yyyy-MM-dd"</li>
-     * </ul>
-     */
-    private static Object parseValue(String name, String value) {
-        if (value == null || value.trim().isEmpty()) {
-            return null;
-        }
-        Function<String, Object> parser = VALUE_PARSERS.get(name);
-        if (parser != null) {
-            try {
-                return parser.apply(value);
-            } catch (RuntimeException e) {
-                logger.warnf("Failed to parse value for %s: %s", name, value);
-                return null;
-            }
-        }
-        return value;
-    }
-
     private static String toAttributeString(String name, Object value) {
         if (value == null) {
             return null;
         }
-        if (value instanceof java.time.LocalDateTime ldt && DATETIME_ATTRIBUTES.contains(name)) {
+        if (value instanceof java.time.LocalDateTime ldt && DATETIME_DETAILS.contains(name)) {
             long ms = ldt.atZone(java.time.ZoneOffset.UTC).toInstant().toEpochMilli();
             return String.valueOf(ms);
         }
         return value.toString();
     }
 
-    private void setAttributeWithAliases(String name, String value) {
-        super.setSingleAttribute(name, value);
-        logger.debugf(" -> %s=%s", name, value);
-        String alias = camelToSnake(name);
-        if (!alias.equals(name)) {
-            super.setSingleAttribute(alias, value);
-            logger.debugf(" -> %s=%s", alias, value);
-        }
-        String columnAlias = ATTRIBUTE_COLUMNS.get(name);
-        if (columnAlias != null && !columnAlias.equals(name) && !columnAlias.equals(alias)) {
-            super.setSingleAttribute(columnAlias, value);
-            logger.debugf(" -> %s=%s", columnAlias, value);
+    /**
+     * Parse la valeur fournie par Keycloak pour l'attribut de l'emplacement donné.
+     *
+     * <p>Les dates acceptent plusieurs formats :
+     * <ul>
+     *   <li>milliseconds since epoch</li>
+     *   <li>ISO-8601 date-time strings (e.g. {@code 2025-01-02T10:00})</li>
+     *   <li>"yyyy-MM-dd HH:mm:ss"</li>
+     *   <li>"yyyy-MM-dd"</li>
+     * </ul>
+     */
+    private Object parseValue(int slot, String value) {
+        try {
+            return mapping.parse(slot, value);
+        } catch (RuntimeException e) {
+            logger.warnf("Failed to parse value for %s: %s", mapping.attribute(slot), value);
+            return null;
         }
     }
 
     private void updateColumn(String column, Object value) {
-        logger.debugf("updateColumn %s=%s", column, value);
-        try (Connection c = dataSource.getConnection();
-             PreparedStatement ps = c.prepareStatement("UPDATE adherents SET " + column + "=? WHERE id=?")) {
-            if (value instanceof java.time.LocalDate ld) {
-                ps.setDate(1, Date.valueOf(ld));
-            } else if (value instanceof java.time.LocalDateTime ldt) {
-                ps.setTimestamp(1, Timestamp.valueOf(ldt));
-            } else {
-                ps.setObject(1, value);
-            }
-            ps.setInt(2, user.getId());
-            ps.executeUpdate();
-        } catch (SQLException e) {
-            logger.warn("Failed to update column " + column + " for user " + user.getId() + ": " + e.getMessage());
+        if (pending != null) {
+            // created in this transaction: the entity is written with the others at commit
+            logger.debugf("updateColumn %s=%s deferred to commit", column, value);
+            return;
         }
+        logger.debugf("updateColumn %s=%s", column, value);
+        userDao.updateColumn(user.getId(), column, value);
     }
 
     /**
-     * Update an attribute both in the wrapped {@link ExternalUser} and in the
-     * federated storage. Mapped columns are persisted to the external database
-     * and all alias keys (camelCase, snake_case and column name) are kept in
-     * sync.
+     * Update an attribute in the wrapped {@link ExternalUser} and in the
+     * external database. Mapped attributes are read back from the entity under
+     * every alias, so nothing is copied to the federated storage. Unmapped
+     * attributes are kept in the federated storage only.
      */
     private void updateAttribute(String name, Object value) {
         logger.debugf("updateAttribute %s=%s", name, value);
-        BiConsumer<ExternalUser, Object> setter = ATTRIBUTE_SETTERS.get(name);
-        String column = ATTRIBUTE_COLUMNS.get(name);
-        if (setter != null && column != null) {
-            set(user, setter, value);
-            updateColumn(column, value);
-            String str = toAttributeString(name, value);
-            setAttributeWithAliases(name, str);
-        } else {
+        int slot = mapping.slot(name);
+        if (slot < 0) {
             super.setSingleAttribute(name, value == null ? null : value.toString());
+        } else if (mapping.writable(slot)) {
+            mapping.set(slot, user, value);
+            updateColumn(mapping.column(slot), value);
+        } else {
+            logger.debugf("Ignoring write to read-only attribute %s", name);
         }
     }
 
@@ -195,46 +160,43 @@ public class ExternalUserAdapter extends AbstractUserAdapterFederatedStorage {
      * Les informations de l'utilisateur externe sont conservées et exposées via l'API {@link UserModel}.
      */
     public ExternalUserAdapter(KeycloakSession session, RealmModel realm, ComponentModel model, ExternalUser user, DataSource dataSource) {
+        this(session, realm, model, user, new ExternalUserDao(dataSource));
+    }
+
+    /**
+     * Constructeur utilisé par le provider, qui partage son DAO et donc les requêtes
+     * préparées du {@link net.minet.keycloak.spi.dao.StatementRegistry}.
+     */
+    public ExternalUserAdapter(KeycloakSession session, RealmModel realm, ComponentModel model, ExternalUser user, ExternalUserDao userDao) {
+        this(session, realm, model, user, userDao, String.valueOf(user.getId()));
+    }
+
+    /**
+     * Constructeur utilisé en mode shardé : {@code userDao} est celui du shard de l'adhérent
+     * et {@code externalId} encode ce shard.
+     */
+    public ExternalUserAdapter(KeycloakSession session, RealmModel realm, ComponentModel model, ExternalUser user,
+                               ExternalUserDao userDao, String externalId) {
         super(session, realm, model);
         this.user = user;
-        this.dataSource = dataSource;
-        this.storageId = new org.keycloak.storage.StorageId(model.getId(), String.valueOf(user.getId()));
-        addDefaults();
+        this.userDao = userDao;
+        this.storageId = new org.keycloak.storage.StorageId(model.getId(), externalId);
     }
 
     /**
-     * Convertit un nom d'attribut en notation camelCase vers son équivalent snake_case.
-     * Keycloak n'appelle pas directement cette méthode mais elle sert à exposer
-     * les attributs sous plusieurs alias.
+     * Table des attributs adossés aux colonnes, compilée par la factory depuis la
+     * configuration du composant.
      */
-    private static String camelToSnake(String s) {
-        return s.replaceAll("([a-z])([A-Z]+)", "$1_$2").toLowerCase();
+    public void setAttributeMapping(AttributeMapping mapping) {
+        this.mapping = mapping;
     }
 
     /**
-     * Populate this adapter's attribute map from the wrapped {@link ExternalUser}.
-     * <p>
-     * Built-in fields such as first name and last name are assigned via their
-     * dedicated setters and also stored as attributes under multiple aliases
-     * (e.g. {@code firstName}, {@code first_name}, and the database column name
-     * {@code prenom}). Other columns are only exposed as attributes without
-     * calling specialised setters.
+     * Profils en attente de la transaction ayant créé cet utilisateur : les écritures
+     * ne modifient alors que l'entité, écrite en une fois à la validation.
      */
-    private void addDefaults() {
-        ATTRIBUTE_GETTERS.forEach((name, fn) -> {
-            Object val = fn.apply(user);
-            if (val != null) {
-                logger.debugf("addDefaults %s=%s", name, val);
-                String str = toAttributeString(name, val);
-                switch (name) {
-                    case "email" -> setEmail((String) val);
-                    case "firstName" -> setFirstName((String) val);
-                    case "lastName" -> setLastName((String) val);
-                    case "createdAt" -> setCreatedTimestamp(Long.parseLong(str));
-                }
-                setAttributeWithAliases(name, str);
-            }
-        });
+    public void setPendingProfiles(PendingProfiles pending) {
+        this.pending = pending;
     }
 
     @Override
@@ -267,7 +229,8 @@ public class ExternalUserAdapter extends AbstractUserAdapterFederatedStorage {
      * Enregistre la nouvelle adresse email et synchronise la valeur en base.
      */
     public void setEmail(String email) {
-        updateAttribute("email", email);
+        set(user, (u, v) -> u.setEmail((String) v), email);
+        updateColumn("mail", email);
     }
 
     @Override
@@ -283,7 +246,8 @@ public class ExternalUserAdapter extends AbstractUserAdapterFederatedStorage {
      * Met à jour le prénom de l'utilisateur dans la base externe et dans les attributs Keycloak.
      */
     public void setFirstName(String firstName) {
-        updateAttribute("firstName", firstName);
+        set(user, (u, v) -> u.setFirstName((String) v), firstName);
+        updateColumn("prenom", firstName);
     }
 
     @Override
@@ -299,7 +263,8 @@ public class ExternalUserAdapter extends AbstractUserAdapterFederatedStorage {
      * Modifie le nom de famille côté base et dans Keycloak.
      */
     public void setLastName(String lastName) {
-        updateAttribute("lastName", lastName);
+        set(user, (u, v) -> u.setLastName((String) v), lastName);
+        updateColumn("nom", lastName);
     }
 
     @Override
@@ -324,8 +289,8 @@ public class ExternalUserAdapter extends AbstractUserAdapterFederatedStorage {
             java.time.Instant i = java.time.Instant.ofEpochMilli(timestamp);
             ldt = java.time.LocalDateTime.ofInstant(i, java.time.ZoneOffset.UTC);
         }
-        updateAttribute("createdAt", ldt);
-        super.setCreatedTimestamp(timestamp);
+        user.setCreatedAt(ldt);
+        updateColumn("created_at", ldt);
     }
 
     /**
@@ -335,8 +300,14 @@ public class ExternalUserAdapter extends AbstractUserAdapterFederatedStorage {
      * @param timestamp date de création sous forme textuelle, par exemple "2025-01-02T10:00".
      */
     public void setCreatedTimestamp(String timestamp) {
-        Object val = parseValue("createdAt", timestamp);
-        java.time.LocalDateTime ldt = (java.time.LocalDateTime) val;
+        java.time.LocalDateTime ldt = null;
+        if (timestamp != null && !timestamp.isBlank()) {
+            try {
+                ldt = parseDateTime(timestamp);
+            } catch (RuntimeException e) {
+                logger.warnf("Failed to parse value for createdAt: %s", timestamp);
+            }
+        }
         Long ts = null;
         if (ldt != null) {
             ts = ldt.atZone(java.time.ZoneOffset.UTC).toInstant().toEpochMilli();
@@ -344,14 +315,52 @@ public class ExternalUserAdapter extends AbstractUserAdapterFederatedStorage {
         setCreatedTimestamp(ts);
     }
 
+    /**
+     * Colonnes étendues, lues en base lors du premier accès puis conservées par l'adaptateur.
+     */
+    private ExternalUserDetails details() {
+        if (details == null) {
+            details = userDao.findDetails(user.getId());
+        }
+        return details;
+    }
+
+    private String detailValue(String name) {
+        ExternalUserDetails loaded = details();
+        if (loaded == null) {
+            return null;
+        }
+        return toAttributeString(name, DETAIL_GETTERS.get(name).apply(loaded));
+    }
+
+    @Override
+    /**
+     * Première valeur d'un attribut. Les attributs mappés sont lus directement dans l'entité,
+     * les colonnes étendues sont chargées au premier accès.
+     */
+    public String getFirstAttribute(String name) {
+        int slot = mapping.slot(name);
+        if (slot >= 0) {
+            return mapping.format(slot, user);
+        }
+        String detail = DETAIL_ALIASES.get(name);
+        if (detail != null) {
+            return detailValue(detail);
+        }
+        return super.getFirstAttribute(name);
+    }
+
     @Override
     /**
      * Retourne un flux des valeurs d'attribut demandées. Keycloak l'utilise pour récupérer les attributs personnalisés.
+     * Les colonnes étendues sont chargées au premier accès à l'une d'elles.
      */
     public java.util.stream.Stream<String> getAttributeStream(String name) {
-        Map<String, List<String>> all = getAttributes();
-        if (all.containsKey(name)) {
-            return all.get(name).stream();
+        int slot = mapping.slot(name);
+        String detail = DETAIL_ALIASES.get(name);
+        if (slot >= 0 || detail != null) {
+            String value = slot >= 0 ? mapping.format(slot, user) : detailValue(detail);
+            return value == null ? java.util.stream.Stream.empty() : java.util.stream.Stream.of(value);
         }
         return super.getAttributeStream(name);
     }
@@ -361,18 +370,8 @@ public class ExternalUserAdapter extends AbstractUserAdapterFederatedStorage {
      * Définit une valeur d'attribut en tenant compte des alias. Utilisé par Keycloak lors des mises à jour via son API.
      */
     public void setSingleAttribute(String name, String value) {
-        if ("createdAt".equals(name) || "created_at".equals(name)) {
-            Object val = parseValue("createdAt", value);
-            java.time.LocalDateTime ldt = (java.time.LocalDateTime) val;
-            Long ts = null;
-            if (ldt != null) {
-                ts = ldt.atZone(java.time.ZoneOffset.UTC).toInstant().toEpochMilli();
-            }
-            setCreatedTimestamp(ts);
-        } else {
-            Object val = parseValue(name, value);
-            updateAttribute(name, val);
-        }
+        int slot = mapping.slot(name);
+        updateAttribute(name, slot < 0 ? value : parseValue(slot, value));
     }
 
     @Override
@@ -386,19 +385,82 @@ public class ExternalUserAdapter extends AbstractUserAdapterFederatedStorage {
     @Override
     /**
      * Fournit l'ensemble des attributs disponibles pour que Keycloak puisse les renvoyer via ses APIs.
+     * Les attributs mappés sont lus dans l'entité et exposés sous chacun de leurs alias.
+     * Les colonnes étendues n'y figurent qu'une fois chargées, pour que la connexion reste sur la ligne réduite.
      */
     public Map<String, List<String>> getAttributes() {
         HashMap<String, List<String>> attrs = new HashMap<>(super.getAttributes());
-        ATTRIBUTE_GETTERS.forEach((key, fn) -> {
-            Object val = fn.apply(user);
-            if (val != null) {
-                String str = toAttributeString(key, val);
-                attrs.put(key, List.of(str));
+        for (int slot = 0; slot < mapping.size(); slot++) {
+            String str = mapping.format(slot, user);
+            if (str != null) {
+                List<String> value = List.of(str);
+                for (String alias : mapping.aliases(slot)) {
+                    attrs.put(alias, value);
+                }
             }
-        });
+        }
+        ExternalUserDetails loaded = details;
+        if (loaded != null) {
+            DETAIL_GETTERS.forEach((key, fn) -> {
+                Object val = fn.apply(loaded);
+                if (val != null) {
+                    attrs.put(key, List.of(toAttributeString(key, val)));
+                }
+            });
+        }
         return attrs;
     }
 
+    /**
+     * Règles accordant des rôles d'après les colonnes de l'adhérent.
+     */
+    public void setRoleMappings(RoleMappings roleMappings) {
+        this.roleMappings = roleMappings;
+    }
+
+    @Override
+    /**
+     * Rôles dérivés des colonnes de l'adhérent, ajoutés par Keycloak aux rôles
+     * stockés dans la fédération sans requête supplémentaire.
+     */
+    protected Set<RoleModel> getRoleMappingsInternal() {
+        RoleMappings mappings = roleMappings;
+        return mappings == null ? Set.of() : mappings.roles(realm, user);
+    }
+
+    @Override
+    /**
+     * Groupes virtuels dont l'adhérent est membre d'après ses colonnes, ajoutés par
+     * Keycloak aux groupes stockés dans la fédération.
+     */
+    protected Set<GroupModel> getGroupsInternal() {
+        VirtualGroups groups = userDao.getVirtualGroups();
+        if (groups == null) {
+            return Set.of();
+        }
+        Set<GroupModel> result = new HashSet<>();
+        for (String name : groups.groupsOf(user.getId())) {
+            GroupModel group = session.groups().getGroupByName(realm, null, name);
+            if (group != null) {
+                result.add(group);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    /**
+     * L'appartenance à un groupe virtuel est déterminée par les bitmaps en mémoire,
+     * sans consulter les groupes de la fédération.
+     */
+    public boolean isMemberOf(GroupModel group) {
+        VirtualGroups groups = userDao.getVirtualGroups();
+        if (FdpSQLUserStorageProvider.isVirtual(groups, group)) {
+            return groups.isMember(group.getName(), user.getId());
+        }
+        return super.isMemberOf(group);
+    }
+
     @Override
     /**
      * Dans ce module tous les emails sont considérés comme vérifiés.
@@ -3,13 +3,12 @@ package net.minet.keycloak.spi;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.ResultSetMetaData;
-import java.sql.Timestamp;
-import java.sql.Date;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
-import java.util.stream.Collectors;
-import java.util.stream.IntStream;
+import java.util.Map;
 
+import net.minet.keycloak.spi.dao.AdherentColumn;
 import net.minet.keycloak.spi.entity.ExternalUser;
 
 /**
@@ -19,90 +18,75 @@ import net.minet.keycloak.spi.entity.ExternalUser;
 public final class ExternalUserMapper {
 
     /**
-     * Functional interface for setting a property of an `ExternalUser` object
-     * based on a column value from a `ResultSet`.
+     * Row reader compiled for the columns of one `ResultSet`: column positions
+     * are resolved once from the metadata, then every row is read by index.
      */
-    @FunctionalInterface
-    private interface ColumnSetter {
+    public static final class Reader {
+        private final AdherentColumn[] columns;
+        private final int[] positions;
+
+        private Reader(AdherentColumn[] columns, int[] positions) {
+            this.columns = columns;
+            this.positions = positions;
+        }
+
         /**
-         * Applies a value from the `ResultSet` to the `ExternalUser` object.
+         * Maps the current row.
          *
-         * @param user The `ExternalUser` object to modify.
-         * @param rs   The `ResultSet` containing the data.
+         * @param rs The `ResultSet` the reader was compiled for.
+         * @return An `ExternalUser` object populated with the data from the current row.
          * @throws SQLException If an SQL error occurs.
          */
-        void apply(ExternalUser user, ResultSet rs) throws SQLException;
-    }
-
-    /**
-     * Record representing a mapping between a database column and a setter function.
-     *
-     * @param column The name of the database column.
-     * @param setter The function to set the corresponding property on the `ExternalUser` object.
-     */
-    private record ColumnMapping(String column, ColumnSetter setter) {}
-
-    /**
-     * Retrieves an `Integer` value from a nullable column in the `ResultSet`.
-     *
-     * @param rs     The `ResultSet` containing the data.
-     * @param column The name of the column.
-     * @return The `Integer` value, or `null` if the column value is `null`.
-     * @throws SQLException If an SQL error occurs.
-     */
-    private static Integer nullableInt(ResultSet rs, String column) throws SQLException {
-        Object o = rs.getObject(column);
-        return o == null ? null : ((Number) o).intValue();
+        public ExternalUser read(ResultSet rs) throws SQLException {
+            ExternalUser user = new ExternalUser();
+            for (int i = 0; i < columns.length; i++) {
+                columns[i].read(rs, positions[i], user);
+            }
+            return user;
+        }
     }
 
     /**
-     * Retrieves a `Byte` value from a nullable column in the `ResultSet`.
+     * Retrieves the positions of the available columns from the `ResultSet`.
      *
-     * @param rs     The `ResultSet` containing the data.
-     * @param column The name of the column.
-     * @return The `Byte` value, or `null` if the column value is `null`.
+     * @param rs The `ResultSet` containing the data.
+     * @return The 1-based position of each column name (in lowercase).
      * @throws SQLException If an SQL error occurs.
      */
-    private static Byte nullableByte(ResultSet rs, String column) throws SQLException {
-        Object o = rs.getObject(column);
-        return o == null ? null : ((Number) o).byteValue();
+    private static Map<String, Integer> availableColumns(ResultSet rs) throws SQLException {
+        ResultSetMetaData meta = rs.getMetaData();
+        Map<String, Integer> columns = new HashMap<>();
+        for (int i = 1; i <= meta.getColumnCount(); i++) {
+            columns.putIfAbsent(meta.getColumnLabel(i).toLowerCase(), i);
+        }
+        return columns;
     }
 
     /**
-     * List of mappings between database columns and `ExternalUser` properties.
-     */
-    private static final List<ColumnMapping> MAPPINGS = List.of(
-            new ColumnMapping("id", (u, rs) -> u.setId(nullableInt(rs, "id"))),
-            new ColumnMapping("nom", (u, rs) -> u.setLastName(rs.getString("nom"))),
-            new ColumnMapping("prenom", (u, rs) -> u.setFirstName(rs.getString("prenom"))),
-            new ColumnMapping("mail", (u, rs) -> u.setEmail(rs.getString("mail"))),
-            new ColumnMapping("login", (u, rs) -> u.setUsername(rs.getString("login"))),
-            new ColumnMapping("created_at", (u, rs) -> {
-                Timestamp ts = rs.getTimestamp("created_at");
-                if (ts != null) u.setCreatedAt(ts.toLocalDateTime());
-            }),
-            new ColumnMapping("is_naina", (u, rs) -> u.setIsNaina(nullableByte(rs, "is_naina"))),
-            new ColumnMapping("ldap_login", (u, rs) -> u.setLdapLogin(rs.getString("ldap_login")))
-    );
-
-    /**
-     * Retrieves the set of available column names from the `ResultSet`.
+     * Compiles a reader for the {@link AdherentColumn}s present in the `ResultSet`.
      *
-     * @param rs The `ResultSet` containing the data.
-     * @return A set of column names (in lowercase).
+     * @param rs The `ResultSet` whose rows will be read.
+     * @return A reader bound to the column positions of `rs`.
      * @throws SQLException If an SQL error occurs.
      */
-    private static Set<String> availableColumns(ResultSet rs) throws SQLException {
-        ResultSetMetaData meta = rs.getMetaData();
-        Set<String> columns = new java.util.HashSet<>();
-        for (int i = 1; i <= meta.getColumnCount(); i++) {
-            columns.add(meta.getColumnLabel(i).toLowerCase());
+    public static Reader reader(ResultSet rs) throws SQLException {
+        Map<String, Integer> columns = availableColumns(rs);
+        List<AdherentColumn> read = new ArrayList<>();
+        List<Integer> positions = new ArrayList<>();
+        for (AdherentColumn column : AdherentColumn.values()) {
+            Integer position = columns.get(column.column());
+            if (position != null) {
+                read.add(column);
+                positions.add(position);
+            }
         }
-        return columns;
+        return new Reader(read.toArray(AdherentColumn[]::new),
+                positions.stream().mapToInt(Integer::intValue).toArray());
     }
 
     /**
      * Maps a `ResultSet` row to an `ExternalUser` object.
+     * Prefer {@link #reader(ResultSet)} when reading several rows.
      *
      * @param rs The `ResultSet` containing the data.
      * @return An `ExternalUser` object populated with the data from the current row.
@@ -110,13 +94,6 @@ public final class ExternalUserMapper {
      */
     public static ExternalUser map(ResultSet rs) throws SQLException {
         // Keycloak utilise ce mapper pour convertir les résultats SQL en objets utilisateurs.
-        ExternalUser user = new ExternalUser();
-        Set<String> columns = availableColumns(rs);
-        for (ColumnMapping m : MAPPINGS) {
-            if (columns.contains(m.column())) {
-                m.setter().apply(user, rs);
-            }
-        }
-        return user;
+        return reader(rs).read(rs);
     }
 }
\ No newline at end of file
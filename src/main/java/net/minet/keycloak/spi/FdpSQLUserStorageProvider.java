@@ -1,19 +1,38 @@
 package net.minet.keycloak.spi;
 
 import javax.sql.DataSource;
-import java.sql.*;
+import net.minet.keycloak.hash.HashingExecutor;
 import net.minet.keycloak.hash.Md4Util;
+import net.minet.keycloak.spi.admission.AdmissionControl;
 import net.minet.keycloak.spi.entity.ExternalUser;
+import net.minet.keycloak.spi.groups.VirtualGroups;
+import net.minet.keycloak.spi.jfr.CredentialValidationEvent;
 import net.minet.keycloak.spi.ExternalUserAdapter;
 import net.minet.keycloak.spi.dao.ExternalUserDao;
+import net.minet.keycloak.spi.dao.FederationTimeoutException;
+import net.minet.keycloak.spi.dao.ImportOutcome;
+import net.minet.keycloak.spi.dao.NewAdherent;
+import net.minet.keycloak.spi.dao.PasswordRehash;
+import net.minet.keycloak.spi.metrics.FederationMetrics;
+import net.minet.keycloak.spi.metrics.FederationMetrics.Outcome;
+import net.minet.keycloak.spi.migration.PasswordRehashQueue;
+import net.minet.keycloak.spi.provisioning.BulkImporter;
+import net.minet.keycloak.spi.provisioning.PendingProfiles;
+import net.minet.keycloak.spi.roles.RoleMappings;
+import net.minet.keycloak.spi.shard.ShardedUsers;
+import net.minet.keycloak.spi.tracing.FederationTracing;
 import org.jboss.logging.Logger;
+import org.keycloak.common.ClientConnection;
 import org.keycloak.component.ComponentModel;
 import org.keycloak.credential.CredentialInput;
 import org.keycloak.credential.CredentialInputUpdater;
 import org.keycloak.credential.CredentialInputValidator;
 import org.keycloak.credential.CredentialModel;
 import org.keycloak.models.GroupModel;
+import org.keycloak.models.KeycloakContext;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.ModelException;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserModel;
 import org.keycloak.storage.UserStorageProvider;
@@ -22,7 +41,18 @@ import org.keycloak.storage.user.UserQueryProvider;
 import org.keycloak.storage.user.UserRegistrationProvider;
 import org.keycloak.storage.UserStoragePrivateUtil;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.sql.SQLException;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 /**
@@ -43,8 +73,22 @@ public class FdpSQLUserStorageProvider implements
 
     private static final Logger logger = Logger.getLogger(FdpSQLUserStorageProvider.class);
 
+    // Orders of SELECT_PAGE and SEARCH_BY_LOGIN, used to merge the shards' pages
+    private static final Comparator<ExternalUser> BY_ID = Comparator.comparing(ExternalUser::getId);
+    private static final Comparator<ExternalUser> BY_LOGIN = Comparator.comparing(ExternalUser::getUsername,
+            Comparator.nullsFirst(String.CASE_INSENSITIVE_ORDER));
+
 
     private final ExternalUserDao userDao;
+    private AdmissionControl admission;
+    private HashingExecutor hashing;
+    private PasswordRehashQueue rehash;
+    private RoleMappings roleMappings;
+    private AttributeMapping attributeMapping = AttributeMapping.DEFAULT;
+    private ShardedUsers shards;
+    private int importBatchSize = 500;
+    // Users created in this session's transaction, see addUser
+    private PendingProfiles pending;
 
     protected KeycloakSession session;
     protected DataSource dataSource;
@@ -55,27 +99,130 @@ public class FdpSQLUserStorageProvider implements
      * Les connexions JDBC et le DAO sont prêts à être utilisés pour toutes les opérations.
      */
     public FdpSQLUserStorageProvider(KeycloakSession session, ComponentModel model, DataSource dataSource) {
+        this(session, model, dataSource, new ExternalUserDao(dataSource));
+    }
+
+    /**
+     * Variante utilisée par la factory pour partager le DAO, et donc le registre
+     * de requêtes préparées, entre toutes les instances du provider.
+     */
+    public FdpSQLUserStorageProvider(KeycloakSession session, ComponentModel model, DataSource dataSource,
+                                     ExternalUserDao userDao) {
         this.session = session;
         this.model = model;
         this.dataSource = dataSource;
-        this.userDao = new ExternalUserDao(dataSource);
+        this.userDao = userDao;
+    }
+
+    /**
+     * Place le contrôle d'admission de la factory devant la vérification des mots de passe.
+     */
+    public void setAdmissionControl(AdmissionControl admission) {
+        this.admission = admission;
+    }
+
+    /**
+     * Pool de hachage des mots de passe, {@link HashingExecutor#shared()} par défaut.
+     */
+    public void setHashingExecutor(HashingExecutor hashing) {
+        this.hashing = hashing;
+    }
+
+    /**
+     * File de réécriture des anciens mots de passe en clair, alimentée après chaque connexion réussie.
+     */
+    public void setPasswordRehashQueue(PasswordRehashQueue rehash) {
+        this.rehash = rehash;
+    }
+
+    /**
+     * Règles de rôles dérivés transmises à chaque adaptateur.
+     */
+    public void setRoleMappings(RoleMappings roleMappings) {
+        this.roleMappings = roleMappings;
+    }
+
+    /**
+     * Table des attributs compilée depuis la configuration du composant, transmise à chaque adaptateur.
+     */
+    public void setAttributeMapping(AttributeMapping attributeMapping) {
+        this.attributeMapping = attributeMapping;
+    }
+
+    /**
+     * Bases {@code adherents} supplémentaires servies par ce provider, la datasource
+     * de la fédération étant le shard 0.
+     */
+    public void setShards(ShardedUsers shards) {
+        this.shards = shards;
+    }
+
+    /**
+     * Nombre de lignes par INSERT et par transaction lors d'un import en masse.
+     */
+    public void setImportBatchSize(int importBatchSize) {
+        this.importBatchSize = importBatchSize;
     }
 
     /**
      * Crée l'adaptateur {@link ExternalUserAdapter} qui expose l'entité externe à Keycloak.
      */
     protected UserModel createAdapter(RealmModel realm, ExternalUser user) {
-        return new ExternalUserAdapter(session, realm, model, user, dataSource);
+        return createAdapter(realm, 0, user);
+    }
+
+    /**
+     * Crée l'adaptateur d'un adhérent du shard donné, dont l'identifiant externe encode le shard.
+     */
+    protected UserModel createAdapter(RealmModel realm, int shard, ExternalUser user) {
+        return FederationTracing.span("fdp.adapter.create", "createAdapter", () -> {
+            ExternalUserAdapter adapter = new ExternalUserAdapter(session, realm, model, user, dao(shard),
+                    new ShardedUsers.Key(shard, user.getId()).encode());
+            adapter.setAttributeMapping(attributeMapping);
+            adapter.setRoleMappings(roleMappings);
+            if (shard == 0 && pending != null && pending.get(user.getId()) == user) {
+                adapter.setPendingProfiles(pending);
+            }
+            return adapter;
+        });
+    }
+
+    /**
+     * Calcule un hash MD4 sur le pool de hachage borné, en le chronométrant (attente comprise)
+     * et en le traçant.
+     */
+    private String hash(String value) {
+        HashingExecutor executor = hashing == null ? HashingExecutor.shared() : hashing;
+        return userDao.getMetrics().timeHashing(
+                () -> FederationTracing.span("fdp.hash", "md4", () -> executor.md4Hex(value)));
     }
 
 
     /**
-     * Extrait l'identifiant numérique stocké dans l'ID Keycloak.
-     * Cette valeur sert à interroger la base externe.
+     * Extrait le shard et l'identifiant numérique stockés dans l'ID Keycloak.
+     * Ces valeurs servent à interroger la base externe.
+     *
+     * @throws NumberFormatException si l'identifiant est illisible ou vise un shard inconnu
      */
-    private int extractUserId(String id) {
+    private ShardedUsers.Key extractUserId(String id) {
         String externalId = org.keycloak.storage.StorageId.externalId(id);
-        return Integer.parseInt(externalId);
+        ShardedUsers.Key key = ShardedUsers.Key.parse(externalId);
+        dao(key.shard());
+        return key;
+    }
+
+    /**
+     * DAO du shard, celui du provider hors mode shardé.
+     */
+    private ExternalUserDao dao(int shard) {
+        ShardedUsers sharded = shards;
+        if (sharded != null) {
+            return sharded.dao(shard);
+        }
+        if (shard != 0) {
+            throw new NumberFormatException("Unknown shard " + shard);
+        }
+        return userDao;
     }
 
     @Override
@@ -92,9 +239,13 @@ public class FdpSQLUserStorageProvider implements
      * Recherche un utilisateur par son identifiant interne fourni par Keycloak.
      */
     public UserModel getUserById(RealmModel realm, String id) {
-        Integer userId = null;
+        return FederationTracing.span("fdp.getUserById", "getUserById", () -> lookupById(realm, id));
+    }
+
+    private UserModel lookupById(RealmModel realm, String id) {
+        ShardedUsers.Key key;
         try {
-            userId = extractUserId(id);
+            key = extractUserId(id);
         } catch (NumberFormatException nfe) {
             UserModel local = UserStoragePrivateUtil.userLocalStorage(session)
                     .getUserById(realm, id);
@@ -105,8 +256,12 @@ public class FdpSQLUserStorageProvider implements
             return null;
         }
 
-        ExternalUser user = userDao.findById(userId);
-        return user == null ? null : createAdapter(realm, user);
+        ExternalUser user = key.shard() == 0 ? created(key.id()) : null;
+        if (user == null) {
+            user = dao(key.shard()).findById(key.id());
+        }
+        FederationTracing.found(user != null);
+        return user == null ? null : createAdapter(realm, key.shard(), user);
     }
 
     @Override
@@ -114,8 +269,20 @@ public class FdpSQLUserStorageProvider implements
      * Chargement d'un utilisateur par son nom. Utilisé notamment lors de la connexion.
      */
     public UserModel getUserByUsername(RealmModel realm, String username) {
-        ExternalUser user = userDao.findByUsername(username);
-        return user == null ? null : createAdapter(realm, user);
+        return FederationTracing.span("fdp.getUserByUsername", "getUserByUsername", () -> {
+            ExternalUser created = pending == null ? null : pending.findByUsername(username);
+            if (created != null) {
+                return createAdapter(realm, created);
+            }
+            ShardedUsers sharded = shards;
+            if (sharded != null) {
+                return adapter(realm, sharded.findFirst(FederationMetrics.Operation.FIND_BY_USERNAME,
+                        d -> d.findByUsername(username)));
+            }
+            ExternalUser user = userDao.findByUsername(username);
+            FederationTracing.found(user != null);
+            return user == null ? null : createAdapter(realm, user);
+        });
     }
 
     @Override
@@ -123,8 +290,25 @@ public class FdpSQLUserStorageProvider implements
      * Récupère un utilisateur via son email si celui-ci est unique.
      */
     public UserModel getUserByEmail(RealmModel realm, String email) {
-        ExternalUser user = userDao.findByEmail(email);
-        return user == null ? null : createAdapter(realm, user);
+        return FederationTracing.span("fdp.getUserByEmail", "getUserByEmail", () -> {
+            ExternalUser created = pending == null ? null : pending.findByEmail(email);
+            if (created != null) {
+                return createAdapter(realm, created);
+            }
+            ShardedUsers sharded = shards;
+            if (sharded != null) {
+                return adapter(realm, sharded.findFirst(FederationMetrics.Operation.FIND_BY_EMAIL,
+                        d -> d.findByEmail(email)));
+            }
+            ExternalUser user = userDao.findByEmail(email);
+            FederationTracing.found(user != null);
+            return user == null ? null : createAdapter(realm, user);
+        });
+    }
+
+    private UserModel adapter(RealmModel realm, ShardedUsers.Hit hit) {
+        FederationTracing.found(hit != null);
+        return hit == null ? null : createAdapter(realm, hit.shard(), hit.user());
     }
 
     @Override
@@ -141,12 +325,14 @@ public class FdpSQLUserStorageProvider implements
      */
     public boolean updateCredential(RealmModel realm, UserModel user, CredentialInput input) {
         if (!supportsCredentialType(input.getType())) return false;
-        try (Connection c = dataSource.getConnection();
-             PreparedStatement ps = c.prepareStatement("UPDATE adherents SET password = ? WHERE id = ?")) {
-            ps.setString(1, Md4Util.md4Hex(input.getChallengeResponse()));
-            ps.setInt(2, extractUserId(user.getId()));
-            return ps.executeUpdate() > 0;
-        } catch (NumberFormatException | SQLException e) {
+        try {
+            ShardedUsers.Key key = extractUserId(user.getId());
+            String hash = Md4Util.md4Hex(input.getChallengeResponse());
+            if (key.shard() == 0 && pending != null && pending.password(key.id(), hash)) {
+                return true;
+            }
+            return dao(key.shard()).updatePassword(key.id(), hash);
+        } catch (NumberFormatException e) {
             logger.warn("Failed to update credential for user " + user.getId() + ": " + e.getMessage());
             return false;
         }
@@ -179,46 +365,159 @@ public class FdpSQLUserStorageProvider implements
      */
     public boolean isValid(RealmModel realm, UserModel user, CredentialInput input) {
         if (!supportsCredentialType(input.getType())) return false;
-        try (Connection c = dataSource.getConnection();
-             PreparedStatement ps = c.prepareStatement("SELECT password FROM adherents WHERE id = ?")) {
-            ps.setInt(1, extractUserId(user.getId()));
-            try (ResultSet rs = ps.executeQuery()) {
-                if (rs.next()) {
-                    String providedHash = Md4Util.md4Hex(input.getChallengeResponse());
-                    String storedHash = rs.getString(1);
-                    logger.debugf("Checking provided hash %s against stored hash %s", providedHash, storedHash);
-                    if (storedHash != null && !storedHash.matches("[0-9a-fA-F]{32}")) {
-                        storedHash = Md4Util.md4Hex(storedHash);
+        AdmissionControl gate = admission;
+        if (gate == null) {
+            return FederationTracing.span("fdp.isValid", "isValid", () -> validate(user, input)) == Outcome.VALID;
+        }
+        String login = user.getUsername();
+        AdmissionControl.Decision decision = gate.admit(login, remoteAddress());
+        if (decision != AdmissionControl.Decision.ADMITTED) {
+            logger.debugf("Credential check shed by admission control: %s", decision.tag());
+            userDao.getMetrics().credentialOutcome(Outcome.REJECTED);
+            // an error rather than false, so that shedding never counts as a failed login
+            throw new ModelException("Credential check shed by admission control: " + decision.tag());
+        }
+        Outcome outcome;
+        try {
+            outcome = FederationTracing.span("fdp.isValid", "isValid", () -> validate(user, input));
+        } finally {
+            gate.release();
+        }
+        if (outcome == Outcome.INVALID) {
+            gate.failed(login);
+        }
+        return outcome == Outcome.VALID;
+    }
+
+    /**
+     * Adresse du client à l'origine de la requête, si Keycloak la fournit.
+     */
+    private String remoteAddress() {
+        KeycloakContext context = session == null ? null : session.getContext();
+        ClientConnection connection = context == null ? null : context.getConnection();
+        return connection == null ? null : connection.getRemoteAddr();
+    }
+
+    private Outcome validate(UserModel user, CredentialInput input) {
+        FederationMetrics metrics = userDao.getMetrics();
+        CredentialValidationEvent event = new CredentialValidationEvent();
+        event.begin();
+        Outcome outcome = Outcome.ERROR;
+        int hashes = 0;
+        boolean legacy = false;
+        try {
+            ShardedUsers.Key key = extractUserId(user.getId());
+            int id = key.id();
+            String storedHash = dao(key.shard()).findPassword(id);
+            String provided = input.getChallengeResponse();
+            if (storedHash != null && Md4Util.isMd4Hex(storedHash)) {
+                String providedHash = hash(provided);
+                hashes++;
+                logger.debugf("Checking provided hash %s against stored hash %s", providedHash, storedHash);
+                outcome = providedHash.equalsIgnoreCase(storedHash) ? Outcome.VALID : Outcome.INVALID;
+            } else if (storedHash != null) {
+                // legacy plaintext row: same answer as comparing both hashes, then migrate it
+                legacy = true;
+                outcome = provided != null && MessageDigest.isEqual(
+                        storedHash.getBytes(StandardCharsets.UTF_8), provided.getBytes(StandardCharsets.UTF_8))
+                        ? Outcome.VALID : Outcome.INVALID;
+                // the rehash queue writes to the federation datasource, i.e. shard 0
+                PasswordRehashQueue queue = key.shard() == 0 ? rehash : null;
+                if (outcome == Outcome.VALID && queue != null) {
+                    try {
+                        queue.offer(new PasswordRehash(id, storedHash, hash(provided)));
+                        hashes++;
+                    } catch (RejectedExecutionException e) {
+                        // the password is correct either way: the row is migrated at a later login
+                        logger.debugf("Rehash of user %d skipped, hashing pool saturated: %s", id, e.getMessage());
                     }
-                    return providedHash.equalsIgnoreCase(storedHash);
                 }
+            } else {
+                outcome = Outcome.UNKNOWN_USER;
             }
-        } catch (NumberFormatException | SQLException e) {
+        } catch (NumberFormatException e) {
             logger.warn("Failed to validate credential for user " + user.getId() + ": " + e.getMessage());
+        } catch (RejectedExecutionException e) {
+            logger.debugf("Credential check shed by the hashing pool: %s", e.getMessage());
+            outcome = Outcome.REJECTED;
+            // an overload is not a wrong password, as in Md4Utf16PasswordHashProvider.verify
+            throw new ModelException("Password hashing overloaded", e);
+        } catch (FederationTimeoutException e) {
+            // a slow database is an error for Keycloak, not a wrong password
+            outcome = Outcome.TIMEOUT;
+            throw e;
+        } finally {
+            metrics.credentialOutcome(outcome);
+            event.end();
+            if (event.shouldCommit()) {
+                event.outcome = outcome.name().toLowerCase(Locale.ROOT);
+                event.hashes = hashes;
+                event.legacyPlaintext = legacy;
+                event.cacheOutcome = "database";
+                event.commit();
+            }
         }
-        return false;
+        return outcome;
     }
 
     @Override
     /**
      * Ajoute un nouvel utilisateur minimal dans la base externe lorsque Keycloak en crée un.
+     * Les attributs et le mot de passe fixés ensuite dans la même transaction sont écrits
+     * en un seul lot à sa validation.
      */
     public UserModel addUser(RealmModel realm, String username) {
-        try (Connection c = dataSource.getConnection();
-             PreparedStatement ps = c.prepareStatement("INSERT INTO adherents (login) VALUES (?)", Statement.RETURN_GENERATED_KEYS)) {
-            ps.setString(1, username);
-            ps.executeUpdate();
-            try (ResultSet rs = ps.getGeneratedKeys()) {
-                ExternalUser user = new ExternalUser();
-                if (rs.next()) {
-                    user.setId(rs.getInt(1));
-                }
-                user.setUsername(username);
-                return createAdapter(realm, user);
+        ExternalUser user = new ExternalUser();
+        user.setId(userDao.insertUser(username));
+        user.setUsername(username);
+        PendingProfiles profiles = pendingProfiles();
+        if (profiles != null && user.getId() != null) {
+            profiles.add(user);
+        }
+        return createAdapter(realm, user);
+    }
+
+    /**
+     * Profils en attente de la transaction de la session, enrôlés à la première création.
+     *
+     * @return {@code null} hors transaction active : les écritures sont alors immédiates
+     */
+    private PendingProfiles pendingProfiles() {
+        if (pending == null) {
+            KeycloakTransactionManager transactions = session == null ? null : session.getTransactionManager();
+            if (transactions == null || !transactions.isActive()) {
+                return null;
+            }
+            pending = new PendingProfiles(userDao);
+            // prepared before the other transactions so that a failed write rolls them back
+            transactions.enlistPrepare(pending);
+        }
+        return pending;
+    }
+
+    /** Utilisateur créé dans la transaction de la session, ou {@code null}. */
+    private ExternalUser created(int id) {
+        return pending == null ? null : pending.get(id);
+    }
+
+    /**
+     * Importe un flux de profils complets par lots, chacun inséré en une requête et
+     * une transaction. Les logins existants sont ignorés ; l'issue de chaque ligne est
+     * transmise à {@code outcomes} au fil de l'import.
+     *
+     * @throws ModelException si aucun index unique ne porte sur {@code login} : des
+     *                        imports concurrents pourraient alors créer des doublons
+     */
+    public BulkImporter.Summary importUsers(Stream<NewAdherent> users, Consumer<ImportOutcome> outcomes) {
+        try {
+            if (!userDao.isLoginUnique()) {
+                throw new ModelException("Bulk import requires a unique index on adherents.login");
             }
         } catch (SQLException e) {
-            throw new RuntimeException(e);
+            throw new ModelException("Cannot check the indexes of adherents", e);
         }
+        return FederationTracing.span("fdp.importUsers", "importUsers",
+                () -> new BulkImporter(userDao, importBatchSize).run(users, outcomes));
     }
 
     @Override
@@ -226,11 +525,10 @@ public class FdpSQLUserStorageProvider implements
      * Supprime l'utilisateur de la base externe quand Keycloak le désactive.
      */
     public boolean removeUser(RealmModel realm, UserModel user) {
-        try (Connection c = dataSource.getConnection();
-             PreparedStatement ps = c.prepareStatement("DELETE FROM adherents WHERE id = ?")) {
-            ps.setInt(1, extractUserId(user.getId()));
-            return ps.executeUpdate() > 0;
-        } catch (NumberFormatException | SQLException e) {
+        try {
+            ShardedUsers.Key key = extractUserId(user.getId());
+            return dao(key.shard()).deleteUser(key.id());
+        } catch (NumberFormatException e) {
             logger.warn("Failed to remove user " + user.getId() + ": " + e.getMessage());
             return false;
         }
@@ -240,6 +538,11 @@ public class FdpSQLUserStorageProvider implements
      * Retourne un flux paginé d'utilisateurs pour les besoins de l'interface d'administration Keycloak.
      */
     public Stream<UserModel> getUsersStream(RealmModel realm, int first, int max) {
+        ShardedUsers sharded = shards;
+        if (sharded != null) {
+            return sharded.merge((d, offset, limit) -> d.getUsersStream(offset, limit), BY_ID, first, max)
+                    .map(h -> createAdapter(realm, h.shard(), h.user()));
+        }
         return userDao.getUsersStream(first, max)
                 .map(u -> createAdapter(realm, u));
     }
@@ -249,7 +552,8 @@ public class FdpSQLUserStorageProvider implements
      * Nombre total d'utilisateurs présent dans la base externe.
      */
     public int getUsersCount(RealmModel realm) {
-        return userDao.getUsersCount();
+        ShardedUsers sharded = shards;
+        return sharded == null ? userDao.getUsersCount() : sharded.sum(ExternalUserDao::getUsersCount);
     }
 
     @Override
@@ -257,6 +561,12 @@ public class FdpSQLUserStorageProvider implements
      * Recherche d'utilisateurs depuis l'interface d'administration.
      */
     public Stream<UserModel> searchForUserStream(RealmModel realm, String search, Integer first, Integer max) {
+        ShardedUsers sharded = shards;
+        if (sharded != null) {
+            return sharded.merge((d, offset, limit) -> d.searchForUserStream(search, offset, limit), BY_LOGIN,
+                            first == null ? 0 : first, max == null ? Integer.MAX_VALUE : max)
+                    .map(h -> createAdapter(realm, h.shard(), h.user()));
+        }
         return userDao.searchForUserStream(search, first == null ? 0 : first,
                 max == null ? Integer.MAX_VALUE : max)
                 .map(u -> createAdapter(realm, u));
@@ -272,10 +582,45 @@ public class FdpSQLUserStorageProvider implements
 
     @Override
     /**
-     * La gestion des groupes n'est pas implémentée dans ce provider.
+     * Membres d'un groupe virtuel, lus dans les bitmaps en mémoire puis chargés page par page.
+     * Les autres groupes n'ont pas de membres fournis par ce provider.
      */
     public Stream<UserModel> getGroupMembersStream(RealmModel realm, GroupModel group, Integer first, Integer max) {
-        return Stream.empty();
+        VirtualGroups groups = userDao.getVirtualGroups();
+        if (!isVirtual(groups, group)) {
+            return Stream.empty();
+        }
+        int[] ids = groups.page(group.getName(), first == null ? 0 : first, max == null ? -1 : max);
+        // one IN query per chunk of the page, issued as the stream is consumed
+        return IntStream.iterate(0, from -> from < ids.length, from -> from + ExternalUserDao.IN_CHUNK)
+                .mapToObj(from -> userDao.findByIds(ids, from, Math.min(from + ExternalUserDao.IN_CHUNK, ids.length)))
+                .flatMap(List::stream)
+                .map(u -> createAdapter(realm, u));
+    }
+
+    @Override
+    /**
+     * Nombre d'adhérents membres d'au moins un des groupes, calculé en mémoire
+     * lorsque tous les groupes demandés sont virtuels.
+     */
+    public int getUsersCount(RealmModel realm, Set<String> groupIds) {
+        VirtualGroups groups = userDao.getVirtualGroups();
+        Set<String> names = new HashSet<>();
+        for (String groupId : groupIds) {
+            GroupModel group = session.groups().getGroupById(realm, groupId);
+            if (!isVirtual(groups, group)) {
+                return UserQueryProvider.super.getUsersCount(realm, groupIds);
+            }
+            names.add(group.getName());
+        }
+        return names.isEmpty() ? 0 : groups.countAny(names);
+    }
+
+    /**
+     * Un groupe virtuel est un groupe de premier niveau portant le nom d'une définition.
+     */
+    static boolean isVirtual(VirtualGroups groups, GroupModel group) {
+        return groups != null && group != null && group.getParentId() == null && groups.defines(group.getName());
     }
 
     @Override
@@ -1,11 +1,50 @@
 package net.minet.keycloak.spi;
 
-import org.mariadb.jdbc.MariaDbDataSource;
+import net.minet.keycloak.hash.HashingExecutor;
+import net.minet.keycloak.spi.admission.AdmissionControl;
+import net.minet.keycloak.spi.dao.ExternalUserDao;
+import net.minet.keycloak.spi.dao.OperationTimeouts;
+import net.minet.keycloak.spi.dao.SlowQueryLog;
+import net.minet.keycloak.spi.dao.StatementRegistry;
+import net.minet.keycloak.spi.directory.IdentifierFilter;
+import net.minet.keycloak.spi.directory.UserDirectory;
+import net.minet.keycloak.spi.failover.FailoverDataSource;
+import net.minet.keycloak.spi.groups.VirtualGroup;
+import net.minet.keycloak.spi.groups.VirtualGroups;
+import net.minet.keycloak.spi.metrics.FederationMetrics;
+import net.minet.keycloak.spi.migration.PasswordNormalizer;
+import net.minet.keycloak.spi.migration.PasswordRehashQueue;
+import net.minet.keycloak.spi.roles.RoleMappings;
+import net.minet.keycloak.spi.shard.ShardedUsers;
+import net.minet.keycloak.spi.sweep.FederatedStorage;
+import net.minet.keycloak.spi.sweep.OrphanSweep;
+import org.jboss.logging.Logger;
+import org.mariadb.jdbc.MariaDbPoolDataSource;
 import javax.sql.DataSource;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import org.keycloak.Config;
 import org.keycloak.component.ComponentModel;
+import org.keycloak.component.ComponentValidationException;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.provider.ProviderConfigProperty;
+import org.keycloak.provider.ProviderConfigurationBuilder;
+import org.keycloak.representations.userprofile.config.UPConfig;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.models.utils.PostMigrationEvent;
+import org.keycloak.storage.UserStorageProvider;
 import org.keycloak.storage.UserStorageProviderFactory;
+import org.keycloak.userprofile.UserProfileProvider;
 
 /**
  * Factory that creates {@link FdpSQLUserStorageProvider} instances and
@@ -13,34 +52,554 @@ import org.keycloak.storage.UserStorageProviderFactory;
  */
 public class FdpSQLUserStorageProviderFactory implements UserStorageProviderFactory<FdpSQLUserStorageProvider> {
     public static final String PROVIDER_NAME = "fdp-sql";
+    /** Entrées {@code attribut=colonne} de la table des attributs. */
+    public static final String CONFIG_ATTRIBUTE_MAPPINGS = "attributeMappings";
+    /** Comparaison de la table au profil utilisateur déclaratif du realm. */
+    public static final String CONFIG_CHECK_USER_PROFILE = "checkUserProfile";
+
+    private static final Logger logger = Logger.getLogger(FdpSQLUserStorageProviderFactory.class);
+
+    // Driver options enabling server-side prepared statements cached per connection
+    private static final String STATEMENT_CACHE_OPTIONS =
+            "useServerPrepStmts=true&cachePrepStmts=true&prepStmtCacheSize=" + StatementRegistry.CACHE_SIZE;
 
     private DataSource dataSource;
+    private FederationMetrics metrics = FederationMetrics.NOOP;
+    private final ComponentDataSources componentPools = new ComponentDataSources(this::openComponentPool);
+    private StatementRegistry statements;
+    private ExternalUserDao userDao;
+    private SlowQueryLog slowQueries = SlowQueryLog.DISABLED;
+    private UserDirectory directory;
+    private IdentifierFilter identifiers;
+    private VirtualGroups virtualGroups;
+    private RoleMappings roleMappings;
+    private AdmissionControl admission;
+    private PasswordRehashQueue rehash;
+    private ShardedUsers shards;
+    private int importBatchSize = 500;
+    private OrphanSweep orphanSweep;
+    private final List<DataSource> shardSources = new ArrayList<>();
+    // Compiled once per component and configuration, see attributeMapping(ComponentModel)
+    private final Map<String, CompiledMapping> attributeMappings = new ConcurrentHashMap<>();
+
+    private record CompiledMapping(List<String> entries, AttributeMapping mapping) {}
+
+    /**
+     * Lit un paramètre depuis les propriétés système puis les variables d'environnement.
+     */
+    static String setting(String property, String env, String defaultValue) {
+        String value = System.getProperty(property, System.getenv(env));
+        return value == null || value.isBlank() ? defaultValue : value;
+    }
+
+    /**
+     * Ajoute à l'URL JDBC les options de pool et de cache de requêtes absentes.
+     */
+    static String withPoolOptions(String url, int minSize, int maxSize) {
+        return withPoolOptions(url, minSize, maxSize, 0);
+    }
+
+    /**
+     * Variante bornant aussi l'attente d'une connexion du pool ({@code connectTimeout},
+     * ignoré si {@code connectTimeoutMillis <= 0}).
+     */
+    static String withPoolOptions(String url, int minSize, int maxSize, long connectTimeoutMillis) {
+        if (url == null) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder(url);
+        char sep = url.indexOf('?') >= 0 ? '&' : '?';
+        String options = STATEMENT_CACHE_OPTIONS + "&minPoolSize=" + minSize + "&maxPoolSize=" + maxSize
+                + (connectTimeoutMillis > 0 ? "&connectTimeout=" + connectTimeoutMillis : "");
+        for (String option : options.split("&")) {
+            String key = option.substring(0, option.indexOf('=') + 1);
+            if (!url.contains(key)) {
+                sb.append(sep).append(option);
+                sep = '&';
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Construit la datasource de la fédération. Une URL listant plusieurs hôtes donne une
+     * {@link FailoverDataSource} sondant chacun d'eux. Les tests surchargent cette méthode
+     * pour brancher une datasource embarquée ou instrumentée.
+     */
+    protected DataSource createDataSource(int minSize, int maxSize) throws Exception {
+        String username = setting("quarkus.datasource.federation.username", "QUARKUS_DATASOURCE_FEDERATION_USERNAME", null);
+        String password = setting("quarkus.datasource.federation.password", "QUARKUS_DATASOURCE_FEDERATION_PASSWORD", null);
+        List<String> hosts = FailoverDataSource.split(setting("quarkus.datasource.federation.jdbc.url",
+                "QUARKUS_DATASOURCE_FEDERATION_JDBC_URL", null));
+        if (hosts.size() <= 1) {
+            return createDataSource(hosts.isEmpty() ? null : hosts.get(0), username, password, minSize, maxSize);
+        }
+        FailoverDataSource failover = new FailoverDataSource(hosts,
+                url -> createDataSource(url, username, password, minSize, maxSize),
+                millis("fdp.failover.probe-timeout-ms", "FDP_FAILOVER_PROBE_TIMEOUT_MS", "1000"));
+        failover.start(Duration.ofSeconds(Long.parseLong(
+                setting("fdp.failover.probe-seconds", "FDP_FAILOVER_PROBE_SECONDS", "5"))));
+        logger.infof("Federation datasource over %d hosts: %s", hosts.size(), failover.hosts());
+        return failover;
+    }
+
+    /**
+     * Construit un pool MariaDB pour une URL : base d'un composant, shard ou hôte de bascule.
+     * Les tests surchargent cette méthode comme {@link #createDataSource(int, int)}.
+     */
+    protected DataSource createDataSource(String url, String username, String password, int minSize, int maxSize)
+            throws Exception {
+        MariaDbPoolDataSource ds = new MariaDbPoolDataSource();
+        ds.setUrl(withPoolOptions(url, minSize, maxSize, timeouts().connectionWait().toMillis()));
+        ds.setUser(username);
+        ds.setPassword(password);
+        return ds;
+    }
+
+    /**
+     * Ouvre le pool d'un composant avec son propre registre de requêtes ; les métriques,
+     * budgets et le journal des requêtes lentes restent ceux de la factory.
+     */
+    private ComponentDataSources.Pool openComponentPool(ComponentDataSources.Settings settings) throws Exception {
+        DataSource ds = createDataSource(settings.url(), settings.username(), settings.password(),
+                settings.minSize(), settings.maxSize());
+        ExternalUserDao dao = new ExternalUserDao(ds, new StatementRegistry(), metrics);
+        dao.setSlowQueryLog(slowQueries);
+        dao.setTimeouts(timeouts());
+        checkUniqueLogins(dao, "component");
+        return new ComponentDataSources.Pool(settings, ds, dao);
+    }
 
     @Override
     /**
-     * Initialise la datasource à partir de la configuration fournie par Keycloak.
+     * Initialise le pool de connexions à partir de la configuration fournie par Keycloak,
+     * puis prépare à l'avance toutes les requêtes du {@link StatementRegistry}.
      */
     public void init(Config.Scope config) {
+        int minSize = Integer.parseInt(setting("quarkus.datasource.federation.jdbc.min-size",
+                "QUARKUS_DATASOURCE_FEDERATION_JDBC_MIN_SIZE", "2"));
+        int maxSize = Integer.parseInt(setting("quarkus.datasource.federation.jdbc.max-size",
+                "QUARKUS_DATASOURCE_FEDERATION_JDBC_MAX_SIZE", "8"));
         try {
-            MariaDbDataSource ds = new MariaDbDataSource();
-            ds.setUrl(System.getProperty("quarkus.datasource.federation.jdbc.url",
-                    System.getenv("QUARKUS_DATASOURCE_FEDERATION_JDBC_URL")));
-            ds.setUser(System.getProperty("quarkus.datasource.federation.username",
-                    System.getenv("QUARKUS_DATASOURCE_FEDERATION_USERNAME")));
-            ds.setPassword(System.getProperty("quarkus.datasource.federation.password",
-                    System.getenv("QUARKUS_DATASOURCE_FEDERATION_PASSWORD")));
-            this.dataSource = ds;
+            this.dataSource = createDataSource(minSize, maxSize);
         } catch (Exception e) {
             throw new RuntimeException("Failed to initialize datasource", e);
         }
+        this.statements = new StatementRegistry();
+        this.metrics = FederationMetrics.global();
+        metrics.bindStatements(statements);
+        metrics.bindHashing(HashingExecutor.shared());
+        if (dataSource instanceof FailoverDataSource failover) {
+            metrics.bindHosts(failover);
+        }
+        this.userDao = new ExternalUserDao(dataSource, statements, metrics);
+        this.slowQueries = new SlowQueryLog(
+                Long.parseLong(setting("fdp.slow-query.threshold-ms", "FDP_SLOW_QUERY_THRESHOLD_MS", "0")),
+                Double.parseDouble(setting("fdp.slow-query.explain-rate", "FDP_SLOW_QUERY_EXPLAIN_RATE", "0.1")),
+                Integer.parseInt(setting("fdp.slow-query.buffer-size", "FDP_SLOW_QUERY_BUFFER_SIZE", "50")));
+        userDao.setSlowQueryLog(slowQueries);
+        userDao.setTimeouts(timeouts());
+        statements.warmUp(dataSource, minSize);
+        checkUniqueLogins(userDao, "federation");
+        if (Boolean.parseBoolean(setting("fdp.directory.enabled", "FDP_DIRECTORY_ENABLED", "false"))) {
+            checkUpdatedAt("user directory");
+            openDirectory();
+        }
+        if (Boolean.parseBoolean(setting("fdp.admission.enabled", "FDP_ADMISSION_ENABLED", "false"))) {
+            admission = new AdmissionControl(
+                    Integer.parseInt(setting("fdp.admission.login-burst", "FDP_ADMISSION_LOGIN_BURST", "10")),
+                    Double.parseDouble(setting("fdp.admission.login-per-minute", "FDP_ADMISSION_LOGIN_PER_MINUTE", "10")),
+                    Integer.parseInt(setting("fdp.admission.source-burst", "FDP_ADMISSION_SOURCE_BURST", "100")),
+                    Double.parseDouble(setting("fdp.admission.source-per-minute", "FDP_ADMISSION_SOURCE_PER_MINUTE", "300")),
+                    Integer.parseInt(setting("fdp.admission.max-concurrent", "FDP_ADMISSION_MAX_CONCURRENT", String.valueOf(maxSize * 2))),
+                    Integer.parseInt(setting("fdp.admission.table-size", "FDP_ADMISSION_TABLE_SIZE", "65536")));
+            metrics.bindAdmission(admission);
+        }
+        if (Boolean.parseBoolean(setting("fdp.identifier-filter.enabled", "FDP_IDENTIFIER_FILTER_ENABLED", "false"))) {
+            identifiers = new IdentifierFilter(Double.parseDouble(
+                    setting("fdp.identifier-filter.fpp", "FDP_IDENTIFIER_FILTER_FPP", "0.01")));
+            userDao.setIdentifierFilter(identifiers);
+            identifiers.start(userDao::loadIdentifiers, Duration.ofMinutes(Long.parseLong(
+                    setting("fdp.identifier-filter.rebuild-minutes", "FDP_IDENTIFIER_FILTER_REBUILD_MINUTES", "5"))));
+        }
+        RoleMappings mappings = RoleMappings.parse(setting("fdp.role-mappings", "FDP_ROLE_MAPPINGS", ""));
+        roleMappings = mappings.isEmpty() ? null : mappings;
+        List<VirtualGroup> definitions = VirtualGroup.parse(setting("fdp.virtual-groups", "FDP_VIRTUAL_GROUPS", ""));
+        if (!definitions.isEmpty()) {
+            checkUpdatedAt("virtual groups");
+            virtualGroups = new VirtualGroups(definitions);
+            userDao.setVirtualGroups(virtualGroups);
+            virtualGroups.start(userDao::loadGroupFlags,
+                    Duration.ofSeconds(Long.parseLong(setting("fdp.virtual-groups.refresh-seconds", "FDP_VIRTUAL_GROUPS_REFRESH_SECONDS", "30"))),
+                    Duration.ofMinutes(Long.parseLong(setting("fdp.virtual-groups.rebuild-minutes", "FDP_VIRTUAL_GROUPS_REBUILD_MINUTES", "60"))));
+        }
+        if (Boolean.parseBoolean(setting("fdp.password-rehash.enabled", "FDP_PASSWORD_REHASH_ENABLED", "false"))) {
+            rehash = new PasswordRehashQueue(userDao,
+                    Integer.parseInt(setting("fdp.password-rehash.queue", "FDP_PASSWORD_REHASH_QUEUE", "1024")),
+                    Integer.parseInt(setting("fdp.password-rehash.batch-size", "FDP_PASSWORD_REHASH_BATCH_SIZE", "100")),
+                    millis("fdp.password-rehash.linger-ms", "FDP_PASSWORD_REHASH_LINGER_MS", "200"));
+        }
+        if (Boolean.parseBoolean(setting("fdp.password-rehash.normalize-on-start", "FDP_PASSWORD_REHASH_NORMALIZE_ON_START", "false"))) {
+            normalizePasswords();
+        }
+        importBatchSize = Integer.parseInt(setting("fdp.import.batch-size", "FDP_IMPORT_BATCH_SIZE", "500"));
+        String shardUrls = setting("fdp.shards", "FDP_SHARDS", "");
+        if (!shardUrls.isBlank()) {
+            openShards(shardUrls.split(","));
+        }
+    }
+
+    @Override
+    /**
+     * Planifie le nettoyage du stockage fédéré une fois les migrations de Keycloak terminées,
+     * s'il est activé. Sur un cluster, un seul nœud l'exécute à chaque intervalle.
+     */
+    public void postInit(KeycloakSessionFactory factory) {
+        if (!Boolean.parseBoolean(setting("fdp.orphan-sweep.enabled", "FDP_ORPHAN_SWEEP_ENABLED", "false"))) {
+            return;
+        }
+        int chunkSize = Integer.parseInt(setting("fdp.orphan-sweep.chunk-size", "FDP_ORPHAN_SWEEP_CHUNK_SIZE", "1000"));
+        orphanSweep = new OrphanSweep(chunkSize,
+                Integer.parseInt(setting("fdp.orphan-sweep.batch-size", "FDP_ORPHAN_SWEEP_BATCH_SIZE", "100")),
+                Long.parseLong(setting("fdp.orphan-sweep.max-removals", "FDP_ORPHAN_SWEEP_MAX_REMOVALS", "10000")));
+        metrics.bindSweep(orphanSweep);
+        Duration interval = Duration.ofMinutes(Long.parseLong(
+                setting("fdp.orphan-sweep.interval-minutes", "FDP_ORPHAN_SWEEP_INTERVAL_MINUTES", "60")));
+        factory.register(event -> {
+            if (event instanceof PostMigrationEvent) {
+                OrphanSweep.schedule(factory, () -> sweepOrphans(factory, chunkSize), interval);
+            }
+        });
+    }
+
+    private record SweepTarget(String realmId, ComponentModel component) {}
+
+    /**
+     * Balaie le stockage fédéré de chaque composant {@value #PROVIDER_NAME} de chaque realm.
+     * L'échec d'un composant n'empêche pas le passage sur les suivants.
+     */
+    private void sweepOrphans(KeycloakSessionFactory factory, int pageSize) {
+        List<SweepTarget> targets = new ArrayList<>();
+        KeycloakModelUtils.runJobInTransaction(factory, session -> session.realms().getRealmsStream()
+                .forEach(realm -> realm.getComponentsStream(realm.getId(), UserStorageProvider.class.getName())
+                        .filter(c -> PROVIDER_NAME.equals(c.getProviderId()))
+                        .forEach(c -> targets.add(new SweepTarget(realm.getId(), c)))));
+        for (SweepTarget target : targets) {
+            try {
+                orphanSweep.sweep(target.component().getId(), userDaos(target.component()),
+                        new FederatedStorage(factory, target.realmId(), pageSize));
+            } catch (SQLException | RuntimeException e) {
+                logger.warnf("Orphan sweep of component %s aborted: %s", target.component().getId(), e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Ouvre un pool par base supplémentaire, avec les identifiants de la datasource
+     * de la fédération, qui devient le shard 0.
+     */
+    private void openShards(String[] urls) {
+        int maxSize = Integer.parseInt(setting("fdp.shards.max-size", "FDP_SHARDS_MAX_SIZE", "4"));
+        List<ExternalUserDao> daos = new ArrayList<>();
+        daos.add(userDao);
+        for (String url : urls) {
+            if (url.isBlank()) {
+                continue;
+            }
+            DataSource ds;
+            try {
+                ds = createDataSource(url.trim(),
+                        setting("quarkus.datasource.federation.username", "QUARKUS_DATASOURCE_FEDERATION_USERNAME", null),
+                        setting("quarkus.datasource.federation.password", "QUARKUS_DATASOURCE_FEDERATION_PASSWORD", null),
+                        1, maxSize);
+            } catch (Exception e) {
+                throw new RuntimeException("Failed to initialize shard datasource " + daos.size(), e);
+            }
+            shardSources.add(ds);
+            ExternalUserDao dao = new ExternalUserDao(ds, new StatementRegistry(), metrics);
+            dao.setSlowQueryLog(slowQueries);
+            dao.setTimeouts(timeouts());
+            daos.add(dao);
+        }
+        shards = new ShardedUsers(daos, millis("fdp.shards.timeout-ms", "FDP_SHARDS_TIMEOUT_MS", "2000"),
+                Integer.parseInt(setting("fdp.shards.page-size", "FDP_SHARDS_PAGE_SIZE",
+                        String.valueOf(ShardedUsers.DEFAULT_PAGE_SIZE))));
+        logger.infof("Sharded federation over %d database(s)", shards.size());
+    }
+
+    /**
+     * Lance en tâche de fond la réécriture de tous les mots de passe en clair de la table.
+     */
+    private void normalizePasswords() {
+        PasswordNormalizer normalizer = new PasswordNormalizer(userDao,
+                Integer.parseInt(setting("fdp.password-rehash.normalize-threads", "FDP_PASSWORD_REHASH_NORMALIZE_THREADS", "2")),
+                Integer.parseInt(setting("fdp.password-rehash.normalize-batch-size", "FDP_PASSWORD_REHASH_NORMALIZE_BATCH_SIZE", "500")));
+        Thread job = new Thread(() -> {
+            try {
+                normalizer.run();
+            } catch (Exception e) {
+                logger.warnf("Password normalization failed: %s", e.getMessage());
+            }
+        }, "fdp-password-normalizer");
+        job.setDaemon(true);
+        job.start();
+    }
+
+    /**
+     * Avertit au démarrage si la colonne {@code updated_at} dont dépend le rafraîchissement
+     * incrémental de {@code feature} n'est pas tenue à jour par la base.
+     */
+    private void checkUpdatedAt(String feature) {
+        try {
+            if (!userDao.isUpdatedAtMaintained()) {
+                logger.warnf("Column adherents.updated_at is nullable: the %s only picks up changes at full rebuilds. "
+                        + "Declare it TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP", feature);
+            }
+        } catch (SQLException e) {
+            logger.warnf("Cannot check adherents.updated_at for the %s: %s", feature, e.getMessage());
+        }
+    }
+
+    /**
+     * Signale au démarrage l'absence d'index unique sur {@code login} : les doublons
+     * ne sont alors écartés que par une vérification préalable, sujette aux courses,
+     * et l'import en masse est refusé.
+     */
+    private static void checkUniqueLogins(ExternalUserDao dao, String database) {
+        try {
+            if (!dao.isLoginUnique()) {
+                logger.errorf("No unique index on adherents.login in the %s database: concurrent registrations "
+                        + "may create duplicate logins and bulk import is disabled. "
+                        + "Create it with CREATE UNIQUE INDEX idx_adherents_login ON adherents (login)", database);
+            }
+        } catch (SQLException e) {
+            logger.warnf("Cannot check the indexes of adherents in the %s database: %s", database, e.getMessage());
+        }
+    }
+
+    /**
+     * Ouvre le répertoire local des adhérents et planifie son rafraîchissement.
+     * En cas d'échec, notamment si le fichier est déjà ouvert par un autre processus,
+     * les recherches continuent d'interroger la base.
+     */
+    private void openDirectory() {
+        Path path = Path.of(setting("fdp.directory.path", "FDP_DIRECTORY_PATH", defaultDirectoryPath(
+                setting("quarkus.datasource.federation.jdbc.url", "QUARKUS_DATASOURCE_FEDERATION_JDBC_URL", null),
+                setting("quarkus.datasource.federation.username", "QUARKUS_DATASOURCE_FEDERATION_USERNAME", null))
+                .toString()));
+        try {
+            directory = UserDirectory.open(path);
+        } catch (IOException e) {
+            logger.warnf("User directory disabled, cannot open %s: %s", path, e.getMessage());
+            return;
+        }
+        userDao.setUserDirectory(directory);
+        directory.start(userDao::loadDirectory,
+                Duration.ofSeconds(Long.parseLong(setting("fdp.directory.refresh-seconds", "FDP_DIRECTORY_REFRESH_SECONDS", "30"))),
+                Duration.ofMinutes(Long.parseLong(setting("fdp.directory.rebuild-minutes", "FDP_DIRECTORY_REBUILD_MINUTES", "60"))));
+    }
+
+    /**
+     * Fichier par défaut du répertoire, nommé d'après la datasource de la fédération :
+     * deux fédérations d'un même hôte n'écrivent pas dans le même fichier.
+     */
+    static Path defaultDirectoryPath(String url, String username) {
+        UUID identity = UUID.nameUUIDFromBytes((url + "\n" + username).getBytes(StandardCharsets.UTF_8));
+        return Path.of(System.getProperty("java.io.tmpdir"), "fdp-directory-" + identity + ".bin");
+    }
+
+    /**
+     * Budgets des opérations lus depuis {@code fdp.timeout.*} / {@code FDP_TIMEOUT_*}, en millisecondes.
+     */
+    static OperationTimeouts timeouts() {
+        return new OperationTimeouts(
+                millis("fdp.timeout.lookup-ms", "FDP_TIMEOUT_LOOKUP_MS", "2000"),
+                millis("fdp.timeout.credential-ms", "FDP_TIMEOUT_CREDENTIAL_MS", "2000"),
+                millis("fdp.timeout.list-ms", "FDP_TIMEOUT_LIST_MS", "10000"),
+                millis("fdp.timeout.write-ms", "FDP_TIMEOUT_WRITE_MS", "5000"),
+                millis("fdp.timeout.connection-wait-ms", "FDP_TIMEOUT_CONNECTION_WAIT_MS", "1000"));
+    }
+
+    private static Duration millis(String property, String env, String defaultValue) {
+        return Duration.ofMillis(Long.parseLong(setting(property, env, defaultValue)));
+    }
+
+    /**
+     * Requêtes lentes récentes, pour le diagnostic.
+     */
+    public SlowQueryLog getSlowQueryLog() {
+        return slowQueries;
     }
 
     @Override
     /**
      * Crée une nouvelle instance du provider utilisée pour traiter les requêtes de Keycloak.
+     * Un composant qui déclare sa propre base utilise son pool, ouvert au premier appel.
      */
     public FdpSQLUserStorageProvider create(KeycloakSession session, ComponentModel model) {
-        return new FdpSQLUserStorageProvider(session, model, dataSource);
+        ComponentDataSources.Pool pool = componentPools.get(model);
+        FdpSQLUserStorageProvider provider;
+        if (pool == null) {
+            provider = new FdpSQLUserStorageProvider(session, model, dataSource, userDao);
+            provider.setPasswordRehashQueue(rehash);
+            provider.setShards(shards);
+        } else {
+            // directory, filters, groups and rehash queue are loaded from the shared pool only
+            provider = new FdpSQLUserStorageProvider(session, model, pool.dataSource(), pool.userDao());
+        }
+        provider.setAdmissionControl(admission);
+        provider.setRoleMappings(roleMappings);
+        provider.setAttributeMapping(attributeMapping(model));
+        provider.setImportBatchSize(importBatchSize);
+        return provider;
+    }
+
+    @Override
+    /**
+     * Propriétés du composant affichées dans la console d'administration.
+     */
+    public List<ProviderConfigProperty> getConfigProperties() {
+        return ProviderConfigurationBuilder.create()
+                .property()
+                .name(CONFIG_ATTRIBUTE_MAPPINGS)
+                .label("Attribute mappings")
+                .helpText("Entries attribute=column exposing adherents columns as user attributes. "
+                        + "Empty uses " + String.join(", ", AttributeMapping.DEFAULT_ENTRIES) + ".")
+                .type(ProviderConfigProperty.MULTIVALUED_STRING_TYPE)
+                .add()
+                .property()
+                .name(CONFIG_CHECK_USER_PROFILE)
+                .label("Check user profile")
+                .helpText("Log mapped attributes the realm user profile does not declare when the component is saved.")
+                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                .defaultValue("false")
+                .add()
+                .property()
+                .name(ComponentDataSources.CONFIG_JDBC_URL)
+                .label("JDBC URL")
+                .helpText("Database of this component, with its own connection pool. Empty uses the shared federation datasource.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .add()
+                .property()
+                .name(ComponentDataSources.CONFIG_USERNAME)
+                .label("Database user")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .add()
+                .property()
+                .name(ComponentDataSources.CONFIG_PASSWORD)
+                .label("Database password")
+                .type(ProviderConfigProperty.PASSWORD)
+                .secret(true)
+                .add()
+                .property()
+                .name(ComponentDataSources.CONFIG_POOL_MIN_SIZE)
+                .label("Pool minimum size")
+                .type(ProviderConfigProperty.INTEGER_TYPE)
+                .defaultValue("1")
+                .add()
+                .property()
+                .name(ComponentDataSources.CONFIG_POOL_MAX_SIZE)
+                .label("Pool maximum size")
+                .helpText("Connections this component may hold at most, so that it cannot starve the others.")
+                .type(ProviderConfigProperty.INTEGER_TYPE)
+                .defaultValue("4")
+                .add()
+                .build();
+    }
+
+    @Override
+    /**
+     * Refuse une configuration dont la table des attributs ne compile pas, dont les tailles de pool
+     * sont incohérentes ou dont le profil utilisateur du realm est illisible.
+     */
+    public void validateConfiguration(KeycloakSession session, RealmModel realm, ComponentModel config)
+            throws ComponentValidationException {
+        AttributeMapping mapping;
+        try {
+            mapping = AttributeMapping.compile(mappingEntries(config));
+        } catch (IllegalArgumentException e) {
+            throw new ComponentValidationException("Invalid attribute mapping: " + e.getMessage(), e);
+        }
+        ComponentDataSources.Settings pool = ComponentDataSources.Settings.of(config);
+        if (pool != null && (pool.maxSize() < 1 || pool.minSize() < 0 || pool.minSize() > pool.maxSize())) {
+            throw new ComponentValidationException("Invalid pool size: " + pool.minSize() + ".." + pool.maxSize());
+        }
+        if (Boolean.parseBoolean(config.get(CONFIG_CHECK_USER_PROFILE))) {
+            UserProfileProvider profiles = session.getProvider(UserProfileProvider.class);
+            UPConfig profile;
+            try {
+                profile = profiles == null ? null : profiles.getConfiguration();
+            } catch (RuntimeException e) {
+                logger.debugf(e, "Cannot read the user profile of realm %s", realm.getName());
+                profile = null;
+            }
+            if (profile == null) {
+                throw new ComponentValidationException("Cannot read the realm user profile");
+            }
+            mapping.checkProfile(profile);
+        }
+    }
+
+    @Override
+    /**
+     * Une modification du composant oblige à recompiler sa table des attributs.
+     */
+    public void onUpdate(KeycloakSession session, RealmModel realm, ComponentModel oldModel, ComponentModel newModel) {
+        attributeMappings.remove(newModel.getId());
+    }
+
+    @Override
+    /**
+     * Oublie la table des attributs d'un composant supprimé et ferme son pool de connexions.
+     */
+    public void preRemove(KeycloakSession session, RealmModel realm, ComponentModel model) {
+        attributeMappings.remove(model.getId());
+        componentPools.close(model.getId());
+    }
+
+    private static List<String> mappingEntries(ComponentModel model) {
+        List<String> entries = model.getConfig() == null ? null : model.getConfig().getList(CONFIG_ATTRIBUTE_MAPPINGS);
+        return entries == null || entries.isEmpty() ? AttributeMapping.DEFAULT_ENTRIES : entries;
+    }
+
+    /**
+     * Table des attributs du composant, compilée à la première création de provider puis réutilisée
+     * tant que la configuration ne change pas. Une configuration invalide retombe sur la table par défaut.
+     */
+    public AttributeMapping attributeMapping(ComponentModel model) {
+        List<String> entries = mappingEntries(model);
+        CompiledMapping cached = attributeMappings.get(model.getId());
+        if (cached != null && cached.entries().equals(entries)) {
+            return cached.mapping();
+        }
+        AttributeMapping mapping;
+        try {
+            mapping = AttributeMapping.compile(entries);
+        } catch (IllegalArgumentException e) {
+            logger.warnf("Invalid attribute mapping for component %s, using defaults: %s", model.getId(), e.getMessage());
+            mapping = AttributeMapping.DEFAULT;
+        }
+        attributeMappings.put(model.getId(), new CompiledMapping(List.copyOf(entries), mapping));
+        return mapping;
+    }
+
+    /**
+     * DAO des bases servies par le composant, dans l'ordre des shards : le pool propre
+     * du composant, ou le pool partagé suivi des shards supplémentaires.
+     */
+    public List<ExternalUserDao> userDaos(ComponentModel model) {
+        ComponentDataSources.Pool pool = componentPools.get(model);
+        if (pool != null) {
+            return List.of(pool.userDao());
+        }
+        if (shards == null) {
+            return List.of(userDao);
+        }
+        List<ExternalUserDao> daos = new ArrayList<>(shards.size());
+        for (int shard = 0; shard < shards.size(); shard++) {
+            daos.add(shards.dao(shard));
+        }
+        return daos;
     }
 
     @Override
@@ -53,9 +612,43 @@ public class FdpSQLUserStorageProviderFactory implements UserStorageProviderFact
 
     @Override
     /**
-     * Appelée à l'arrêt. Aucun traitement spécifique n'est nécessaire.
+     * Appelée à l'arrêt : écrit les mots de passe en attente de migration, ferme le répertoire
+     * local, le filtre des identifiants, les groupes virtuels, les pools des composants, des
+     * shards et le pool partagé.
      */
     public void close() {
-        // nothing to close
+        if (rehash != null) {
+            rehash.close();
+        }
+        if (statements != null) {
+            logger.infof("Closing federation datasource, prepared statements: %s", statements);
+        }
+        if (directory != null) {
+            directory.close();
+        }
+        if (identifiers != null) {
+            identifiers.close();
+        }
+        if (virtualGroups != null) {
+            virtualGroups.close();
+        }
+        componentPools.close();
+        if (shards != null) {
+            shards.close();
+        }
+        for (DataSource ds : shardSources) {
+            closeDataSource(ds);
+        }
+        closeDataSource(dataSource);
+    }
+
+    private static void closeDataSource(DataSource ds) {
+        if (ds instanceof AutoCloseable pool) {
+            try {
+                pool.close();
+            } catch (Exception e) {
+                logger.warnf("Failed to close federation datasource: %s", e.getMessage());
+            }
+        }
     }
 }
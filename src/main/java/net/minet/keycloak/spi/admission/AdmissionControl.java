@@ -0,0 +1,111 @@
+package net.minet.keycloak.spi.admission;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Admission control in front of password validation.
+ *
+ * <p>An attempt is admitted only if the token bucket of its login, the token
+ * bucket of its source address and the global concurrency cap all allow it.
+ * The login bucket is only charged by {@link #failed(String)}, once the
+ * password has proved wrong, so successful logins never drain it. Rejected
+ * attempts cost a few atomic operations and never reach the database or the
+ * hash function. All state is in memory and lock-free.</p>
+ */
+public final class AdmissionControl {
+
+    /** Décision pour une tentative. */
+    public enum Decision {
+        ADMITTED, LOGIN_RATE, SOURCE_RATE, OVERLOADED;
+
+        public String tag() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private final TokenBuckets logins;
+    private final TokenBuckets sources;
+    private final int maxConcurrent;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final Map<Decision, LongAdder> decisions = new EnumMap<>(Decision.class);
+
+    /**
+     * @param loginBurst       mots de passe erronés d'affilée par login, {@code 0} pour ne pas limiter
+     * @param loginPerMinute   mots de passe erronés regagnés par minute et par login
+     * @param sourceBurst      tentatives d'affilée par adresse source, {@code 0} pour ne pas limiter
+     * @param sourcePerMinute  tentatives regagnées par minute et par adresse source
+     * @param maxConcurrent    vérifications simultanées, {@code 0} pour ne pas limiter
+     * @param tableSize        nombre de seaux de chaque table
+     */
+    public AdmissionControl(int loginBurst, double loginPerMinute, int sourceBurst, double sourcePerMinute,
+                            int maxConcurrent, int tableSize) {
+        this.logins = loginBurst > 0 ? new TokenBuckets(loginBurst, loginPerMinute, tableSize) : null;
+        this.sources = sourceBurst > 0 ? new TokenBuckets(sourceBurst, sourcePerMinute, tableSize) : null;
+        this.maxConcurrent = maxConcurrent;
+        for (Decision d : Decision.values()) {
+            decisions.put(d, new LongAdder());
+        }
+    }
+
+    /**
+     * Décide d'admettre une vérification. Une tentative admise doit être
+     * suivie de {@link #release()}.
+     *
+     * @param login  login visé, ignoré si {@code null}
+     * @param source adresse du client, ignorée si {@code null}
+     */
+    public Decision admit(String login, String source) {
+        Decision decision = decide(login, source);
+        decisions.get(decision).increment();
+        return decision;
+    }
+
+    private Decision decide(String login, String source) {
+        if (logins != null && login != null && !logins.available(login)) {
+            return Decision.LOGIN_RATE;
+        }
+        if (sources != null && source != null && !sources.tryTake(source)) {
+            return Decision.SOURCE_RATE;
+        }
+        if (maxConcurrent > 0) {
+            int current;
+            do {
+                current = inFlight.get();
+                if (current >= maxConcurrent) {
+                    return Decision.OVERLOADED;
+                }
+            } while (!inFlight.compareAndSet(current, current + 1));
+        }
+        return Decision.ADMITTED;
+    }
+
+    /**
+     * Débite le seau de {@code login} après un mot de passe erroné.
+     */
+    public void failed(String login) {
+        if (logins != null && login != null) {
+            logins.take(login);
+        }
+    }
+
+    /** Libère la place occupée par une tentative admise. */
+    public void release() {
+        if (maxConcurrent > 0) {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    /** Nombre de tentatives ayant reçu la décision donnée. */
+    public long count(Decision decision) {
+        return decisions.get(decision).sum();
+    }
+
+    /** Vérifications en cours. */
+    public int inFlight() {
+        return inFlight.get();
+    }
+}
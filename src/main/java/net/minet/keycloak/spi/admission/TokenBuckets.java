@@ -0,0 +1,118 @@
+package net.minet.keycloak.spi.admission;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size table of token buckets indexed by key hash.
+ *
+ * <p>Each bucket is a single {@code long} holding the last refill time and
+ * the remaining tokens, updated with compare-and-set. Keys are never stored:
+ * memory stays constant however many distinct logins or addresses an attack
+ * uses. Each key maps to two buckets through independent hashes, both charged
+ * on every take; a key is refused only when both are empty, so draining a
+ * victim's budget takes a key colliding with it on both hashes.</p>
+ */
+final class TokenBuckets {
+    private static final int TOKEN_BITS = 22;
+    private static final long TOKEN_MASK = (1L << TOKEN_BITS) - 1;
+    // tokens are kept in thousandths so slow refill rates accumulate
+    private static final long ONE = 1000;
+
+    private final AtomicLongArray slots;
+    private final int mask;
+    private final long capacity;
+    private final double refillPerMilli;
+    private final long origin = System.nanoTime();
+    private final int seed = ThreadLocalRandom.current().nextInt();
+
+    /**
+     * @param burst          nombre de tentatives autorisées d'affilée
+     * @param perMinute      tentatives regagnées par minute
+     * @param tableSize      nombre de seaux, arrondi à une puissance de deux
+     */
+    TokenBuckets(int burst, double perMinute, int tableSize) {
+        int size = Integer.highestOneBit(Math.max(tableSize, 2) - 1) << 1;
+        this.slots = new AtomicLongArray(size);
+        this.mask = size - 1;
+        this.capacity = Math.min(burst * ONE, TOKEN_MASK);
+        this.refillPerMilli = perMinute * ONE / 60_000d;
+    }
+
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private long now() {
+        // never 0, which marks an untouched bucket
+        return (System.nanoTime() - origin) / 1_000_000 + 1;
+    }
+
+    private int first(String key) {
+        return mix(key.hashCode()) & mask;
+    }
+
+    private int second(String key) {
+        // seeded FNV-1a: keys crafted to share String.hashCode still land apart
+        int h = seed;
+        for (int c = 0; c < key.length(); c++) {
+            h = (h ^ key.charAt(c)) * 0x01000193;
+        }
+        int i = mix(h) & mask;
+        return i == first(key) ? (i + 1) & mask : i;
+    }
+
+    /** Jetons d'un seau dans l'état {@code state} à l'instant {@code now}, en millièmes. */
+    private long tokens(long state, long now) {
+        if (state == 0) {
+            return capacity;
+        }
+        long last = state >>> TOKEN_BITS;
+        return Math.min(capacity, (state & TOKEN_MASK) + (long) ((now - last) * refillPerMilli));
+    }
+
+    /**
+     * Indique si {@code key} dispose d'au moins un jeton, sans le consommer.
+     */
+    boolean available(String key) {
+        long now = now();
+        return Math.max(tokens(slots.get(first(key)), now), tokens(slots.get(second(key)), now)) >= ONE;
+    }
+
+    /**
+     * Consomme un jeton pour {@code key} dans ses deux seaux, sans descendre sous zéro.
+     */
+    void take(String key) {
+        long now = now();
+        debit(first(key), now);
+        debit(second(key), now);
+    }
+
+    private void debit(int i, long now) {
+        while (true) {
+            long state = slots.get(i);
+            long tokens = tokens(state, now);
+            if (slots.compareAndSet(i, state, (now << TOKEN_BITS) | Math.max(tokens - ONE, 0))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Consomme un jeton pour {@code key}.
+     *
+     * @return {@code false} si ses deux seaux sont vides
+     */
+    boolean tryTake(String key) {
+        if (!available(key)) {
+            return false;
+        }
+        take(key);
+        return true;
+    }
+}
@@ -0,0 +1,150 @@
+package net.minet.keycloak.spi.dao;
+
+import net.minet.keycloak.spi.entity.ExternalUser;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Columns of {@code adherents} loaded into an {@link ExternalUser}.
+ *
+ * <p>This is the only declaration of those columns: the SELECT projection and
+ * the per-column UPDATEs of {@link StatementRegistry}, the row mapper, the
+ * attribute mapping, the virtual groups and the role mappings are all derived
+ * from it. Declaration order is the order of the projection.</p>
+ */
+public enum AdherentColumn {
+    ID("id", Type.INT, ExternalUser::getId, (u, v) -> u.setId((Integer) v), false, false),
+    NOM("nom", Type.STRING, ExternalUser::getLastName, (u, v) -> u.setLastName((String) v), true, false),
+    PRENOM("prenom", Type.STRING, ExternalUser::getFirstName, (u, v) -> u.setFirstName((String) v), true, false),
+    MAIL("mail", Type.STRING, ExternalUser::getEmail, (u, v) -> u.setEmail((String) v), true, false),
+    LOGIN("login", Type.STRING, ExternalUser::getUsername, (u, v) -> u.setUsername((String) v), true, false),
+    CREATED_AT("created_at", Type.DATETIME, ExternalUser::getCreatedAt,
+            (u, v) -> u.setCreatedAt((LocalDateTime) v), true, false),
+    IS_NAINA("is_naina", Type.BYTE, ExternalUser::getIsNaina, (u, v) -> u.setIsNaina((Byte) v), true, true),
+    LDAP_LOGIN("ldap_login", Type.STRING, ExternalUser::getLdapLogin, (u, v) -> u.setLdapLogin((String) v), true, false),
+    EDMINET("edminet", Type.BYTE, ExternalUser::getEdminet, (u, v) -> u.setEdminet((Byte) v), false, true),
+    MAILINGLIST("mailinglist", Type.BYTE, ExternalUser::getMailinglist, (u, v) -> u.setMailinglist((Byte) v),
+            false, true),
+    MODE_ASSOCIATION("mode_association", Type.BYTE, ExternalUser::getModeAssociation,
+            (u, v) -> u.setModeAssociation((Byte) v), false, true);
+
+    /** Représentation JDBC d'une colonne et type de la valeur dans l'entité. */
+    public enum Type {
+        INT {
+            @Override
+            Object read(ResultSet rs, int index) throws SQLException {
+                Object o = rs.getObject(index);
+                return o == null ? null : ((Number) o).intValue();
+            }
+        },
+        BYTE {
+            @Override
+            Object read(ResultSet rs, int index) throws SQLException {
+                Object o = rs.getObject(index);
+                return o == null ? null : ((Number) o).byteValue();
+            }
+        },
+        STRING {
+            @Override
+            Object read(ResultSet rs, int index) throws SQLException {
+                return rs.getString(index);
+            }
+        },
+        /** {@link LocalDateTime} in the entity. */
+        DATETIME {
+            @Override
+            Object read(ResultSet rs, int index) throws SQLException {
+                Timestamp ts = rs.getTimestamp(index);
+                return ts == null ? null : ts.toLocalDateTime();
+            }
+        };
+
+        abstract Object read(ResultSet rs, int index) throws SQLException;
+    }
+
+    private final String column;
+    private final Type type;
+    private final Function<ExternalUser, Object> getter;
+    private final BiConsumer<ExternalUser, Object> setter;
+    private final boolean updatable;
+    private final boolean flag;
+
+    AdherentColumn(String column, Type type, Function<ExternalUser, Object> getter,
+                   BiConsumer<ExternalUser, Object> setter, boolean updatable, boolean flag) {
+        this.column = column;
+        this.type = type;
+        this.getter = getter;
+        this.setter = setter;
+        this.updatable = updatable;
+        this.flag = flag;
+    }
+
+    /** Nom SQL de la colonne. */
+    public String column() {
+        return column;
+    }
+
+    public Type type() {
+        return type;
+    }
+
+    /** Indique si l'adaptateur peut réécrire la colonne. */
+    public boolean updatable() {
+        return updatable;
+    }
+
+    /** Indique si la colonne est un drapeau utilisable par les groupes virtuels et les rôles. */
+    public boolean flag() {
+        return flag;
+    }
+
+    public Object get(ExternalUser user) {
+        return getter.apply(user);
+    }
+
+    public void set(ExternalUser user, Object value) {
+        setter.accept(user, value);
+    }
+
+    /** Lit la colonne à la position {@code index} de la ligne courante et la copie dans l'entité. */
+    public void read(ResultSet rs, int index, ExternalUser user) throws SQLException {
+        setter.accept(user, type.read(rs, index));
+    }
+
+    /**
+     * Colonne portant ce nom SQL.
+     *
+     * @return {@code null} si la colonne n'est pas chargée dans l'entité
+     */
+    public static AdherentColumn of(String column) {
+        for (AdherentColumn c : values()) {
+            if (c.column.equals(column)) {
+                return c;
+            }
+        }
+        return null;
+    }
+
+    /** Noms SQL des colonnes retenues, dans l'ordre de déclaration. */
+    static List<String> names(boolean updatableOnly, boolean flagsOnly) {
+        List<String> names = new ArrayList<>();
+        for (AdherentColumn c : values()) {
+            if ((!updatableOnly || c.updatable) && (!flagsOnly || c.flag)) {
+                names.add(c.column);
+            }
+        }
+        return List.copyOf(names);
+    }
+
+    /** Noms SQL des drapeaux, dans l'ordre de déclaration. */
+    public static List<String> flags() {
+        return names(false, true);
+    }
+}
@@ -1,40 +1,254 @@
 package net.minet.keycloak.spi.dao;
 
+import net.minet.keycloak.spi.directory.IdentifierFilter;
+import net.minet.keycloak.spi.directory.UserDirectory;
 import net.minet.keycloak.spi.entity.ExternalUser;
+import net.minet.keycloak.spi.entity.ExternalUserDetails;
+import net.minet.keycloak.spi.groups.VirtualGroups;
 import net.minet.keycloak.spi.ExternalUserMapper;
+import net.minet.keycloak.spi.jfr.AttributeWriteEvent;
+import net.minet.keycloak.spi.jfr.UserLookupEvent;
+import net.minet.keycloak.spi.jfr.UserStreamEvent;
+import net.minet.keycloak.spi.metrics.FederationMetrics;
+import net.minet.keycloak.spi.metrics.FederationMetrics.Operation;
+import net.minet.keycloak.spi.tracing.FederationTracing;
 import org.jboss.logging.Logger;
+import org.keycloak.models.ModelException;
 
 import javax.sql.DataSource;
 import java.sql.*;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+import java.util.function.ObjIntConsumer;
+import java.util.function.Supplier;
 import java.util.stream.Stream;
 
 /**
  * Simple DAO executing SQL queries to retrieve {@link ExternalUser} entities.
+ *
+ * <p>Every statement comes from the {@link StatementRegistry} so that it can be
+ * reused server-side across calls on the same pooled connection. Each
+ * operation and each connection checkout is timed in {@link FederationMetrics},
+ * and every statement execution goes through {@link SlowQueryLog}. Operations
+ * and connection checkouts are also traced through {@link FederationTracing}.</p>
+ *
+ * <p>When a {@link UserDirectory} is attached, single-user lookups are served
+ * from it first and only misses reach the database; writes made through this
+ * DAO are reflected in the directory immediately. An {@link IdentifierFilter}
+ * answers lookups by login or email that certainly match no row before either
+ * is consulted. Concurrent identical lookups reaching the database share one
+ * query through {@link SingleFlight}.</p>
+ *
+ * <p>Each operation runs within the budget of its {@link OperationTimeouts}:
+ * the statement gets a query timeout and is cancelled by a watchdog when the
+ * budget runs out. A timeout raises {@link FederationTimeoutException} instead
+ * of being reported as a missing user.</p>
  */
 public class ExternalUserDao {
     private static final Logger logger = Logger.getLogger(ExternalUserDao.class);
 
-    // Only retrieve columns we care about from the external DB
-    private static final String SELECT_FIELDS = String.join(", ",
-            "id", "nom", "prenom", "mail", "login",
-            "created_at", "is_naina", "ldap_login");
+    private static final Map<Operation, String> SPAN_NAMES = new EnumMap<>(Operation.class);
 
-    private static final String SELECT_BY_ID =
-            "SELECT " + SELECT_FIELDS + " FROM adherents WHERE id = ?";
-    private static final String SELECT_BY_USERNAME =
-            "SELECT " + SELECT_FIELDS + " FROM adherents WHERE login = ?";
-    private static final String SELECT_BY_EMAIL =
-            "SELECT " + SELECT_FIELDS + " FROM adherents WHERE mail = ?";
+    // Columns whose values are tracked by the identifier filter
+    private static final Set<String> IDENTIFIER_COLUMNS = Set.of("login", "mail", "ldap_login");
+
+    /** Plus longue liste {@code IN} des recherches par identifiants. */
+    public static final int IN_CHUNK = StatementRegistry.MAX_LIST_SIZE;
+
+    // Key of an in-flight lookup: operation and searched value
+    private record LookupKey(Operation op, Object key) {}
+
+    // Cancels statements that outlive their budget, finer-grained than setQueryTimeout's seconds
+    private static final ScheduledThreadPoolExecutor WATCHDOG = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread t = new Thread(r, "fdp-query-watchdog");
+        t.setDaemon(true);
+        return t;
+    });
+
+    static {
+        for (Operation op : Operation.values()) {
+            SPAN_NAMES.put(op, "fdp.dao." + op.tag());
+        }
+        WATCHDOG.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Budget d'une opération, décompté dès l'emprunt de la connexion.
+     * {@code op} vaut {@code null} pour les chargements en tâche de fond, sans limite.
+     */
+    private record Deadline(Operation op, long budgetNanos, long startNanos) {
+        boolean bounded() {
+            return budgetNanos > 0;
+        }
+
+        long remainingNanos() {
+            return budgetNanos - (System.nanoTime() - startNanos);
+        }
+
+        FederationTimeoutException expired(String phase, Throwable cause) {
+            return new FederationTimeoutException(op, phase, TimeUnit.NANOSECONDS.toMillis(budgetNanos), cause);
+        }
+    }
 
     private final DataSource dataSource;
+    private final StatementRegistry statements;
+    private final FederationMetrics metrics;
+    private SlowQueryLog slowQueries = SlowQueryLog.DISABLED;
+    private volatile UserDirectory directory;
+    private volatile IdentifierFilter identifiers;
+    private volatile VirtualGroups groups;
+    private volatile OperationTimeouts timeouts = OperationTimeouts.NONE;
+    private volatile Boolean loginUnique;
+    private final SingleFlight<LookupKey, ExternalUser> lookups = new SingleFlight<>(ExternalUser::copy);
 
     /**
      * DAO initialisé par le provider pour exécuter les requêtes SQL nécessaires à Keycloak.
      */
     public ExternalUserDao(DataSource dataSource) {
+        this(dataSource, new StatementRegistry());
+    }
+
+    /**
+     * DAO partageant le registre de requêtes de la factory.
+     */
+    public ExternalUserDao(DataSource dataSource, StatementRegistry statements) {
+        this(dataSource, statements, FederationMetrics.NOOP);
+    }
+
+    /**
+     * DAO de la factory, partageant registre de requêtes et métriques.
+     */
+    public ExternalUserDao(DataSource dataSource, StatementRegistry statements, FederationMetrics metrics) {
         this.dataSource = dataSource;
+        this.statements = statements;
+        this.metrics = metrics;
+    }
+
+    /** Métriques alimentées par ce DAO. */
+    public FederationMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Emprunte une connexion au pool en mesurant le temps d'attente. Une attente
+     * épuisant le budget de l'opération lève {@link FederationTimeoutException}.
+     */
+    private Connection connection(Deadline deadline) throws SQLException {
+        long start = System.nanoTime();
+        Connection c;
+        try {
+            c = FederationTracing.span("fdp.connection.acquire", "acquire", dataSource::getConnection);
+        } catch (SQLException e) {
+            // the MariaDB pool reports exhaustion as a plain SQLException: judge by the clock
+            if (deadline.bounded() && (e instanceof SQLTimeoutException || deadline.remainingNanos() <= 0)) {
+                throw deadline.expired("connection wait", e);
+            }
+            throw e;
+        } finally {
+            metrics.connectionAcquire().record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+        if (deadline.bounded() && deadline.remainingNanos() <= 0) {
+            c.close();
+            throw deadline.expired("connection wait", null);
+        }
+        return c;
+    }
+
+    private Deadline deadline(Operation op) {
+        long budget = op == null ? 0 : timeouts.budget(op).toNanos();
+        return new Deadline(op, budget, System.nanoTime());
+    }
+
+    /**
+     * Enveloppe une opération publique du DAO : span de trace et histogramme de latence.
+     */
+    private <T> T operation(Operation op, Supplier<T> call) {
+        return FederationTracing.span(SPAN_NAMES.get(op), op.tag(), () -> metrics.time(op, call));
+    }
+
+    /**
+     * Active le log des requêtes lentes. Appelée par la factory avant toute utilisation du DAO.
+     */
+    public void setSlowQueryLog(SlowQueryLog slowQueries) {
+        this.slowQueries = slowQueries;
+    }
+
+    /** Log des requêtes lentes de ce DAO. */
+    public SlowQueryLog getSlowQueryLog() {
+        return slowQueries;
+    }
+
+    /**
+     * Branche le répertoire local consulté avant la base pour les recherches unitaires.
+     */
+    public void setUserDirectory(UserDirectory directory) {
+        this.directory = directory;
+    }
+
+    /** Répertoire local, ou {@code null} s'il est désactivé. */
+    public UserDirectory getUserDirectory() {
+        return directory;
+    }
+
+    /**
+     * Branche les groupes virtuels tenus à jour lors des écritures du provider.
+     */
+    public void setVirtualGroups(VirtualGroups groups) {
+        this.groups = groups;
+    }
+
+    /** Groupes virtuels, ou {@code null} si aucun n'est défini. */
+    public VirtualGroups getVirtualGroups() {
+        return groups;
+    }
+
+    /**
+     * Branche le filtre des identifiants existants consulté avant toute recherche par login ou email.
+     */
+    public void setIdentifierFilter(IdentifierFilter identifiers) {
+        this.identifiers = identifiers;
+    }
+
+    /** Filtre des identifiants, ou {@code null} s'il est désactivé. */
+    public IdentifierFilter getIdentifierFilter() {
+        return identifiers;
+    }
+
+    /**
+     * Fixe les budgets des opérations. Appelée par la factory avant toute utilisation du DAO.
+     */
+    public void setTimeouts(OperationTimeouts timeouts) {
+        this.timeouts = timeouts;
+    }
+
+    /** Budgets appliqués aux opérations. */
+    public OperationTimeouts getTimeouts() {
+        return timeouts;
+    }
+
+    /** Nombre de recherches ayant partagé la requête d'un autre thread. */
+    public long getCoalescedLookups() {
+        return lookups.getCoalesced();
+    }
+
+    /** Registre des requêtes utilisé par ce DAO. */
+    public StatementRegistry getStatements() {
+        return statements;
     }
 
     @FunctionalInterface
@@ -42,80 +256,549 @@ public class ExternalUserDao {
         void accept(PreparedStatement ps) throws SQLException;
     }
 
-    private ExternalUser findUser(String query, StatementConfigurer config) {
-        try (Connection c = dataSource.getConnection();
-             PreparedStatement ps = c.prepareStatement(query)) {
-            config.accept(ps);
-            try (ResultSet rs = ps.executeQuery()) {
-                if (rs.next()) {
-                    return ExternalUserMapper.map(rs);
-                }
+    @FunctionalInterface
+    private interface StatementWork<T> {
+        T apply(PreparedStatement ps) throws SQLException;
+    }
+
+    /**
+     * Exécute une requête du registre : emprunt de connexion, préparation,
+     * liaison des paramètres puis {@code work}, chronométré pour le log des requêtes lentes
+     * et borné par le budget de {@code op}.
+     */
+    private <T> T execute(Operation op, String query, StatementConfigurer config,
+                          StatementWork<T> work) throws SQLException {
+        Deadline deadline = deadline(op);
+        try (Connection c = connection(deadline);
+             PreparedStatement ps = statements.prepare(c, query)) {
+            return run(deadline, c, query, ps, config, work);
+        }
+    }
+
+    private <T> T run(Deadline deadline, Connection c, String query, PreparedStatement ps,
+                      StatementConfigurer config, StatementWork<T> work) throws SQLException {
+        config.accept(ps);
+        ScheduledFuture<?> watchdog = null;
+        Cancellation cancellation = new Cancellation(ps);
+        if (deadline.bounded()) {
+            long remaining = deadline.remainingNanos();
+            if (remaining <= 0) {
+                throw deadline.expired("execution", null);
             }
+            // server-side limit in whole seconds, the watchdog cancels at the exact deadline
+            ps.setQueryTimeout((int) Math.max(1, TimeUnit.NANOSECONDS.toSeconds(remaining + 999_999_999L)));
+            watchdog = WATCHDOG.schedule(cancellation::cancel, remaining, TimeUnit.NANOSECONDS);
+        }
+        long start = System.nanoTime();
+        String outcome = SlowQueryLog.FAILED;
+        try {
+            T result = work.apply(ps);
+            outcome = SlowQueryLog.OK;
+            return result;
+        } catch (SQLException e) {
+            boolean cancelled = cancellation.finish();
+            outcome = cancelled ? SlowQueryLog.CANCELLED
+                    : e instanceof SQLTimeoutException ? SlowQueryLog.TIMEOUT : SlowQueryLog.FAILED;
+            if (deadline.bounded() && (cancelled || e instanceof SQLTimeoutException)) {
+                throw deadline.expired("execution", e);
+            }
+            throw e;
+        } finally {
+            if (watchdog != null) {
+                // before the connection goes back to the pool, where a late cancel would hit another query
+                cancellation.finish();
+                watchdog.cancel(false);
+            }
+            // failed and cancelled statements are often the slowest: record them too
+            slowQueries.record(query, System.nanoTime() - start, outcome, c, config::accept);
+        }
+    }
+
+    /**
+     * Annulation d'une requête par le watchdog, sans effet une fois la requête terminée.
+     */
+    private static final class Cancellation {
+        private final Statement statement;
+        private boolean finished;
+        private boolean cancelled;
+
+        Cancellation(Statement statement) {
+            this.statement = statement;
+        }
+
+        synchronized void cancel() {
+            if (finished) {
+                return;
+            }
+            cancelled = true;
+            try {
+                statement.cancel();
+            } catch (SQLException e) {
+                logger.debugf("Failed to cancel statement: %s", e.getMessage());
+            }
+        }
+
+        /**
+         * Marque la requête terminée, après la fin d'une annulation en cours.
+         *
+         * @return {@code true} si la requête a été annulée
+         */
+        synchronized boolean finish() {
+            finished = true;
+            return cancelled;
+        }
+    }
+
+    private ExternalUser findUser(Operation op, String query, StatementConfigurer config) {
+        try {
+            return execute(op, query, config, ps -> {
+                try (ResultSet rs = ps.executeQuery()) {
+                    boolean found = rs.next();
+                    FederationTracing.rows(found ? 1 : 0);
+                    return found ? ExternalUserMapper.map(rs) : null;
+                }
+            });
         } catch (SQLException e) {
             logger.warnf("Failed to execute query %s: %s", query, e.getMessage());
         }
         return null;
     }
 
+    private List<ExternalUser> findUsers(Operation op, String query, StatementConfigurer config) throws SQLException {
+        return execute(op, query, config, ps -> {
+            try (ResultSet rs = ps.executeQuery()) {
+                List<ExternalUser> list = new ArrayList<>();
+                ExternalUserMapper.Reader reader = ExternalUserMapper.reader(rs);
+                while (rs.next()) {
+                    list.add(reader.read(rs));
+                }
+                FederationTracing.rows(list.size());
+                return list;
+            }
+        });
+    }
+
+    private int update(Operation op, String query, StatementConfigurer config) throws SQLException {
+        return execute(op, query, config, ps -> {
+            int rows = ps.executeUpdate();
+            FederationTracing.rows(rows);
+            return rows;
+        });
+    }
+
+    /**
+     * Recherche d'un utilisateur unique, tracée et enregistrée comme événement JFR.
+     * Un identifiant {@code key} absent du filtre est rejeté sans requête. Le répertoire
+     * local est ensuite consulté ; un utilisateur trouvé en base y est ajouté. Les
+     * recherches concurrentes de la même clé partagent une seule requête.
+     *
+     * @param key identifiant, login ou email recherché ; seuls un login ou un email
+     *            ({@link String}) sont vérifiés dans le filtre
+     */
+    private ExternalUser lookup(Operation op, Object key, Function<UserDirectory, ExternalUser> local,
+                                String query, StatementConfigurer config) {
+        UserLookupEvent event = new UserLookupEvent();
+        event.begin();
+        IdentifierFilter filter = identifiers;
+        if (key instanceof String identifier && filter != null && !filter.mightContain(identifier)) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.operation = op.tag();
+                event.cacheOutcome = "filter-miss";
+                event.commit();
+            }
+            return null;
+        }
+        UserDirectory dir = directory;
+        ExternalUser user = dir == null ? null : local.apply(dir);
+        boolean cached = user != null;
+        boolean shared = false;
+        if (!cached) {
+            SingleFlight.Flight<ExternalUser> flight = lookups.run(new LookupKey(op, key),
+                    () -> operation(op, () -> findUser(op, query, config)));
+            user = flight.value();
+            shared = flight.shared();
+            if (user != null && dir != null && !shared) {
+                dir.put(user);
+            }
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.operation = op.tag();
+            event.found = user != null;
+            event.rows = user == null || cached || shared ? 0 : 1;
+            event.cacheOutcome = cached ? "directory" : shared ? "coalesced"
+                    : dir == null ? "database" : "directory-miss";
+            event.commit();
+        }
+        return user;
+    }
+
+    /**
+     * Recharge une ligne dans le répertoire local après une écriture.
+     */
+    private void reload(int id) {
+        UserDirectory dir = directory;
+        if (dir == null) {
+            return;
+        }
+        ExternalUser user;
+        try {
+            user = findUser(Operation.FIND_BY_ID, StatementRegistry.SELECT_BY_ID, ps -> ps.setInt(1, id));
+        } catch (FederationTimeoutException e) {
+            // the write went through: drop the stale entry rather than failing it
+            user = null;
+        }
+        if (user != null) {
+            dir.put(user);
+        } else {
+            dir.remove(id);
+        }
+    }
+
+    /**
+     * Recharge plusieurs lignes dans le répertoire local après une écriture groupée,
+     * par requêtes {@code IN} de {@value #IN_CHUNK} identifiants au plus.
+     */
+    private void reload(Collection<Integer> ids) {
+        UserDirectory dir = directory;
+        if (dir == null || ids.isEmpty()) {
+            return;
+        }
+        List<Integer> all = List.copyOf(ids);
+        for (int from = 0; from < all.size(); from += IN_CHUNK) {
+            List<Integer> chunk = all.subList(from, Math.min(from + IN_CHUNK, all.size()));
+            Set<Integer> missing = new HashSet<>(chunk);
+            try {
+                for (ExternalUser user : findUsers(Operation.FIND_BY_ID, StatementRegistry.selectByIds(chunk.size()), ps -> {
+                    for (int i = 0; i < StatementRegistry.paddedSize(chunk.size()); i++) {
+                        ps.setInt(i + 1, chunk.get(Math.min(i, chunk.size() - 1)));
+                    }
+                })) {
+                    dir.put(user);
+                    missing.remove(user.getId());
+                }
+            } catch (SQLException | FederationTimeoutException e) {
+                // the write went through: drop the stale entries rather than failing it
+                logger.debugf("Failed to reload %d user(s) into the directory: %s", chunk.size(), e.getMessage());
+            }
+            missing.forEach(dir::remove);
+        }
+    }
+
+    /**
+     * Source du filtre des identifiants : chaque login, email et login LDAP non nul.
+     */
+    public void loadIdentifiers(Consumer<String> sink) throws SQLException {
+        execute(null, StatementRegistry.SELECT_IDENTIFIERS, ps -> ps.setFetchSize(1000), ps -> {
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    for (int i = 1; i <= 3; i++) {
+                        String value = rs.getString(i);
+                        if (value != null) {
+                            sink.accept(value);
+                        }
+                    }
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Transmet par ordre croissant ceux des identifiants {@code ids[from..to[} qui existent
+     * dans la table. Une erreur est propagée : l'absence d'une ligne ne doit pas être
+     * confondue avec une base injoignable.
+     */
+    public void existingIds(int[] ids, int from, int to, IntConsumer sink) throws SQLException {
+        for (int start = from; start < to; start += IN_CHUNK) {
+            int first = start;
+            int last = Math.min(to, start + IN_CHUNK) - 1;
+            execute(null, StatementRegistry.existingIds(last - first + 1), ps -> {
+                for (int i = 0; i < StatementRegistry.paddedSize(last - first + 1); i++) {
+                    ps.setInt(i + 1, ids[Math.min(first + i, last)]);
+                }
+            }, ps -> {
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        sink.accept(rs.getInt(1));
+                    }
+                }
+                return null;
+            });
+        }
+    }
+
+    /**
+     * Parcourt toute la table par ordre d'identifiant avec un curseur en avant seulement :
+     * le driver ne ramène que {@code fetchSize} lignes à la fois et chaque ligne est
+     * transmise à {@code sink} sans être conservée.
+     *
+     * @param columns colonnes lues en plus de {@code id} et {@code login}
+     * @return le nombre de lignes lues
+     */
+    public long exportUsers(Collection<String> columns, int fetchSize, Consumer<ExternalUser> sink) throws SQLException {
+        String query = StatementRegistry.exportUsers(columns);
+        return execute(null, query, ps -> ps.setFetchSize(fetchSize), ps -> {
+            long rows = 0;
+            try (ResultSet rs = ps.executeQuery()) {
+                ExternalUserMapper.Reader reader = ExternalUserMapper.reader(rs);
+                while (rs.next()) {
+                    sink.accept(reader.read(rs));
+                    rows++;
+                }
+            }
+            return rows;
+        });
+    }
+
+    /**
+     * Source des groupes virtuels : les colonnes de {@link VirtualGroups#COLUMNS} de
+     * toutes les lignes si {@code sinceMillis} vaut {@link Long#MIN_VALUE}, sinon de celles
+     * dont {@code updated_at} est postérieur.
+     */
+    public void loadGroupFlags(long sinceMillis, VirtualGroups.RowSink sink) throws SQLException {
+        boolean full = sinceMillis == Long.MIN_VALUE;
+        String query = full ? StatementRegistry.SELECT_GROUP_FLAGS_ALL : StatementRegistry.SELECT_GROUP_FLAGS_SINCE;
+        int columns = VirtualGroups.COLUMNS.size();
+        execute(null, query, ps -> {
+            ps.setFetchSize(1000);
+            if (!full) {
+                ps.setTimestamp(1, Timestamp.valueOf(LocalDateTime.ofEpochSecond(
+                        Math.floorDiv(sinceMillis, 1000), (int) Math.floorMod(sinceMillis, 1000) * 1_000_000,
+                        ZoneOffset.UTC)));
+            }
+        }, ps -> {
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    Integer[] flags = new Integer[columns];
+                    for (int i = 0; i < columns; i++) {
+                        Object value = rs.getObject(i + 2);
+                        flags[i] = value == null ? null : ((Number) value).intValue();
+                    }
+                    Timestamp updatedAt = rs.getTimestamp(columns + 2);
+                    long millis = updatedAt == null ? 0
+                            : updatedAt.toLocalDateTime().toInstant(ZoneOffset.UTC).toEpochMilli();
+                    sink.accept(rs.getInt(1), flags, millis);
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Indique si la colonne {@code updated_at} est déclarée {@code NOT NULL}. Une colonne
+     * nullable, comme le {@code DATETIME} du schéma d'origine, n'est pas tenue à jour par
+     * la base : les rafraîchissements incrémentaux manquent alors les lignes modifiées.
+     */
+    public boolean isUpdatedAtMaintained() throws SQLException {
+        return execute(null, StatementRegistry.PROBE_UPDATED_AT, ps -> { }, ps -> {
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.getMetaData().isNullable(1) == ResultSetMetaData.columnNoNulls;
+            }
+        });
+    }
+
+    /**
+     * Indique si un index unique porte sur la seule colonne {@code login}. Les imports et
+     * les inscriptions concurrents comptent sur lui pour écarter les doublons ; le schéma
+     * d'origine ne le déclare pas. Le résultat est mémorisé après la première vérification.
+     */
+    public boolean isLoginUnique() throws SQLException {
+        Boolean unique = loginUnique;
+        if (unique != null) {
+            return unique;
+        }
+        try (Connection c = connection(deadline(null))) {
+            DatabaseMetaData meta = c.getMetaData();
+            String table = meta.storesUpperCaseIdentifiers() ? "ADHERENTS" : "adherents";
+            Map<String, List<String>> indexes = new HashMap<>();
+            try (ResultSet rs = meta.getIndexInfo(c.getCatalog(), null, table, true, false)) {
+                while (rs.next()) {
+                    String column = rs.getString("COLUMN_NAME");
+                    if (column != null) {
+                        indexes.computeIfAbsent(rs.getString("INDEX_NAME"), k -> new ArrayList<>())
+                                .add(column.toLowerCase(Locale.ROOT));
+                    }
+                }
+            }
+            unique = indexes.containsValue(List.of("login"));
+        }
+        loginUnique = unique;
+        return unique;
+    }
+
+    /**
+     * Parcourt le mot de passe stocké de chaque adhérent, pour la migration hors ligne.
+     */
+    public void loadPasswords(ObjIntConsumer<String> sink) throws SQLException {
+        execute(null, StatementRegistry.SELECT_PASSWORDS, ps -> ps.setFetchSize(1000), ps -> {
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    sink.accept(rs.getString(2), rs.getInt(1));
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Source du répertoire local : toutes les lignes si {@code sinceMillis} vaut
+     * {@link Long#MIN_VALUE}, sinon celles dont {@code updated_at} est postérieur.
+     */
+    public void loadDirectory(long sinceMillis, UserDirectory.RowSink sink) throws SQLException {
+        boolean full = sinceMillis == Long.MIN_VALUE;
+        String query = full ? StatementRegistry.SELECT_DIRECTORY_ALL : StatementRegistry.SELECT_DIRECTORY_SINCE;
+        execute(null, query, ps -> {
+            ps.setFetchSize(1000);
+            if (!full) {
+                ps.setTimestamp(1, Timestamp.valueOf(LocalDateTime.ofEpochSecond(
+                        Math.floorDiv(sinceMillis, 1000), (int) Math.floorMod(sinceMillis, 1000) * 1_000_000,
+                        ZoneOffset.UTC)));
+            }
+        }, ps -> {
+            try (ResultSet rs = ps.executeQuery()) {
+                ExternalUserMapper.Reader reader = ExternalUserMapper.reader(rs);
+                int updatedAtColumn = rs.findColumn("updated_at");
+                while (rs.next()) {
+                    Timestamp updatedAt = rs.getTimestamp(updatedAtColumn);
+                    long millis = updatedAt == null ? 0
+                            : updatedAt.toLocalDateTime().toInstant(ZoneOffset.UTC).toEpochMilli();
+                    sink.accept(reader.read(rs), millis);
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Listing paginé, tracé et enregistré comme événement JFR. Les erreurs SQL
+     * sont journalisées et donnent un flux vide.
+     */
+    private Stream<ExternalUser> list(Operation op, int first, int max, String query, StatementConfigurer config) {
+        UserStreamEvent event = new UserStreamEvent();
+        event.begin();
+        List<ExternalUser> users = operation(op, () -> {
+            try {
+                return findUsers(op, query, config);
+            } catch (SQLException e) {
+                logger.warnf("Failed to %s users: %s", op.tag(), e.getMessage());
+                return List.<ExternalUser>of();
+            }
+        });
+        event.end();
+        if (event.shouldCommit()) {
+            event.operation = op.tag();
+            event.first = first;
+            event.max = max;
+            event.rows = users.size();
+            event.cacheOutcome = "database";
+            event.commit();
+        }
+        return users.stream();
+    }
+
     /**
      * Recherche un utilisateur par identifiant pour Keycloak.
      */
     public ExternalUser findById(int id) {
-        return findUser(SELECT_BY_ID, ps -> ps.setInt(1, id));
+        return lookup(Operation.FIND_BY_ID, id, d -> d.findById(id),
+                StatementRegistry.SELECT_BY_ID, ps -> ps.setInt(1, id));
     }
 
     /**
      * Récupération d'un utilisateur via son login.
      */
     public ExternalUser findByUsername(String username) {
-        return findUser(SELECT_BY_USERNAME, ps -> ps.setString(1, username));
+        return lookup(Operation.FIND_BY_USERNAME, username, d -> d.findByUsername(username),
+                StatementRegistry.SELECT_BY_USERNAME, ps -> ps.setString(1, username));
     }
 
     /**
      * Recherche d'un utilisateur par adresse email.
      */
     public ExternalUser findByEmail(String email) {
-        return findUser(SELECT_BY_EMAIL, ps -> ps.setString(1, email));
+        return lookup(Operation.FIND_BY_EMAIL, email, d -> d.findByEmail(email),
+                StatementRegistry.SELECT_BY_EMAIL, ps -> ps.setString(1, email));
+    }
+
+    /**
+     * Charge les adhérents {@code ids[from..to[} dans cet ordre : ceux que connaît le
+     * répertoire local en sont servis, les autres sont lus par une seule requête {@code IN}.
+     * Les identifiants absents de la table sont ignorés.
+     *
+     * @param to au plus {@link #IN_CHUNK} identifiants après {@code from}
+     */
+    public List<ExternalUser> findByIds(int[] ids, int from, int to) {
+        UserDirectory dir = directory;
+        Map<Integer, ExternalUser> found = new HashMap<>();
+        List<Integer> misses = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            ExternalUser user = dir == null ? null : dir.findById(ids[i]);
+            if (user == null) {
+                misses.add(ids[i]);
+            } else {
+                found.put(ids[i], user);
+            }
+        }
+        if (!misses.isEmpty()) {
+            list(Operation.LIST, from, misses.size(), StatementRegistry.selectByIds(misses.size()), ps -> {
+                for (int i = 0; i < StatementRegistry.paddedSize(misses.size()); i++) {
+                    ps.setInt(i + 1, misses.get(Math.min(i, misses.size() - 1)));
+                }
+            }).forEach(user -> {
+                found.put(user.getId(), user);
+                if (dir != null) {
+                    dir.put(user);
+                }
+            });
+        }
+        List<ExternalUser> users = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++) {
+            ExternalUser user = found.get(ids[i]);
+            if (user != null) {
+                users.add(user);
+            }
+        }
+        return users;
     }
 
     /**
      * Liste paginée des utilisateurs pour les appels de Keycloak.
      */
     public Stream<ExternalUser> getUsersStream(int first, int max) {
-        String query = "SELECT " + SELECT_FIELDS + " FROM adherents LIMIT ? OFFSET ?";
-        try (Connection c = dataSource.getConnection();
-             PreparedStatement ps = c.prepareStatement(query)) {
+        return list(Operation.LIST, first, max, StatementRegistry.SELECT_PAGE, ps -> {
             ps.setInt(1, max);
             ps.setInt(2, first);
-            try (ResultSet rs = ps.executeQuery()) {
-                List<ExternalUser> list = new ArrayList<>();
-                while (rs.next()) {
-                    list.add(ExternalUserMapper.map(rs));
-                }
-                return list.stream();
-            }
-        } catch (SQLException e) {
-            logger.warn("Failed to list users: " + e.getMessage());
-            return Stream.empty();
-        }
+        });
     }
 
     /**
      * Retourne le nombre total d'utilisateurs dans la base externe.
      */
     public int getUsersCount() {
-        String query = "SELECT COUNT(*) FROM adherents";
-        try (Connection c = dataSource.getConnection();
-             PreparedStatement ps = c.prepareStatement(query)) {
-            try (ResultSet rs = ps.executeQuery()) {
-                if (rs.next()) {
-                    return rs.getInt(1);
-                }
+        UserStreamEvent event = new UserStreamEvent();
+        event.begin();
+        int count = operation(Operation.COUNT, () -> {
+            try {
+                return execute(Operation.COUNT, StatementRegistry.COUNT_USERS, ps -> { }, ps -> {
+                    try (ResultSet rs = ps.executeQuery()) {
+                        return rs.next() ? rs.getInt(1) : 0;
+                    }
+                });
+            } catch (SQLException e) {
+                logger.warn("Failed to count users: " + e.getMessage());
             }
-        } catch (SQLException e) {
-            logger.warn("Failed to count users: " + e.getMessage());
+            return 0;
+        });
+        event.end();
+        if (event.shouldCommit()) {
+            event.operation = Operation.COUNT.tag();
+            event.rows = count;
+            event.cacheOutcome = "database";
+            event.commit();
         }
-        return 0;
+        return count;
     }
 
     /**
@@ -123,22 +806,499 @@ public class ExternalUserDao {
      */
     public Stream<ExternalUser> searchForUserStream(String search, int first, int max) {
         String pattern = "%" + search.toLowerCase() + "%";
-        String query = "SELECT " + SELECT_FIELDS + " FROM adherents WHERE lower(login) LIKE ? LIMIT ? OFFSET ?";
-        try (Connection c = dataSource.getConnection();
-             PreparedStatement ps = c.prepareStatement(query)) {
+        return list(Operation.SEARCH, first, max, StatementRegistry.SEARCH_BY_LOGIN, ps -> {
             ps.setString(1, pattern);
             ps.setInt(2, max);
             ps.setInt(3, first);
-            try (ResultSet rs = ps.executeQuery()) {
-                List<ExternalUser> list = new ArrayList<>();
-                while (rs.next()) {
-                    list.add(ExternalUserMapper.map(rs));
+        });
+    }
+
+    /**
+     * Lit les colonnes étendues d'un adhérent, absentes de la ligne chargée par les recherches.
+     *
+     * @return les colonnes, {@link ExternalUserDetails#EMPTY} si l'adhérent n'existe pas,
+     *         ou {@code null} si la requête échoue
+     */
+    public ExternalUserDetails findDetails(int id) {
+        return operation(Operation.FIND_DETAILS, () -> {
+            try {
+                return execute(Operation.FIND_DETAILS, StatementRegistry.SELECT_DETAILS, ps -> ps.setInt(1, id), ps -> {
+                    try (ResultSet rs = ps.executeQuery()) {
+                        boolean found = rs.next();
+                        FederationTracing.rows(found ? 1 : 0);
+                        if (!found) {
+                            return ExternalUserDetails.EMPTY;
+                        }
+                        Date departure = rs.getDate(1);
+                        Object room = rs.getObject(2);
+                        Timestamp signed = rs.getTimestamp(5);
+                        return new ExternalUserDetails(
+                                departure == null ? null : departure.toLocalDate(),
+                                room == null ? null : ((Number) room).intValue(),
+                                rs.getString(3),
+                                rs.getString(4),
+                                signed == null ? null : signed.toLocalDateTime());
+                    }
+                });
+            } catch (SQLException e) {
+                logger.warnf("Failed to load extended columns for user %d: %s", id, e.getMessage());
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Lit le mot de passe stocké pour la vérification des identifiants.
+     *
+     * @return la valeur brute de la colonne {@code password}, ou {@code null}
+     *         si l'utilisateur n'existe pas
+     * @throws ModelException si la requête échoue, pour ne pas confondre une base
+     *         injoignable avec un utilisateur inconnu
+     */
+    public String findPassword(int id) {
+        return operation(Operation.PASSWORD, () -> {
+            try {
+                return execute(Operation.PASSWORD, StatementRegistry.SELECT_PASSWORD, ps -> ps.setInt(1, id), ps -> {
+                    try (ResultSet rs = ps.executeQuery()) {
+                        boolean found = rs.next();
+                        FederationTracing.rows(found ? 1 : 0);
+                        return found ? rs.getString(1) : null;
+                    }
+                });
+            } catch (SQLException e) {
+                logger.warn("Failed to validate credential for user " + id + ": " + e.getMessage());
+                throw new ModelException("Failed to read the password of user " + id, e);
+            }
+        });
+    }
+
+    /**
+     * Enregistre un nouveau hash de mot de passe.
+     */
+    public boolean updatePassword(int id, String hash) {
+        return operation(Operation.UPDATE, () -> {
+            try {
+                return update(Operation.UPDATE, StatementRegistry.UPDATE_PASSWORD, ps -> {
+                    ps.setString(1, hash);
+                    ps.setInt(2, id);
+                }) > 0;
+            } catch (SQLException e) {
+                logger.warn("Failed to update credential for user " + id + ": " + e.getMessage());
+                return false;
+            }
+        });
+    }
+
+    /**
+     * Remplace en un seul lot des mots de passe en clair par leur hash. Une ligne
+     * n'est modifiée que si elle contient toujours la valeur en clair vérifiée.
+     *
+     * @return le nombre de lignes modifiées, {@code 0} si le lot échoue
+     */
+    public int rehashPasswords(List<PasswordRehash> batch) {
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        return operation(Operation.UPDATE, () -> {
+            try {
+                return execute(Operation.UPDATE, StatementRegistry.REHASH_PASSWORD, ps -> {
+                    for (PasswordRehash r : batch) {
+                        ps.setString(1, r.hash());
+                        ps.setInt(2, r.id());
+                        ps.setString(3, r.legacy());
+                        ps.addBatch();
+                    }
+                }, ps -> {
+                    int rows = 0;
+                    for (int count : ps.executeBatch()) {
+                        rows += count == Statement.SUCCESS_NO_INFO ? 1 : Math.max(count, 0);
+                    }
+                    FederationTracing.rows(rows);
+                    return rows;
+                });
+            } catch (SQLException e) {
+                logger.warnf("Failed to rehash %d legacy password(s): %s", batch.size(), e.getMessage());
+                return 0;
+            }
+        });
+    }
+
+    /**
+     * Met à jour une colonne de l'utilisateur avec la requête pré-construite du registre.
+     */
+    public boolean updateColumn(int id, String column, Object value) {
+        String query = StatementRegistry.updateColumn(column);
+        metrics.columnWrite(column);
+        IdentifierFilter filter = identifiers;
+        boolean identifier = filter != null && IDENTIFIER_COLUMNS.contains(column) && value != null;
+        if (identifier) {
+            // added before the write so that no concurrent lookup misses the new value
+            filter.add(value.toString());
+        }
+        AttributeWriteEvent event = new AttributeWriteEvent();
+        event.begin();
+        int rows = operation(Operation.UPDATE, () -> {
+            try {
+                return update(Operation.UPDATE, query, ps -> {
+                    if (value instanceof java.time.LocalDate ld) {
+                        ps.setDate(1, Date.valueOf(ld));
+                    } else if (value instanceof java.time.LocalDateTime ldt) {
+                        ps.setTimestamp(1, Timestamp.valueOf(ldt));
+                    } else {
+                        ps.setObject(1, value);
+                    }
+                    ps.setInt(2, id);
+                });
+            } catch (SQLException e) {
+                logger.warn("Failed to update column " + column + " for user " + id + ": " + e.getMessage());
+                return -1;
+            }
+        });
+        event.end();
+        if (event.shouldCommit()) {
+            event.column = column;
+            event.rows = Math.max(rows, 0);
+            event.success = rows >= 0;
+            event.commit();
+        }
+        if (rows > 0) {
+            if (identifier) {
+                // again once committed, for a rebuild that read the table before the write
+                filter.add(value.toString());
+            }
+            reload(id);
+            VirtualGroups virtual = groups;
+            if (virtual != null && VirtualGroups.COLUMNS.contains(column)) {
+                virtual.update(id, column, value instanceof Number n ? Integer.valueOf(n.intValue())
+                        : value == null ? null : Integer.valueOf(value.toString()));
+            }
+        }
+        return rows > 0;
+    }
+
+    /**
+     * Insère un utilisateur minimal et retourne l'identifiant généré.
+     *
+     * @return l'identifiant généré, ou {@code null} si la base n'en a pas fourni
+     */
+    public Integer insertUser(String username) {
+        IdentifierFilter filter = identifiers;
+        if (filter != null) {
+            filter.add(username);
+        }
+        Integer id = operation(Operation.INSERT, () -> {
+            Deadline deadline = deadline(Operation.INSERT);
+            try (Connection c = connection(deadline);
+                 PreparedStatement ps = statements.prepare(c, StatementRegistry.INSERT_USER,
+                         Statement.RETURN_GENERATED_KEYS)) {
+                return run(deadline, c, StatementRegistry.INSERT_USER, ps, p -> p.setString(1, username), p -> {
+                    p.executeUpdate();
+                    try (ResultSet rs = p.getGeneratedKeys()) {
+                        return rs.next() ? rs.getInt(1) : null;
+                    }
+                });
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        if (id != null) {
+            if (filter != null) {
+                filter.add(username);
+            }
+            reload(id);
+        }
+        return id;
+    }
+
+    /**
+     * Insère un lot de profils complets dans une seule transaction, avec un INSERT
+     * multi-lignes. Les logins déjà présents en base ou répétés dans le lot sont
+     * écartés et signalés en double. Si le lot est refusé par la base, la transaction
+     * est annulée et chaque ligne est réinsérée seule, afin que l'issue de chacune
+     * soit connue.
+     *
+     * @param rows       lot à insérer, de taille bornée par l'appelant
+     * @param firstIndex position de la première ligne dans le flux importé
+     * @return l'issue de chaque ligne, dans l'ordre du lot
+     */
+    public List<ImportOutcome> insertUsers(List<NewAdherent> rows, long firstIndex) {
+        if (rows.isEmpty()) {
+            return List.of();
+        }
+        IdentifierFilter filter = identifiers;
+        if (filter != null) {
+            for (NewAdherent row : rows) {
+                addIdentifiers(filter, row);
+            }
+        }
+        List<ImportOutcome> result = operation(Operation.INSERT, () -> {
+            ImportOutcome[] outcomes = new ImportOutcome[rows.size()];
+            // no budget: a bulk load is bounded by its batch size, not by the request timeouts
+            Deadline deadline = deadline(null);
+            try (Connection c = connection(deadline)) {
+                boolean autoCommit = c.getAutoCommit();
+                c.setAutoCommit(false);
+                try {
+                    List<Integer> fresh = dropDuplicates(deadline, c, rows, firstIndex, outcomes);
+                    try {
+                        insertChunk(deadline, c, rows, fresh, firstIndex, outcomes);
+                        c.commit();
+                    } catch (SQLException e) {
+                        c.rollback();
+                        logger.debugf("Batch of %d row(s) rejected, retrying row by row: %s", fresh.size(), e.getMessage());
+                        for (int i : fresh) {
+                            try {
+                                insertChunk(deadline, c, rows, List.of(i), firstIndex, outcomes);
+                                c.commit();
+                            } catch (SQLException rowFailure) {
+                                c.rollback();
+                                // the unique index catches logins inserted by someone else since the check
+                                String login = rows.get(i).login();
+                                boolean duplicate = isConstraintViolation(rowFailure)
+                                        && !existingLogins(deadline, c, List.of(login)).isEmpty();
+                                outcomes[i] = duplicate
+                                        ? new ImportOutcome(firstIndex + i, login, ImportOutcome.Status.DUPLICATE, null, null)
+                                        : new ImportOutcome(firstIndex + i, login, ImportOutcome.Status.FAILED, null,
+                                                rowFailure.getMessage());
+                            }
+                        }
+                    }
+                } finally {
+                    c.setAutoCommit(autoCommit);
+                }
+            } catch (SQLException e) {
+                logger.warnf("Failed to import %d user(s): %s", rows.size(), e.getMessage());
+                for (int i = 0; i < outcomes.length; i++) {
+                    if (outcomes[i] == null) {
+                        outcomes[i] = new ImportOutcome(firstIndex + i, rows.get(i).login(),
+                                ImportOutcome.Status.FAILED, null, e.getMessage());
+                    }
                 }
-                return list.stream();
             }
-        } catch (SQLException e) {
-            logger.warn("Failed to search users: " + e.getMessage());
-            return Stream.empty();
+            return List.of(outcomes);
+        });
+        if (filter != null) {
+            for (int i = 0; i < result.size(); i++) {
+                if (result.get(i).status() == ImportOutcome.Status.CREATED) {
+                    addIdentifiers(filter, rows.get(i));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Écarte les logins déjà présents en base ou répétés dans le lot, et les lignes sans login.
+     * Les logins sont comparés sans tenir compte de la casse, comme la collation de MariaDB.
+     *
+     * @return les positions des lignes restant à insérer
+     */
+    private List<Integer> dropDuplicates(Deadline deadline, Connection c, List<NewAdherent> rows, long firstIndex,
+                                         ImportOutcome[] outcomes) throws SQLException {
+        List<String> logins = new ArrayList<>(rows.size());
+        for (NewAdherent row : rows) {
+            if (row.login() != null && !row.login().isBlank()) {
+                logins.add(row.login());
+            }
+        }
+        Set<String> taken = new HashSet<>(existingLogins(deadline, c, logins).keySet());
+        List<Integer> fresh = new ArrayList<>(rows.size());
+        for (int i = 0; i < rows.size(); i++) {
+            String login = rows.get(i).login();
+            if (login == null || login.isBlank()) {
+                outcomes[i] = new ImportOutcome(firstIndex + i, login, ImportOutcome.Status.FAILED, null, "missing login");
+            } else if (!taken.add(login.toLowerCase(Locale.ROOT))) {
+                outcomes[i] = new ImportOutcome(firstIndex + i, login, ImportOutcome.Status.DUPLICATE, null, null);
+            } else {
+                fresh.add(i);
+            }
+        }
+        return fresh;
+    }
+
+    /**
+     * Logins présents en base parmi {@code logins}, en minuscules, avec leur identifiant,
+     * par requêtes {@code IN} de {@value #IN_CHUNK} logins au plus.
+     */
+    private Map<String, Integer> existingLogins(Deadline deadline, Connection c, List<String> logins) throws SQLException {
+        Map<String, Integer> taken = new HashMap<>();
+        for (int from = 0; from < logins.size(); from += IN_CHUNK) {
+            List<String> chunk = logins.subList(from, Math.min(from + IN_CHUNK, logins.size()));
+            String query = StatementRegistry.existingLogins(chunk.size());
+            try (PreparedStatement ps = statements.prepare(c, query)) {
+                run(deadline, c, query, ps, p -> {
+                    for (int i = 0; i < StatementRegistry.paddedSize(chunk.size()); i++) {
+                        p.setString(i + 1, chunk.get(Math.min(i, chunk.size() - 1)));
+                    }
+                }, p -> {
+                    try (ResultSet rs = p.executeQuery()) {
+                        while (rs.next()) {
+                            taken.put(rs.getString(1).toLowerCase(Locale.ROOT), rs.getInt(2));
+                        }
+                    }
+                    return null;
+                });
+            }
+        }
+        return taken;
+    }
+
+    /** Violation d'une contrainte d'intégrité, dont l'index unique sur {@code login}. */
+    private static boolean isConstraintViolation(SQLException e) {
+        return e instanceof SQLIntegrityConstraintViolationException
+                || (e.getSQLState() != null && e.getSQLState().startsWith("23"));
+    }
+
+    /**
+     * Insère les lignes {@code indexes} du lot, sans valider la transaction, par INSERT
+     * multi-lignes aux tailles de {@link StatementRegistry#LIST_SIZES}. Les identifiants
+     * générés sont relus par login dans la même transaction : le driver ne renvoie pas de
+     * façon fiable une clé par ligne d'un INSERT multi-lignes. Une ligne introuvable fait
+     * échouer le lot.
+     */
+    private void insertChunk(Deadline deadline, Connection c, List<NewAdherent> rows, List<Integer> indexes,
+                             long firstIndex, ImportOutcome[] outcomes) throws SQLException {
+        if (indexes.isEmpty()) {
+            return;
+        }
+        for (int from = 0; from < indexes.size(); ) {
+            List<Integer> part = indexes.subList(from, from + StatementRegistry.splitSize(indexes.size() - from));
+            String query = StatementRegistry.insertUsers(part.size());
+            try (PreparedStatement ps = statements.prepare(c, query)) {
+                run(deadline, c, query, ps, p -> {
+                    int column = 1;
+                    for (int i : part) {
+                        column = bindProfile(p, column, rows.get(i));
+                    }
+                }, p -> {
+                    int inserted = p.executeUpdate();
+                    if (inserted != part.size()) {
+                        throw new SQLException("Inserted " + inserted + " of " + part.size() + " row(s)");
+                    }
+                    FederationTracing.rows(inserted);
+                    return null;
+                });
+            }
+            from += part.size();
+        }
+        List<String> logins = new ArrayList<>(indexes.size());
+        for (int i : indexes) {
+            logins.add(rows.get(i).login());
+        }
+        Map<String, Integer> ids = existingLogins(deadline, c, logins);
+        Integer[] found = new Integer[indexes.size()];
+        for (int k = 0; k < found.length; k++) {
+            String login = logins.get(k);
+            found[k] = ids.get(login.toLowerCase(Locale.ROOT));
+            if (found[k] == null) {
+                throw new SQLException("No id found for inserted login " + login);
+            }
+        }
+        for (int k = 0; k < found.length; k++) {
+            int i = indexes.get(k);
+            outcomes[i] = new ImportOutcome(firstIndex + i, logins.get(k), ImportOutcome.Status.CREATED, found[k], null);
+        }
+    }
+
+    /**
+     * Lie les colonnes de {@link StatementRegistry#INSERT_COLUMNS} à partir de {@code column}.
+     *
+     * @return la position du paramètre suivant
+     */
+    private static int bindProfile(PreparedStatement ps, int column, NewAdherent row) throws SQLException {
+        ps.setString(column++, row.login());
+        ps.setString(column++, row.email());
+        ps.setString(column++, row.firstName());
+        ps.setString(column++, row.lastName());
+        ps.setString(column++, row.ldapLogin());
+        ps.setTimestamp(column++, row.createdAt() == null ? null : Timestamp.valueOf(row.createdAt()));
+        if (row.isNaina() == null) {
+            ps.setNull(column++, Types.TINYINT);
+        } else {
+            ps.setByte(column++, row.isNaina());
+        }
+        ps.setString(column++, row.password());
+        return column;
+    }
+
+    /**
+     * Ajoute au filtre les identifiants d'une ligne : avant l'écriture, pour qu'aucune
+     * recherche concurrente ne les manque, puis de nouveau une fois l'écriture validée,
+     * pour une reconstruction ayant lu la table avant elle.
+     */
+    private static void addIdentifiers(IdentifierFilter filter, NewAdherent row) {
+        for (String value : new String[]{row.login(), row.email(), row.ldapLogin()}) {
+            if (value != null) {
+                filter.add(value);
+            }
+        }
+    }
+
+    /**
+     * Écrit en un lot le profil complet d'utilisateurs déjà insérés, par exemple ceux
+     * créés pendant une transaction Keycloak. Un mot de passe {@code null} laisse la
+     * valeur en base inchangée.
+     *
+     * @param profiles profil de chaque utilisateur, par identifiant
+     * @return le nombre de lignes modifiées, {@code 0} si le lot échoue
+     */
+    public int updateProfiles(Map<Integer, NewAdherent> profiles) {
+        if (profiles.isEmpty()) {
+            return 0;
+        }
+        IdentifierFilter filter = identifiers;
+        if (filter != null) {
+            profiles.values().forEach(p -> addIdentifiers(filter, p));
+        }
+        int rows = operation(Operation.UPDATE, () -> {
+            try {
+                return execute(Operation.UPDATE, StatementRegistry.UPDATE_PROFILE, ps -> {
+                    for (Map.Entry<Integer, NewAdherent> e : profiles.entrySet()) {
+                        ps.setInt(bindProfile(ps, 1, e.getValue()), e.getKey());
+                        ps.addBatch();
+                    }
+                }, ps -> {
+                    int count = 0;
+                    for (int n : ps.executeBatch()) {
+                        count += n == Statement.SUCCESS_NO_INFO ? 1 : Math.max(n, 0);
+                    }
+                    FederationTracing.rows(count);
+                    return count;
+                });
+            } catch (SQLException e) {
+                logger.warnf("Failed to write the profile of %d new user(s): %s", profiles.size(), e.getMessage());
+                return 0;
+            }
+        });
+        if (rows > 0) {
+            if (filter != null) {
+                profiles.values().forEach(p -> addIdentifiers(filter, p));
+            }
+            reload(profiles.keySet());
+        }
+        return rows;
+    }
+
+    /**
+     * Supprime la ligne de l'utilisateur.
+     */
+    public boolean deleteUser(int id) {
+        boolean deleted = operation(Operation.DELETE, () -> {
+            try {
+                return update(Operation.DELETE, StatementRegistry.DELETE_USER, ps -> ps.setInt(1, id)) > 0;
+            } catch (SQLException e) {
+                logger.warn("Failed to remove user " + id + ": " + e.getMessage());
+                return false;
+            }
+        });
+        UserDirectory dir = directory;
+        if (deleted && dir != null) {
+            dir.remove(id);
+        }
+        VirtualGroups virtual = groups;
+        if (deleted && virtual != null) {
+            virtual.remove(id);
         }
+        return deleted;
     }
 }
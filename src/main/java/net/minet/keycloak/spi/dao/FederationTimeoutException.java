@@ -0,0 +1,26 @@
+package net.minet.keycloak.spi.dao;
+
+import net.minet.keycloak.spi.metrics.FederationMetrics.Operation;
+import org.keycloak.models.ModelException;
+
+/**
+ * Raised when a DAO operation exceeds its time budget, either while waiting
+ * for a pooled connection or while its statement runs.
+ *
+ * <p>Unlike other SQL errors, which the DAO logs and turns into "not found",
+ * a timeout is propagated so that Keycloak fails the request explicitly.</p>
+ */
+public class FederationTimeoutException extends ModelException {
+
+    private final Operation operation;
+
+    public FederationTimeoutException(Operation operation, String phase, long budgetMillis, Throwable cause) {
+        super("Federation " + operation.tag() + " exceeded its " + budgetMillis + " ms budget during " + phase, cause);
+        this.operation = operation;
+    }
+
+    /** Opération interrompue. */
+    public Operation getOperation() {
+        return operation;
+    }
+}
@@ -0,0 +1,22 @@
+package net.minet.keycloak.spi.dao;
+
+/**
+ * Result of one row of a bulk import.
+ *
+ * @param index   position de la ligne dans le flux importé
+ * @param login   login de la ligne
+ * @param status  issue de l'insertion
+ * @param id      identifiant généré, {@code null} si la ligne n'a pas été créée
+ * @param message cause de l'échec, {@code null} sinon
+ */
+public record ImportOutcome(long index, String login, Status status, Integer id, String message) {
+
+    public enum Status {
+        /** Ligne insérée. */
+        CREATED,
+        /** Login déjà présent en base ou plus haut dans le flux, ligne ignorée. */
+        DUPLICATE,
+        /** Ligne rejetée par la base ou invalide. */
+        FAILED
+    }
+}
@@ -0,0 +1,33 @@
+package net.minet.keycloak.spi.dao;
+
+import net.minet.keycloak.spi.entity.ExternalUser;
+
+import java.time.LocalDateTime;
+
+/**
+ * Complete profile of an adherent written in one statement, by a bulk import
+ * or when a user created during a transaction is flushed.
+ *
+ * @param login     login, obligatoire
+ * @param email     adresse email
+ * @param firstName prénom
+ * @param lastName  nom
+ * @param ldapLogin login LDAP
+ * @param createdAt date de création
+ * @param isNaina   drapeau {@code is_naina}
+ * @param password  hash MD4 hexadécimal, ou {@code null} pour ne pas en définir
+ */
+public record NewAdherent(String login, String email, String firstName, String lastName, String ldapLogin,
+                          LocalDateTime createdAt, Byte isNaina, String password) {
+
+    /** Profil tel que porté par l'entité, avec le hash donné. */
+    public static NewAdherent of(ExternalUser user, String password) {
+        return new NewAdherent(user.getUsername(), user.getEmail(), user.getFirstName(), user.getLastName(),
+                user.getLdapLogin(), user.getCreatedAt(), user.getIsNaina(), password);
+    }
+
+    /** Copie portant un autre mot de passe. */
+    public NewAdherent withPassword(String password) {
+        return new NewAdherent(login, email, firstName, lastName, ldapLogin, createdAt, isNaina, password);
+    }
+}
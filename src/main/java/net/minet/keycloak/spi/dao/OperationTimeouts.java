@@ -0,0 +1,33 @@
+package net.minet.keycloak.spi.dao;
+
+import net.minet.keycloak.spi.metrics.FederationMetrics.Operation;
+
+import java.time.Duration;
+
+/**
+ * Time budgets of the DAO operations. A budget covers the connection wait
+ * and the statement execution; {@link Duration#ZERO} leaves it unbounded.
+ *
+ * @param lookup         recherche unitaire par identifiant, login ou email
+ * @param credential     lecture du mot de passe lors de la vérification
+ * @param list           listings, recherches et comptage
+ * @param write          mises à jour, insertions et suppressions
+ * @param connectionWait attente maximale d'une connexion du pool
+ */
+public record OperationTimeouts(Duration lookup, Duration credential, Duration list,
+                                Duration write, Duration connectionWait) {
+
+    /** Aucune limite : comportement historique. */
+    public static final OperationTimeouts NONE =
+            new OperationTimeouts(Duration.ZERO, Duration.ZERO, Duration.ZERO, Duration.ZERO, Duration.ZERO);
+
+    /** Budget applicable à une opération. */
+    public Duration budget(Operation op) {
+        return switch (op) {
+            case FIND_BY_ID, FIND_BY_USERNAME, FIND_BY_EMAIL, FIND_DETAILS -> lookup;
+            case PASSWORD -> credential;
+            case LIST, SEARCH, COUNT -> list;
+            case UPDATE, INSERT, DELETE -> write;
+        };
+    }
+}
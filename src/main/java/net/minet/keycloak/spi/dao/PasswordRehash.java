@@ -0,0 +1,10 @@
+package net.minet.keycloak.spi.dao;
+
+/**
+ * Replacement of a legacy plaintext password by its MD4 hash.
+ *
+ * @param id     identifiant de l'adhérent
+ * @param legacy valeur en clair actuellement stockée
+ * @param hash   hash MD4 hexadécimal qui la remplace
+ */
+public record PasswordRehash(int id, String legacy, String hash) {}
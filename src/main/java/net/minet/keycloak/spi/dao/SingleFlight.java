@@ -0,0 +1,82 @@
+package net.minet.keycloak.spi.dao;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+/**
+ * Deduplicates concurrent calls for the same key.
+ *
+ * <p>The first caller for a key (the leader) runs the call; callers arriving
+ * while it is in flight wait for the same outcome instead of issuing their
+ * own query. Exceptions thrown by the leader are rethrown to every waiter.
+ * Nothing is cached once the call completes.</p>
+ */
+final class SingleFlight<K, V> {
+
+    /**
+     * Résultat d'un appel.
+     *
+     * @param value  valeur calculée
+     * @param shared {@code true} si l'appelant a attendu le calcul d'un autre thread
+     */
+    record Flight<V>(V value, boolean shared) {}
+
+    private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final UnaryOperator<V> share;
+    private final LongAdder coalesced = new LongAdder();
+
+    /**
+     * @param share copie remise aux appelants en attente, pour qu'aucun objet
+     *              mutable ne soit partagé entre threads
+     */
+    SingleFlight(UnaryOperator<V> share) {
+        this.share = share;
+    }
+
+    /**
+     * Exécute {@code call}, ou attend l'appel identique déjà en cours.
+     */
+    Flight<V> run(K key, Supplier<V> call) {
+        CompletableFuture<V> mine = new CompletableFuture<>();
+        CompletableFuture<V> leader = inFlight.putIfAbsent(key, mine);
+        if (leader != null) {
+            coalesced.increment();
+            V value = await(leader);
+            return new Flight<>(value == null ? null : share.apply(value), true);
+        }
+        try {
+            V value = call.get();
+            mine.complete(value);
+            return new Flight<>(value, false);
+        } catch (RuntimeException | Error e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    private static <V> V await(CompletableFuture<V> leader) {
+        try {
+            return leader.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException re) {
+                throw re;
+            }
+            if (cause instanceof Error err) {
+                throw err;
+            }
+            throw e;
+        }
+    }
+
+    /** Nombre d'appels servis par le calcul d'un autre thread. */
+    long getCoalesced() {
+        return coalesced.sum();
+    }
+}
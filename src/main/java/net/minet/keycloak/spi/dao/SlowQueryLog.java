@@ -0,0 +1,160 @@
+package net.minet.keycloak.spi.dao;
+
+import org.jboss.logging.Logger;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opt-in log of statements slower than a threshold.
+ *
+ * <p>Only the parameterized SQL text is logged, never the bound values. A
+ * fraction of slow statements is re-run through {@code EXPLAIN} on the same
+ * connection, at most once per statement and per {@code explainInterval}.
+ * The most recent slow statements are kept in a bounded buffer that can be
+ * queried with {@link #getSlowest(int)}. Every execution is recorded, whether
+ * it succeeded or not, and tagged with its outcome; only successful ones are
+ * explained.</p>
+ */
+public final class SlowQueryLog {
+    private static final Logger logger = Logger.getLogger(SlowQueryLog.class);
+
+    /** Log désactivé : aucune requête n'est chronométrée contre un seuil. */
+    public static final SlowQueryLog DISABLED = new SlowQueryLog(0, 0, 0);
+
+    private static final long EXPLAIN_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    /** Issues d'une exécution. */
+    public static final String OK = "ok";
+    public static final String TIMEOUT = "timeout";
+    public static final String CANCELLED = "cancelled";
+    public static final String FAILED = "failed";
+
+    /**
+     * Une requête lente observée.
+     *
+     * @param sql     requête paramétrée, sans valeurs
+     * @param millis  durée d'exécution
+     * @param at      instant de fin d'exécution
+     * @param outcome {@link #OK}, {@link #TIMEOUT}, {@link #CANCELLED} ou {@link #FAILED}
+     * @param explain plan d'exécution échantillonné, ou {@code null}
+     */
+    public record SlowQuery(String sql, long millis, Instant at, String outcome, String explain) {}
+
+    /** Rejoue les paramètres d'une requête sur le statement {@code EXPLAIN}. */
+    @FunctionalInterface
+    public interface Binder {
+        void bind(PreparedStatement ps) throws SQLException;
+    }
+
+    private final long thresholdNanos;
+    private final double explainRate;
+    private final int capacity;
+    private final ArrayDeque<SlowQuery> recent;
+    private final Map<String, Long> lastExplain = new ConcurrentHashMap<>();
+
+    /**
+     * @param thresholdMillis durée au-delà de laquelle une requête est lente, {@code <= 0} pour désactiver
+     * @param explainRate     probabilité de capturer un {@code EXPLAIN} pour une requête lente
+     * @param capacity        nombre de requêtes lentes récentes conservées
+     */
+    public SlowQueryLog(long thresholdMillis, double explainRate, int capacity) {
+        this.thresholdNanos = thresholdMillis <= 0 ? Long.MAX_VALUE : TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+        this.explainRate = explainRate;
+        this.capacity = capacity;
+        this.recent = new ArrayDeque<>(Math.max(capacity, 1));
+    }
+
+    /** Indique si le log chronomètre les requêtes. */
+    public boolean isEnabled() {
+        return thresholdNanos != Long.MAX_VALUE;
+    }
+
+    /**
+     * Enregistre une exécution, réussie ou non. Le chemin rapide se limite à une comparaison.
+     *
+     * @param outcome issue de l'exécution ; seules les requêtes réussies sont expliquées,
+     *                la connexion d'une requête en échec n'étant plus fiable
+     */
+    public void record(String sql, long nanos, String outcome, Connection c, Binder binder) {
+        if (nanos < thresholdNanos) {
+            return;
+        }
+        long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        String explain = OK.equals(outcome) && shouldExplain(sql) ? explain(sql, c, binder) : null;
+        if (explain == null) {
+            logger.warnf("Slow query (%d ms, %s): %s", millis, outcome, sql);
+        } else {
+            logger.warnf("Slow query (%d ms, %s): %s%n%s", millis, outcome, sql, explain);
+        }
+        SlowQuery entry = new SlowQuery(sql, millis, Instant.now(), outcome, explain);
+        synchronized (recent) {
+            if (recent.size() == capacity) {
+                recent.pollFirst();
+            }
+            if (capacity > 0) {
+                recent.addLast(entry);
+            }
+        }
+    }
+
+    private boolean shouldExplain(String sql) {
+        if (explainRate <= 0 || ThreadLocalRandom.current().nextDouble() >= explainRate) {
+            return false;
+        }
+        long now = System.nanoTime();
+        Long previous = lastExplain.get(sql);
+        if (previous != null && now - previous < EXPLAIN_INTERVAL_NANOS) {
+            return false;
+        }
+        lastExplain.put(sql, now);
+        return true;
+    }
+
+    private static String explain(String sql, Connection c, Binder binder) {
+        try (PreparedStatement ps = c.prepareStatement("EXPLAIN " + sql)) {
+            binder.bind(ps);
+            try (ResultSet rs = ps.executeQuery()) {
+                ResultSetMetaData meta = rs.getMetaData();
+                StringBuilder sb = new StringBuilder();
+                for (int i = 1; i <= meta.getColumnCount(); i++) {
+                    sb.append(i == 1 ? "" : " | ").append(meta.getColumnLabel(i));
+                }
+                while (rs.next()) {
+                    sb.append('\n');
+                    for (int i = 1; i <= meta.getColumnCount(); i++) {
+                        sb.append(i == 1 ? "" : " | ").append(rs.getString(i));
+                    }
+                }
+                return sb.toString();
+            }
+        } catch (SQLException e) {
+            logger.debugf("EXPLAIN failed for %s: %s", sql, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Retourne les {@code n} requêtes les plus lentes parmi les requêtes lentes récentes.
+     */
+    public List<SlowQuery> getSlowest(int n) {
+        List<SlowQuery> copy;
+        synchronized (recent) {
+            copy = new ArrayList<>(recent);
+        }
+        copy.sort(Comparator.comparingLong(SlowQuery::millis).reversed());
+        return copy.subList(0, Math.min(n, copy.size()));
+    }
+}
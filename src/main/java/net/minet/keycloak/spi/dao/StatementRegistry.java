@@ -0,0 +1,346 @@
+package net.minet.keycloak.spi.dao;
+
+import org.jboss.logging.Logger;
+import org.mariadb.jdbc.client.Context;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Central registry of every SQL statement issued by the provider.
+ *
+ * <p>All statements are declared once here so that the JDBC driver can keep
+ * them prepared server-side ({@code useServerPrepStmts}/{@code cachePrepStmts})
+ * and reuse them for each pooled connection. Statements with a variable number
+ * of parameters only exist in the few {@link #LIST_SIZES}, so their count is
+ * bounded and the driver cache, sized by {@link #CACHE_SIZE}, never evicts a
+ * warmed statement. Hits and misses are read from the MariaDB driver's cache
+ * before each preparation.</p>
+ */
+public final class StatementRegistry {
+    private static final Logger logger = Logger.getLogger(StatementRegistry.class);
+
+    // Only retrieve columns we care about from the external DB
+    static final String SELECT_FIELDS = String.join(", ", AdherentColumn.names(false, false));
+
+    public static final String SELECT_BY_ID =
+            "SELECT " + SELECT_FIELDS + " FROM adherents WHERE id = ?";
+    public static final String SELECT_BY_USERNAME =
+            "SELECT " + SELECT_FIELDS + " FROM adherents WHERE login = ?";
+    public static final String SELECT_BY_EMAIL =
+            "SELECT " + SELECT_FIELDS + " FROM adherents WHERE mail = ?";
+    // Extended columns, read once per adapter on demand; TEXT columns are never selected
+    public static final String SELECT_DETAILS =
+            "SELECT date_de_depart, chambre_id, subnet, ip, datesignedadhesion FROM adherents WHERE id = ?";
+    // Listings are ordered so that pages are stable and shards can be merged
+    public static final String SELECT_PAGE =
+            "SELECT " + SELECT_FIELDS + " FROM adherents ORDER BY id LIMIT ? OFFSET ?";
+    public static final String SEARCH_BY_LOGIN =
+            "SELECT " + SELECT_FIELDS + " FROM adherents WHERE lower(login) LIKE ? ORDER BY login LIMIT ? OFFSET ?";
+    public static final String COUNT_USERS =
+            "SELECT COUNT(*) FROM adherents";
+    public static final String SELECT_PASSWORD =
+            "SELECT password FROM adherents WHERE id = ?";
+    public static final String UPDATE_PASSWORD =
+            "UPDATE adherents SET password = ? WHERE id = ?";
+    public static final String INSERT_USER =
+            "INSERT INTO adherents (login) VALUES (?)";
+    public static final String DELETE_USER =
+            "DELETE FROM adherents WHERE id = ?";
+    // Profile of a user created in the current transaction, written once at commit
+    public static final String UPDATE_PROFILE =
+            "UPDATE adherents SET login = ?, mail = ?, prenom = ?, nom = ?, ldap_login = ?, created_at = ?,"
+                    + " is_naina = ?, password = COALESCE(?, password) WHERE id = ?";
+
+    // Background loads and migrations: not on the request path, so not warmed up
+    public static final String SELECT_DIRECTORY_ALL =
+            "SELECT " + SELECT_FIELDS + ", updated_at FROM adherents";
+    public static final String SELECT_DIRECTORY_SINCE =
+            "SELECT " + SELECT_FIELDS + ", updated_at FROM adherents WHERE updated_at >= ?";
+    public static final String SELECT_IDENTIFIERS =
+            "SELECT login, mail, ldap_login FROM adherents";
+    public static final String SELECT_GROUP_FLAGS_ALL =
+            "SELECT id, " + String.join(", ", AdherentColumn.flags()) + ", updated_at FROM adherents";
+    public static final String SELECT_GROUP_FLAGS_SINCE =
+            SELECT_GROUP_FLAGS_ALL + " WHERE updated_at >= ?";
+    public static final String SELECT_PASSWORDS =
+            "SELECT id, password FROM adherents";
+    // Startup check of the column behind incremental refreshes, reads no row
+    public static final String PROBE_UPDATED_AT =
+            "SELECT updated_at FROM adherents WHERE 1 = 0";
+    // Legacy plaintext migration: only replaces the value that was checked, never a newer password
+    public static final String REHASH_PASSWORD =
+            "UPDATE adherents SET password = ? WHERE id = ? AND password = ?";
+
+    /** Columns written by bulk inserts, in the order of {@link NewAdherent}. */
+    static final String INSERT_COLUMNS = "login, mail, prenom, nom, ldap_login, created_at, is_naina, password";
+    private static final int INSERT_WIDTH = INSERT_COLUMNS.split(",").length;
+
+    /**
+     * Only lengths of the {@code IN} lists and multi-row INSERTs that are prepared, in
+     * increasing order: shorter lists are padded up to the next one, longer ones split.
+     */
+    public static final List<Integer> LIST_SIZES = List.of(1, 8, 32, 128, 500);
+    /** Longest {@code IN} list or multi-row INSERT. */
+    public static final int MAX_LIST_SIZE = LIST_SIZES.get(LIST_SIZES.size() - 1);
+
+    /** Columns the adapter is allowed to write back, see {@link AdherentColumn#updatable()}. */
+    public static final List<String> UPDATABLE_COLUMNS = AdherentColumn.names(true, false);
+
+    private static final Map<String, String> UPDATE_BY_COLUMN;
+
+    /** Every statement of the request path, used for warm-up. */
+    public static final List<String> ALL;
+
+    /** Statements of background loads, migrations and bulk imports, prepared on first use. */
+    public static final List<String> BACKGROUND;
+
+    // Room for the few column sets of exports and the sampled EXPLAINs of the slow query log
+    private static final int UNREGISTERED_HEADROOM = 8;
+
+    /** Taille du cache de statements du driver : toutes les requêtes du registre y tiennent. */
+    public static final int CACHE_SIZE;
+
+    static {
+        Map<String, String> updates = new LinkedHashMap<>();
+        for (String column : UPDATABLE_COLUMNS) {
+            updates.put(column, "UPDATE adherents SET " + column + " = ? WHERE id = ?");
+        }
+        UPDATE_BY_COLUMN = Collections.unmodifiableMap(updates);
+
+        List<String> all = new ArrayList<>(List.of(
+                SELECT_BY_ID, SELECT_BY_USERNAME, SELECT_BY_EMAIL, SELECT_DETAILS, SELECT_PAGE,
+                SEARCH_BY_LOGIN, COUNT_USERS, SELECT_PASSWORD, UPDATE_PASSWORD,
+                INSERT_USER, DELETE_USER, UPDATE_PROFILE));
+        all.addAll(UPDATE_BY_COLUMN.values());
+        List<String> background = new ArrayList<>(List.of(
+                SELECT_DIRECTORY_ALL, SELECT_DIRECTORY_SINCE, SELECT_IDENTIFIERS, SELECT_GROUP_FLAGS_ALL,
+                SELECT_GROUP_FLAGS_SINCE, SELECT_PASSWORDS, PROBE_UPDATED_AT, REHASH_PASSWORD));
+        for (int size : LIST_SIZES) {
+            // listings page through selectByIds, the other variants serve sweeps and imports
+            all.add(selectByIds(size));
+            background.add(existingIds(size));
+            background.add(existingLogins(size));
+            background.add(insertUsers(size));
+        }
+        ALL = List.copyOf(all);
+        BACKGROUND = List.copyOf(background);
+        CACHE_SIZE = ALL.size() + BACKGROUND.size() + UNREGISTERED_HEADROOM;
+    }
+
+    // Drivers without a statement cache, such as H2: statements already prepared on a
+    // given physical connection. Pooled connections are reused, so the key is weakly held.
+    private final Map<Connection, Set<String>> prepared =
+            Collections.synchronizedMap(new WeakHashMap<>());
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Retourne la requête UPDATE pré-construite pour une colonne modifiable.
+     *
+     * @throws IllegalArgumentException si la colonne n'est pas déclarée dans {@link #UPDATABLE_COLUMNS}
+     */
+    public static String updateColumn(String column) {
+        String sql = UPDATE_BY_COLUMN.get(column);
+        if (sql == null) {
+            throw new IllegalArgumentException("Column not updatable: " + column);
+        }
+        return sql;
+    }
+
+    /**
+     * Plus petite des {@link #LIST_SIZES} pouvant contenir {@code count} valeurs.
+     *
+     * @throws IllegalArgumentException si {@code count} dépasse {@link #MAX_LIST_SIZE}
+     */
+    public static int paddedSize(int count) {
+        for (int size : LIST_SIZES) {
+            if (count <= size) {
+                return size;
+            }
+        }
+        throw new IllegalArgumentException("List longer than " + MAX_LIST_SIZE + ": " + count);
+    }
+
+    /**
+     * Plus grande des {@link #LIST_SIZES} ne dépassant pas {@code count}, pour découper
+     * un INSERT multi-lignes en INSERT de tailles préparées.
+     */
+    public static int splitSize(int count) {
+        for (int i = LIST_SIZES.size() - 1; i > 0; i--) {
+            if (LIST_SIZES.get(i) <= count) {
+                return LIST_SIZES.get(i);
+            }
+        }
+        return LIST_SIZES.get(0);
+    }
+
+    /**
+     * INSERT de {@code rows} lignes complètes.
+     *
+     * @throws IllegalArgumentException si {@code rows} ne fait pas partie des {@link #LIST_SIZES}
+     */
+    public static String insertUsers(int rows) {
+        if (!LIST_SIZES.contains(rows)) {
+            throw new IllegalArgumentException("Not a prepared INSERT size: " + rows);
+        }
+        String row = "(" + String.join(", ", Collections.nCopies(INSERT_WIDTH, "?")) + ")";
+        return "INSERT INTO adherents (" + INSERT_COLUMNS + ") VALUES "
+                + String.join(", ", Collections.nCopies(rows, row));
+    }
+
+    /**
+     * Logins déjà présents parmi {@code count} candidats, avec leur identifiant. La liste
+     * compte {@link #paddedSize(int)} paramètres, à compléter en répétant le dernier login.
+     */
+    public static String existingLogins(int count) {
+        return "SELECT login, id FROM adherents WHERE login IN (" + placeholders(count) + ")";
+    }
+
+    /**
+     * Lignes de {@code count} identifiants, par ordre croissant. La liste compte
+     * {@link #paddedSize(int)} paramètres, à compléter en répétant le dernier identifiant.
+     */
+    public static String selectByIds(int count) {
+        return "SELECT " + SELECT_FIELDS + " FROM adherents WHERE id IN (" + placeholders(count) + ") ORDER BY id";
+    }
+
+    /**
+     * Identifiants existants parmi {@code count} candidats, par ordre croissant. La liste
+     * compte {@link #paddedSize(int)} paramètres, à compléter en répétant le dernier identifiant.
+     */
+    public static String existingIds(int count) {
+        return "SELECT id FROM adherents WHERE id IN (" + placeholders(count) + ") ORDER BY id";
+    }
+
+    private static String placeholders(int count) {
+        return String.join(", ", Collections.nCopies(paddedSize(count), "?"));
+    }
+
+    /**
+     * Parcours de la table pour un export, limité aux colonnes demandées en plus de
+     * {@code id} et {@code login}.
+     *
+     * @throws IllegalArgumentException si une colonne ne fait pas partie des colonnes lues par le provider
+     */
+    public static String exportUsers(Collection<String> columns) {
+        Set<String> selected = new LinkedHashSet<>(List.of("id", "login"));
+        for (String column : columns) {
+            if (AdherentColumn.of(column) == null) {
+                throw new IllegalArgumentException("Column not exportable: " + column);
+            }
+            selected.add(column);
+        }
+        return "SELECT " + String.join(", ", selected) + " FROM adherents ORDER BY id";
+    }
+
+    /**
+     * Prépare une requête du registre sur la connexion donnée en comptabilisant
+     * si le driver l'avait déjà en cache.
+     */
+    public PreparedStatement prepare(Connection c, String sql) throws SQLException {
+        record(c, sql);
+        return c.prepareStatement(sql);
+    }
+
+    /**
+     * Variante de {@link #prepare(Connection, String)} pour les insertions
+     * devant retourner les clés générées.
+     */
+    public PreparedStatement prepare(Connection c, String sql, int autoGeneratedKeys) throws SQLException {
+        record(c, sql);
+        return c.prepareStatement(sql, autoGeneratedKeys);
+    }
+
+    private void record(Connection c, String sql) {
+        Boolean cached = driverCached(c, sql);
+        if (cached == null) {
+            Set<String> known = prepared.computeIfAbsent(c, k -> Collections.synchronizedSet(new HashSet<>()));
+            cached = !known.add(sql);
+        }
+        if (cached) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+    }
+
+    /**
+     * Indique si le cache de statements du driver MariaDB contient déjà la requête pour
+     * cette connexion, sans la marquer comme utilisée.
+     *
+     * @return {@code null} si la connexion n'est pas une connexion MariaDB
+     */
+    static Boolean driverCached(Connection c, String sql) {
+        try {
+            if (!c.isWrapperFor(org.mariadb.jdbc.Connection.class)) {
+                return null;
+            }
+            Context context = c.unwrap(org.mariadb.jdbc.Connection.class).getContext();
+            return context.getPrepareCacheCmd(sql, null) != null;
+        } catch (SQLException | RuntimeException e) {
+            // cachePrepStmts disabled: nothing is ever reused
+            return false;
+        }
+    }
+
+    /**
+     * Prépare toutes les requêtes connues sur {@code connections} connexions du pool
+     * afin que les premières connexions utilisateur trouvent un cache déjà chaud.
+     * Les erreurs sont journalisées sans interrompre le démarrage de Keycloak.
+     */
+    public void warmUp(DataSource dataSource, int connections) {
+        List<Connection> held = new ArrayList<>();
+        try {
+            for (int i = 0; i < connections; i++) {
+                Connection c = dataSource.getConnection();
+                held.add(c);
+                for (String sql : ALL) {
+                    try (PreparedStatement ignored = prepare(c, sql)) {
+                        // closing keeps the server-side statement in the driver cache
+                    } catch (SQLException e) {
+                        logger.warnf("Failed to prepare statement %s: %s", sql, e.getMessage());
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            logger.warn("Statement warm-up aborted: " + e.getMessage());
+        } finally {
+            for (Connection c : held) {
+                try {
+                    c.close();
+                } catch (SQLException ignore) {
+                }
+            }
+        }
+        logger.debugf("Statement warm-up done on %d connection(s): %s", held.size(), this);
+    }
+
+    /** Nombre de préparations servies par le cache de statements du driver. */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /** Nombre de préparations ayant nécessité un aller-retour PREPARE vers le serveur. */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "StatementRegistry[hits=" + getHits() + ", misses=" + getMisses() + "]";
+    }
+}
@@ -0,0 +1,254 @@
+package net.minet.keycloak.spi.directory;
+
+import org.jboss.logging.Logger;
+
+import java.sql.SQLException;
+import java.text.Normalizer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+/**
+ * Bloom filter over every {@code login}, {@code mail} and {@code ldap_login}
+ * of {@code adherents}, answering "definitely unknown" without a query.
+ *
+ * <p>The filter is rebuilt periodically from the database and identifiers
+ * written through the provider are added immediately. Identifiers added
+ * while a rebuild is loading are queued and replayed into the new filter, so
+ * a swap never loses them. Writers add each identifier twice, before the
+ * write and again once it is committed: a rebuild that read the table before
+ * the commit then still sees the second add, through its queue or in the
+ * filter it installed. Until the first build completes every identifier is
+ * reported as possibly present.</p>
+ *
+ * <p>Stored keys are folded like the {@code _general_ci} collation of the
+ * columns compares them: case, accents and trailing spaces are ignored. A
+ * searched key is only rejected when it is already canonical, plain ASCII
+ * without trailing space; any other key goes to the database, whose
+ * collation has the final word.</p>
+ *
+ * <p>The filter is local to one Keycloak node: identifiers written on
+ * another node, or directly in the database, are only known after the next
+ * rebuild.</p>
+ */
+public final class IdentifierFilter implements AutoCloseable {
+    private static final Logger logger = Logger.getLogger(IdentifierFilter.class);
+
+    private static final Pattern MARKS = Pattern.compile("\\p{M}+");
+
+    /** Source des identifiants : appelle {@code sink} pour chaque valeur non nulle. */
+    @FunctionalInterface
+    public interface Source {
+        void load(Consumer<String> sink) throws SQLException;
+    }
+
+    private final double falsePositiveRate;
+    private final LongAdder negatives = new LongAdder();
+    private volatile Bits current;
+    private volatile Queue<String> pending;
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * @param falsePositiveRate taux de faux positifs visé, par exemple {@code 0.01}
+     */
+    public IdentifierFilter(double falsePositiveRate) {
+        this.falsePositiveRate = falsePositiveRate;
+    }
+
+    /** Indique si un premier chargement a eu lieu. */
+    public boolean isReady() {
+        return current != null;
+    }
+
+    /** Nombre de recherches écartées sans requête. */
+    public long getNegatives() {
+        return negatives.sum();
+    }
+
+    /**
+     * Retourne {@code false} uniquement si l'identifiant n'existe certainement pas. Une clé
+     * non canonique (non ASCII ou terminée par une espace) est toujours considérée présente.
+     */
+    public boolean mightContain(String key) {
+        Bits bits = current;
+        if (bits == null || key == null || !isCanonical(key) || bits.mightContain(normalize(key))) {
+            return true;
+        }
+        negatives.increment();
+        return false;
+    }
+
+    /**
+     * Ajoute un identifiant créé ou modifié par le provider. À appeler avant l'écriture
+     * et de nouveau après sa validation.
+     */
+    public void add(String key) {
+        if (key == null) {
+            return;
+        }
+        String normalized = normalize(key);
+        // queue first: a rebuild swaps the filter before draining the queue
+        Queue<String> queue = pending;
+        if (queue != null) {
+            queue.offer(normalized);
+        }
+        Bits bits = current;
+        if (bits != null) {
+            bits.add(normalized);
+        }
+    }
+
+    /**
+     * Recharge tous les identifiants dans un nouveau filtre dimensionné sur
+     * le nombre de lignes, avec de la marge pour les ajouts.
+     */
+    public synchronized void rebuild(Source source) throws SQLException {
+        Queue<String> queue = new ConcurrentLinkedQueue<>();
+        pending = queue;
+        Bits next;
+        List<String> keys = new ArrayList<>();
+        try {
+            source.load(k -> keys.add(normalize(k)));
+            next = new Bits(Math.max(keys.size() * 3L / 2, 1024), falsePositiveRate);
+            for (String k : keys) {
+                next.add(k);
+            }
+            current = next;
+            for (String k = queue.poll(); k != null; k = queue.poll()) {
+                next.add(k);
+            }
+        } finally {
+            pending = null;
+        }
+        logger.debugf("Identifier filter rebuilt with %d key(s), %d bits", keys.size(), next.size);
+    }
+
+    /** Planifie la reconstruction périodique, la première immédiatement. */
+    public synchronized void start(Source source, Duration rebuildEvery) {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "fdp-identifier-filter");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                rebuild(source);
+            } catch (SQLException | RuntimeException e) {
+                logger.warnf("Identifier filter rebuild failed: %s", e.getMessage());
+            }
+        }, 0, rebuildEvery.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public synchronized void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Forme comparée par la collation {@code _general_ci} : minuscules, sans accents,
+     * {@code ß} égal à {@code s}, sans espaces finaux.
+     */
+    static String normalize(String key) {
+        String folded = key.toLowerCase(Locale.ROOT);
+        if (!isAscii(folded)) {
+            folded = MARKS.matcher(Normalizer.normalize(folded, Normalizer.Form.NFD)).replaceAll("")
+                    .replace("ß", "s");
+        }
+        int end = folded.length();
+        while (end > 0 && folded.charAt(end - 1) == ' ') {
+            end--;
+        }
+        return folded.substring(0, end);
+    }
+
+    // Only keys that normalize() cannot have mis-folded may be rejected
+    private static boolean isCanonical(String key) {
+        return isAscii(key) && !key.endsWith(" ");
+    }
+
+    private static boolean isAscii(String key) {
+        for (int i = 0; i < key.length(); i++) {
+            if (key.charAt(i) > 0x7f) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Lock-free bit set with double hashing.
+     */
+    private static final class Bits {
+        final AtomicLongArray words;
+        final int size;
+        final int hashes;
+
+        Bits(long expected, double fpp) {
+            double ln2 = Math.log(2);
+            long m = (long) Math.ceil(-expected * Math.log(fpp) / (ln2 * ln2));
+            m = Math.min(Math.max(m, 1024), Integer.MAX_VALUE - 64L);
+            this.words = new AtomicLongArray((int) ((m + 63) / 64));
+            this.size = words.length() * 64;
+            this.hashes = Math.max(1, (int) Math.round((double) size / expected * ln2));
+        }
+
+        private static int mix(int h) {
+            h ^= h >>> 16;
+            h *= 0x85ebca6b;
+            h ^= h >>> 13;
+            h *= 0xc2b2ae35;
+            h ^= h >>> 16;
+            return h;
+        }
+
+        private static int fnv(String key) {
+            int h = 0x811c9dc5;
+            for (int i = 0; i < key.length(); i++) {
+                h = (h ^ key.charAt(i)) * 0x01000193;
+            }
+            return h;
+        }
+
+        void add(String key) {
+            int h1 = mix(key.hashCode());
+            int h2 = fnv(key) | 1;
+            for (int i = 0; i < hashes; i++) {
+                int bit = Math.floorMod(h1 + i * h2, size);
+                long mask = 1L << bit;
+                int word = bit >>> 6;
+                long value = words.get(word);
+                while ((value & mask) == 0 && !words.compareAndSet(word, value, value | mask)) {
+                    value = words.get(word);
+                }
+            }
+        }
+
+        boolean mightContain(String key) {
+            int h1 = mix(key.hashCode());
+            int h2 = fnv(key) | 1;
+            for (int i = 0; i < hashes; i++) {
+                int bit = Math.floorMod(h1 + i * h2, size);
+                if ((words.get(bit >>> 6) & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
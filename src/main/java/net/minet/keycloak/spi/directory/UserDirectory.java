@@ -0,0 +1,666 @@
+package net.minet.keycloak.spi.directory;
+
+import net.minet.keycloak.spi.entity.ExternalUser;
+import org.jboss.logging.Logger;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Function;
+
+/**
+ * Local, memory-mapped copy of the lookup columns of {@code adherents}.
+ *
+ * <p>The file holds a header, an open-addressing index {@code id -> record},
+ * two string-hash indexes for {@code login} and {@code mail}, then an
+ * append-only area of records ({@code id}, the flag columns,
+ * {@code created_at}, {@code login}, {@code mail}, {@code nom},
+ * {@code prenom}, {@code ldap_login}). Indexes store primitive ints only and
+ * the data lives outside the Java heap, so lookups allocate nothing but the
+ * returned {@link ExternalUser}.</p>
+ *
+ * <p>The file survives restarts: a valid file is reused as-is and then
+ * refreshed incrementally with the rows whose {@code updated_at} is newer
+ * than the stored watermark. A periodic full rebuild catches deletions made
+ * by other tools and compacts superseded records. A miss is not
+ * authoritative: callers fall back to the database.</p>
+ *
+ * <p>Readers use optimistic {@link StampedLock} reads; updates take the
+ * write lock and a rebuild swaps in a freshly mapped file.</p>
+ *
+ * <p>An open directory holds an exclusive lock on a {@code .lock} file next
+ * to it, so a second process or datasource cannot map and overwrite the same
+ * file.</p>
+ */
+public final class UserDirectory implements AutoCloseable {
+    private static final Logger logger = Logger.getLogger(UserDirectory.class);
+
+    private static final int MAGIC = 0x46445044; // "FDPD"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 64;
+    private static final int H_MAGIC = 0;
+    private static final int H_VERSION = 4;
+    private static final int H_ID_CAPACITY = 8;
+    private static final int H_STR_CAPACITY = 12;
+    private static final int H_RECORDS_END = 16;
+    private static final int H_LIMIT = 20;
+    private static final int H_WATERMARK = 24;
+    private static final int H_ID_USED = 32;
+    private static final int H_LOGIN_USED = 36;
+    private static final int H_MAIL_USED = 40;
+
+    private static final int SLOT = 8;
+    private static final int EMPTY = 0;
+    private static final int TOMBSTONE = -1;
+    private static final double MAX_LOAD = 0.7;
+
+    private static final int F_LOGIN = 0;
+    private static final int F_MAIL = 1;
+    private static final int F_NOM = 2;
+    private static final int F_PRENOM = 3;
+    private static final int F_LDAP = 4;
+
+    /** Reçoit les lignes lues en base. */
+    @FunctionalInterface
+    public interface RowSink {
+        void accept(ExternalUser user, long updatedAtMillis);
+    }
+
+    /**
+     * Source des lignes : toutes les lignes si {@code sinceMillis} vaut
+     * {@link Long#MIN_VALUE}, sinon celles modifiées depuis.
+     */
+    @FunctionalInterface
+    public interface Source {
+        void load(long sinceMillis, RowSink sink) throws SQLException;
+    }
+
+    private final Path path;
+    private final FileChannel owner;
+    private final StampedLock lock = new StampedLock();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private volatile Segment segment;
+    private ScheduledExecutorService scheduler;
+
+    private UserDirectory(Path path, FileChannel owner, Segment segment) {
+        this.path = path;
+        this.owner = owner;
+        this.segment = segment;
+    }
+
+    /**
+     * Ouvre le répertoire persistant, ou en crée un vide si le fichier est
+     * absent ou incompatible. Un répertoire vide devra être reconstruit.
+     *
+     * @throws IOException si le fichier est déjà ouvert par un autre processus ou une autre instance
+     */
+    public static UserDirectory open(Path path) throws IOException {
+        FileChannel owner = FileChannel.open(path.resolveSibling(path.getFileName() + ".lock"),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            FileLock held;
+            try {
+                held = owner.tryLock();
+            } catch (OverlappingFileLockException e) {
+                held = null;
+            }
+            if (held == null) {
+                throw new IOException("already in use");
+            }
+            Segment existing = Segment.load(path);
+            if (existing != null) {
+                logger.infof("Loaded user directory %s (%d ids, watermark %d)", path, existing.idUsed(), existing.watermark());
+                return new UserDirectory(path, owner, existing);
+            }
+            Files.deleteIfExists(path);
+            return new UserDirectory(path, owner, Segment.create(path, 0, 0));
+        } catch (IOException | RuntimeException e) {
+            owner.close();
+            throw e;
+        }
+    }
+
+    /** Nombre d'identifiants indexés. */
+    public int size() {
+        return segment.idUsed();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public ExternalUser findById(int id) {
+        return read(s -> s.findById(id));
+    }
+
+    public ExternalUser findByUsername(String login) {
+        return login == null ? null : read(s -> s.findByString(s.loginBase, F_LOGIN, login));
+    }
+
+    public ExternalUser findByEmail(String mail) {
+        return mail == null ? null : read(s -> s.findByString(s.mailBase, F_MAIL, mail));
+    }
+
+    private ExternalUser read(Function<Segment, ExternalUser> reader) {
+        ExternalUser user = null;
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                user = reader.apply(segment);
+            } catch (RuntimeException e) {
+                stamp = 0;
+            }
+        }
+        if (stamp == 0 || !lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                user = reader.apply(segment);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        if (user == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return user;
+    }
+
+    /**
+     * Ajoute ou remplace un adhérent, par exemple après une écriture.
+     * Si le fichier est plein, l'ancienne version est retirée pour ne jamais
+     * servir de données périmées.
+     *
+     * @return {@code false} si le fichier est plein et doit être reconstruit
+     */
+    public boolean put(ExternalUser user) {
+        if (user == null || user.getId() == null) {
+            return false;
+        }
+        long stamp = lock.writeLock();
+        try {
+            if (segment.put(user)) {
+                return true;
+            }
+            segment.remove(user.getId());
+            return false;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /** Retire un adhérent supprimé. */
+    public void remove(int id) {
+        long stamp = lock.writeLock();
+        try {
+            segment.remove(id);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Applique les lignes modifiées depuis le dernier watermark. Déclenche une
+     * reconstruction complète si le répertoire est vide ou plein.
+     */
+    public void refresh(Source source) throws IOException, SQLException {
+        Segment current = segment;
+        if (current.watermark() == Long.MIN_VALUE) {
+            rebuild(source);
+            return;
+        }
+        List<ExternalUser> changed = new ArrayList<>();
+        long[] watermark = {current.watermark()};
+        source.load(current.watermark(), (u, updatedAt) -> {
+            changed.add(u);
+            watermark[0] = Math.max(watermark[0], updatedAt);
+        });
+        boolean full = false;
+        long stamp = lock.writeLock();
+        try {
+            for (ExternalUser u : changed) {
+                // once full, drop the remaining stale versions until the rebuild
+                if (full || !segment.put(u)) {
+                    segment.remove(u.getId());
+                    full = true;
+                }
+            }
+            if (!full) {
+                segment.watermark(watermark[0]);
+                segment.force();
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        if (full) {
+            rebuild(source);
+        } else if (!changed.isEmpty()) {
+            logger.debugf("User directory refreshed with %d row(s)", changed.size());
+        }
+    }
+
+    /**
+     * Recharge toutes les lignes dans un nouveau fichier puis remplace
+     * atomiquement le fichier courant.
+     */
+    public void rebuild(Source source) throws IOException, SQLException {
+        List<ExternalUser> rows = new ArrayList<>();
+        long[] watermark = {0};
+        long[] bytes = {0};
+        source.load(Long.MIN_VALUE, (u, updatedAt) -> {
+            rows.add(u);
+            watermark[0] = Math.max(watermark[0], updatedAt);
+            bytes[0] += Segment.recordSize(u);
+        });
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.deleteIfExists(tmp);
+        Segment next = Segment.create(tmp, rows.size(), bytes[0]);
+        for (ExternalUser u : rows) {
+            next.put(u);
+        }
+        next.watermark(watermark[0]);
+        next.force();
+        long stamp = lock.writeLock();
+        try {
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            segment = next;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        logger.infof("User directory rebuilt with %d adherent(s)", rows.size());
+    }
+
+    /**
+     * Démarre le rafraîchissement incrémental et la reconstruction périodique.
+     */
+    public synchronized void start(Source source, Duration refreshEvery, Duration rebuildEvery) {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "fdp-user-directory");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(() -> run(() -> refresh(source), "refresh"),
+                0, refreshEvery.toMillis(), TimeUnit.MILLISECONDS);
+        scheduler.scheduleWithFixedDelay(() -> run(() -> rebuild(source), "rebuild"),
+                rebuildEvery.toMillis(), rebuildEvery.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @FunctionalInterface
+    private interface Task {
+        void run() throws IOException, SQLException;
+    }
+
+    private static void run(Task task, String name) {
+        try {
+            task.run();
+        } catch (IOException | SQLException | RuntimeException e) {
+            logger.warnf("User directory %s failed: %s", name, e.getMessage());
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+        long stamp = lock.writeLock();
+        try {
+            segment.force();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        try {
+            // releases the file lock
+            owner.close();
+        } catch (IOException e) {
+            logger.warnf("Failed to release the lock of %s: %s", path, e.getMessage());
+        }
+    }
+
+    /**
+     * One mapped file: header, indexes and record area.
+     */
+    private static final class Segment {
+        final MappedByteBuffer buf;
+        final int idCapacity;
+        final int strCapacity;
+        final int idBase;
+        final int loginBase;
+        final int mailBase;
+        final int limit;
+
+        private Segment(MappedByteBuffer buf) {
+            this.buf = buf;
+            this.idCapacity = buf.getInt(H_ID_CAPACITY);
+            this.strCapacity = buf.getInt(H_STR_CAPACITY);
+            this.idBase = HEADER_SIZE;
+            this.loginBase = idBase + idCapacity * SLOT;
+            this.mailBase = loginBase + strCapacity * SLOT;
+            this.limit = buf.getInt(H_LIMIT);
+        }
+
+        static Segment load(Path path) throws IOException {
+            if (!Files.isRegularFile(path) || Files.size(path) < HEADER_SIZE) {
+                return null;
+            }
+            MappedByteBuffer buf = map(path, Files.size(path));
+            if (buf.getInt(H_MAGIC) != MAGIC || buf.getInt(H_VERSION) != VERSION
+                    || buf.getInt(H_LIMIT) != buf.capacity()) {
+                return null;
+            }
+            return new Segment(buf);
+        }
+
+        static Segment create(Path path, int rows, long recordBytes) throws IOException {
+            int idCapacity = tableSize(rows);
+            int strCapacity = tableSize(rows);
+            long size = HEADER_SIZE + (long) (idCapacity + 2 * strCapacity) * SLOT
+                    + Math.max(recordBytes * 2, 1 << 20);
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("User directory too large: " + size + " bytes");
+            }
+            MappedByteBuffer buf = map(path, size);
+            buf.putInt(H_MAGIC, MAGIC);
+            buf.putInt(H_VERSION, VERSION);
+            buf.putInt(H_ID_CAPACITY, idCapacity);
+            buf.putInt(H_STR_CAPACITY, strCapacity);
+            buf.putInt(H_LIMIT, (int) size);
+            buf.putLong(H_WATERMARK, Long.MIN_VALUE);
+            Segment s = new Segment(buf);
+            buf.putInt(H_RECORDS_END, s.mailBase + strCapacity * SLOT);
+            return s;
+        }
+
+        private static int tableSize(int rows) {
+            int wanted = Math.max(1024, rows * 2 + rows / 2);
+            return Integer.highestOneBit(wanted - 1) << 1;
+        }
+
+        private static MappedByteBuffer map(Path path, long size) throws IOException {
+            try (FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                return ch.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+        }
+
+        long watermark() {
+            return buf.getLong(H_WATERMARK);
+        }
+
+        void watermark(long value) {
+            buf.putLong(H_WATERMARK, value);
+        }
+
+        int idUsed() {
+            return buf.getInt(H_ID_USED);
+        }
+
+        void force() {
+            buf.force();
+        }
+
+        private static int mix(int h) {
+            h ^= h >>> 16;
+            h *= 0x85ebca6b;
+            h ^= h >>> 13;
+            h *= 0xc2b2ae35;
+            h ^= h >>> 16;
+            return h;
+        }
+
+        private static int keyHash(String key) {
+            return mix(key.toLowerCase(Locale.ROOT).hashCode());
+        }
+
+        /** Offset of the current record of {@code id}, or EMPTY/TOMBSTONE. */
+        int offsetOf(int id) {
+            int mask = idCapacity - 1;
+            int i = mix(id) & mask;
+            for (int n = 0; n < idCapacity; n++) {
+                int pos = idBase + i * SLOT;
+                int offset = buf.getInt(pos + 4);
+                if (offset == EMPTY) {
+                    return EMPTY;
+                }
+                if (buf.getInt(pos) == id) {
+                    return offset;
+                }
+                i = (i + 1) & mask;
+            }
+            return EMPTY;
+        }
+
+        ExternalUser findById(int id) {
+            int offset = offsetOf(id);
+            return offset > 0 ? readRecord(offset) : null;
+        }
+
+        ExternalUser findByString(int base, int field, String key) {
+            int mask = strCapacity - 1;
+            int hash = keyHash(key);
+            int i = hash & mask;
+            for (int n = 0; n < strCapacity; n++) {
+                int pos = base + i * SLOT;
+                int offset = buf.getInt(pos + 4);
+                if (offset == EMPTY) {
+                    return null;
+                }
+                if (buf.getInt(pos) == hash && offsetOf(buf.getInt(offset)) == offset
+                        && key.equalsIgnoreCase(stringAt(offset, field))) {
+                    return readRecord(offset);
+                }
+                i = (i + 1) & mask;
+            }
+            return null;
+        }
+
+        boolean put(ExternalUser u) {
+            int size = recordSize(u);
+            int end = buf.getInt(H_RECORDS_END);
+            if (size < 0 || end + size > limit
+                    || buf.getInt(H_ID_USED) + 1 > idCapacity * MAX_LOAD
+                    || buf.getInt(H_LOGIN_USED) + 1 > strCapacity * MAX_LOAD
+                    || buf.getInt(H_MAIL_USED) + 1 > strCapacity * MAX_LOAD) {
+                return false;
+            }
+            writeRecord(end, u);
+            buf.putInt(H_RECORDS_END, end + size);
+            putId(u.getId(), end);
+            putString(loginBase, H_LOGIN_USED, u.getUsername(), end, u.getId());
+            putString(mailBase, H_MAIL_USED, u.getEmail(), end, u.getId());
+            return true;
+        }
+
+        void remove(int id) {
+            int mask = idCapacity - 1;
+            int i = mix(id) & mask;
+            for (int n = 0; n < idCapacity; n++) {
+                int pos = idBase + i * SLOT;
+                int offset = buf.getInt(pos + 4);
+                if (offset == EMPTY) {
+                    return;
+                }
+                if (buf.getInt(pos) == id) {
+                    buf.putInt(pos + 4, TOMBSTONE);
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+        }
+
+        private void putId(int id, int offset) {
+            int mask = idCapacity - 1;
+            int i = mix(id) & mask;
+            for (int n = 0; n < idCapacity; n++) {
+                int pos = idBase + i * SLOT;
+                int current = buf.getInt(pos + 4);
+                if (current == EMPTY) {
+                    buf.putInt(pos, id);
+                    buf.putInt(pos + 4, offset);
+                    buf.putInt(H_ID_USED, buf.getInt(H_ID_USED) + 1);
+                    return;
+                }
+                if (buf.getInt(pos) == id) {
+                    buf.putInt(pos + 4, offset);
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+        }
+
+        private void putString(int base, int usedField, String value, int offset, int id) {
+            if (value == null) {
+                return;
+            }
+            int mask = strCapacity - 1;
+            int hash = keyHash(value);
+            int i = hash & mask;
+            for (int n = 0; n < strCapacity; n++) {
+                int pos = base + i * SLOT;
+                int current = buf.getInt(pos + 4);
+                if (current == EMPTY) {
+                    buf.putInt(pos, hash);
+                    buf.putInt(pos + 4, offset);
+                    buf.putInt(usedField, buf.getInt(usedField) + 1);
+                    return;
+                }
+                if (buf.getInt(pos) == hash && current > 0 && buf.getInt(current) == id) {
+                    buf.putInt(pos + 4, offset);
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+        }
+
+        // Record: int id, byte presence bits, bytes is_naina/edminet/mailinglist/mode_association,
+        // long created seconds, int created nanos, 5 strings
+        private static final int FIXED = 4 + 1 + 4 + 8 + 4;
+        private static final int CREATED = 9;
+
+        static int recordSize(ExternalUser u) {
+            int size = FIXED;
+            for (String s : strings(u)) {
+                int len = s == null ? 0 : s.getBytes(StandardCharsets.UTF_8).length;
+                if (len > Short.MAX_VALUE) {
+                    return -1;
+                }
+                size += 2 + len;
+            }
+            return size;
+        }
+
+        private static String[] strings(ExternalUser u) {
+            return new String[]{u.getUsername(), u.getEmail(), u.getLastName(), u.getFirstName(), u.getLdapLogin()};
+        }
+
+        private void writeRecord(int offset, ExternalUser u) {
+            int p = offset;
+            buf.putInt(p, u.getId());
+            Byte[] values = {u.getIsNaina(), u.getEdminet(), u.getMailinglist(), u.getModeAssociation()};
+            int flags = u.getCreatedAt() != null ? 2 : 0;
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] != null) {
+                    flags |= i == 0 ? 1 : 4 << (i - 1);
+                }
+                buf.put(p + 5 + i, values[i] == null ? 0 : values[i]);
+            }
+            buf.put(p + 4, (byte) flags);
+            LocalDateTime created = u.getCreatedAt();
+            buf.putLong(p + CREATED, created == null ? 0 : created.toEpochSecond(ZoneOffset.UTC));
+            buf.putInt(p + CREATED + 8, created == null ? 0 : created.getNano());
+            p += FIXED;
+            for (String s : strings(u)) {
+                if (s == null) {
+                    buf.putShort(p, (short) -1);
+                    p += 2;
+                } else {
+                    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+                    buf.putShort(p, (short) bytes.length);
+                    buf.put(p + 2, bytes);
+                    p += 2 + bytes.length;
+                }
+            }
+        }
+
+        private String stringAt(int offset, int field) {
+            int p = offset + FIXED;
+            for (int f = 0; f < field; f++) {
+                p += 2 + Math.max(buf.getShort(p), 0);
+            }
+            return readString(p);
+        }
+
+        private String readString(int p) {
+            short len = buf.getShort(p);
+            if (len < 0) {
+                return null;
+            }
+            byte[] bytes = new byte[len];
+            buf.get(p + 2, bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private ExternalUser readRecord(int offset) {
+            ExternalUser u = new ExternalUser();
+            u.setId(buf.getInt(offset));
+            byte flags = buf.get(offset + 4);
+            if ((flags & 1) != 0) {
+                u.setIsNaina(buf.get(offset + 5));
+            }
+            if ((flags & 4) != 0) {
+                u.setEdminet(buf.get(offset + 6));
+            }
+            if ((flags & 8) != 0) {
+                u.setMailinglist(buf.get(offset + 7));
+            }
+            if ((flags & 16) != 0) {
+                u.setModeAssociation(buf.get(offset + 8));
+            }
+            if ((flags & 2) != 0) {
+                u.setCreatedAt(LocalDateTime.ofEpochSecond(buf.getLong(offset + CREATED),
+                        buf.getInt(offset + CREATED + 8), ZoneOffset.UTC));
+            }
+            int p = offset + FIXED;
+            String[] values = new String[5];
+            for (int f = 0; f < values.length; f++) {
+                values[f] = readString(p);
+                p += 2 + Math.max(buf.getShort(p), 0);
+            }
+            u.setUsername(values[F_LOGIN]);
+            u.setEmail(values[F_MAIL]);
+            u.setLastName(values[F_NOM]);
+            u.setFirstName(values[F_PRENOM]);
+            u.setLdapLogin(values[F_LDAP]);
+            return u;
+        }
+    }
+}
@@ -14,6 +14,9 @@ public class ExternalUser {
     private LocalDateTime createdAt;
     private Byte isNaina;
     private String ldapLogin;
+    private Byte edminet;
+    private Byte mailinglist;
+    private Byte modeAssociation;
 
     /** Identifiant unique utilisé par Keycloak pour faire le lien avec la base externe. */
     public Integer getId() {
@@ -93,4 +96,48 @@ public class ExternalUser {
     public void setLdapLogin(String ldapLogin) {
         this.ldapLogin = ldapLogin;
     }
+
+    /** Flag {@code edminet} de la base externe. */
+    public Byte getEdminet() {
+        return edminet;
+    }
+
+    public void setEdminet(Byte edminet) {
+        this.edminet = edminet;
+    }
+
+    /** Flag {@code mailinglist} de la base externe. */
+    public Byte getMailinglist() {
+        return mailinglist;
+    }
+
+    public void setMailinglist(Byte mailinglist) {
+        this.mailinglist = mailinglist;
+    }
+
+    /** Flag {@code mode_association} de la base externe. */
+    public Byte getModeAssociation() {
+        return modeAssociation;
+    }
+
+    public void setModeAssociation(Byte modeAssociation) {
+        this.modeAssociation = modeAssociation;
+    }
+
+    /** Copie indépendante, pour ne pas partager une instance modifiable entre threads. */
+    public ExternalUser copy() {
+        ExternalUser copy = new ExternalUser();
+        copy.id = id;
+        copy.lastName = lastName;
+        copy.firstName = firstName;
+        copy.email = email;
+        copy.username = username;
+        copy.createdAt = createdAt;
+        copy.isNaina = isNaina;
+        copy.ldapLogin = ldapLogin;
+        copy.edminet = edminet;
+        copy.mailinglist = mailinglist;
+        copy.modeAssociation = modeAssociation;
+        return copy;
+    }
 }
@@ -0,0 +1,20 @@
+package net.minet.keycloak.spi.entity;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+
+/**
+ * Extended columns of an adherent, loaded separately from the lookup row.
+ *
+ * @param dateDeDepart       date de départ prévue
+ * @param chambreId          chambre occupée
+ * @param subnet             sous-réseau attribué
+ * @param ip                 adresse IP attribuée
+ * @param dateSignedAdhesion date de signature de l'adhésion
+ */
+public record ExternalUserDetails(LocalDate dateDeDepart, Integer chambreId, String subnet, String ip,
+                                  LocalDateTime dateSignedAdhesion) {
+
+    /** Aucune valeur, pour un adhérent introuvable. */
+    public static final ExternalUserDetails EMPTY = new ExternalUserDetails(null, null, null, null, null);
+}
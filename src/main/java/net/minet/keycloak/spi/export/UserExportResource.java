@@ -0,0 +1,123 @@
+package net.minet.keycloak.spi.export;
+
+import jakarta.ws.rs.BadRequestException;
+import jakarta.ws.rs.DefaultValue;
+import jakarta.ws.rs.ForbiddenException;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.NotAuthorizedException;
+import jakarta.ws.rs.NotFoundException;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.StreamingOutput;
+import net.minet.keycloak.spi.FdpSQLUserStorageProviderFactory;
+import net.minet.keycloak.spi.dao.ExternalUserDao;
+import org.jboss.logging.Logger;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.AdminRoles;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.Constants;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
+import org.keycloak.services.managers.AppAuthManager;
+import org.keycloak.services.managers.AuthenticationManager;
+import org.keycloak.services.resource.RealmResourceProvider;
+import org.keycloak.storage.UserStorageProvider;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * {@code GET /realms/<realm>/fdp-export/users} streams the adherents of a
+ * federation component of the realm.
+ *
+ * <p>The caller needs a bearer token of the realm carrying the
+ * {@code view-users} role of {@code realm-management}. Everything that needs
+ * the Keycloak session is resolved before the response starts; the body is
+ * then written straight from the database cursor.</p>
+ */
+public class UserExportResource implements RealmResourceProvider {
+    private static final Logger logger = Logger.getLogger(UserExportResource.class);
+
+    private final KeycloakSession session;
+    private final int fetchSize;
+
+    public UserExportResource(KeycloakSession session, int fetchSize) {
+        this.session = session;
+        this.fetchSize = fetchSize;
+    }
+
+    @Override
+    public Object getResource() {
+        return this;
+    }
+
+    /**
+     * Exporte les adhérents au format {@code ndjson} ou {@code csv}.
+     *
+     * @param format    format de sortie
+     * @param component identifiant du composant de fédération, le premier du realm par défaut
+     */
+    @GET
+    @Path("users")
+    public Response export(@QueryParam("format") @DefaultValue("ndjson") String format,
+                           @QueryParam("component") String component) {
+        RealmModel realm = session.getContext().getRealm();
+        checkViewUsers(realm);
+        UserExporter.Format output;
+        try {
+            output = UserExporter.Format.of(format);
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException("Unknown format " + format);
+        }
+        ComponentModel model = realm.getComponentsStream(realm.getId(), UserStorageProvider.class.getName())
+                .filter(c -> FdpSQLUserStorageProviderFactory.PROVIDER_NAME.equals(c.getProviderId()))
+                .filter(c -> component == null || component.equals(c.getId()))
+                .findFirst()
+                .orElseThrow(() -> new NotFoundException("No " + FdpSQLUserStorageProviderFactory.PROVIDER_NAME
+                        + " component in realm " + realm.getName()));
+        FdpSQLUserStorageProviderFactory factory = (FdpSQLUserStorageProviderFactory) session.getKeycloakSessionFactory()
+                .getProviderFactory(UserStorageProvider.class, FdpSQLUserStorageProviderFactory.PROVIDER_NAME);
+        List<ExternalUserDao> shards = factory.userDaos(model);
+        UserExporter exporter = new UserExporter(model.getId(), factory.attributeMapping(model), fetchSize);
+        String realmName = realm.getName();
+        StreamingOutput body = out -> {
+            long start = System.nanoTime();
+            try {
+                long rows = exporter.write(shards, output, out);
+                logger.infof("Exported %d adherent(s) of realm %s as %s in %d ms", rows, realmName,
+                        output.extension(), (System.nanoTime() - start) / 1_000_000);
+            } catch (SQLException e) {
+                logger.warnf("Export of realm %s failed: %s", realmName, e.getMessage());
+                throw new IOException(e);
+            }
+        };
+        return Response.ok(body, output.contentType())
+                .header("Content-Disposition", "attachment; filename=\"adherents." + output.extension() + "\"")
+                .build();
+    }
+
+    /**
+     * Exige un jeton du realm portant le rôle {@code view-users} de {@code realm-management}.
+     */
+    private void checkViewUsers(RealmModel realm) {
+        AuthenticationManager.AuthResult auth = new AppAuthManager.BearerTokenAuthenticator(session)
+                .setRealm(realm)
+                .authenticate();
+        if (auth == null) {
+            throw new NotAuthorizedException("Bearer");
+        }
+        ClientModel management = realm.getClientByClientId(Constants.REALM_MANAGEMENT_CLIENT_ID);
+        RoleModel viewUsers = management == null ? null : management.getRole(AdminRoles.VIEW_USERS);
+        if (viewUsers == null || !auth.getUser().hasRole(viewUsers)) {
+            throw new ForbiddenException();
+        }
+    }
+
+    @Override
+    public void close() {
+        // nothing to close, the export owns no session resource
+    }
+}
@@ -0,0 +1,47 @@
+package net.minet.keycloak.spi.export;
+
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.services.resource.RealmResourceProvider;
+import org.keycloak.services.resource.RealmResourceProviderFactory;
+
+/**
+ * Registers the {@code fdp-export} realm resource, see {@link UserExportResource}.
+ */
+public class UserExportResourceProviderFactory implements RealmResourceProviderFactory {
+    public static final String ID = "fdp-export";
+
+    private int fetchSize = 1000;
+
+    @Override
+    public RealmResourceProvider create(KeycloakSession session) {
+        return new UserExportResource(session, fetchSize);
+    }
+
+    @Override
+    /**
+     * Lit la taille des lots de l'export depuis {@code fdp.export.fetch-size} / {@code FDP_EXPORT_FETCH_SIZE}.
+     */
+    public void init(Config.Scope config) {
+        String value = System.getProperty("fdp.export.fetch-size", System.getenv("FDP_EXPORT_FETCH_SIZE"));
+        if (value != null && !value.isBlank()) {
+            fetchSize = Integer.parseInt(value.trim());
+        }
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        // the federation factory is looked up per request
+    }
+
+    @Override
+    public void close() {
+        // nothing to close
+    }
+
+    @Override
+    public String getId() {
+        return ID;
+    }
+}
@@ -0,0 +1,233 @@
+package net.minet.keycloak.spi.export;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import net.minet.keycloak.spi.AttributeMapping;
+import net.minet.keycloak.spi.dao.ExternalUserDao;
+import net.minet.keycloak.spi.entity.ExternalUser;
+import net.minet.keycloak.spi.shard.ShardedUsers;
+import org.keycloak.storage.StorageId;
+import org.keycloak.util.JsonSerialization;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Writes every adherent of a federation component as NDJSON or CSV.
+ *
+ * <p>Rows are read with a forward-only cursor that fetches {@code fetchSize}
+ * rows at a time, restricted to the columns of the component's attribute
+ * mapping, and written as they arrive. The output is flushed after each
+ * fetch, so memory use does not depend on the number of rows and an HTTP
+ * response is sent in chunks. Values are formatted as the matching user
+ * attributes.</p>
+ */
+public final class UserExporter {
+
+    /** Formats de sortie. */
+    public enum Format {
+        NDJSON("application/x-ndjson", "ndjson"),
+        CSV("text/csv", "csv");
+
+        private final String contentType;
+        private final String extension;
+
+        Format(String contentType, String extension) {
+            this.contentType = contentType;
+            this.extension = extension;
+        }
+
+        public String contentType() {
+            return contentType;
+        }
+
+        public String extension() {
+            return extension;
+        }
+
+        /**
+         * Format désigné par son nom, sans tenir compte de la casse.
+         *
+         * @throws IllegalArgumentException si le format est inconnu
+         */
+        public static Format of(String name) {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    private final String componentId;
+    private final AttributeMapping mapping;
+    private final int fetchSize;
+
+    /**
+     * @param componentId composant dont les identifiants Keycloak sont exportés
+     * @param mapping     attributs exportés, après {@code id} et {@code username}
+     * @param fetchSize   lignes ramenées par le driver, et écrites, à la fois
+     */
+    public UserExporter(String componentId, AttributeMapping mapping, int fetchSize) {
+        this.componentId = componentId;
+        this.mapping = mapping;
+        this.fetchSize = Math.max(1, fetchSize);
+    }
+
+    /** Noms des champs de chaque ligne. */
+    public List<String> fields() {
+        List<String> fields = new ArrayList<>(mapping.size() + 2);
+        fields.add("id");
+        fields.add("username");
+        for (int slot = 0; slot < mapping.size(); slot++) {
+            fields.add(mapping.attribute(slot));
+        }
+        return fields;
+    }
+
+    /**
+     * Écrit les adhérents de chaque shard, dans l'ordre des shards puis des identifiants.
+     * Le flux n'est pas fermé.
+     *
+     * @param shards DAO de chaque shard, le premier étant celui de la datasource du composant
+     * @return le nombre de lignes écrites
+     */
+    public long write(List<ExternalUserDao> shards, Format format, OutputStream out) throws IOException, SQLException {
+        Set<String> columns = new LinkedHashSet<>();
+        for (int slot = 0; slot < mapping.size(); slot++) {
+            columns.add(mapping.column(slot));
+        }
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 1 << 16);
+        RowWriter rows = format == Format.CSV ? new CsvRows(writer) : new JsonRows(writer);
+        long total = 0;
+        try {
+            for (int shard = 0; shard < shards.size(); shard++) {
+                int index = shard;
+                total += shards.get(shard).exportUsers(columns, fetchSize, user -> {
+                    try {
+                        rows.write(new StorageId(componentId, new ShardedUsers.Key(index, user.getId()).encode()).getId(),
+                                user);
+                        if (rows.count() % fetchSize == 0) {
+                            rows.flush();
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            }
+        } catch (UncheckedIOException e) {
+            // the client went away: the cursor is already closed, report the write failure
+            throw e.getCause();
+        }
+        rows.flush();
+        return total;
+    }
+
+    private abstract class RowWriter {
+        private long count;
+
+        void write(String id, ExternalUser user) throws IOException {
+            writeRow(id, user);
+            count++;
+        }
+
+        long count() {
+            return count;
+        }
+
+        abstract void writeRow(String id, ExternalUser user) throws IOException;
+
+        abstract void flush() throws IOException;
+    }
+
+    // One JSON object per line; empty columns are left out
+    private final class JsonRows extends RowWriter {
+        private final Writer writer;
+        private final JsonGenerator json;
+
+        JsonRows(Writer writer) throws IOException {
+            this.writer = writer;
+            this.json = JsonSerialization.mapper.getFactory().createGenerator(writer)
+                    .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            json.setRootValueSeparator(null);
+        }
+
+        @Override
+        void writeRow(String id, ExternalUser user) throws IOException {
+            json.writeStartObject();
+            json.writeStringField("id", id);
+            json.writeStringField("username", user.getUsername());
+            for (int slot = 0; slot < mapping.size(); slot++) {
+                String value = mapping.format(slot, user);
+                if (value != null) {
+                    json.writeStringField(mapping.attribute(slot), value);
+                }
+            }
+            json.writeEndObject();
+            json.writeRaw('\n');
+        }
+
+        @Override
+        void flush() throws IOException {
+            json.flush();
+            writer.flush();
+        }
+    }
+
+    // RFC 4180: header line, CRLF line ends, quoted fields when needed.
+    // Values a spreadsheet would read as a formula get a leading quote.
+    private final class CsvRows extends RowWriter {
+        private final Writer writer;
+
+        CsvRows(Writer writer) throws IOException {
+            this.writer = writer;
+            List<String> header = fields();
+            for (int i = 0; i < header.size(); i++) {
+                if (i > 0) {
+                    writer.write(',');
+                }
+                field(header.get(i));
+            }
+            writer.write("\r\n");
+        }
+
+        @Override
+        void writeRow(String id, ExternalUser user) throws IOException {
+            field(id);
+            writer.write(',');
+            field(user.getUsername());
+            for (int slot = 0; slot < mapping.size(); slot++) {
+                writer.write(',');
+                field(mapping.format(slot, user));
+            }
+            writer.write("\r\n");
+        }
+
+        private void field(String value) throws IOException {
+            if (value == null) {
+                return;
+            }
+            if (!value.isEmpty() && "=+-@\t\r".indexOf(value.charAt(0)) >= 0) {
+                value = "'" + value;
+            }
+            if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+                writer.write(value);
+                return;
+            }
+            writer.write('"');
+            writer.write(value.replace("\"", "\"\""));
+            writer.write('"');
+        }
+
+        @Override
+        void flush() throws IOException {
+            writer.flush();
+        }
+    }
+}
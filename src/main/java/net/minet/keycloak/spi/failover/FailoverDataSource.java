@@ -0,0 +1,314 @@
+package net.minet.keycloak.spi.failover;
+
+import org.jboss.logging.Logger;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLTransientConnectionException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Datasource over several equivalent MariaDB hosts, each with its own pool.
+ *
+ * <p>A background task probes every host and keeps a moving average of the
+ * time it takes to borrow and validate a connection. New connections are borrowed from the healthy host
+ * with the lowest latency; when borrowing fails the next one is tried, so a
+ * restarting node only costs the statements that were running on it. Only a
+ * failure to reach the host marks it down: a pool that is merely busy keeps
+ * its place. Hosts marked down are skipped while a healthy one remains, so a
+ * borrow never waits on a dead host's connect timeout; a host marked down is
+ * used again as soon as a probe succeeds. When every host is down they are
+ * still tried, in order.</p>
+ */
+public final class FailoverDataSource implements DataSource, AutoCloseable {
+    private static final Logger logger = Logger.getLogger(FailoverDataSource.class);
+
+    // Weight of the latest probe in the latency average
+    private static final double ALPHA = 0.3;
+
+    /** État d'un hôte, exposé pour les métriques et le diagnostic. */
+    public static final class Host {
+        private final String name;
+        private final DataSource pool;
+        private volatile boolean healthy = true;
+        private volatile double latencyMillis;
+        private volatile long failures;
+        private volatile String lastError;
+
+        Host(String name, DataSource pool) {
+            this.name = name;
+            this.pool = pool;
+        }
+
+        /** Hôte et port, sans identifiants. */
+        public String name() {
+            return name;
+        }
+
+        public boolean isHealthy() {
+            return healthy;
+        }
+
+        /** Latence moyenne des sondes, en millisecondes. */
+        public double latencyMillis() {
+            return latencyMillis;
+        }
+
+        /** Nombre d'échecs (sondes ou connexions) depuis le démarrage. */
+        public long failures() {
+            return failures;
+        }
+
+        public String lastError() {
+            return lastError;
+        }
+
+        private synchronized void up(double millis) {
+            latencyMillis = latencyMillis == 0 ? millis : ALPHA * millis + (1 - ALPHA) * latencyMillis;
+            if (!healthy) {
+                logger.infof("Federation host %s is back, latency %.1f ms", name, millis);
+            }
+            healthy = true;
+        }
+
+        private synchronized void down(String error) {
+            failures++;
+            lastError = error;
+            if (healthy) {
+                logger.warnf("Federation host %s marked down: %s", name, error);
+            }
+            healthy = false;
+        }
+
+        @Override
+        public String toString() {
+            return name + (healthy ? " up " : " down ") + String.format("%.1f ms", latencyMillis);
+        }
+    }
+
+    /** Construit le pool d'un hôte à partir de son URL JDBC. */
+    @FunctionalInterface
+    public interface PoolFactory {
+        DataSource create(String url) throws Exception;
+    }
+
+    // Host state read once per borrow, so that probes cannot reorder a sort in progress
+    private record Candidate(Host host, boolean healthy, double latencyMillis) {}
+
+    // Healthy hosts first, then by latency; the declaration order breaks ties
+    private static final Comparator<Candidate> PREFERENCE = Comparator
+            .comparing((Candidate c) -> !c.healthy())
+            .thenComparingDouble(Candidate::latencyMillis);
+
+    private final List<Host> hosts;
+    private final int probeTimeoutSeconds;
+    private ScheduledExecutorService prober;
+
+    /**
+     * @param urls         URL JDBC de chaque hôte, par ordre de préférence à latence égale
+     * @param pools        fabrique du pool de chaque hôte
+     * @param probeTimeout délai d'une sonde, arrondi à la seconde supérieure
+     */
+    public FailoverDataSource(List<String> urls, PoolFactory pools, Duration probeTimeout) throws Exception {
+        List<Host> list = new ArrayList<>(urls.size());
+        for (String url : urls) {
+            list.add(new Host(hostName(url), pools.create(url)));
+        }
+        this.hosts = List.copyOf(list);
+        this.probeTimeoutSeconds = (int) Math.max(1, (probeTimeout.toMillis() + 999) / 1000);
+    }
+
+    /**
+     * Découpe une URL à plusieurs hôtes ({@code jdbc:mariadb://a:3306,b:3306/db?opts})
+     * en une URL par hôte. Une URL à un seul hôte, ou portant un mode de haute
+     * disponibilité géré par le driver ({@code jdbc:mariadb:sequential://...}), est
+     * retournée telle quelle.
+     */
+    public static List<String> split(String url) {
+        String prefix = "jdbc:mariadb://";
+        if (url == null || !url.startsWith(prefix)) {
+            return url == null ? List.of() : List.of(url);
+        }
+        int end = url.indexOf('/', prefix.length());
+        String authority = end < 0 ? url.substring(prefix.length()) : url.substring(prefix.length(), end);
+        String rest = end < 0 ? "" : url.substring(end);
+        List<String> urls = new ArrayList<>();
+        for (String host : authority.split(",")) {
+            if (!host.isBlank()) {
+                urls.add(prefix + host.trim() + rest);
+            }
+        }
+        return urls.size() <= 1 ? List.of(url) : urls;
+    }
+
+    private static String hostName(String url) {
+        int start = url.indexOf("//");
+        int end = url.indexOf('/', start + 2);
+        String authority = start < 0 ? url : end < 0 ? url.substring(start + 2) : url.substring(start + 2, end);
+        return authority.substring(authority.lastIndexOf('@') + 1);
+    }
+
+    public List<Host> hosts() {
+        return hosts;
+    }
+
+    /**
+     * Sonde chaque hôte une première fois, puis toutes les {@code interval}.
+     */
+    public synchronized void start(Duration interval) {
+        if (prober != null) {
+            return;
+        }
+        probe();
+        prober = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "fdp-host-probe");
+            t.setDaemon(true);
+            return t;
+        });
+        prober.scheduleWithFixedDelay(this::probe, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Mesure sur chaque hôte l'emprunt et la validation d'une connexion.
+     * Appelée par la tâche de fond ; publique pour forcer une sonde.
+     */
+    public void probe() {
+        for (Host host : hosts) {
+            long start = System.nanoTime();
+            try (Connection c = host.pool.getConnection()) {
+                if (c.isValid(probeTimeoutSeconds)) {
+                    host.up((System.nanoTime() - start) / 1e6);
+                } else {
+                    host.down("validation failed");
+                }
+            } catch (SQLException e) {
+                if (isConnectionFailure(e)) {
+                    host.down(e.getMessage());
+                } else {
+                    logger.debugf("Probe of %s skipped: %s", host.name, e.getMessage());
+                }
+            } catch (RuntimeException e) {
+                host.down(e.getMessage());
+            }
+        }
+        logger.debugf("Federation hosts: %s", hosts);
+    }
+
+    /**
+     * Emprunte une connexion à l'hôte sain le plus rapide, puis aux autres hôtes sains en
+     * cas d'échec. Les hôtes hors service ne sont essayés que si aucun hôte n'est sain :
+     * chaque tentative pouvant attendre le {@code connectTimeout} du pool, les enchaîner
+     * dépasserait le budget de l'opération.
+     */
+    @Override
+    public Connection getConnection() throws SQLException {
+        List<Candidate> candidates = new ArrayList<>(hosts.size());
+        for (Host host : hosts) {
+            candidates.add(new Candidate(host, host.healthy, host.latencyMillis));
+        }
+        if (candidates.stream().anyMatch(Candidate::healthy)) {
+            candidates.removeIf(c -> !c.healthy());
+        }
+        candidates.sort(PREFERENCE);
+        SQLException failure = null;
+        for (Candidate candidate : candidates) {
+            Host host = candidate.host();
+            try {
+                return host.pool.getConnection();
+            } catch (SQLException e) {
+                if (isConnectionFailure(e)) {
+                    host.down(e.getMessage());
+                }
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        throw failure;
+    }
+
+    /**
+     * Vrai si l'échec vient de l'hôte injoignable, et non d'un pool saturé dont
+     * l'attente a expiré : seul le premier cas marque l'hôte hors service.
+     */
+    static boolean isConnectionFailure(SQLException e) {
+        if (e instanceof SQLNonTransientConnectionException || e instanceof SQLTransientConnectionException) {
+            return true;
+        }
+        String state = e.getSQLState();
+        return state != null && state.startsWith("08");
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        throw new SQLFeatureNotSupportedException("Credentials are set per host pool");
+    }
+
+    @Override
+    public PrintWriter getLogWriter() {
+        return null;
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) {
+        // each host pool logs on its own
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) {
+        // bounded by the connectTimeout of each host pool
+    }
+
+    @Override
+    public int getLoginTimeout() {
+        return 0;
+    }
+
+    @Override
+    public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        throw new SQLException("Not a wrapper for " + iface.getName());
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) {
+        return iface.isInstance(this);
+    }
+
+    /** Arrête les sondes et ferme le pool de chaque hôte. */
+    @Override
+    public synchronized void close() {
+        if (prober != null) {
+            prober.shutdownNow();
+            prober = null;
+        }
+        for (Host host : hosts) {
+            if (host.pool instanceof AutoCloseable closeable) {
+                try {
+                    closeable.close();
+                } catch (Exception e) {
+                    logger.warnf("Failed to close pool of %s: %s", host.name, e.getMessage());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package net.minet.keycloak.spi.groups;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Compressed set of adherent ids, in the style of Roaring bitmaps.
+ *
+ * <p>Ids are split on their high 16 bits into chunks. A chunk holding at most
+ * {@value #ARRAY_MAX} ids is a sorted {@code char[]}; a denser chunk is a
+ * 65536-bit {@code long[]}. Chunks are kept sorted so that iteration, and
+ * therefore paging, follows ascending id order. Not thread-safe.</p>
+ */
+final class IdBitmap {
+
+    static final int ARRAY_MAX = 4096;
+
+    private char[] keys = new char[0];
+    private Container[] containers = new Container[0];
+    private int size;
+
+    boolean contains(int id) {
+        int i = find((char) (id >>> 16));
+        return i >= 0 && containers[i].contains((char) id);
+    }
+
+    boolean add(int id) {
+        char key = (char) (id >>> 16);
+        int i = find(key);
+        if (i < 0) {
+            i = -i - 1;
+            if (size == keys.length) {
+                int capacity = Math.max(4, size * 2);
+                keys = Arrays.copyOf(keys, capacity);
+                containers = Arrays.copyOf(containers, capacity);
+            }
+            System.arraycopy(keys, i, keys, i + 1, size - i);
+            System.arraycopy(containers, i, containers, i + 1, size - i);
+            keys[i] = key;
+            containers[i] = new ArrayContainer();
+            size++;
+        }
+        Container c = containers[i];
+        int before = c.cardinality();
+        containers[i] = c.add((char) id);
+        return containers[i].cardinality() > before;
+    }
+
+    boolean remove(int id) {
+        int i = find((char) (id >>> 16));
+        if (i < 0) {
+            return false;
+        }
+        Container c = containers[i];
+        int before = c.cardinality();
+        Container next = c.remove((char) id);
+        if (next.cardinality() == 0) {
+            System.arraycopy(keys, i + 1, keys, i, size - i - 1);
+            System.arraycopy(containers, i + 1, containers, i, size - i - 1);
+            size--;
+            containers[size] = null;
+        } else {
+            containers[i] = next;
+        }
+        return next.cardinality() < before;
+    }
+
+    int cardinality() {
+        int total = 0;
+        for (int i = 0; i < size; i++) {
+            total += containers[i].cardinality();
+        }
+        return total;
+    }
+
+    /**
+     * Ids à partir du rang {@code first}, dans l'ordre croissant, au plus {@code max}.
+     */
+    int[] page(int first, int max) {
+        int[] out = new int[Math.max(0, Math.min(max, cardinality() - first))];
+        int skip = first;
+        int written = 0;
+        for (int i = 0; i < size && written < out.length; i++) {
+            Container c = containers[i];
+            if (skip >= c.cardinality()) {
+                skip -= c.cardinality();
+                continue;
+            }
+            written = c.fill(keys[i] << 16, skip, out, written);
+            skip = 0;
+        }
+        return out;
+    }
+
+    void forEach(IntConsumer action) {
+        for (int i = 0; i < size; i++) {
+            containers[i].forEach(keys[i] << 16, action);
+        }
+    }
+
+    /** Octets occupés par les chunks, pour le diagnostic. */
+    long sizeInBytes() {
+        long bytes = size * 10L;
+        for (int i = 0; i < size; i++) {
+            bytes += containers[i].sizeInBytes();
+        }
+        return bytes;
+    }
+
+    private int find(char key) {
+        return Arrays.binarySearch(keys, 0, size, key);
+    }
+
+    private abstract static sealed class Container permits ArrayContainer, BitmapContainer {
+        abstract boolean contains(char low);
+
+        /** Retourne le conteneur à utiliser ensuite, éventuellement converti. */
+        abstract Container add(char low);
+
+        abstract Container remove(char low);
+
+        abstract int cardinality();
+
+        /** Copie les ids à partir du rang {@code skip} dans {@code out}, jusqu'à le remplir. */
+        abstract int fill(int high, int skip, int[] out, int pos);
+
+        abstract void forEach(int high, IntConsumer action);
+
+        abstract long sizeInBytes();
+    }
+
+    private static final class ArrayContainer extends Container {
+        char[] values = new char[4];
+        int cardinality;
+
+        @Override
+        boolean contains(char low) {
+            return Arrays.binarySearch(values, 0, cardinality, low) >= 0;
+        }
+
+        @Override
+        Container add(char low) {
+            int i = Arrays.binarySearch(values, 0, cardinality, low);
+            if (i >= 0) {
+                return this;
+            }
+            if (cardinality == ARRAY_MAX) {
+                BitmapContainer bitmap = new BitmapContainer();
+                for (int j = 0; j < cardinality; j++) {
+                    bitmap.add(values[j]);
+                }
+                return bitmap.add(low);
+            }
+            i = -i - 1;
+            if (cardinality == values.length) {
+                values = Arrays.copyOf(values, Math.min(ARRAY_MAX, cardinality * 2));
+            }
+            System.arraycopy(values, i, values, i + 1, cardinality - i);
+            values[i] = low;
+            cardinality++;
+            return this;
+        }
+
+        @Override
+        Container remove(char low) {
+            int i = Arrays.binarySearch(values, 0, cardinality, low);
+            if (i >= 0) {
+                System.arraycopy(values, i + 1, values, i, cardinality - i - 1);
+                cardinality--;
+            }
+            return this;
+        }
+
+        @Override
+        int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        int fill(int high, int skip, int[] out, int pos) {
+            for (int j = skip; j < cardinality && pos < out.length; j++) {
+                out[pos++] = high | values[j];
+            }
+            return pos;
+        }
+
+        @Override
+        void forEach(int high, IntConsumer action) {
+            for (int j = 0; j < cardinality; j++) {
+                action.accept(high | values[j]);
+            }
+        }
+
+        @Override
+        long sizeInBytes() {
+            return values.length * 2L;
+        }
+    }
+
+    private static final class BitmapContainer extends Container {
+        final long[] words = new long[1024];
+        int cardinality;
+
+        @Override
+        boolean contains(char low) {
+            return (words[low >>> 6] & (1L << low)) != 0;
+        }
+
+        @Override
+        Container add(char low) {
+            long word = words[low >>> 6];
+            long next = word | (1L << low);
+            if (next != word) {
+                words[low >>> 6] = next;
+                cardinality++;
+            }
+            return this;
+        }
+
+        @Override
+        Container remove(char low) {
+            long word = words[low >>> 6];
+            long next = word & ~(1L << low);
+            if (next == word) {
+                return this;
+            }
+            words[low >>> 6] = next;
+            cardinality--;
+            if (cardinality > ARRAY_MAX) {
+                return this;
+            }
+            ArrayContainer array = new ArrayContainer();
+            array.values = new char[cardinality];
+            forEach(0, v -> array.values[array.cardinality++] = (char) v);
+            return array;
+        }
+
+        @Override
+        int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        int fill(int high, int skip, int[] out, int pos) {
+            for (int w = 0; w < words.length && pos < out.length; w++) {
+                long word = words[w];
+                int bits = Long.bitCount(word);
+                if (skip >= bits) {
+                    skip -= bits;
+                    continue;
+                }
+                while (word != 0 && pos < out.length) {
+                    int bit = Long.numberOfTrailingZeros(word);
+                    word &= word - 1;
+                    if (skip > 0) {
+                        skip--;
+                    } else {
+                        out[pos++] = high | (w << 6) | bit;
+                    }
+                }
+            }
+            return pos;
+        }
+
+        @Override
+        void forEach(int high, IntConsumer action) {
+            for (int w = 0; w < words.length; w++) {
+                long word = words[w];
+                while (word != 0) {
+                    action.accept(high | (w << 6) | Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+        }
+
+        @Override
+        long sizeInBytes() {
+            return words.length * 8L;
+        }
+    }
+}
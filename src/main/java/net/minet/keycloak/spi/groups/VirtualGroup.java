@@ -0,0 +1,50 @@
+package net.minet.keycloak.spi.groups;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Group whose members are the adherents with {@code column = value}.
+ *
+ * @param name   nom du groupe Keycloak de premier niveau correspondant
+ * @param column colonne de {@code adherents}, parmi {@link VirtualGroups#COLUMNS}
+ * @param value  valeur attendue dans la colonne
+ */
+public record VirtualGroup(String name, String column, int value) {
+
+    public VirtualGroup {
+        if (!VirtualGroups.COLUMNS.contains(column)) {
+            throw new IllegalArgumentException("Column not usable for a virtual group: " + column);
+        }
+    }
+
+    /** Indique si une valeur de la colonne place l'adhérent dans le groupe. */
+    boolean matches(Integer columnValue) {
+        return columnValue != null && columnValue == value;
+    }
+
+    /**
+     * Lit des définitions de la forme {@code nom:colonne=valeur}, séparées par des virgules,
+     * par exemple {@code naina:is_naina=1,edminet:edminet=1}.
+     *
+     * @throws IllegalArgumentException si une définition est mal formée
+     */
+    public static List<VirtualGroup> parse(String definitions) {
+        List<VirtualGroup> groups = new ArrayList<>();
+        if (definitions == null || definitions.isBlank()) {
+            return groups;
+        }
+        for (String definition : definitions.split(",")) {
+            String d = definition.trim();
+            int colon = d.indexOf(':');
+            int equals = d.indexOf('=', colon + 1);
+            if (colon <= 0 || equals < 0) {
+                throw new IllegalArgumentException("Expected name:column=value, got " + d);
+            }
+            groups.add(new VirtualGroup(d.substring(0, colon).trim(),
+                    d.substring(colon + 1, equals).trim(),
+                    Integer.parseInt(d.substring(equals + 1).trim())));
+        }
+        return groups;
+    }
+}
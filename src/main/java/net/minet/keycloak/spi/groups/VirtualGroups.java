@@ -0,0 +1,301 @@
+package net.minet.keycloak.spi.groups;
+
+import net.minet.keycloak.spi.dao.AdherentColumn;
+import org.jboss.logging.Logger;
+
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * In-memory membership of the {@link VirtualGroup}s, one {@link IdBitmap} per
+ * group.
+ *
+ * <p>The bitmaps are built from one scan of the flag columns, refreshed
+ * incrementally from {@code updated_at} and rebuilt periodically to drop
+ * adherents deleted by other tools. Writes made through the provider are
+ * applied immediately. Listing, counting and membership checks never touch
+ * the database.</p>
+ */
+public final class VirtualGroups implements AutoCloseable {
+    private static final Logger logger = Logger.getLogger(VirtualGroups.class);
+
+    /** Colonnes de {@code adherents} utilisables dans une définition, dans l'ordre des lignes chargées. */
+    public static final List<String> COLUMNS = AdherentColumn.flags();
+
+    /** Reçoit les drapeaux d'un adhérent, alignés sur {@link #COLUMNS}. */
+    @FunctionalInterface
+    public interface RowSink {
+        void accept(int id, Integer[] flags, long updatedAtMillis);
+    }
+
+    /**
+     * Source des lignes : toutes si {@code sinceMillis} vaut {@link Long#MIN_VALUE},
+     * sinon celles modifiées depuis.
+     */
+    @FunctionalInterface
+    public interface Source {
+        void load(long sinceMillis, RowSink sink) throws SQLException;
+    }
+
+    private final Map<String, VirtualGroup> definitions = new LinkedHashMap<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private Map<String, IdBitmap> members;
+    // writes made while a rebuild is loading, replayed into the new bitmaps
+    private List<Consumer<Map<String, IdBitmap>>> pending;
+    private long watermark = Long.MIN_VALUE;
+    private ScheduledExecutorService scheduler;
+
+    public VirtualGroups(List<VirtualGroup> groups) {
+        for (VirtualGroup g : groups) {
+            definitions.put(g.name(), g);
+        }
+        this.members = empty();
+    }
+
+    private Map<String, IdBitmap> empty() {
+        Map<String, IdBitmap> map = new LinkedHashMap<>();
+        definitions.keySet().forEach(name -> map.put(name, new IdBitmap()));
+        return map;
+    }
+
+    /** Indique si {@code name} désigne un groupe virtuel. */
+    public boolean defines(String name) {
+        return definitions.containsKey(name);
+    }
+
+    public Set<String> names() {
+        return definitions.keySet();
+    }
+
+    public boolean isMember(String group, int id) {
+        lock.readLock().lock();
+        try {
+            IdBitmap bitmap = members.get(group);
+            return bitmap != null && bitmap.contains(id);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Groupes virtuels dont l'adhérent est membre. */
+    public List<String> groupsOf(int id) {
+        List<String> groups = new ArrayList<>(2);
+        lock.readLock().lock();
+        try {
+            members.forEach((name, bitmap) -> {
+                if (bitmap.contains(id)) {
+                    groups.add(name);
+                }
+            });
+        } finally {
+            lock.readLock().unlock();
+        }
+        return groups;
+    }
+
+    public int count(String group) {
+        lock.readLock().lock();
+        try {
+            IdBitmap bitmap = members.get(group);
+            return bitmap == null ? 0 : bitmap.cardinality();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Nombre d'adhérents membres d'au moins un des groupes. */
+    public int countAny(Set<String> groups) {
+        if (groups.size() == 1) {
+            return count(groups.iterator().next());
+        }
+        IdBitmap union = new IdBitmap();
+        lock.readLock().lock();
+        try {
+            for (String group : groups) {
+                IdBitmap bitmap = members.get(group);
+                if (bitmap != null) {
+                    bitmap.forEach(union::add);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return union.cardinality();
+    }
+
+    /** Identifiants des membres par ordre croissant, à partir du rang {@code first}. */
+    public int[] page(String group, int first, int max) {
+        lock.readLock().lock();
+        try {
+            IdBitmap bitmap = members.get(group);
+            return bitmap == null ? new int[0] : bitmap.page(Math.max(0, first), max < 0 ? Integer.MAX_VALUE : max);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Applique la nouvelle valeur d'une colonne écrite par le provider. */
+    public void update(int id, String column, Integer value) {
+        write(target -> {
+            for (VirtualGroup g : definitions.values()) {
+                if (g.column().equals(column)) {
+                    set(target.get(g.name()), id, g.matches(value));
+                }
+            }
+        });
+    }
+
+    /** Retire un adhérent supprimé de tous les groupes. */
+    public void remove(int id) {
+        write(target -> target.values().forEach(b -> b.remove(id)));
+    }
+
+    private void write(Consumer<Map<String, IdBitmap>> change) {
+        lock.writeLock().lock();
+        try {
+            change.accept(members);
+            if (pending != null) {
+                pending.add(change);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static void set(IdBitmap bitmap, int id, boolean member) {
+        if (member) {
+            bitmap.add(id);
+        } else {
+            bitmap.remove(id);
+        }
+    }
+
+    private void apply(Map<String, IdBitmap> target, int id, Integer[] flags) {
+        for (VirtualGroup g : definitions.values()) {
+            set(target.get(g.name()), id, g.matches(flags[COLUMNS.indexOf(g.column())]));
+        }
+    }
+
+    /**
+     * Applique les lignes modifiées depuis le dernier chargement, ou reconstruit
+     * tout si rien n'a encore été chargé.
+     */
+    public synchronized void refresh(Source source) throws SQLException {
+        long since;
+        lock.readLock().lock();
+        try {
+            since = watermark;
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (since == Long.MIN_VALUE) {
+            rebuild(source);
+            return;
+        }
+        record Row(int id, Integer[] flags) {}
+        List<Row> changed = new ArrayList<>();
+        long[] latest = {since};
+        source.load(since, (id, flags, updatedAt) -> {
+            changed.add(new Row(id, flags));
+            latest[0] = Math.max(latest[0], updatedAt);
+        });
+        lock.writeLock().lock();
+        try {
+            for (Row row : changed) {
+                apply(members, row.id(), row.flags());
+            }
+            watermark = Math.max(watermark, latest[0]);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** Reconstruit toutes les appartenances depuis un parcours complet de la table. */
+    public synchronized void rebuild(Source source) throws SQLException {
+        Map<String, IdBitmap> next = empty();
+        long[] latest = {0};
+        int[] rows = {0};
+        lock.writeLock().lock();
+        try {
+            pending = new ArrayList<>();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        try {
+            source.load(Long.MIN_VALUE, (id, flags, updatedAt) -> {
+                apply(next, id, flags);
+                latest[0] = Math.max(latest[0], updatedAt);
+                rows[0]++;
+            });
+            lock.writeLock().lock();
+            try {
+                pending.forEach(change -> change.accept(next));
+                members = next;
+                watermark = latest[0];
+            } finally {
+                lock.writeLock().unlock();
+            }
+        } finally {
+            lock.writeLock().lock();
+            try {
+                pending = null;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        if (logger.isDebugEnabled()) {
+            long bytes = next.values().stream().mapToLong(IdBitmap::sizeInBytes).sum();
+            logger.debugf("Virtual groups rebuilt from %d adherent(s), %d byte(s) of bitmaps", rows[0], bytes);
+        }
+    }
+
+    /**
+     * Démarre le rafraîchissement incrémental et la reconstruction périodique.
+     */
+    public synchronized void start(Source source, Duration refreshEvery, Duration rebuildEvery) {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "fdp-virtual-groups");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(() -> run(() -> refresh(source), "refresh"),
+                0, refreshEvery.toMillis(), TimeUnit.MILLISECONDS);
+        scheduler.scheduleWithFixedDelay(() -> run(() -> rebuild(source), "rebuild"),
+                rebuildEvery.toMillis(), rebuildEvery.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @FunctionalInterface
+    private interface Task {
+        void run() throws SQLException;
+    }
+
+    private static void run(Task task, String name) {
+        try {
+            task.run();
+        } catch (SQLException | RuntimeException e) {
+            logger.warnf("Virtual groups %s failed: %s", name, e.getMessage());
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package net.minet.keycloak.spi.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Écriture d'une colonne de {@code adherents} depuis l'adaptateur.
+ */
+@Name("net.minet.fdp.AttributeWrite")
+@Label("Attribute Write")
+@Category({"Keycloak", "FDP Federation"})
+@Description("Write-back of one attribute column by updateColumn")
+@Enabled(false)
+@StackTrace(false)
+public class AttributeWriteEvent extends Event {
+    @Label("Column")
+    public String column;
+
+    @Label("Rows")
+    public int rows;
+
+    @Label("Success")
+    public boolean success;
+}
@@ -0,0 +1,33 @@
+package net.minet.keycloak.spi.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Vérification d'un mot de passe par {@code isValid}.
+ */
+@Name("net.minet.fdp.CredentialValidation")
+@Label("Credential Validation")
+@Category({"Keycloak", "FDP Federation"})
+@Description("Password check against the adherents table")
+@Enabled(false)
+@StackTrace(false)
+public class CredentialValidationEvent extends Event {
+    @Label("Outcome")
+    public String outcome;
+
+    @Label("Hash Computations")
+    public int hashes;
+
+    @Label("Legacy Plaintext")
+    @Description("The stored password was not an MD4 hash and had to be hashed too")
+    public boolean legacyPlaintext;
+
+    @Label("Cache Outcome")
+    public String cacheOutcome;
+}
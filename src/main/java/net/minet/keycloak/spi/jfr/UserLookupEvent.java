@@ -0,0 +1,33 @@
+package net.minet.keycloak.spi.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Recherche d'un adhérent par identifiant, login ou email.
+ */
+@Name("net.minet.fdp.UserLookup")
+@Label("User Lookup")
+@Category({"Keycloak", "FDP Federation"})
+@Description("Lookup of an adherent by id, login or email")
+@Enabled(false)
+@StackTrace(false)
+public class UserLookupEvent extends Event {
+    @Label("Operation")
+    public String operation;
+
+    @Label("Found")
+    public boolean found;
+
+    @Label("Rows")
+    public int rows;
+
+    @Label("Cache Outcome")
+    @Description("How the lookup was answered: database, or a cache layer")
+    public String cacheOutcome;
+}
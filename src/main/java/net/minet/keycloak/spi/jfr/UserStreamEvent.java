@@ -0,0 +1,35 @@
+package net.minet.keycloak.spi.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Listing, recherche ou comptage d'adhérents pour l'administration.
+ */
+@Name("net.minet.fdp.UserStream")
+@Label("User Stream")
+@Category({"Keycloak", "FDP Federation"})
+@Description("Paged listing, search or count of adherents")
+@Enabled(false)
+@StackTrace(false)
+public class UserStreamEvent extends Event {
+    @Label("Operation")
+    public String operation;
+
+    @Label("First")
+    public int first;
+
+    @Label("Max")
+    public int max;
+
+    @Label("Rows")
+    public int rows;
+
+    @Label("Cache Outcome")
+    public String cacheOutcome;
+}
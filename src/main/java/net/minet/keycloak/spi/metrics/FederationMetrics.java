@@ -0,0 +1,218 @@
+package net.minet.keycloak.spi.metrics;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import net.minet.keycloak.hash.HashingExecutor;
+import net.minet.keycloak.spi.admission.AdmissionControl;
+import net.minet.keycloak.spi.dao.StatementRegistry;
+import net.minet.keycloak.spi.failover.FailoverDataSource;
+import net.minet.keycloak.spi.sweep.OrphanSweep;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Micrometer meters of the federation provider.
+ *
+ * <p>The factory registers them in {@link Metrics#globalRegistry}, which
+ * Keycloak's Quarkus runtime exposes on its metrics endpoint when
+ * {@code --metrics-enabled=true}. Meters are created once so the hot path
+ * only records values.</p>
+ */
+public final class FederationMetrics {
+
+    /** DAO operations timed under {@code fdp.dao.operation}. */
+    public enum Operation {
+        FIND_BY_ID("findById"),
+        FIND_BY_USERNAME("findByUsername"),
+        FIND_BY_EMAIL("findByEmail"),
+        FIND_DETAILS("findDetails"),
+        LIST("list"),
+        SEARCH("search"),
+        COUNT("count"),
+        UPDATE("update"),
+        PASSWORD("password"),
+        INSERT("insert"),
+        DELETE("delete");
+
+        private final String tag;
+
+        Operation(String tag) {
+            this.tag = tag;
+        }
+
+        public String tag() {
+            return tag;
+        }
+    }
+
+    /** Outcomes counted under {@code fdp.credential.validation}. */
+    public enum Outcome {
+        VALID, INVALID, UNKNOWN_USER, ERROR, TIMEOUT, REJECTED;
+
+        String tag() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    /** Instance sans registre, utilisée quand le provider est construit hors de la factory. */
+    public static final FederationMetrics NOOP = new FederationMetrics(new CompositeMeterRegistry());
+
+    private final MeterRegistry registry;
+    private final Map<Operation, Timer> operations = new EnumMap<>(Operation.class);
+    private final Map<Outcome, Counter> outcomes = new EnumMap<>(Outcome.class);
+    private final Map<String, Counter> columnWrites = new HashMap<>();
+    private final Timer hashing;
+    private final Timer connectionAcquire;
+
+    public FederationMetrics(MeterRegistry registry) {
+        this.registry = registry;
+        for (Operation op : Operation.values()) {
+            operations.put(op, Timer.builder("fdp.dao.operation")
+                    .description("Latency of federation database operations")
+                    .tag("operation", op.tag())
+                    .publishPercentileHistogram()
+                    .register(registry));
+        }
+        for (Outcome outcome : Outcome.values()) {
+            outcomes.put(outcome, Counter.builder("fdp.credential.validation")
+                    .description("Password validations by outcome")
+                    .tag("outcome", outcome.tag())
+                    .register(registry));
+        }
+        for (String column : StatementRegistry.UPDATABLE_COLUMNS) {
+            columnWrites.put(column, Counter.builder("fdp.column.writes")
+                    .description("Attribute write-backs to the adherents table")
+                    .tag("column", column)
+                    .register(registry));
+        }
+        this.hashing = Timer.builder("fdp.password.hashing")
+                .description("Time spent computing MD4 password hashes")
+                .publishPercentileHistogram()
+                .register(registry);
+        this.connectionAcquire = Timer.builder("fdp.connection.acquire")
+                .description("Time spent waiting for a pooled connection")
+                .publishPercentileHistogram()
+                .register(registry);
+    }
+
+    /** Métriques enregistrées dans le registre global exposé par Keycloak. */
+    public static FederationMetrics global() {
+        return new FederationMetrics(Metrics.globalRegistry);
+    }
+
+    /** Expose les compteurs du registre de requêtes préparées. */
+    public void bindStatements(StatementRegistry statements) {
+        FunctionCounter.builder("fdp.statements.prepared", statements, StatementRegistry::getHits)
+                .description("Prepared statement reuse on pooled connections")
+                .tag("result", "hit")
+                .register(registry);
+        FunctionCounter.builder("fdp.statements.prepared", statements, StatementRegistry::getMisses)
+                .description("Prepared statement reuse on pooled connections")
+                .tag("result", "miss")
+                .register(registry);
+    }
+
+    /** Expose les décisions du contrôle d'admission. */
+    public void bindAdmission(AdmissionControl admission) {
+        for (AdmissionControl.Decision decision : AdmissionControl.Decision.values()) {
+            FunctionCounter.builder("fdp.admission.decisions", admission, a -> a.count(decision))
+                    .description("Password validation attempts by admission decision")
+                    .tag("decision", decision.tag())
+                    .register(registry);
+        }
+    }
+
+    /** Expose l'occupation du pool de hachage. */
+    public void bindHashing(HashingExecutor hashing) {
+        Gauge.builder("fdp.hashing.queued", hashing, HashingExecutor::queued)
+                .description("Password hashes waiting for a hashing thread")
+                .register(registry);
+        Gauge.builder("fdp.hashing.active", hashing, HashingExecutor::active)
+                .description("Password hashes being computed")
+                .register(registry);
+        FunctionCounter.builder("fdp.hashing.tasks", hashing, HashingExecutor::completed)
+                .description("Password hashes by result on the hashing pool")
+                .tag("result", "completed")
+                .register(registry);
+        FunctionCounter.builder("fdp.hashing.tasks", hashing, HashingExecutor::rejected)
+                .description("Password hashes by result on the hashing pool")
+                .tag("result", "rejected")
+                .register(registry);
+    }
+
+    /** Expose l'état de chaque hôte de la datasource à bascule. */
+    public void bindHosts(FailoverDataSource failover) {
+        for (FailoverDataSource.Host host : failover.hosts()) {
+            Gauge.builder("fdp.host.healthy", host, h -> h.isHealthy() ? 1 : 0)
+                    .description("Whether the federation host answers its health probe")
+                    .tag("host", host.name())
+                    .register(registry);
+            Gauge.builder("fdp.host.latency", host, FailoverDataSource.Host::latencyMillis)
+                    .description("Moving average of the time to borrow and validate a connection, in milliseconds")
+                    .tag("host", host.name())
+                    .register(registry);
+            FunctionCounter.builder("fdp.host.failures", host, FailoverDataSource.Host::failures)
+                    .description("Failed probes and connection attempts per federation host")
+                    .tag("host", host.name())
+                    .register(registry);
+        }
+    }
+
+    /** Expose l'avancement et le bilan du nettoyage du stockage fédéré. */
+    public void bindSweep(OrphanSweep sweep) {
+        FunctionCounter.builder("fdp.sweep.users", sweep, OrphanSweep::getChecked)
+                .description("Federated users checked against adherents, orphans found and removed")
+                .tag("result", "checked")
+                .register(registry);
+        FunctionCounter.builder("fdp.sweep.users", sweep, OrphanSweep::getOrphans)
+                .description("Federated users checked against adherents, orphans found and removed")
+                .tag("result", "orphan")
+                .register(registry);
+        FunctionCounter.builder("fdp.sweep.users", sweep, OrphanSweep::getRemoved)
+                .description("Federated users checked against adherents, orphans found and removed")
+                .tag("result", "removed")
+                .register(registry);
+        FunctionCounter.builder("fdp.sweep.failures", sweep, OrphanSweep::getFailures)
+                .description("Orphan sweeps aborted by an error")
+                .register(registry);
+        Gauge.builder("fdp.sweep.progress", sweep, OrphanSweep::getProgress)
+                .description("Share of the running sweep already checked, 0 when idle")
+                .register(registry);
+    }
+
+    public <T> T time(Operation op, Supplier<T> call) {
+        return operations.get(op).record(call);
+    }
+
+    public Timer connectionAcquire() {
+        return connectionAcquire;
+    }
+
+    public <T> T timeHashing(Supplier<T> call) {
+        return hashing.record(call);
+    }
+
+    public void credentialOutcome(Outcome outcome) {
+        outcomes.get(outcome).increment();
+    }
+
+    public void columnWrite(String column) {
+        Counter c = columnWrites.get(column);
+        if (c != null) {
+            c.increment();
+        }
+    }
+
+    public MeterRegistry registry() {
+        return registry;
+    }
+}
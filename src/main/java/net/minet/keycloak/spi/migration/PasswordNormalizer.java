@@ -0,0 +1,127 @@
+package net.minet.keycloak.spi.migration;
+
+import net.minet.keycloak.hash.Md4Util;
+import net.minet.keycloak.spi.dao.ExternalUserDao;
+import net.minet.keycloak.spi.dao.PasswordRehash;
+import org.jboss.logging.Logger;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * One-off job replacing every legacy plaintext password of {@code adherents}
+ * by its MD4 hash.
+ *
+ * <p>The table is streamed once; plaintext rows are grouped into batches that
+ * worker threads hash and write concurrently. At most two batches per thread
+ * are held in memory, so the reader waits when writers fall behind. Updates use
+ * the same guarded statement as {@link PasswordRehashQueue}.</p>
+ */
+public final class PasswordNormalizer {
+    private static final Logger logger = Logger.getLogger(PasswordNormalizer.class);
+
+    /**
+     * Bilan d'une exécution.
+     *
+     * @param scanned lignes lues
+     * @param legacy  mots de passe en clair trouvés
+     * @param written lignes réécrites
+     */
+    public record Result(long scanned, long legacy, long written) {}
+
+    private final ExternalUserDao userDao;
+    private final int threads;
+    private final int batchSize;
+
+    public PasswordNormalizer(ExternalUserDao userDao, int threads, int batchSize) {
+        this.userDao = userDao;
+        this.threads = Math.max(1, threads);
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * Parcourt la table et réécrit les mots de passe en clair. Bloque jusqu'à la
+     * fin de toutes les écritures.
+     */
+    public Result run() throws SQLException, InterruptedException {
+        AtomicInteger counter = new AtomicInteger();
+        ExecutorService workers = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "fdp-password-normalizer-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        Batcher batcher = new Batcher(workers);
+        try {
+            userDao.loadPasswords(batcher);
+            batcher.submit();
+        } finally {
+            workers.shutdown();
+            workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+        Result result = new Result(batcher.scanned, batcher.legacy, batcher.written.sum());
+        logger.infof("Password normalization done: %d row(s) scanned, %d plaintext, %d rewritten",
+                result.scanned(), result.legacy(), result.written());
+        return result;
+    }
+
+    /**
+     * Groups plaintext rows read by the streaming query and hands full batches to the workers.
+     */
+    private final class Batcher implements ObjIntConsumer<String> {
+        final ExecutorService workers;
+        final Semaphore inFlight = new Semaphore(threads * 2);
+        final LongAdder written = new LongAdder();
+        List<String> passwords = new ArrayList<>(batchSize);
+        List<Integer> ids = new ArrayList<>(batchSize);
+        long scanned;
+        long legacy;
+
+        Batcher(ExecutorService workers) {
+            this.workers = workers;
+        }
+
+        @Override
+        public void accept(String password, int id) {
+            scanned++;
+            if (password == null || Md4Util.isMd4Hex(password)) {
+                return;
+            }
+            legacy++;
+            passwords.add(password);
+            ids.add(id);
+            if (ids.size() >= batchSize) {
+                submit();
+            }
+        }
+
+        void submit() {
+            if (ids.isEmpty()) {
+                return;
+            }
+            List<String> plain = passwords;
+            List<Integer> rows = ids;
+            passwords = new ArrayList<>(batchSize);
+            ids = new ArrayList<>(batchSize);
+            inFlight.acquireUninterruptibly();
+            workers.execute(() -> {
+                try {
+                    List<PasswordRehash> batch = new ArrayList<>(rows.size());
+                    for (int i = 0; i < rows.size(); i++) {
+                        batch.add(new PasswordRehash(rows.get(i), plain.get(i), Md4Util.md4Hex(plain.get(i))));
+                    }
+                    written.add(userDao.rehashPasswords(batch));
+                } finally {
+                    inFlight.release();
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package net.minet.keycloak.spi.migration;
+
+import net.minet.keycloak.spi.dao.ExternalUserDao;
+import net.minet.keycloak.spi.dao.PasswordRehash;
+import org.jboss.logging.Logger;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Writes back the MD4 hash of legacy plaintext passwords after a successful
+ * login.
+ *
+ * <p>The login thread only offers the replacement to a bounded queue; a
+ * background thread groups pending replacements into batched updates. When the
+ * queue is full the replacement is dropped and retried at the user's next
+ * login. Each update only applies if the row still holds the plaintext that
+ * was checked, so a password changed in the meantime is never overwritten.</p>
+ */
+public final class PasswordRehashQueue implements AutoCloseable {
+    private static final Logger logger = Logger.getLogger(PasswordRehashQueue.class);
+
+    private final ExternalUserDao userDao;
+    private final BlockingQueue<PasswordRehash> queue;
+    private final int batchSize;
+    private final long lingerNanos;
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder written = new LongAdder();
+    private final Thread worker;
+    private volatile boolean running = true;
+
+    /**
+     * @param capacity  remplacements en attente au-delà desquels les suivants sont abandonnés
+     * @param batchSize taille maximale d'un lot d'écriture
+     * @param linger    attente maximale pour compléter un lot
+     */
+    public PasswordRehashQueue(ExternalUserDao userDao, int capacity, int batchSize, Duration linger) {
+        this.userDao = userDao;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.batchSize = batchSize;
+        this.lingerNanos = linger.toNanos();
+        this.worker = new Thread(this::drain, "fdp-password-rehash");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Propose un remplacement sans bloquer.
+     *
+     * @return {@code false} si la file est pleine
+     */
+    public boolean offer(PasswordRehash rehash) {
+        if (running && queue.offer(rehash)) {
+            return true;
+        }
+        dropped.increment();
+        return false;
+    }
+
+    private void drain() {
+        List<PasswordRehash> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                PasswordRehash first = queue.poll(lingerNanos, TimeUnit.NANOSECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + lingerNanos;
+                while (batch.size() < batchSize) {
+                    if (queue.drainTo(batch, batchSize - batch.size()) > 0) {
+                        continue;
+                    }
+                    long remaining = deadline - System.nanoTime();
+                    PasswordRehash next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : null;
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                running = false;
+            }
+            flush(batch);
+        }
+    }
+
+    private void flush(List<PasswordRehash> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            int rows = userDao.rehashPasswords(batch);
+            written.add(rows);
+            logger.debugf("Rehashed %d of %d legacy password(s)", rows, batch.size());
+        } catch (RuntimeException e) {
+            logger.warnf("Failed to rehash %d legacy password(s): %s", batch.size(), e.getMessage());
+        }
+        batch.clear();
+    }
+
+    /** Remplacements en attente d'écriture. */
+    public int pending() {
+        return queue.size();
+    }
+
+    /** Remplacements abandonnés faute de place. */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /** Lignes effectivement réécrites. */
+    public long getWritten() {
+        return written.sum();
+    }
+
+    /** Écrit les remplacements en attente puis arrête le thread d'écriture. */
+    @Override
+    public void close() {
+        running = false;
+        try {
+            worker.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
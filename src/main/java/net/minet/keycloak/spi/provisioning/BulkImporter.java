@@ -0,0 +1,88 @@
+package net.minet.keycloak.spi.provisioning;
+
+import net.minet.keycloak.hash.Md4Util;
+import net.minet.keycloak.spi.dao.ExternalUserDao;
+import net.minet.keycloak.spi.dao.ImportOutcome;
+import net.minet.keycloak.spi.dao.NewAdherent;
+import org.jboss.logging.Logger;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Writes a stream of complete user records to {@code adherents}.
+ *
+ * <p>The stream is consumed in batches of bounded size; each batch is one
+ * multi-row INSERT in its own transaction, so memory and lock time do not grow
+ * with the size of the import and a failed batch never undoes the previous
+ * ones. The outcome of every row is reported as soon as its batch is done.
+ * Passwords that are not already MD4 hashes are hashed before insertion.</p>
+ */
+public final class BulkImporter {
+    private static final Logger logger = Logger.getLogger(BulkImporter.class);
+
+    /**
+     * Bilan d'un import.
+     *
+     * @param created    lignes insérées
+     * @param duplicates lignes dont le login existait déjà
+     * @param failed     lignes rejetées
+     */
+    public record Summary(long created, long duplicates, long failed) {}
+
+    private final ExternalUserDao userDao;
+    private final int batchSize;
+
+    public BulkImporter(ExternalUserDao userDao, int batchSize) {
+        this.userDao = userDao;
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * Importe le flux et transmet l'issue de chaque ligne à {@code outcomes}, dans l'ordre du flux.
+     * Le flux est fermé à la fin de l'import.
+     */
+    public Summary run(Stream<NewAdherent> rows, Consumer<ImportOutcome> outcomes) {
+        long[] counts = new long[ImportOutcome.Status.values().length];
+        long index = 0;
+        List<NewAdherent> batch = new ArrayList<>(batchSize);
+        try (rows) {
+            Iterator<NewAdherent> it = rows.iterator();
+            while (it.hasNext()) {
+                batch.add(normalize(it.next()));
+                if (batch.size() == batchSize) {
+                    index = flush(batch, index, counts, outcomes);
+                }
+            }
+            flush(batch, index, counts, outcomes);
+        }
+        Summary summary = new Summary(counts[ImportOutcome.Status.CREATED.ordinal()],
+                counts[ImportOutcome.Status.DUPLICATE.ordinal()], counts[ImportOutcome.Status.FAILED.ordinal()]);
+        logger.infof("Bulk import done: %d created, %d duplicate(s), %d failed",
+                summary.created(), summary.duplicates(), summary.failed());
+        return summary;
+    }
+
+    /**
+     * Insère un lot puis le vide.
+     *
+     * @return la position de la ligne suivant le lot
+     */
+    private long flush(List<NewAdherent> batch, long index, long[] counts, Consumer<ImportOutcome> outcomes) {
+        for (ImportOutcome outcome : userDao.insertUsers(batch, index)) {
+            counts[outcome.status().ordinal()]++;
+            outcomes.accept(outcome);
+        }
+        long next = index + batch.size();
+        batch.clear();
+        return next;
+    }
+
+    private static NewAdherent normalize(NewAdherent row) {
+        String password = row.password();
+        return password == null || Md4Util.isMd4Hex(password) ? row : row.withPassword(Md4Util.md4Hex(password));
+    }
+}
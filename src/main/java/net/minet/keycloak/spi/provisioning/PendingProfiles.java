@@ -0,0 +1,107 @@
+package net.minet.keycloak.spi.provisioning;
+
+import net.minet.keycloak.spi.dao.ExternalUserDao;
+import net.minet.keycloak.spi.dao.NewAdherent;
+import net.minet.keycloak.spi.entity.ExternalUser;
+import org.jboss.logging.Logger;
+import org.keycloak.models.AbstractKeycloakTransaction;
+import org.keycloak.models.ModelException;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Users created during the current Keycloak transaction whose profile is
+ * written once, at commit.
+ *
+ * <p>Keycloak creates a user with {@code addUser} and then sets its email,
+ * names, attributes and password one call at a time; a partial import does
+ * so for every user of the file. The row is inserted right away so that it
+ * gets its id, but the following writes only update the entity held here.
+ * At commit every profile is written with one batched UPDATE; on rollback the
+ * inserted rows are deleted.</p>
+ */
+public final class PendingProfiles extends AbstractKeycloakTransaction {
+    private static final Logger logger = Logger.getLogger(PendingProfiles.class);
+
+    private final ExternalUserDao userDao;
+    private final Map<Integer, ExternalUser> users = new LinkedHashMap<>();
+    private final Map<Integer, String> passwords = new HashMap<>();
+
+    public PendingProfiles(ExternalUserDao userDao) {
+        this.userDao = userDao;
+    }
+
+    /** Retient un utilisateur qui vient d'être inséré. */
+    public void add(ExternalUser user) {
+        users.put(user.getId(), user);
+    }
+
+    /** Utilisateur créé dans cette transaction, ou {@code null}. */
+    public ExternalUser get(int id) {
+        return users.get(id);
+    }
+
+    /** Utilisateur créé dans cette transaction sous ce login, ou {@code null}. */
+    public ExternalUser findByUsername(String username) {
+        for (ExternalUser user : users.values()) {
+            if (username != null && username.equalsIgnoreCase(user.getUsername())) {
+                return user;
+            }
+        }
+        return null;
+    }
+
+    /** Utilisateur créé dans cette transaction avec cet email, ou {@code null}. */
+    public ExternalUser findByEmail(String email) {
+        for (ExternalUser user : users.values()) {
+            if (email != null && email.equalsIgnoreCase(user.getEmail())) {
+                return user;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Retient le hash du mot de passe d'un utilisateur créé dans cette transaction.
+     *
+     * @return {@code false} si l'utilisateur n'a pas été créé dans cette transaction
+     */
+    public boolean password(int id, String hash) {
+        if (!users.containsKey(id)) {
+            return false;
+        }
+        passwords.put(id, hash);
+        return true;
+    }
+
+    /** Nombre de profils en attente. */
+    public int size() {
+        return users.size();
+    }
+
+    @Override
+    protected void commitImpl() {
+        if (users.isEmpty()) {
+            return;
+        }
+        Map<Integer, NewAdherent> profiles = new LinkedHashMap<>();
+        users.forEach((id, user) -> profiles.put(id, NewAdherent.of(user, passwords.get(id))));
+        int written = userDao.updateProfiles(profiles);
+        logger.debugf("Wrote the profile of %d user(s) created in this transaction", written);
+        if (written < profiles.size()) {
+            rollbackImpl();
+            throw new ModelException("Failed to write the profile of " + profiles.size() + " new user(s)");
+        }
+    }
+
+    @Override
+    protected void rollbackImpl() {
+        for (Integer id : users.keySet()) {
+            userDao.deleteUser(id);
+        }
+        users.clear();
+        passwords.clear();
+    }
+}
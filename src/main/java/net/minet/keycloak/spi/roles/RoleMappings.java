@@ -0,0 +1,100 @@
+package net.minet.keycloak.spi.roles;
+
+import net.minet.keycloak.spi.dao.AdherentColumn;
+import net.minet.keycloak.spi.entity.ExternalUser;
+import org.jboss.logging.Logger;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Roles granted from the flag columns of {@code adherents}.
+ *
+ * <p>Each mapping grants a realm role, or a client role written
+ * {@code clientId.role}, to adherents whose column holds a given value. Rules
+ * are evaluated on the fields of the already loaded {@link ExternalUser}, and
+ * roles are resolved through the realm, which Keycloak caches, so derived
+ * roles cost no query.</p>
+ */
+public final class RoleMappings {
+    private static final Logger logger = Logger.getLogger(RoleMappings.class);
+
+    /**
+     * Une règle {@code column = value -> role}.
+     */
+    private record Rule(AdherentColumn column, int value, String role) {
+        boolean matches(ExternalUser user) {
+            return column.get(user) instanceof Number v && v.intValue() == value;
+        }
+    }
+
+    private final List<Rule> rules;
+
+    private RoleMappings(List<Rule> rules) {
+        this.rules = rules;
+    }
+
+    /**
+     * Lit des règles de la forme {@code colonne=valeur:rôle}, séparées par des virgules,
+     * par exemple {@code edminet=1:admin,mode_association=1:my-app.association}.
+     *
+     * @throws IllegalArgumentException si une règle est mal formée ou vise une colonne inconnue
+     */
+    public static RoleMappings parse(String definitions) {
+        List<Rule> rules = new ArrayList<>();
+        if (definitions != null && !definitions.isBlank()) {
+            for (String definition : definitions.split(",")) {
+                String d = definition.trim();
+                int equals = d.indexOf('=');
+                int colon = d.indexOf(':', equals + 1);
+                if (equals <= 0 || colon < 0) {
+                    throw new IllegalArgumentException("Expected column=value:role, got " + d);
+                }
+                String column = d.substring(0, equals).trim();
+                AdherentColumn flag = AdherentColumn.of(column);
+                if (flag == null || !flag.flag()) {
+                    throw new IllegalArgumentException("Column not usable for a role mapping: " + column);
+                }
+                rules.add(new Rule(flag, Integer.parseInt(d.substring(equals + 1, colon).trim()),
+                        d.substring(colon + 1).trim()));
+            }
+        }
+        return new RoleMappings(List.copyOf(rules));
+    }
+
+    public boolean isEmpty() {
+        return rules.isEmpty();
+    }
+
+    /** Noms des rôles accordés à l'adhérent. */
+    public Set<String> roleNames(ExternalUser user) {
+        Set<String> names = new HashSet<>();
+        for (Rule rule : rules) {
+            if (rule.matches(user)) {
+                names.add(rule.role());
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Rôles accordés à l'adhérent dans {@code realm}. Les rôles absents du realm sont ignorés.
+     */
+    public Set<RoleModel> roles(RealmModel realm, ExternalUser user) {
+        Set<RoleModel> roles = new HashSet<>();
+        for (String name : roleNames(user)) {
+            RoleModel role = KeycloakModelUtils.getRoleFromString(realm, name);
+            if (role != null) {
+                roles.add(role);
+            } else {
+                logger.debugf("Derived role %s does not exist in realm %s", name, realm.getName());
+            }
+        }
+        return roles;
+    }
+}
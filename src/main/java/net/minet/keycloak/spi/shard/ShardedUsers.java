@@ -0,0 +1,310 @@
+package net.minet.keycloak.spi.shard;
+
+import io.opentelemetry.context.Context;
+import net.minet.keycloak.spi.dao.ExternalUserDao;
+import net.minet.keycloak.spi.dao.FederationTimeoutException;
+import net.minet.keycloak.spi.entity.ExternalUser;
+import net.minet.keycloak.spi.metrics.FederationMetrics.Operation;
+import org.jboss.logging.Logger;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Several {@code adherents} databases with the same schema served as one.
+ *
+ * <p>Shard 0 is the federation datasource; its users keep their plain numeric
+ * external id, so existing links stay valid. Users of the other shards get
+ * {@code <shard>.<id>}. Lookups by id go to one shard; lookups by login or
+ * email query every shard at once on virtual threads and return the first
+ * hit. Listings read each shard in ordered pages of bounded size, fetched as
+ * the merge consumes them, so an unbounded listing never holds more than one
+ * page per shard. Every fan-out is bounded by the same timeout.</p>
+ */
+public final class ShardedUsers implements AutoCloseable {
+    private static final Logger logger = Logger.getLogger(ShardedUsers.class);
+
+    /** Utilisateur trouvé et shard qui le porte. */
+    public record Hit(int shard, ExternalUser user) {}
+
+    /**
+     * Identifiant externe décodé.
+     *
+     * @param shard index du shard
+     * @param id    identifiant de la ligne dans ce shard
+     */
+    public record Key(int shard, int id) {
+
+        /**
+         * Décode {@code <id>} (shard 0) ou {@code <shard>.<id>}.
+         *
+         * @throws NumberFormatException si l'identifiant n'a aucune de ces formes
+         */
+        public static Key parse(String externalId) {
+            int dot = externalId.indexOf('.');
+            if (dot < 0) {
+                return new Key(0, Integer.parseInt(externalId));
+            }
+            return new Key(Integer.parseInt(externalId.substring(0, dot)), Integer.parseInt(externalId.substring(dot + 1)));
+        }
+
+        /** Forme inverse de {@link #parse(String)}. */
+        public String encode() {
+            return shard == 0 ? String.valueOf(id) : shard + "." + id;
+        }
+    }
+
+    /** Lignes lues par défaut à chaque appel d'un shard lors d'une fusion. */
+    public static final int DEFAULT_PAGE_SIZE = 200;
+
+    private final List<ExternalUserDao> shards;
+    private final Duration timeout;
+    private final int pageSize;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final LongAdder timeouts = new LongAdder();
+
+    /**
+     * @param shards  DAO de chaque shard, le premier étant celui de la datasource de la fédération
+     * @param timeout attente maximale de chaque shard lors d'une interrogation groupée
+     */
+    public ShardedUsers(List<ExternalUserDao> shards, Duration timeout) {
+        this(shards, timeout, DEFAULT_PAGE_SIZE);
+    }
+
+    /**
+     * @param pageSize lignes lues à chaque appel d'un shard lors d'une fusion
+     */
+    public ShardedUsers(List<ExternalUserDao> shards, Duration timeout, int pageSize) {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("At least one shard is required");
+        }
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("Page size must be positive");
+        }
+        this.shards = List.copyOf(shards);
+        this.timeout = timeout;
+        this.pageSize = pageSize;
+    }
+
+    public int size() {
+        return shards.size();
+    }
+
+    /**
+     * DAO d'un shard.
+     *
+     * @throws NumberFormatException si le shard n'existe pas, comme un identifiant illisible
+     */
+    public ExternalUserDao dao(int shard) {
+        if (shard < 0 || shard >= shards.size()) {
+            throw new NumberFormatException("Unknown shard " + shard);
+        }
+        return shards.get(shard);
+    }
+
+    /** Nombre d'appels de shard abandonnés faute de réponse dans le délai. */
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    /**
+     * Interroge tous les shards en parallèle et retourne la première réponse non nulle ;
+     * les appels encore en cours sont annulés.
+     *
+     * @return {@code null} si aucun shard ne connaît l'utilisateur
+     * @throws FederationTimeoutException si aucun shard n'a répondu positivement et qu'au
+     *                                    moins un n'a pas répondu dans le délai
+     */
+    public Hit findFirst(Operation op, Function<ExternalUserDao, ExternalUser> lookup) {
+        CompletionService<Hit> completion = new ExecutorCompletionService<>(executor);
+        List<Future<Hit>> calls = new ArrayList<>(shards.size());
+        for (int i = 0; i < shards.size(); i++) {
+            int shard = i;
+            calls.add(completion.submit(Context.current().wrap(() -> {
+                ExternalUser user = lookup.apply(shards.get(shard));
+                return user == null ? null : new Hit(shard, user);
+            })));
+        }
+        long deadline = System.nanoTime() + timeout.toNanos();
+        RuntimeException failure = null;
+        try {
+            for (int answered = 0; answered < calls.size(); answered++) {
+                Future<Hit> done = completion.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if (done == null) {
+                    timeouts.add(calls.size() - answered);
+                    logger.warnf("%d shard(s) did not answer %s within %d ms", calls.size() - answered,
+                            op.tag(), timeout.toMillis());
+                    throw new FederationTimeoutException(op, "shard fan-out", timeout.toMillis(), failure);
+                }
+                try {
+                    Hit hit = done.get();
+                    if (hit != null) {
+                        return hit;
+                    }
+                } catch (ExecutionException e) {
+                    failure = e.getCause() instanceof RuntimeException re ? re : new RuntimeException(e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FederationTimeoutException(op, "shard fan-out", timeout.toMillis(), e);
+        } finally {
+            calls.forEach(f -> f.cancel(true));
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return null;
+    }
+
+    /**
+     * Fusionne les lignes ordonnées de chaque shard. La première page de chaque shard est
+     * lue en parallèle ; un shard qui ne répond pas dans le délai est omis du résultat.
+     * Les pages suivantes sont lues à la demande, au plus {@code first + max} lignes par
+     * shard, bornées par les budgets du DAO.
+     *
+     * @param page  requête d'un shard, recevant un offset et un nombre de lignes,
+     *              triée selon {@code order}
+     * @param order ordre commun des pages
+     */
+    public Stream<Hit> merge(PageQuery page, Comparator<ExternalUser> order, int first, int max) {
+        int limit = (int) Math.min((long) first + max, Integer.MAX_VALUE);
+        int size = Math.min(limit, pageSize);
+        List<Future<List<ExternalUser>>> calls = new ArrayList<>(shards.size());
+        for (ExternalUserDao dao : shards) {
+            calls.add(executor.submit(Context.current().wrap(() -> page.fetch(dao, 0, size).toList())));
+        }
+        long deadline = System.nanoTime() + timeout.toNanos();
+        PriorityQueue<Cursor> heads = new PriorityQueue<>((a, b) -> {
+            int c = order.compare(a.head.user(), b.head.user());
+            return c != 0 ? c : Integer.compare(a.head.shard(), b.head.shard());
+        });
+        for (int shard = 0; shard < calls.size(); shard++) {
+            List<ExternalUser> rows = await(calls.get(shard), shard, deadline);
+            if (rows == null) {
+                continue;
+            }
+            Cursor cursor = new Cursor(shard, shards.get(shard), page, limit, rows);
+            if (cursor.advance()) {
+                heads.add(cursor);
+            }
+        }
+        Iterator<Hit> merged = new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return !heads.isEmpty();
+            }
+
+            @Override
+            public Hit next() {
+                Cursor cursor = heads.poll();
+                Hit hit = cursor.head;
+                if (cursor.advance()) {
+                    heads.add(cursor);
+                }
+                return hit;
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(merged, Spliterator.ORDERED), false)
+                .skip(first)
+                .limit(max);
+    }
+
+    /**
+     * Somme d'un comptage effectué en parallèle sur chaque shard ; les shards
+     * qui ne répondent pas dans le délai sont comptés pour zéro.
+     */
+    public int sum(Function<ExternalUserDao, Integer> count) {
+        List<Future<Integer>> calls = new ArrayList<>(shards.size());
+        for (ExternalUserDao dao : shards) {
+            calls.add(executor.submit(Context.current().wrap(() -> count.apply(dao))));
+        }
+        long deadline = System.nanoTime() + timeout.toNanos();
+        int total = 0;
+        for (int shard = 0; shard < calls.size(); shard++) {
+            Integer n = await(calls.get(shard), shard, deadline);
+            total += n == null ? 0 : n;
+        }
+        return total;
+    }
+
+    private <T> T await(Future<T> call, int shard, long deadline) {
+        try {
+            return call.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            call.cancel(true);
+            timeouts.increment();
+            logger.warnf("Shard %d did not answer within %d ms, its rows are omitted", shard, timeout.toMillis());
+        } catch (ExecutionException e) {
+            logger.warnf("Shard %d failed: %s", shard, e.getCause().getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            call.cancel(true);
+        }
+        return null;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    /** Page ordonnée d'un shard. */
+    @FunctionalInterface
+    public interface PageQuery {
+        Stream<ExternalUser> fetch(ExternalUserDao dao, int offset, int limit);
+    }
+
+    // Rows of one shard, read one page at a time up to the limit of the merge
+    private final class Cursor {
+        final int shard;
+        final ExternalUserDao dao;
+        final PageQuery page;
+        final int limit;
+        Iterator<ExternalUser> rows;
+        int read;
+        boolean last;
+        Hit head;
+
+        Cursor(int shard, ExternalUserDao dao, PageQuery page, int limit, List<ExternalUser> firstPage) {
+            this.shard = shard;
+            this.dao = dao;
+            this.page = page;
+            this.limit = limit;
+            next(firstPage, Math.min(limit, pageSize));
+        }
+
+        private void next(List<ExternalUser> rows, int requested) {
+            this.rows = rows.iterator();
+            read += rows.size();
+            last = rows.size() < requested || read >= limit;
+        }
+
+        boolean advance() {
+            if (!rows.hasNext() && !last) {
+                int size = Math.min(limit - read, pageSize);
+                next(page.fetch(dao, read, size).toList(), size);
+            }
+            head = rows.hasNext() ? new Hit(shard, rows.next()) : null;
+            return head != null;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package net.minet.keycloak.spi.sweep;
+
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.storage.UserStorageUtil;
+import org.keycloak.storage.adapter.InMemoryUserAdapter;
+import org.keycloak.storage.federated.UserFederatedStorageProvider;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Keycloak federated storage of one realm, read and cleaned outside of any
+ * request, each call in its own transaction.
+ */
+public final class FederatedStorage implements OrphanSweep.FederatedUsers {
+    private final KeycloakSessionFactory sessions;
+    private final String realmId;
+    private final int pageSize;
+
+    /**
+     * @param pageSize identifiants lus par requête dans le stockage fédéré
+     */
+    public FederatedStorage(KeycloakSessionFactory sessions, String realmId, int pageSize) {
+        this.sessions = sessions;
+        this.realmId = realmId;
+        this.pageSize = Math.max(1, pageSize);
+    }
+
+    @Override
+    public void forEachStoredId(Consumer<String> sink) {
+        KeycloakModelUtils.runJobInTransaction(sessions, session -> {
+            RealmModel realm = session.realms().getRealm(realmId);
+            if (realm == null) {
+                return;
+            }
+            UserFederatedStorageProvider store = UserStorageUtil.userFederatedStorage(session);
+            // read in full before any removal, so that the pages do not shift
+            for (int first = 0; ; first += pageSize) {
+                List<String> page = store.getStoredUsersStream(realm, first, pageSize).toList();
+                page.forEach(sink);
+                if (page.size() < pageSize) {
+                    return;
+                }
+            }
+        });
+    }
+
+    @Override
+    public void remove(List<String> ids) {
+        KeycloakModelUtils.runJobInTransaction(sessions, session -> {
+            RealmModel realm = session.realms().getRealm(realmId);
+            if (realm == null) {
+                return;
+            }
+            UserFederatedStorageProvider store = UserStorageUtil.userFederatedStorage(session);
+            for (String id : ids) {
+                // only the id is read when removing the federated entries of a user
+                store.preRemove(realm, new InMemoryUserAdapter(session, realm, id));
+            }
+        });
+    }
+}
@@ -0,0 +1,294 @@
+package net.minet.keycloak.spi.sweep;
+
+import net.minet.keycloak.spi.dao.ExternalUserDao;
+import net.minet.keycloak.spi.shard.ShardedUsers;
+import org.jboss.logging.Logger;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.services.scheduled.ClusterAwareScheduledTaskRunner;
+import org.keycloak.storage.StorageId;
+import org.keycloak.timer.ScheduledTask;
+import org.keycloak.timer.TimerProvider;
+
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Removes the federated storage of users whose {@code adherents} row is gone.
+ *
+ * <p>Keycloak keeps attributes, role and group mappings, credentials and
+ * required actions of federated users in its own tables, keyed by the
+ * Keycloak user id. Rows deleted from {@code adherents} outside Keycloak leave
+ * those entries behind. A sweep reads the ids stored for a component, sorts
+ * them per shard and checks them against the table chunk by chunk: each chunk
+ * is one query returning the ids that still exist, in order, merged with the
+ * sorted chunk to find the missing ones. Orphans are removed in batches of
+ * bounded size, each in its own transaction, and a run stops after a maximum
+ * number of removals. A database error aborts the run without removing
+ * anything further.</p>
+ *
+ * <p>Runs are scheduled with the Keycloak timer through a cluster-aware
+ * runner, so only one node of a cluster sweeps per interval.</p>
+ */
+public final class OrphanSweep {
+    private static final Logger logger = Logger.getLogger(OrphanSweep.class);
+
+    /** Stockage fédéré de Keycloak pour un realm. */
+    public interface FederatedUsers {
+        /** Transmet l'identifiant Keycloak de chaque utilisateur ayant des données fédérées. */
+        void forEachStoredId(Consumer<String> sink);
+
+        /** Supprime les données fédérées de ces utilisateurs, dans une seule transaction. */
+        void remove(List<String> ids);
+    }
+
+    /** Nom de la tâche planifiée, identique sur tous les nœuds du cluster. */
+    public static final String TASK_NAME = "fdp-orphan-sweep";
+
+    /**
+     * Bilan du passage sur un composant.
+     *
+     * @param checked identifiants du composant comparés à la table
+     * @param orphans identifiants absents de la table
+     * @param removed orphelins dont les données fédérées ont été supprimées
+     */
+    public record Result(long checked, long orphans, long removed) {}
+
+    private final int chunkSize;
+    private final int batchSize;
+    private final long maxRemovals;
+    private final LongAdder checked = new LongAdder();
+    private final LongAdder orphans = new LongAdder();
+    private final LongAdder removed = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final AtomicLong runTotal = new AtomicLong();
+    private final AtomicLong runChecked = new AtomicLong();
+
+    /**
+     * @param chunkSize   identifiants vérifiés par requête
+     * @param batchSize   orphelins supprimés par transaction
+     * @param maxRemovals orphelins supprimés au plus par passage et par composant
+     */
+    public OrphanSweep(int chunkSize, int batchSize, long maxRemovals) {
+        this.chunkSize = Math.max(1, chunkSize);
+        this.batchSize = Math.max(1, batchSize);
+        this.maxRemovals = maxRemovals;
+    }
+
+    /**
+     * Planifie {@code run}, qui balaie chaque composant, toutes les {@code interval} avec le
+     * {@link TimerProvider} de Keycloak, le premier passage ayant lieu après un intervalle.
+     * Le {@link ClusterAwareScheduledTaskRunner} réserve chaque passage à un seul nœud du
+     * cluster ; le timer s'arrête avec Keycloak.
+     */
+    public static void schedule(KeycloakSessionFactory factory, Runnable run, Duration interval) {
+        long millis = interval.toMillis();
+        KeycloakModelUtils.runJobInTransaction(factory, session -> session.getProvider(TimerProvider.class)
+                .schedule(new ClusterAwareScheduledTaskRunner(factory, new OrphanSweepTask(run), millis),
+                        millis, TASK_NAME));
+    }
+
+    // Named class: the cluster lock is keyed by the task name, which must match on every node
+    private static final class OrphanSweepTask implements ScheduledTask {
+        private final Runnable run;
+
+        OrphanSweepTask(Runnable run) {
+            this.run = run;
+        }
+
+        @Override
+        public void run(KeycloakSession session) {
+            try {
+                run.run();
+            } catch (RuntimeException e) {
+                logger.warnf("Orphan sweep failed: %s", e.getMessage());
+            }
+        }
+
+        @Override
+        public String getTaskName() {
+            return TASK_NAME;
+        }
+    }
+
+    /**
+     * Passe sur le stockage fédéré d'un composant.
+     *
+     * @param componentId composant dont les utilisateurs sont vérifiés, les autres sont ignorés
+     * @param shards      DAO de chaque shard servi par le composant
+     * @throws SQLException si une vérification échoue ; les lots déjà supprimés le restent
+     */
+    public Result sweep(String componentId, List<ExternalUserDao> shards, FederatedUsers federated) throws SQLException {
+        IdList[] stored = new IdList[shards.size()];
+        for (int i = 0; i < stored.length; i++) {
+            stored[i] = new IdList();
+        }
+        federated.forEachStoredId(id -> {
+            StorageId storageId = new StorageId(id);
+            if (!componentId.equals(storageId.getProviderId())) {
+                return;
+            }
+            try {
+                ShardedUsers.Key key = ShardedUsers.Key.parse(storageId.getExternalId());
+                // ids of a shard no longer configured are left alone
+                if (key.shard() >= 0 && key.shard() < stored.length) {
+                    stored[key.shard()].add(key.id());
+                }
+            } catch (NumberFormatException e) {
+                logger.debugf("Ignoring federated user %s with a non numeric id", id);
+            }
+        });
+        long total = 0;
+        for (IdList ids : stored) {
+            total += ids.sortDistinct();
+        }
+        runTotal.set(total);
+        runChecked.set(0);
+        Pass pass = new Pass(componentId, federated);
+        try {
+            for (int shard = 0; shard < shards.size() && !pass.capped(); shard++) {
+                pass.shard(shard, shards.get(shard), stored[shard]);
+            }
+            pass.flush();
+        } catch (SQLException | RuntimeException e) {
+            failures.increment();
+            throw e;
+        } finally {
+            runTotal.set(0);
+            runChecked.set(0);
+        }
+        Result result = new Result(pass.checked, pass.orphans, pass.removed);
+        logger.infof("Orphan sweep of component %s: %d user(s) checked, %d orphan(s), %d removed",
+                componentId, result.checked(), result.orphans(), result.removed());
+        return result;
+    }
+
+    /** Identifiants comparés à la table depuis le démarrage. */
+    public long getChecked() {
+        return checked.sum();
+    }
+
+    /** Orphelins trouvés depuis le démarrage. */
+    public long getOrphans() {
+        return orphans.sum();
+    }
+
+    /** Orphelins supprimés depuis le démarrage. */
+    public long getRemoved() {
+        return removed.sum();
+    }
+
+    /** Passages interrompus par une erreur. */
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    /** Avancement du passage en cours entre 0 et 1, 0 hors passage. */
+    public double getProgress() {
+        long total = runTotal.get();
+        return total == 0 ? 0 : (double) runChecked.get() / total;
+    }
+
+    /** One run over one component. */
+    private final class Pass {
+        final String componentId;
+        final FederatedUsers federated;
+        final List<String> batch = new ArrayList<>();
+        long checked;
+        long orphans;
+        long removed;
+
+        Pass(String componentId, FederatedUsers federated) {
+            this.componentId = componentId;
+            this.federated = federated;
+        }
+
+        boolean capped() {
+            return removed + batch.size() >= maxRemovals;
+        }
+
+        void shard(int shard, ExternalUserDao dao, IdList stored) throws SQLException {
+            if (stored.size == 0) {
+                return;
+            }
+            if (dao.getUsersCount() <= 0) {
+                // an empty or unreachable table would make every user an orphan
+                logger.warnf("Skipping orphan sweep of shard %d of component %s: no adherent found", shard, componentId);
+                return;
+            }
+            int[] ids = stored.ids;
+            for (int from = 0; from < stored.size && !capped(); from += chunkSize) {
+                int to = Math.min(stored.size, from + chunkSize);
+                int[] next = {from};
+                dao.existingIds(ids, from, to, existing -> {
+                    // merge-join: every stored id below the next existing one is missing
+                    while (next[0] < to && ids[next[0]] < existing) {
+                        orphan(shard, ids[next[0]++]);
+                    }
+                    if (next[0] < to && ids[next[0]] == existing) {
+                        next[0]++;
+                    }
+                });
+                while (next[0] < to) {
+                    orphan(shard, ids[next[0]++]);
+                }
+                checked += to - from;
+                OrphanSweep.this.checked.add(to - from);
+                runChecked.addAndGet(to - from);
+                if (batch.size() >= batchSize) {
+                    flush();
+                }
+            }
+        }
+
+        void orphan(int shard, int id) {
+            orphans++;
+            OrphanSweep.this.orphans.increment();
+            if (!capped()) {
+                batch.add(new StorageId(componentId, new ShardedUsers.Key(shard, id).encode()).getId());
+            }
+        }
+
+        void flush() {
+            for (int from = 0; from < batch.size(); from += batchSize) {
+                List<String> ids = batch.subList(from, Math.min(batch.size(), from + batchSize));
+                federated.remove(List.copyOf(ids));
+                removed += ids.size();
+                OrphanSweep.this.removed.add(ids.size());
+            }
+            batch.clear();
+        }
+    }
+
+    /** Growable list of ints, sorted once filled. */
+    private static final class IdList {
+        int[] ids = new int[64];
+        int size;
+
+        void add(int id) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = id;
+        }
+
+        int sortDistinct() {
+            Arrays.sort(ids, 0, size);
+            int distinct = 0;
+            for (int i = 0; i < size; i++) {
+                if (distinct == 0 || ids[i] != ids[distinct - 1]) {
+                    ids[distinct++] = ids[i];
+                }
+            }
+            size = distinct;
+            return size;
+        }
+    }
+}
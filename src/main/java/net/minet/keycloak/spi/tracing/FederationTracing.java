@@ -0,0 +1,101 @@
+package net.minet.keycloak.spi.tracing;
+
+import io.opentelemetry.api.GlobalOpenTelemetry;
+import io.opentelemetry.api.OpenTelemetry;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.context.Scope;
+
+/**
+ * OpenTelemetry spans around the provider and DAO operations.
+ *
+ * <p>Spans go to the {@link GlobalOpenTelemetry} instance set up by Keycloak
+ * ({@code --tracing-enabled=true}); when Keycloak tracing is off this is a
+ * no-op tracer. Setting {@code fdp.tracing.enabled=false} (or
+ * {@code FDP_TRACING_ENABLED=false}) skips span creation entirely.</p>
+ *
+ * <p>Attributes only describe the operation ({@code fdp.operation}) and row
+ * counts ({@code fdp.rows}); logins, emails and identifiers are never
+ * recorded.</p>
+ */
+public final class FederationTracing {
+    /** Instrumentation scope name. */
+    public static final String INSTRUMENTATION = "net.minet.keycloak.fdp";
+
+    private static volatile boolean enabled = !"false".equalsIgnoreCase(
+            System.getProperty("fdp.tracing.enabled", System.getenv("FDP_TRACING_ENABLED")));
+    private static volatile Tracer tracer;
+
+    private FederationTracing() {
+    }
+
+    /** Appel tracé, pouvant lever une exception vérifiée. */
+    @FunctionalInterface
+    public interface TracedCall<T, E extends Exception> {
+        T call() throws E;
+    }
+
+    /**
+     * Remplace l'instance OpenTelemetry utilisée, par exemple par un SDK avec
+     * exporteur en mémoire dans les tests. {@code null} revient à l'instance globale.
+     */
+    public static void setOpenTelemetry(OpenTelemetry openTelemetry) {
+        tracer = openTelemetry == null ? null : openTelemetry.getTracer(INSTRUMENTATION);
+    }
+
+    public static void setEnabled(boolean value) {
+        enabled = value;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    private static Tracer tracer() {
+        Tracer t = tracer;
+        if (t == null) {
+            t = GlobalOpenTelemetry.getTracer(INSTRUMENTATION);
+            tracer = t;
+        }
+        return t;
+    }
+
+    /**
+     * Exécute {@code call} dans un span enfant du span courant.
+     *
+     * @param name      nom du span, par exemple {@code fdp.dao.query}
+     * @param operation valeur de l'attribut {@code fdp.operation}
+     */
+    public static <T, E extends Exception> T span(String name, String operation, TracedCall<T, E> call) throws E {
+        if (!enabled) {
+            return call.call();
+        }
+        Span span = tracer().spanBuilder(name)
+                .setAttribute("fdp.operation", operation)
+                .startSpan();
+        try (Scope ignored = span.makeCurrent()) {
+            return call.call();
+        } catch (Exception | Error e) {
+            span.recordException(e);
+            span.setStatus(StatusCode.ERROR);
+            throw e;
+        } finally {
+            span.end();
+        }
+    }
+
+    /** Renseigne le nombre de lignes sur le span courant. */
+    public static void rows(long count) {
+        if (enabled) {
+            Span.current().setAttribute("fdp.rows", count);
+        }
+    }
+
+    /** Marque le résultat d'une recherche sur le span courant. */
+    public static void found(boolean found) {
+        if (enabled) {
+            Span.current().setAttribute("fdp.found", found);
+        }
+    }
+}
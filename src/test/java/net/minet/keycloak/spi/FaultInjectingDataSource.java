@@ -0,0 +1,263 @@
+package net.minet.keycloak.spi;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLTimeoutException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Test-scope {@link DataSource} decorator reproducing a misbehaving MariaDB.
+ *
+ * <p>It can delay or refuse {@code getConnection}, behave like an exhausted
+ * pool, add a latency drawn from a
+ * {@link Latency} distribution to every executed statement, fail a fraction
+ * of statements with an {@link SQLException}, and make a fraction of them
+ * hang. A hung statement only returns when {@link Statement#cancel()} is
+ * called, its {@link Statement#setQueryTimeout(int) query timeout} elapses
+ * (then it fails with {@link SQLTimeoutException}), its thread is
+ * interrupted, or {@link #releaseHung()} is called.</p>
+ *
+ * <p>It is plugged into {@link FdpSQLUserStorageProviderFactory} through
+ * {@link #factory(DataSource)}.</p>
+ */
+public class FaultInjectingDataSource {
+    private static final Set<String> EXECUTE_METHODS =
+            Set.of("execute", "executeQuery", "executeUpdate", "executeLargeUpdate", "executeBatch");
+
+    /** Distribution of the latency added to one statement. */
+    @FunctionalInterface
+    public interface Latency {
+        Duration next(Random random);
+
+        static Latency none() {
+            return r -> Duration.ZERO;
+        }
+
+        static Latency fixed(Duration d) {
+            return r -> d;
+        }
+
+        static Latency uniform(Duration min, Duration max) {
+            return r -> min.plusNanos((long) (r.nextDouble() * max.minus(min).toNanos()));
+        }
+
+        /** {@code base} most of the time, {@code slow} with probability {@code p}. */
+        static Latency longTail(Duration base, Duration slow, double p) {
+            return r -> r.nextDouble() < p ? slow : base;
+        }
+    }
+
+    private final DataSource delegate;
+    private final Random random;
+
+    private volatile Duration connectDelay = Duration.ZERO;
+    private volatile Latency latency = Latency.none();
+    private volatile double failureRate;
+    private volatile double hangRate;
+    private volatile boolean down;
+    private volatile Duration exhausted;
+    private volatile CountDownLatch hangRelease = new CountDownLatch(1);
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+    private final AtomicInteger hung = new AtomicInteger();
+    private final AtomicInteger injectedFailures = new AtomicInteger();
+
+    public FaultInjectingDataSource(DataSource delegate, long seed) {
+        this.delegate = delegate;
+        this.random = new Random(seed);
+    }
+
+    public FaultInjectingDataSource connectDelay(Duration delay) {
+        this.connectDelay = delay;
+        return this;
+    }
+
+    public FaultInjectingDataSource latency(Latency latency) {
+        this.latency = latency;
+        return this;
+    }
+
+    public FaultInjectingDataSource failureRate(double rate) {
+        this.failureRate = rate;
+        return this;
+    }
+
+    public FaultInjectingDataSource hangRate(double rate) {
+        this.hangRate = rate;
+        return this;
+    }
+
+    /** Refuse les nouvelles connexions, comme un serveur arrêté. */
+    public FaultInjectingDataSource down(boolean down) {
+        this.down = down;
+        return this;
+    }
+
+    /**
+     * Simule un pool épuisé : chaque emprunt attend {@code wait} puis échoue avec
+     * une {@link SQLException} simple, comme le pool de MariaDB Connector/J.
+     * {@code null} rétablit les emprunts.
+     */
+    public FaultInjectingDataSource poolExhausted(Duration wait) {
+        this.exhausted = wait;
+        return this;
+    }
+
+    /** Libère toutes les requêtes actuellement bloquées. */
+    public void releaseHung() {
+        CountDownLatch latch = hangRelease;
+        hangRelease = new CountDownLatch(1);
+        latch.countDown();
+    }
+
+    /** Nombre de requêtes en cours d'exécution, c'est-à-dire de threads occupés. */
+    public int inFlight() {
+        return inFlight.get();
+    }
+
+    public int maxInFlight() {
+        return maxInFlight.get();
+    }
+
+    public int hung() {
+        return hung.get();
+    }
+
+    public int injectedFailures() {
+        return injectedFailures.get();
+    }
+
+    /** Factory de production dont la datasource est remplacée par {@code ds}. */
+    public static FdpSQLUserStorageProviderFactory factory(DataSource ds) {
+        return new FdpSQLUserStorageProviderFactory() {
+            @Override
+            protected DataSource createDataSource(int minSize, int maxSize) {
+                return ds;
+            }
+        };
+    }
+
+    /** Vue {@link DataSource} avec injection de fautes. */
+    public DataSource dataSource() {
+        return proxy(DataSource.class, (p, method, args) -> {
+            if ("getConnection".equals(method.getName())) {
+                if (down) {
+                    throw new SQLNonTransientConnectionException("Injected connection refused");
+                }
+                Duration wait = exhausted;
+                if (wait != null) {
+                    sleep(wait);
+                    throw new SQLException("No connection available within the specified time (option 'connectTimeout': "
+                            + wait.toMillis() + " ms)");
+                }
+                sleep(connectDelay);
+                Connection c = (Connection) invoke(delegate, method, args);
+                return proxy(Connection.class, (cp, cm, cargs) -> switch (cm.getName()) {
+                    case "equals" -> cp == cargs[0];
+                    case "hashCode" -> System.identityHashCode(cp);
+                    default -> {
+                        Object result = invoke(c, cm, cargs);
+                        yield result instanceof Statement st ? statement(st, cm.getReturnType()) : result;
+                    }
+                });
+            }
+            return invoke(delegate, method, args);
+        });
+    }
+
+    private Object statement(Statement target, Class<?> type) {
+        int[] timeoutSeconds = {0};
+        CountDownLatch cancelled = new CountDownLatch(1);
+        return proxy(type, (p, method, args) -> {
+            switch (method.getName()) {
+                case "setQueryTimeout" -> timeoutSeconds[0] = (Integer) args[0];
+                case "cancel" -> cancelled.countDown();
+                default -> {
+                }
+            }
+            if (!EXECUTE_METHODS.contains(method.getName())) {
+                return invoke(target, method, args);
+            }
+            int now = inFlight.incrementAndGet();
+            maxInFlight.accumulateAndGet(now, Math::max);
+            try {
+                double roll;
+                Duration delay;
+                synchronized (random) {
+                    roll = random.nextDouble();
+                    delay = latency.next(random);
+                }
+                if (roll < hangRate) {
+                    hang(timeoutSeconds[0], cancelled);
+                } else if (roll < hangRate + failureRate) {
+                    injectedFailures.incrementAndGet();
+                    throw new SQLTransientConnectionException("Injected failure");
+                }
+                sleep(delay);
+                return invoke(target, method, args);
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        });
+    }
+
+    private void hang(int timeoutSeconds, CountDownLatch cancelled) throws SQLException {
+        hung.incrementAndGet();
+        CountDownLatch release = hangRelease;
+        try {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+            while (release.getCount() > 0) {
+                if (cancelled.await(10, TimeUnit.MILLISECONDS)) {
+                    throw new SQLException("Query execution was interrupted", "70100");
+                }
+                if (timeoutSeconds > 0 && System.nanoTime() - deadline > 0) {
+                    throw new SQLTimeoutException("Query execution was interrupted (max_statement_time exceeded)");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while hung", e);
+        } finally {
+            hung.decrementAndGet();
+        }
+    }
+
+    private static void sleep(Duration d) throws SQLException {
+        if (d.isZero() || d.isNegative()) {
+            return;
+        }
+        try {
+            Thread.sleep(d.toMillis(), d.toNanosPart() % 1_000_000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted", e);
+        }
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(FaultInjectingDataSource.class.getClassLoader(), new Class<?>[]{type}, handler);
+    }
+}
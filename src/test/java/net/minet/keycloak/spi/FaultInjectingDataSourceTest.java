@@ -0,0 +1,397 @@
+package net.minet.keycloak.spi;
+
+import net.minet.keycloak.hash.Md4Util;
+import net.minet.keycloak.spi.dao.ExternalUserDao;
+import net.minet.keycloak.spi.dao.FederationTimeoutException;
+import net.minet.keycloak.spi.dao.OperationTimeouts;
+import net.minet.keycloak.spi.dao.SlowQueryLog;
+import net.minet.keycloak.spi.entity.ExternalUser;
+import net.minet.keycloak.spi.failover.FailoverDataSource;
+import net.minet.keycloak.spi.metrics.FederationMetrics;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.ModelException;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserCredentialModel;
+import org.keycloak.models.UserModel;
+import org.mockito.Mockito;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLTimeoutException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Behaviour of the DAO and provider against a slow or failing database,
+ * reproduced with {@link FaultInjectingDataSource}.
+ */
+public class FaultInjectingDataSourceTest {
+
+    private JdbcDataSource h2;
+
+    @BeforeEach
+    public void setup() throws Exception {
+        h2 = new JdbcDataSource();
+        h2.setURL("jdbc:h2:mem:faults;MODE=MYSQL;DB_CLOSE_DELAY=-1");
+        try (Connection c = h2.getConnection()) {
+            c.createStatement().execute("DROP TABLE IF EXISTS adherents");
+            c.createStatement().execute("""
+                CREATE TABLE adherents (
+                    id INT PRIMARY KEY,
+                    nom VARCHAR(100),
+                    prenom VARCHAR(100),
+                    mail VARCHAR(100),
+                    login VARCHAR(100),
+                    password VARCHAR(100),
+                    created_at TIMESTAMP,
+                    is_naina TINYINT,
+                    ldap_login VARCHAR(100),
+                    edminet TINYINT,
+                    mailinglist TINYINT,
+                    mode_association TINYINT
+                )
+                """);
+            PreparedStatement ps = c.prepareStatement(
+                    "INSERT INTO adherents (id, login, mail, password) VALUES (?,?,?,?)");
+            ps.setInt(1, 1);
+            ps.setString(2, "jdoe");
+            ps.setString(3, "john@example.com");
+            ps.setString(4, Md4Util.md4Hex("secret"));
+            ps.executeUpdate();
+        }
+    }
+
+    private static UserModel user(String id) {
+        UserModel user = Mockito.mock(UserModel.class);
+        Mockito.when(user.getId()).thenReturn(id);
+        return user;
+    }
+
+    @Test
+    public void testConnectDelayAddsToEveryLookup() {
+        FaultInjectingDataSource faults = new FaultInjectingDataSource(h2, 1)
+                .connectDelay(Duration.ofMillis(50));
+        ExternalUserDao dao = new ExternalUserDao(faults.dataSource());
+
+        long start = System.nanoTime();
+        assertNotNull(dao.findByUsername("jdoe"));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+    }
+
+    @Test
+    public void testSlowQueriesShowUpInTailLatencyOnly() {
+        FaultInjectingDataSource faults = new FaultInjectingDataSource(h2, 42)
+                .latency(FaultInjectingDataSource.Latency.longTail(Duration.ZERO, Duration.ofMillis(40), 0.05));
+        ExternalUserDao dao = new ExternalUserDao(faults.dataSource());
+
+        long[] samples = new long[200];
+        for (int i = 0; i < samples.length; i++) {
+            long start = System.nanoTime();
+            dao.findById(1);
+            samples[i] = System.nanoTime() - start;
+        }
+        java.util.Arrays.sort(samples);
+        assertTrue(samples[99] < TimeUnit.MILLISECONDS.toNanos(30), "p50 should stay fast");
+        assertTrue(samples[197] >= TimeUnit.MILLISECONDS.toNanos(40), "p99 should carry the slow queries");
+    }
+
+    @Test
+    public void testIntermittentFailuresAreIndistinguishableFromMissingUsers() {
+        FaultInjectingDataSource faults = new FaultInjectingDataSource(h2, 7).failureRate(1.0);
+        ExternalUserDao dao = new ExternalUserDao(faults.dataSource());
+
+        // The DAO logs and swallows the SQLException: callers see "no such user"
+        assertNull(dao.findByUsername("jdoe"));
+        assertEquals(0, dao.getUsersCount());
+        assertEquals(2, faults.injectedFailures());
+    }
+
+    @Test
+    public void testProviderFromFactoryFailsClosedOnDatabaseErrors() {
+        FaultInjectingDataSource faults = new FaultInjectingDataSource(h2, 3);
+        FdpSQLUserStorageProviderFactory factory = FaultInjectingDataSource.factory(faults.dataSource());
+        factory.init(null);
+        ComponentModel model = Mockito.mock(ComponentModel.class);
+        Mockito.when(model.getId()).thenReturn("comp");
+        FdpSQLUserStorageProvider provider = factory.create(Mockito.mock(KeycloakSession.class), model);
+        RealmModel realm = Mockito.mock(RealmModel.class);
+
+        assertTrue(provider.isValid(realm, user("f:comp:1"), UserCredentialModel.password("secret")));
+        faults.failureRate(1.0);
+        // an unreachable database is an error, never an unknown user or a wrong password
+        assertThrows(ModelException.class,
+                () -> provider.isValid(realm, user("f:comp:1"), UserCredentialModel.password("secret")));
+        assertFalse(provider.removeUser(realm, user("f:comp:1")));
+        factory.close();
+    }
+
+    @Test
+    public void testHungStatementsPinCallerThreads() throws Exception {
+        FaultInjectingDataSource faults = new FaultInjectingDataSource(h2, 5).hangRate(1.0);
+        ExternalUserDao dao = new ExternalUserDao(faults.dataSource());
+        ExecutorService workers = Executors.newFixedThreadPool(4);
+        try {
+            // Distinct keys: identical lookups would share a single statement
+            List<Future<Object>> results = new ArrayList<>();
+            results.add(workers.submit(() -> dao.findById(1)));
+            results.add(workers.submit(() -> dao.findByUsername("jdoe")));
+            results.add(workers.submit(() -> dao.findByEmail("john@example.com")));
+            results.add(workers.submit(() -> dao.getUsersCount()));
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (faults.hung() < 4 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            // Without a query timeout every worker stays blocked in the driver
+            assertEquals(4, faults.inFlight());
+            assertFalse(results.get(0).isDone());
+
+            faults.hangRate(0);
+            faults.releaseHung();
+            for (Future<Object> f : results) {
+                assertNotNull(f.get(5, TimeUnit.SECONDS));
+            }
+            assertEquals(4, faults.maxInFlight());
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testConcurrentIdenticalLookupsShareOneQuery() throws Exception {
+        FaultInjectingDataSource faults = new FaultInjectingDataSource(h2, 13)
+                .latency(FaultInjectingDataSource.Latency.fixed(Duration.ofMillis(200)));
+        ExternalUserDao dao = new ExternalUserDao(faults.dataSource());
+        ExecutorService workers = Executors.newFixedThreadPool(8);
+        CountDownLatch start = new CountDownLatch(1);
+        try {
+            List<Future<ExternalUser>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                results.add(workers.submit(() -> {
+                    start.await();
+                    return dao.findByUsername("jdoe");
+                }));
+            }
+            start.countDown();
+            List<ExternalUser> users = new ArrayList<>();
+            for (Future<ExternalUser> f : results) {
+                users.add(f.get(5, TimeUnit.SECONDS));
+            }
+            assertTrue(users.stream().allMatch(u -> u != null && u.getId() == 1));
+            assertEquals(8, users.stream().distinct().count(), "each caller gets its own copy");
+            assertEquals(1, faults.maxInFlight());
+            assertTrue(dao.getCoalescedLookups() > 0);
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testConcurrentLookupsOfDistinctIdsAreNotShared() throws Exception {
+        try (Connection c = h2.getConnection()) {
+            c.createStatement().executeUpdate("INSERT INTO adherents (id, login, mail) VALUES (2, 'foo', 'foo@example.com')");
+        }
+        FaultInjectingDataSource faults = new FaultInjectingDataSource(h2, 23)
+                .latency(FaultInjectingDataSource.Latency.fixed(Duration.ofMillis(200)));
+        ExternalUserDao dao = new ExternalUserDao(faults.dataSource());
+        ExecutorService workers = Executors.newFixedThreadPool(4);
+        CountDownLatch start = new CountDownLatch(1);
+        try {
+            List<Future<ExternalUser>> results = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                int id = i % 2 + 1;
+                results.add(workers.submit(() -> {
+                    start.await();
+                    return dao.findById(id);
+                }));
+            }
+            start.countDown();
+            for (int i = 0; i < 4; i++) {
+                assertEquals(i % 2 + 1, results.get(i).get(5, TimeUnit.SECONDS).getId());
+            }
+            assertTrue(faults.maxInFlight() >= 2, "each id runs its own query");
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testCoalescedLookupsSeeTheLeaderFailure() throws Exception {
+        // The connection delay keeps the leader in flight before its statement fails
+        FaultInjectingDataSource faults = new FaultInjectingDataSource(h2, 17)
+                .connectDelay(Duration.ofMillis(200))
+                .failureRate(1.0);
+        ExternalUserDao dao = new ExternalUserDao(faults.dataSource());
+        ExecutorService workers = Executors.newFixedThreadPool(4);
+        CountDownLatch start = new CountDownLatch(1);
+        try {
+            List<Future<ExternalUser>> results = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                results.add(workers.submit(() -> {
+                    start.await();
+                    return dao.findById(1);
+                }));
+            }
+            start.countDown();
+            for (Future<ExternalUser> f : results) {
+                assertNull(f.get(5, TimeUnit.SECONDS));
+            }
+            assertTrue(faults.injectedFailures() < 4, "waiters did not retry the failed query");
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testQueryTimeoutEndsHungStatement() throws Exception {
+        FaultInjectingDataSource faults = new FaultInjectingDataSource(h2, 9).hangRate(1.0);
+        try (Connection c = faults.dataSource().getConnection();
+             PreparedStatement ps = c.prepareStatement("SELECT 1")) {
+            ps.setQueryTimeout(1);
+            long start = System.nanoTime();
+            assertThrows(SQLTimeoutException.class, ps::executeQuery);
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(3));
+        }
+        assertEquals(0, faults.hung());
+    }
+
+    @Test
+    public void testOperationBudgetCancelsHungStatement() {
+        FaultInjectingDataSource faults = new FaultInjectingDataSource(h2, 19).hangRate(1.0);
+        ExternalUserDao dao = new ExternalUserDao(faults.dataSource());
+        dao.setTimeouts(new OperationTimeouts(Duration.ofMillis(200), Duration.ofMillis(200),
+                Duration.ofSeconds(1), Duration.ofSeconds(1), Duration.ZERO));
+        FdpSQLUserStorageProvider provider = new FdpSQLUserStorageProvider(
+                Mockito.mock(KeycloakSession.class), Mockito.mock(ComponentModel.class), faults.dataSource(), dao);
+
+        long start = System.nanoTime();
+        FederationTimeoutException e = assertThrows(FederationTimeoutException.class, () -> dao.findByUsername("jdoe"));
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1), "fails within its budget");
+        assertEquals(FederationMetrics.Operation.FIND_BY_USERNAME, e.getOperation());
+        assertEquals(0, faults.inFlight(), "the hung statement was cancelled");
+
+        // A slow database is an error, not a wrong password
+        assertThrows(FederationTimeoutException.class, () -> provider.isValid(
+                Mockito.mock(RealmModel.class), user("f:comp:1"), UserCredentialModel.password("secret")));
+
+        faults.hangRate(0);
+        assertNull(dao.findByUsername("nobody"));
+        assertNotNull(dao.findByUsername("jdoe"));
+    }
+
+    @Test
+    public void testExhaustedPoolTimesOutWithinTheBudget() {
+        FaultInjectingDataSource faults = new FaultInjectingDataSource(h2, 29).poolExhausted(Duration.ofMillis(300));
+        ExternalUserDao dao = new ExternalUserDao(faults.dataSource());
+        dao.setTimeouts(new OperationTimeouts(Duration.ofMillis(200), Duration.ofMillis(200),
+                Duration.ofSeconds(1), Duration.ofSeconds(1), Duration.ZERO));
+
+        // the pool gives up with a plain SQLException after the budget ran out
+        FederationTimeoutException e = assertThrows(FederationTimeoutException.class, () -> dao.findByUsername("jdoe"));
+        assertEquals(FederationMetrics.Operation.FIND_BY_USERNAME, e.getOperation());
+        assertTrue(e.getMessage().contains("connection wait"));
+
+        // a pool failing within the budget stays an ordinary error
+        faults.poolExhausted(Duration.ZERO);
+        assertNull(dao.findByUsername("jdoe"));
+
+        faults.poolExhausted(null);
+        assertNotNull(dao.findByUsername("jdoe"));
+    }
+
+    @Test
+    public void testSlowQueryLogKeepsSlowestWithExplain() {
+        FaultInjectingDataSource faults = new FaultInjectingDataSource(h2, 11)
+                .latency(FaultInjectingDataSource.Latency.fixed(Duration.ofMillis(20)));
+        ExternalUserDao dao = new ExternalUserDao(faults.dataSource());
+        SlowQueryLog slow = new SlowQueryLog(10, 1.0, 2);
+        dao.setSlowQueryLog(slow);
+
+        dao.findByUsername("jdoe");
+        dao.findById(1);
+        dao.getUsersCount();
+
+        List<SlowQueryLog.SlowQuery> slowest = slow.getSlowest(5);
+        assertEquals(2, slowest.size(), "buffer is bounded");
+        assertTrue(slowest.get(0).millis() >= slowest.get(1).millis());
+        assertTrue(slowest.stream().allMatch(q -> q.millis() >= 20));
+        assertTrue(slowest.stream().noneMatch(q -> q.sql().contains("jdoe")), "bind values are never captured");
+        assertNotNull(slowest.get(0).explain());
+        assertEquals(SlowQueryLog.OK, slowest.get(0).outcome());
+    }
+
+    @Test
+    public void testSlowQueryLogRecordsTimedOutStatements() {
+        FaultInjectingDataSource faults = new FaultInjectingDataSource(h2, 31).hangRate(1.0);
+        ExternalUserDao dao = new ExternalUserDao(faults.dataSource());
+        dao.setTimeouts(new OperationTimeouts(Duration.ofMillis(100), Duration.ofMillis(100),
+                Duration.ofSeconds(1), Duration.ofSeconds(1), Duration.ZERO));
+        SlowQueryLog slow = new SlowQueryLog(50, 1.0, 4);
+        dao.setSlowQueryLog(slow);
+
+        assertThrows(FederationTimeoutException.class, () -> dao.findByUsername("jdoe"));
+        List<SlowQueryLog.SlowQuery> slowest = slow.getSlowest(5);
+        assertEquals(1, slowest.size(), "the statement that blew its budget is the one worth seeing");
+        assertEquals(SlowQueryLog.CANCELLED, slowest.get(0).outcome());
+        assertNull(slowest.get(0).explain());
+    }
+
+    @Test
+    public void testFailoverPrefersTheFastestHostAndRoutesAroundADownOne() throws Exception {
+        FaultInjectingDataSource slow = new FaultInjectingDataSource(h2, 11).connectDelay(Duration.ofMillis(30));
+        FaultInjectingDataSource fast = new FaultInjectingDataSource(h2, 12);
+        List<String> urls = FailoverDataSource.split("jdbc:mariadb://slow:3306,fast:3306/fdp?useSsl=false");
+        assertEquals(List.of("jdbc:mariadb://slow:3306/fdp?useSsl=false", "jdbc:mariadb://fast:3306/fdp?useSsl=false"), urls);
+
+        try (FailoverDataSource failover = new FailoverDataSource(urls,
+                url -> (url.contains("slow") ? slow : fast).dataSource(), Duration.ofSeconds(1))) {
+            failover.probe();
+            FailoverDataSource.Host slowHost = failover.hosts().get(0);
+            FailoverDataSource.Host fastHost = failover.hosts().get(1);
+            assertEquals("fast:3306", fastHost.name());
+            assertTrue(fastHost.latencyMillis() < slowHost.latencyMillis());
+
+            ExternalUserDao dao = new ExternalUserDao(failover);
+            slow.down(true);
+            assertNotNull(dao.findById(1));
+            assertTrue(slowHost.isHealthy(), "the slow host was not even tried");
+            slow.down(false);
+
+            fast.poolExhausted(Duration.ofMillis(10));
+            assertNotNull(dao.findById(1), "a busy pool hands over to the next host");
+            assertTrue(fastHost.isHealthy(), "a pool-wait timeout does not mark the host down");
+            assertEquals(0, fastHost.failures());
+            fast.poolExhausted(null);
+
+            fast.down(true);
+            assertNotNull(dao.findById(1), "the slow host takes over transparently");
+            assertFalse(fastHost.isHealthy());
+            assertEquals(1, fastHost.failures());
+
+            fast.down(false);
+            failover.probe();
+            assertTrue(fastHost.isHealthy(), "a successful probe brings the host back");
+
+            slow.down(true);
+            failover.probe();
+            assertFalse(slowHost.isHealthy());
+            long slowFailures = slowHost.failures();
+            fast.poolExhausted(Duration.ofMillis(10));
+            assertNull(dao.findById(1));
+            assertEquals(slowFailures, slowHost.failures(), "a down host is skipped while a healthy one exists");
+            fast.poolExhausted(null);
+            slow.down(false);
+        }
+    }
+}
@@ -1,23 +1,85 @@
 package net.minet.keycloak.spi;
 
+import net.minet.keycloak.hash.HashingExecutor;
 import net.minet.keycloak.hash.Md4Util;
+import net.minet.keycloak.spi.admission.AdmissionControl;
+import net.minet.keycloak.spi.dao.ExternalUserDao;
+import net.minet.keycloak.spi.dao.ImportOutcome;
+import net.minet.keycloak.spi.dao.NewAdherent;
+import net.minet.keycloak.spi.dao.PasswordRehash;
+import net.minet.keycloak.spi.dao.StatementRegistry;
+import net.minet.keycloak.spi.directory.IdentifierFilter;
+import net.minet.keycloak.spi.directory.UserDirectory;
 import net.minet.keycloak.spi.entity.ExternalUser;
+import net.minet.keycloak.spi.export.UserExporter;
+import net.minet.keycloak.spi.groups.VirtualGroup;
+import net.minet.keycloak.spi.groups.VirtualGroups;
+import net.minet.keycloak.spi.metrics.FederationMetrics;
+import net.minet.keycloak.spi.migration.PasswordNormalizer;
+import net.minet.keycloak.spi.migration.PasswordRehashQueue;
+import net.minet.keycloak.spi.provisioning.BulkImporter;
+import net.minet.keycloak.spi.roles.RoleMappings;
+import net.minet.keycloak.spi.shard.ShardedUsers;
+import net.minet.keycloak.spi.sweep.OrphanSweep;
+import net.minet.keycloak.spi.tracing.FederationTracing;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.opentelemetry.sdk.OpenTelemetrySdk;
+import io.opentelemetry.sdk.testing.exporter.InMemorySpanExporter;
+import io.opentelemetry.sdk.trace.SdkTracerProvider;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import io.opentelemetry.sdk.trace.export.SimpleSpanProcessor;
 import org.h2.jdbcx.JdbcDataSource;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.keycloak.component.ComponentModel;
+import org.keycloak.component.ComponentValidationException;
+import org.keycloak.credential.CredentialInput;
+import org.keycloak.credential.CredentialModel;
+import org.keycloak.models.GroupModel;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakTransaction;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.ModelException;
 import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
+import org.keycloak.models.UserCredentialModel;
 import org.keycloak.models.UserModel;
+import org.keycloak.representations.userprofile.config.UPAttribute;
+import org.keycloak.representations.userprofile.config.UPConfig;
+import org.keycloak.storage.federated.UserFederatedStorageProvider;
+import org.keycloak.userprofile.UserProfileProvider;
+import org.mariadb.jdbc.client.Context;
+import org.mariadb.jdbc.export.Prepare;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 
 import javax.sql.DataSource;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.Timestamp;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -36,6 +98,7 @@ public class FdpSQLUserStorageProviderTest {
         this.dataSource = ds;
 
         try (Connection c = ds.getConnection()) {
+            c.createStatement().execute("DROP TABLE IF EXISTS adherents");
             c.createStatement().execute("""
                 CREATE TABLE adherents (
                     id INT PRIMARY KEY,
@@ -46,7 +109,17 @@ public class FdpSQLUserStorageProviderTest {
                     password VARCHAR(100),
                     created_at TIMESTAMP,
                     is_naina TINYINT,
-                    ldap_login VARCHAR(100)
+                    ldap_login VARCHAR(100),
+                    edminet TINYINT,
+                    mailinglist TINYINT,
+                    mode_association TINYINT,
+                    date_de_depart DATE,
+                    chambre_id INT,
+                    subnet VARCHAR(100),
+                    ip VARCHAR(100),
+                    datesignedadhesion TIMESTAMP,
+                    commentaires TEXT,
+                    updated_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP
                 )
                 """);
 
@@ -93,7 +166,7 @@ public class FdpSQLUserStorageProviderTest {
 
     @Test
     public void testGetUserByIdMapsRow() {
-        UserModel user = provider.getUserById(realm, "comp:1");
+        UserModel user = provider.getUserById(realm, "f:comp:1");
         assertNotNull(user, "User should be found");
         assertEquals("jdoe", user.getUsername());
         assertEquals("john@example.com", user.getEmail());
@@ -131,7 +204,7 @@ public class FdpSQLUserStorageProviderTest {
 
     @Test
     public void testRemoveUserDeletesRow() throws Exception {
-        UserModel user = provider.getUserById(realm, "comp:2");
+        UserModel user = provider.getUserById(realm, "f:comp:2");
         assertNotNull(user);
         assertTrue(provider.removeUser(realm, user));
         try (Connection c = dataSource.getConnection();
@@ -147,7 +220,7 @@ public class FdpSQLUserStorageProviderTest {
     @Test
     public void testRemoveUserInvalidId() throws Exception {
         UserModel user = Mockito.mock(UserModel.class);
-        Mockito.when(user.getId()).thenReturn("comp:abc");
+        Mockito.when(user.getId()).thenReturn("f:comp:abc");
         assertFalse(provider.removeUser(realm, user));
         try (Connection c = dataSource.getConnection();
              PreparedStatement ps = c.prepareStatement("SELECT COUNT(*) FROM adherents")) {
@@ -164,17 +237,18 @@ public class FdpSQLUserStorageProviderTest {
             c.createStatement().execute("DROP TABLE adherents");
         }
         UserModel user = Mockito.mock(UserModel.class);
-        Mockito.when(user.getId()).thenReturn("comp:1");
+        Mockito.when(user.getId()).thenReturn("f:comp:1");
         assertFalse(provider.removeUser(realm, user));
     }
 
     @Test
     public void testUpdateCredential() throws Exception {
-        UserModel user = provider.getUserById(realm, "comp:1");
+        UserModel user = provider.getUserById(realm, "f:comp:1");
         assertNotNull(user);
         CredentialInput input = new CredentialInput() {
             @Override public String getType() { return CredentialModel.PASSWORD; }
             @Override public String getChallengeResponse() { return "newpass"; }
+            @Override public String getCredentialId() { return null; }
         };
         assertTrue(provider.updateCredential(realm, user, input));
         try (Connection c = dataSource.getConnection();
@@ -190,10 +264,11 @@ public class FdpSQLUserStorageProviderTest {
     @Test
     public void testUpdateCredentialInvalidId() throws Exception {
         UserModel user = Mockito.mock(UserModel.class);
-        Mockito.when(user.getId()).thenReturn("comp:abc");
+        Mockito.when(user.getId()).thenReturn("f:comp:abc");
         CredentialInput input = new CredentialInput() {
             @Override public String getType() { return CredentialModel.PASSWORD; }
             @Override public String getChallengeResponse() { return "newpass"; }
+            @Override public String getCredentialId() { return null; }
         };
         assertFalse(provider.updateCredential(realm, user, input));
     }
@@ -204,11 +279,831 @@ public class FdpSQLUserStorageProviderTest {
             c.createStatement().execute("DROP TABLE adherents");
         }
         UserModel user = Mockito.mock(UserModel.class);
-        Mockito.when(user.getId()).thenReturn("comp:1");
+        Mockito.when(user.getId()).thenReturn("f:comp:1");
         CredentialInput input = new CredentialInput() {
             @Override public String getType() { return CredentialModel.PASSWORD; }
             @Override public String getChallengeResponse() { return "newpass"; }
+            @Override public String getCredentialId() { return null; }
         };
         assertFalse(provider.updateCredential(realm, user, input));
     }
+
+    @Test
+    public void testStatementRegistryCountsHitsPerConnection() throws Exception {
+        StatementRegistry statements = new StatementRegistry();
+        statements.warmUp(dataSource, 1);
+        assertEquals(StatementRegistry.ALL.size(), statements.getMisses());
+        assertEquals(0, statements.getHits());
+
+        try (Connection c = dataSource.getConnection()) {
+            statements.prepare(c, StatementRegistry.SELECT_BY_ID).close();
+            statements.prepare(c, StatementRegistry.SELECT_BY_ID).close();
+        }
+        assertEquals(1, statements.getHits());
+    }
+
+    @Test
+    public void testStatementRegistryReadsTheDriverCache() throws Exception {
+        Prepare cached = Mockito.mock(Prepare.class);
+        Context context = Mockito.mock(Context.class);
+        Mockito.when(context.getPrepareCacheCmd(StatementRegistry.SELECT_BY_ID, null)).thenReturn(null, cached);
+        org.mariadb.jdbc.Connection driver = Mockito.mock(org.mariadb.jdbc.Connection.class);
+        Mockito.when(driver.getContext()).thenReturn(context);
+        Connection c = Mockito.mock(Connection.class);
+        Mockito.when(c.isWrapperFor(org.mariadb.jdbc.Connection.class)).thenReturn(true);
+        Mockito.when(c.unwrap(org.mariadb.jdbc.Connection.class)).thenReturn(driver);
+        Mockito.when(c.prepareStatement(StatementRegistry.SELECT_BY_ID)).thenReturn(Mockito.mock(PreparedStatement.class));
+
+        StatementRegistry statements = new StatementRegistry();
+        statements.prepare(c, StatementRegistry.SELECT_BY_ID).close();
+        statements.prepare(c, StatementRegistry.SELECT_BY_ID).close();
+        assertEquals(1, statements.getMisses(), "first preparation goes to the server");
+        assertEquals(1, statements.getHits(), "second one is served by the driver cache");
+    }
+
+    @Test
+    public void testInListsArePaddedToPreparedSizes() throws Exception {
+        assertEquals(1, StatementRegistry.paddedSize(1));
+        assertEquals(8, StatementRegistry.paddedSize(3));
+        assertEquals(500, StatementRegistry.paddedSize(500));
+        assertThrows(IllegalArgumentException.class, () -> StatementRegistry.paddedSize(501));
+        assertEquals(StatementRegistry.selectByIds(3), StatementRegistry.selectByIds(8));
+        assertEquals(32, StatementRegistry.splitSize(40));
+        assertThrows(IllegalArgumentException.class, () -> StatementRegistry.insertUsers(3));
+        assertTrue(StatementRegistry.ALL.containsAll(StatementRegistry.LIST_SIZES.stream()
+                .map(StatementRegistry::selectByIds).toList()), "listing variants are warmed");
+
+        ExternalUserDao dao = new ExternalUserDao(dataSource);
+        assertEquals(List.of(2, 1), dao.findByIds(new int[]{2, 1, 99}, 0, 3).stream().map(ExternalUser::getId).toList(),
+                "padding with the last id adds no row");
+        List<Integer> existing = new ArrayList<>();
+        dao.existingIds(new int[]{1, 2, 99}, 0, 3, existing::add);
+        assertEquals(List.of(1, 2), existing);
+    }
+
+    @Test
+    public void testUpdateColumnUsesRegisteredStatement() throws Exception {
+        ExternalUserDao dao = new ExternalUserDao(dataSource);
+        assertTrue(dao.updateColumn(2, "ldap_login", "fooLDAP2"));
+        assertEquals("fooLDAP2", dao.findById(2).getLdapLogin());
+        assertThrows(IllegalArgumentException.class, () -> StatementRegistry.updateColumn("password; --"));
+    }
+
+    @Test
+    public void testMetricsRecordOperationsAndOutcomes() throws Exception {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        FederationMetrics metrics = new FederationMetrics(registry);
+        ExternalUserDao dao = new ExternalUserDao(dataSource, new StatementRegistry(), metrics);
+        FdpSQLUserStorageProvider instrumented = new FdpSQLUserStorageProvider(session, model, dataSource, dao);
+        md4Password(1, "secret");
+
+        UserModel user = Mockito.mock(UserModel.class);
+        Mockito.when(user.getId()).thenReturn("f:comp:1");
+        assertTrue(instrumented.isValid(realm, user, org.keycloak.models.UserCredentialModel.password("secret")));
+        assertFalse(instrumented.isValid(realm, user, org.keycloak.models.UserCredentialModel.password("wrong")));
+        dao.updateColumn(2, "nom", "Baz");
+
+        assertEquals(2, registry.get("fdp.dao.operation").tag("operation", "password").timer().count());
+        assertEquals(1, registry.get("fdp.credential.validation").tag("outcome", "valid").counter().count());
+        assertEquals(1, registry.get("fdp.credential.validation").tag("outcome", "invalid").counter().count());
+        assertEquals(2, registry.get("fdp.password.hashing").timer().count());
+        assertEquals(1, registry.get("fdp.column.writes").tag("column", "nom").counter().count());
+        assertEquals(3, registry.get("fdp.connection.acquire").timer().count());
+    }
+
+    // plaintext rows are compared without hashing, so hashing assertions need an MD4 row
+    private void md4Password(int id, String password) throws Exception {
+        try (Connection c = dataSource.getConnection();
+             PreparedStatement ps = c.prepareStatement("UPDATE adherents SET password = ? WHERE id = ?")) {
+            ps.setString(1, Md4Util.md4Hex(password));
+            ps.setInt(2, id);
+            ps.executeUpdate();
+        }
+    }
+
+    @Test
+    public void testTracingSpansNestUnderCredentialCheck() throws Exception {
+        InMemorySpanExporter exporter = InMemorySpanExporter.create();
+        SdkTracerProvider tracerProvider = SdkTracerProvider.builder()
+                .addSpanProcessor(SimpleSpanProcessor.create(exporter))
+                .build();
+        FederationTracing.setOpenTelemetry(OpenTelemetrySdk.builder().setTracerProvider(tracerProvider).build());
+        try {
+            md4Password(1, "secret");
+            UserModel user = Mockito.mock(UserModel.class);
+            Mockito.when(user.getId()).thenReturn("f:comp:1");
+            assertTrue(provider.isValid(realm, user, org.keycloak.models.UserCredentialModel.password("secret")));
+
+            List<SpanData> spans = exporter.getFinishedSpanItems();
+            Map<String, SpanData> byName = spans.stream()
+                    .collect(Collectors.toMap(SpanData::getName, sp -> sp, (a, b) -> a));
+            SpanData root = byName.get("fdp.isValid");
+            SpanData query = byName.get("fdp.dao.password");
+            SpanData acquire = byName.get("fdp.connection.acquire");
+            assertNotNull(root);
+            assertEquals(root.getSpanId(), query.getParentSpanId());
+            assertEquals(query.getSpanId(), acquire.getParentSpanId());
+            assertEquals(1, spans.stream().filter(sp -> sp.getName().equals("fdp.hash")).count());
+            assertEquals(1L, query.getAttributes().get(io.opentelemetry.api.common.AttributeKey.longKey("fdp.rows")));
+            assertTrue(spans.stream().flatMap(sp -> sp.getAttributes().asMap().values().stream())
+                    .noneMatch(v -> String.valueOf(v).contains("secret") || String.valueOf(v).contains("comp:1")));
+        } finally {
+            FederationTracing.setOpenTelemetry(null);
+            tracerProvider.close();
+        }
+    }
+
+    @Test
+    public void testJfrEventsRecordedOnlyWhenEnabled() throws Exception {
+        ExternalUserDao dao = new ExternalUserDao(dataSource);
+        Path file = Files.createTempFile("fdp", ".jfr");
+        try (jdk.jfr.Recording recording = new jdk.jfr.Recording()) {
+            recording.enable("net.minet.fdp.UserLookup").withoutThreshold();
+            recording.enable("net.minet.fdp.AttributeWrite").withoutThreshold();
+            recording.start();
+            dao.findByUsername("jdoe");
+            dao.findByUsername("nobody");
+            dao.updateColumn(2, "prenom", "Fooo");
+            dao.getUsersCount();
+            recording.stop();
+            recording.dump(file);
+        }
+        List<jdk.jfr.consumer.RecordedEvent> events = jdk.jfr.consumer.RecordingFile.readAllEvents(file);
+        Files.deleteIfExists(file);
+
+        List<jdk.jfr.consumer.RecordedEvent> lookups = events.stream()
+                .filter(e -> e.getEventType().getName().equals("net.minet.fdp.UserLookup")).toList();
+        assertEquals(2, lookups.size());
+        assertEquals("findByUsername", lookups.get(0).getString("operation"));
+        assertEquals(1, lookups.stream().filter(e -> e.getBoolean("found")).count());
+        assertTrue(events.stream().anyMatch(e -> e.getEventType().getName().equals("net.minet.fdp.AttributeWrite")
+                && "prenom".equals(e.getString("column")) && e.getBoolean("success")));
+        // UserStream stays disabled unless explicitly enabled
+        assertTrue(events.stream().noneMatch(e -> e.getEventType().getName().equals("net.minet.fdp.UserStream")));
+    }
+
+    @Test
+    public void testUserDirectoryServesLookupsAndSurvivesRestart() throws Exception {
+        Path file = Files.createTempDirectory("fdp-directory").resolve("directory.bin");
+        ExternalUserDao dao = new ExternalUserDao(dataSource);
+        assertFalse(dao.isUpdatedAtMaintained(), "a nullable updated_at is reported");
+        try (Connection c = dataSource.getConnection()) {
+            c.createStatement().execute("ALTER TABLE adherents ALTER COLUMN updated_at SET NOT NULL");
+        }
+        assertTrue(dao.isUpdatedAtMaintained());
+        try (UserDirectory directory = UserDirectory.open(file)) {
+            directory.refresh(dao::loadDirectory);
+            assertEquals(2, directory.size());
+            ExternalUser john = directory.findByUsername("JDOE");
+            assertEquals(1, john.getId());
+            assertEquals("jdoeLDAP", john.getLdapLogin());
+            assertEquals(LocalDateTime.of(2024, 1, 2, 3, 4, 5), john.getCreatedAt());
+            assertEquals((byte) 1, john.getIsNaina());
+
+            dao.setUserDirectory(directory);
+            assertEquals("jdoe", dao.findById(1).getUsername());
+            assertEquals(2, directory.getHits());
+            assertTrue(dao.updateColumn(2, "mail", "bar@example.com"));
+            assertNull(directory.findByEmail("foo@example.com"));
+            assertEquals(2, directory.findByEmail("bar@example.com").getId());
+
+            // a second owner of the same file falls back to the database
+            IOException busy = assertThrows(IOException.class, () -> UserDirectory.open(file));
+            assertEquals("already in use", busy.getMessage());
+        }
+        assertEquals(FdpSQLUserStorageProviderFactory.defaultDirectoryPath("jdbc:mariadb://db/fdp", "kc"),
+                FdpSQLUserStorageProviderFactory.defaultDirectoryPath("jdbc:mariadb://db/fdp", "kc"));
+        assertNotEquals(FdpSQLUserStorageProviderFactory.defaultDirectoryPath("jdbc:mariadb://db/fdp", "kc"),
+                FdpSQLUserStorageProviderFactory.defaultDirectoryPath("jdbc:mariadb://db/other", "kc"),
+                "each datasource has its own file");
+
+        try (UserDirectory reopened = UserDirectory.open(file)) {
+            assertEquals("Foo", reopened.findById(2).getFirstName());
+            try (Connection c = dataSource.getConnection()) {
+                c.createStatement().executeUpdate(
+                        "UPDATE adherents SET prenom = 'Jane', updated_at = CURRENT_TIMESTAMP WHERE id = 1");
+            }
+            reopened.refresh(dao::loadDirectory);
+            assertEquals("Jane", reopened.findByUsername("jdoe").getFirstName());
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void testIdentifierFilterAnswersUnknownLoginsWithoutQuery() throws Exception {
+        StatementRegistry statements = new StatementRegistry();
+        ExternalUserDao dao = new ExternalUserDao(dataSource, statements);
+        IdentifierFilter filter = new IdentifierFilter(0.01);
+        assertTrue(filter.mightContain("nobody"), "an unbuilt filter knows nothing");
+        filter.rebuild(dao::loadIdentifiers);
+        dao.setIdentifierFilter(filter);
+
+        long prepared = statements.getHits() + statements.getMisses();
+        assertNull(dao.findByUsername("nobody"));
+        assertNull(dao.findByEmail("nobody@example.com"));
+        assertEquals(prepared, statements.getHits() + statements.getMisses(), "no statement was issued");
+        assertEquals(2, filter.getNegatives());
+
+        assertTrue(filter.mightContain("JDOE"));
+        assertTrue(filter.mightContain("fooLDAP"));
+        assertNotNull(dao.findByEmail("john@example.com"));
+
+        // the collation ignores trailing spaces and accents: such keys are left to the database
+        assertTrue(filter.mightContain("nobody "));
+        assertTrue(filter.mightContain("nöbody"));
+        // MariaDB finds "jdoe" for this key; H2 does not pad, so only the query is checked
+        dao.findByUsername("jdoe ");
+        assertEquals(2, filter.getNegatives(), "the lookup reached the database");
+        try (Connection c = dataSource.getConnection()) {
+            c.createStatement().execute("UPDATE adherents SET ldap_login = 'José ' WHERE id = 1");
+        }
+        filter.rebuild(dao::loadIdentifiers);
+        assertTrue(filter.mightContain("jose"), "stored keys are folded like the collation");
+
+        assertTrue(dao.updateColumn(2, "login", "foobar"));
+        assertNotNull(dao.findByUsername("foobar"));
+    }
+
+    @Test
+    public void testAdmissionControlShedsRepeatedAttemptsWithoutQuery() {
+        StatementRegistry statements = new StatementRegistry();
+        FdpSQLUserStorageProvider gated = new FdpSQLUserStorageProvider(session, model, dataSource,
+                new ExternalUserDao(dataSource, statements));
+        AdmissionControl admission = new AdmissionControl(3, 0.001, 0, 0, 4, 1024);
+        gated.setAdmissionControl(admission);
+        UserModel user = Mockito.mock(UserModel.class);
+        Mockito.when(user.getId()).thenReturn("f:comp:1");
+        Mockito.when(user.getUsername()).thenReturn("jdoe");
+
+        for (int i = 0; i < 5; i++) {
+            assertTrue(gated.isValid(realm, user, UserCredentialModel.password("secret")), "successes are free");
+        }
+        for (int i = 0; i < 3; i++) {
+            assertFalse(gated.isValid(realm, user, UserCredentialModel.password("wrong")));
+        }
+        long prepared = statements.getHits() + statements.getMisses();
+        // shedding is an error, not a failed login counted by brute-force detection
+        assertThrows(ModelException.class, () -> gated.isValid(realm, user, UserCredentialModel.password("secret")));
+        assertEquals(prepared, statements.getHits() + statements.getMisses(), "rejected attempts never query");
+        assertEquals(1, admission.count(AdmissionControl.Decision.LOGIN_RATE));
+        assertEquals(0, admission.inFlight());
+    }
+
+    @Test
+    public void testHashingExecutorBoundsConcurrentHashes() throws Exception {
+        HashingExecutor hashing = new HashingExecutor(1, 0, Duration.ofSeconds(5));
+        int threads = 8;
+        ExecutorService callers = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                results.add(callers.submit(() -> {
+                    int rejected = 0;
+                    for (int i = 0; i < 200; i++) {
+                        try {
+                            assertEquals(Md4Util.md4Hex("secret" + i), hashing.md4Hex("secret" + i));
+                        } catch (RejectedExecutionException e) {
+                            rejected++;
+                        }
+                    }
+                    return rejected;
+                }));
+            }
+            long rejected = 0;
+            for (Future<Integer> f : results) {
+                rejected += f.get();
+            }
+            assertEquals(rejected, hashing.rejected());
+            assertTrue(rejected > 0, "one thread and no queue must shed concurrent hashes");
+        } finally {
+            callers.shutdownNow();
+        }
+    }
+
+    private String storedPassword(int id) throws Exception {
+        try (Connection c = dataSource.getConnection();
+             PreparedStatement ps = c.prepareStatement("SELECT password FROM adherents WHERE id = ?")) {
+            ps.setInt(1, id);
+            try (ResultSet rs = ps.executeQuery()) {
+                assertTrue(rs.next());
+                return rs.getString(1);
+            }
+        }
+    }
+
+    @Test
+    public void testLegacyPasswordIsRehashedAfterSuccessfulLogin() throws Exception {
+        ExternalUserDao dao = new ExternalUserDao(dataSource);
+        FdpSQLUserStorageProvider migrating = new FdpSQLUserStorageProvider(session, model, dataSource, dao);
+        PasswordRehashQueue rehash = new PasswordRehashQueue(dao, 16, 10, Duration.ofMillis(10));
+        migrating.setPasswordRehashQueue(rehash);
+        UserModel user = Mockito.mock(UserModel.class);
+        Mockito.when(user.getId()).thenReturn("f:comp:1");
+
+        assertFalse(migrating.isValid(realm, user, UserCredentialModel.password("wrong")));
+        assertTrue(migrating.isValid(realm, user, UserCredentialModel.password("secret")));
+        rehash.close();
+
+        assertEquals(1, rehash.getWritten());
+        assertEquals(Md4Util.md4Hex("secret"), storedPassword(1));
+        assertEquals("secret", storedPassword(2), "only the user who logged in is migrated");
+        assertTrue(migrating.isValid(realm, user, UserCredentialModel.password("secret")));
+        assertFalse(migrating.isValid(realm, user, UserCredentialModel.password("wrong")));
+    }
+
+    @Test
+    public void testSaturatedHashingPoolNeverFailsALegacyLogin() throws Exception {
+        ExternalUserDao dao = new ExternalUserDao(dataSource);
+        FdpSQLUserStorageProvider migrating = new FdpSQLUserStorageProvider(session, model, dataSource, dao);
+        PasswordRehashQueue rehash = new PasswordRehashQueue(dao, 16, 10, Duration.ofMillis(10));
+        migrating.setPasswordRehashQueue(rehash);
+        HashingExecutor saturated = Mockito.mock(HashingExecutor.class);
+        Mockito.when(saturated.md4Hex(Mockito.anyString())).thenThrow(new RejectedExecutionException("saturated"));
+        migrating.setHashingExecutor(saturated);
+        UserModel user = Mockito.mock(UserModel.class);
+        Mockito.when(user.getId()).thenReturn("f:comp:1");
+
+        assertTrue(migrating.isValid(realm, user, UserCredentialModel.password("secret")));
+        rehash.close();
+        assertEquals(0, rehash.getWritten());
+        assertEquals("secret", storedPassword(1), "the row is left for a later login");
+
+        // a hashed row needs the pool: an overload is an error, not a wrong password
+        assertTrue(dao.updatePassword(1, Md4Util.md4Hex("secret")));
+        assertThrows(ModelException.class, () -> migrating.isValid(realm, user, UserCredentialModel.password("secret")));
+    }
+
+    @Test
+    public void testRehashNeverOverwritesAChangedPassword() throws Exception {
+        ExternalUserDao dao = new ExternalUserDao(dataSource);
+        assertTrue(dao.updatePassword(1, Md4Util.md4Hex("changed")));
+
+        assertEquals(0, dao.rehashPasswords(List.of(new PasswordRehash(1, "secret", Md4Util.md4Hex("secret")))));
+        assertEquals(Md4Util.md4Hex("changed"), storedPassword(1));
+    }
+
+    @Test
+    public void testPasswordNormalizerRewritesPlaintextRows() throws Exception {
+        ExternalUserDao dao = new ExternalUserDao(dataSource);
+        assertTrue(dao.updatePassword(2, Md4Util.md4Hex("already")));
+
+        PasswordNormalizer.Result result = new PasswordNormalizer(dao, 2, 1).run();
+        assertEquals(new PasswordNormalizer.Result(2, 1, 1), result);
+        assertEquals(Md4Util.md4Hex("secret"), storedPassword(1));
+        assertEquals(Md4Util.md4Hex("already"), storedPassword(2));
+
+        assertEquals(new PasswordNormalizer.Result(2, 0, 0), new PasswordNormalizer(dao, 2, 1).run());
+    }
+
+    @Test
+    public void testVirtualGroupsAnswerMembershipFromBitmaps() throws Exception {
+        StatementRegistry statements = new StatementRegistry();
+        ExternalUserDao dao = new ExternalUserDao(dataSource, statements);
+        VirtualGroups groups = new VirtualGroups(VirtualGroup.parse("naina:is_naina=1, others:is_naina=0"));
+        groups.rebuild(dao::loadGroupFlags);
+        dao.setVirtualGroups(groups);
+        FdpSQLUserStorageProvider grouped = new FdpSQLUserStorageProvider(session, model, dataSource, dao);
+        GroupModel naina = Mockito.mock(GroupModel.class);
+        Mockito.when(naina.getName()).thenReturn("naina");
+        GroupModel unrelated = Mockito.mock(GroupModel.class);
+        Mockito.when(unrelated.getName()).thenReturn("naina");
+        Mockito.when(unrelated.getParentId()).thenReturn("parent");
+
+        assertEquals(List.of("jdoe"), grouped.getGroupMembersStream(realm, naina, 0, 10)
+                .map(UserModel::getUsername).toList());
+        assertEquals(0, grouped.getGroupMembersStream(realm, unrelated, 0, 10).count());
+        assertTrue(grouped.getUserById(realm, "f:comp:1").isMemberOf(naina));
+        assertFalse(grouped.getUserById(realm, "f:comp:2").isMemberOf(naina));
+        assertEquals(List.of("others"), groups.groupsOf(2));
+
+        assertTrue(dao.updateColumn(2, "is_naina", (byte) 1));
+        assertEquals(2, groups.count("naina"));
+        assertEquals(0, groups.count("others"));
+        long prepared = statements.getHits() + statements.getMisses();
+        assertEquals(List.of("jdoe", "foo"), grouped.getGroupMembersStream(realm, naina, 0, 10)
+                .map(UserModel::getUsername).toList());
+        assertEquals(prepared + 1, statements.getHits() + statements.getMisses(), "the page is loaded with one query");
+        assertEquals(List.of("foo"), grouped.getGroupMembersStream(realm, naina, 1, 10)
+                .map(UserModel::getUsername).toList());
+
+        assertTrue(dao.deleteUser(1));
+        assertArrayEquals(new int[] {2}, groups.page("naina", 0, -1));
+        assertEquals(1, groups.countAny(Set.of("naina", "others")));
+    }
+
+    @Test
+    public void testRoleMappingsDeriveRolesFromLoadedColumns() throws Exception {
+        try (Connection c = dataSource.getConnection()) {
+            c.createStatement().execute("UPDATE adherents SET edminet = 1, mode_association = 0 WHERE id = 1");
+        }
+        RoleModel admin = Mockito.mock(RoleModel.class);
+        RoleModel naina = Mockito.mock(RoleModel.class);
+        Mockito.when(realm.getRole("admin")).thenReturn(admin);
+        Mockito.when(realm.getRole("naina")).thenReturn(naina);
+        StatementRegistry statements = new StatementRegistry();
+        FdpSQLUserStorageProvider mapped = new FdpSQLUserStorageProvider(session, model, dataSource,
+                new ExternalUserDao(dataSource, statements));
+        mapped.setRoleMappings(RoleMappings.parse("edminet=1:admin, is_naina=1:naina, mode_association=1:missing"));
+
+        ExternalUserAdapter jdoe = (ExternalUserAdapter) mapped.getUserById(realm, "f:comp:1");
+        ExternalUserAdapter foo = (ExternalUserAdapter) mapped.getUserById(realm, "f:comp:2");
+        long prepared = statements.getHits() + statements.getMisses();
+        assertEquals(Set.of(admin, naina), jdoe.getRoleMappingsInternal());
+        assertEquals(Set.of(), foo.getRoleMappingsInternal());
+        assertEquals(prepared, statements.getHits() + statements.getMisses(), "derived roles never query");
+
+        assertThrows(IllegalArgumentException.class, () -> RoleMappings.parse("password=1:admin"));
+    }
+
+    @Test
+    public void testExtendedColumnsLoadOnceOnFirstRead() throws Exception {
+        try (Connection c = dataSource.getConnection()) {
+            c.createStatement().execute("UPDATE adherents SET date_de_depart = DATE '2025-06-30', chambre_id = 12, "
+                    + "ip = '10.0.0.12', datesignedadhesion = TIMESTAMP '2024-09-01 00:00:00', "
+                    + "commentaires = 'never read' WHERE id = 1");
+        }
+        // attributes not backed by a column come from Keycloak's federated storage, empty here
+        Mockito.when(session.getProvider(UserFederatedStorageProvider.class))
+                .thenReturn(Mockito.mock(UserFederatedStorageProvider.class));
+        StatementRegistry statements = new StatementRegistry();
+        FdpSQLUserStorageProvider lazy = new FdpSQLUserStorageProvider(session, model, dataSource,
+                new ExternalUserDao(dataSource, statements));
+        UserModel user = lazy.getUserById(realm, "f:comp:1");
+        long prepared = statements.getHits() + statements.getMisses();
+
+        assertFalse(user.getAttributes().containsKey("ip"), "login stays on the narrow row");
+        assertEquals(prepared, statements.getHits() + statements.getMisses());
+
+        assertEquals("12", user.getFirstAttribute("chambreId"));
+        assertEquals(prepared + 1, statements.getHits() + statements.getMisses());
+        assertEquals(List.of("2025-06-30"), user.getAttributeStream("date_de_depart").toList());
+        assertEquals(List.of("1725148800000"), user.getAttributeStream("dateSignedAdhesion").toList());
+        assertEquals(List.of(), user.getAttributeStream("subnet").toList());
+        assertEquals(List.of("10.0.0.12"), user.getAttributes().get("ip"));
+        assertFalse(user.getAttributes().containsKey("commentaires"));
+        assertEquals(prepared + 1, statements.getHits() + statements.getMisses(), "one round trip for all extended columns");
+    }
+
+    @Test
+    public void testConfiguredAttributeMappingResolvesAliasesToColumns() throws Exception {
+        AttributeMapping mapping = AttributeMapping.compile(List.of(
+                "mail=mail", "givenName=prenom", "ldapLogin=ldap_login", "staff=edminet"));
+        assertEquals(mapping.slot("givenName"), mapping.slot("given_name"));
+        assertEquals(mapping.slot("givenName"), mapping.slot("prenom"));
+        assertEquals(-1, mapping.slot("firstName"));
+        assertFalse(mapping.writable(mapping.slot("staff")));
+        assertThrows(IllegalArgumentException.class, () -> AttributeMapping.compile(List.of("secret=password")));
+        assertThrows(IllegalArgumentException.class, () -> AttributeMapping.compile(List.of("uid=id")));
+        assertThrows(IllegalArgumentException.class, () -> AttributeMapping.compile(List.of("a=mail", "mail=nom")));
+
+        try (Connection c = dataSource.getConnection()) {
+            c.createStatement().execute("UPDATE adherents SET edminet = 1 WHERE id = 2");
+        }
+        provider.setAttributeMapping(mapping);
+        UserModel user = provider.getUserById(realm, "f:comp:2");
+        assertEquals("Foo", user.getFirstAttribute("given_name"));
+        assertEquals("1", user.getFirstAttribute("staff"));
+        assertEquals(List.of("fooLDAP"), user.getAttributeStream("ldap_login").toList());
+
+        user.setSingleAttribute("prenom", "Fooo");
+        assertEquals("Fooo", user.getFirstName());
+        assertEquals("Fooo", user.getFirstAttribute("givenName"));
+        user.setSingleAttribute("staff", "0");
+        assertEquals("1", user.getFirstAttribute("edminet"), "read-only columns are never written");
+        try (Connection c = dataSource.getConnection();
+             PreparedStatement ps = c.prepareStatement("SELECT prenom, edminet FROM adherents WHERE id = 2");
+             ResultSet rs = ps.executeQuery()) {
+            assertTrue(rs.next());
+            assertEquals("Fooo", rs.getString(1));
+            assertEquals(1, rs.getInt(2));
+        }
+    }
+
+    @Test
+    public void testUserProfileIsCheckedAgainstTheRealmConfiguration() {
+        AttributeMapping mapping = AttributeMapping.compile(List.of("mail=mail", "ldapLogin=ldap_login"));
+        UPConfig profile = new UPConfig();
+        profile.addOrReplaceAttribute(new UPAttribute("username"));
+        profile.addOrReplaceAttribute(new UPAttribute("mail"));
+        assertEquals(List.of("ldapLogin"), mapping.checkProfile(profile));
+
+        ComponentModel component = component("profiled", null, 0);
+        component.getConfig().putSingle(FdpSQLUserStorageProviderFactory.CONFIG_CHECK_USER_PROFILE, "true");
+        UserProfileProvider profiles = Mockito.mock(UserProfileProvider.class);
+        Mockito.when(profiles.getConfiguration()).thenThrow(new IllegalStateException("/etc/shadow: permission denied"));
+        Mockito.when(session.getProvider(UserProfileProvider.class)).thenReturn(profiles);
+        ComponentValidationException refused = assertThrows(ComponentValidationException.class,
+                () -> new FdpSQLUserStorageProviderFactory().validateConfiguration(session, realm, component));
+        assertEquals("Cannot read the realm user profile", refused.getMessage());
+
+        Mockito.reset(profiles);
+        Mockito.when(profiles.getConfiguration()).thenReturn(profile);
+        new FdpSQLUserStorageProviderFactory().validateConfiguration(session, realm, component);
+    }
+
+    private static ComponentModel component(String id, String url, int maxSize) {
+        ComponentModel component = new ComponentModel();
+        component.setId(id);
+        if (url != null) {
+            component.getConfig().putSingle(ComponentDataSources.CONFIG_JDBC_URL, url);
+            component.getConfig().putSingle(ComponentDataSources.CONFIG_POOL_MAX_SIZE, String.valueOf(maxSize));
+        }
+        return component;
+    }
+
+    @Test
+    public void testComponentsWithTheirOwnDatabaseGetIsolatedPools() {
+        String url = "jdbc:h2:mem:test;MODE=MYSQL;DB_CLOSE_DELAY=-1";
+        List<String> opened = new ArrayList<>();
+        List<String> closed = new ArrayList<>();
+        FdpSQLUserStorageProviderFactory factory = new FdpSQLUserStorageProviderFactory() {
+            @Override
+            protected DataSource createDataSource(int minSize, int maxSize) {
+                return dataSource;
+            }
+
+            @Override
+            protected DataSource createDataSource(String jdbcUrl, String username, String password,
+                                                  int minSize, int maxSize) {
+                opened.add(jdbcUrl + " max=" + maxSize);
+                JdbcDataSource ds = new JdbcDataSource();
+                ds.setURL(jdbcUrl);
+                return (DataSource) java.lang.reflect.Proxy.newProxyInstance(getClass().getClassLoader(),
+                        new Class<?>[]{DataSource.class, AutoCloseable.class}, (p, method, args) -> {
+                            if ("close".equals(method.getName())) {
+                                closed.add(jdbcUrl + " max=" + maxSize);
+                                return null;
+                            }
+                            return method.invoke(ds, args);
+                        });
+            }
+        };
+        factory.init(null);
+
+        ComponentModel a = component("a", url, 2);
+        assertNotNull(factory.create(session, a).getUserByUsername(realm, "jdoe"));
+        factory.create(session, a);
+        factory.create(session, component("b", url, 3));
+        factory.create(session, component("shared", null, 0));
+        assertEquals(List.of(url + " max=2", url + " max=3"), opened, "one pool per component, none for the shared one");
+
+        factory.create(session, component("a", url, 5));
+        assertEquals(List.of(url + " max=2"), closed, "changed settings replace the pool");
+        factory.preRemove(session, realm, a);
+        assertEquals(List.of(url + " max=2", url + " max=5"), closed);
+        factory.close();
+        assertEquals(3, closed.size());
+    }
+
+    @Test
+    public void testShardedProviderRoutesLookupsAndMergesListings() throws Exception {
+        JdbcDataSource campus = new JdbcDataSource();
+        campus.setURL("jdbc:h2:mem:campus;MODE=MYSQL;DB_CLOSE_DELAY=-1");
+        try (Connection c = campus.getConnection()) {
+            c.createStatement().execute("DROP TABLE IF EXISTS adherents");
+            c.createStatement().execute("""
+                CREATE TABLE adherents (
+                    id INT PRIMARY KEY, nom VARCHAR(100), prenom VARCHAR(100), mail VARCHAR(100),
+                    login VARCHAR(100), password VARCHAR(100), created_at TIMESTAMP, is_naina TINYINT,
+                    ldap_login VARCHAR(100), edminet TINYINT, mailinglist TINYINT, mode_association TINYINT
+                )
+                """);
+            c.createStatement().execute("INSERT INTO adherents (id, login, mail, password) VALUES "
+                    + "(1, 'alice', 'alice@example.com', '" + Md4Util.md4Hex("campus") + "'), "
+                    + "(3, 'bob', 'bob@example.com', NULL)");
+        }
+        ShardedUsers shards = new ShardedUsers(
+                List.of(new ExternalUserDao(dataSource), new ExternalUserDao(campus)), Duration.ofSeconds(2));
+        provider.setShards(shards);
+        try {
+            UserModel alice = provider.getUserByUsername(realm, "alice");
+            assertEquals("f:comp:1.1", alice.getId(), "shard encoded in the external id");
+            assertEquals("f:comp:1", provider.getUserByUsername(realm, "jdoe").getId(), "shard 0 ids are unchanged");
+            assertEquals("bob", provider.getUserByEmail(realm, "bob@example.com").getUsername());
+            assertEquals("bob", provider.getUserById(realm, "f:comp:1.3").getUsername());
+            assertNull(provider.getUserByUsername(realm, "nobody"));
+
+            assertTrue(provider.isValid(realm, alice, UserCredentialModel.password("campus")));
+            assertFalse(provider.isValid(realm, alice, UserCredentialModel.password("secret")));
+
+            assertEquals(4, provider.getUsersCount(realm));
+            assertEquals(List.of("jdoe", "alice", "foo", "bob"),
+                    provider.getUsersStream(realm, 0, 10).map(UserModel::getUsername).toList());
+            assertEquals(List.of("alice", "foo"),
+                    provider.getUsersStream(realm, 1, 2).map(UserModel::getUsername).toList());
+            assertEquals(List.of("bob", "foo", "jdoe"),
+                    provider.searchForUserStream(realm, "o", 0, 10).map(UserModel::getUsername).toList());
+        } finally {
+            shards.close();
+        }
+
+        List<String> fetches = new CopyOnWriteArrayList<>();
+        try (ShardedUsers paged = new ShardedUsers(
+                List.of(new ExternalUserDao(dataSource), new ExternalUserDao(campus)), Duration.ofSeconds(2), 1)) {
+            assertEquals(List.of("jdoe", "alice", "foo", "bob"), paged.merge((d, offset, limit) -> {
+                fetches.add(offset + "+" + limit);
+                return d.getUsersStream(offset, limit);
+            }, Comparator.comparing(ExternalUser::getId), 0, Integer.MAX_VALUE).map(h -> h.user().getUsername()).toList());
+            assertTrue(fetches.stream().allMatch(f -> f.endsWith("+1")), "an unbounded listing reads one page at a time");
+            assertEquals(6, fetches.size(), "two rows and an empty page per shard");
+        }
+    }
+
+    private static JdbcDataSource provisioningDatabase() throws Exception {
+        JdbcDataSource ds = new JdbcDataSource();
+        ds.setURL("jdbc:h2:mem:provisioning;MODE=MYSQL;DB_CLOSE_DELAY=-1");
+        try (Connection c = ds.getConnection()) {
+            c.createStatement().execute("DROP TABLE IF EXISTS adherents");
+            c.createStatement().execute("""
+                CREATE TABLE adherents (
+                    id INT AUTO_INCREMENT PRIMARY KEY, nom VARCHAR(100), prenom VARCHAR(100),
+                    mail VARCHAR(100) UNIQUE, login VARCHAR_IGNORECASE(100) UNIQUE, password VARCHAR(100),
+                    created_at TIMESTAMP, is_naina TINYINT, ldap_login VARCHAR(100), edminet TINYINT,
+                    mailinglist TINYINT, mode_association TINYINT
+                )
+                """);
+            c.createStatement().execute("INSERT INTO adherents (login, mail) VALUES ('alice', 'alice@example.com')");
+        }
+        return ds;
+    }
+
+    private static NewAdherent adherent(String login, String email, String password) {
+        return new NewAdherent(login, email, "First", "Last", login + "LDAP",
+                LocalDateTime.of(2025, 9, 1, 8, 0), (byte) 0, password);
+    }
+
+    @Test
+    public void testBulkImportInsertsBatchesAndReportsEachRow() throws Exception {
+        JdbcDataSource ds = provisioningDatabase();
+        FdpSQLUserStorageProvider importer = new FdpSQLUserStorageProvider(session, model, ds);
+        importer.setImportBatchSize(2);
+        List<ImportOutcome> outcomes = new ArrayList<>();
+        BulkImporter.Summary summary = importer.importUsers(Stream.of(
+                adherent("bob", "bob@example.com", "pw"),
+                // logins compare case-insensitively, like the MariaDB collation
+                adherent("Alice", "other@example.com", null),
+                adherent("carol", "carol@example.com", Md4Util.md4Hex("carol")),
+                adherent("BOB", "bob2@example.com", null),
+                // same email as carol: the database rejects this batch, which is retried row by row
+                adherent("dave", "carol@example.com", null),
+                adherent("erin", "erin@example.com", null),
+                adherent(" ", null, null)), outcomes::add);
+
+        assertEquals(new BulkImporter.Summary(3, 2, 2), summary);
+        assertEquals(List.of(0L, 1L, 2L, 3L, 4L, 5L, 6L), outcomes.stream().map(ImportOutcome::index).toList());
+        assertEquals(List.of(ImportOutcome.Status.CREATED, ImportOutcome.Status.DUPLICATE,
+                ImportOutcome.Status.CREATED, ImportOutcome.Status.DUPLICATE, ImportOutcome.Status.FAILED,
+                ImportOutcome.Status.CREATED, ImportOutcome.Status.FAILED),
+                outcomes.stream().map(ImportOutcome::status).toList());
+        assertNotNull(outcomes.get(4).message());
+
+        ExternalUserDao dao = new ExternalUserDao(ds);
+        ExternalUser bob = dao.findByUsername("bob");
+        assertEquals(outcomes.get(0).id(), bob.getId());
+        assertEquals("bobLDAP", bob.getLdapLogin());
+        assertEquals(LocalDateTime.of(2025, 9, 1, 8, 0), bob.getCreatedAt());
+        assertEquals(Md4Util.md4Hex("pw"), dao.findPassword(bob.getId()), "plaintext passwords are hashed");
+        assertEquals(Md4Util.md4Hex("carol"), dao.findPassword(dao.findByUsername("carol").getId()));
+        assertNotNull(dao.findByUsername("erin"));
+        assertNull(dao.findByUsername("dave"));
+        assertEquals(4, dao.getUsersCount());
+
+        // without a unique index on login, concurrent imports could create duplicates
+        assertTrue(dao.isLoginUnique());
+        assertFalse(new ExternalUserDao(dataSource).isLoginUnique());
+        assertThrows(ModelException.class, () -> provider.importUsers(
+                Stream.of(adherent("zoe", "zoe@example.com", null)), outcomes::add));
+        assertNull(new ExternalUserDao(dataSource).findByUsername("zoe"));
+    }
+
+    @Test
+    public void testUsersCreatedInATransactionAreWrittenOnceAtCommit() throws Exception {
+        JdbcDataSource ds = provisioningDatabase();
+        KeycloakTransactionManager transactions = Mockito.mock(KeycloakTransactionManager.class);
+        Mockito.when(transactions.isActive()).thenReturn(true);
+        Mockito.when(session.getTransactionManager()).thenReturn(transactions);
+        ExternalUserDao dao = new ExternalUserDao(ds);
+
+        FdpSQLUserStorageProvider importing = new FdpSQLUserStorageProvider(session, model, ds);
+        UserModel bob = importing.addUser(realm, "bob");
+        bob.setEmail("bob@example.com");
+        bob.setFirstName("Bob");
+        bob.setSingleAttribute("ldapLogin", "bobLDAP");
+        assertTrue(importing.updateCredential(realm, bob, UserCredentialModel.password("pw")));
+        ArgumentCaptor<KeycloakTransaction> enlisted = ArgumentCaptor.forClass(KeycloakTransaction.class);
+        Mockito.verify(transactions).enlistPrepare(enlisted.capture());
+
+        int id = dao.findByUsername("bob").getId();
+        assertNull(dao.findByUsername("bob").getEmail(), "nothing written before commit");
+        assertNull(dao.findPassword(id));
+        assertEquals("bob@example.com", importing.getUserByUsername(realm, "bob").getEmail(),
+                "the session sees its own writes");
+        assertEquals("bob", importing.getUserByEmail(realm, "BOB@example.com").getUsername(),
+                "pending users are found by email too");
+        assertEquals("bobLDAP", importing.getUserById(realm, bob.getId()).getFirstAttribute("ldapLogin"));
+
+        enlisted.getValue().begin();
+        enlisted.getValue().commit();
+        ExternalUser written = dao.findById(id);
+        assertEquals("bob@example.com", written.getEmail());
+        assertEquals("Bob", written.getFirstName());
+        assertEquals("bobLDAP", written.getLdapLogin());
+        assertEquals(Md4Util.md4Hex("pw"), dao.findPassword(id));
+
+        FdpSQLUserStorageProvider aborted = new FdpSQLUserStorageProvider(session, model, ds);
+        aborted.addUser(realm, "carol").setEmail("carol@example.com");
+        Mockito.verify(transactions, Mockito.times(2)).enlistPrepare(enlisted.capture());
+        enlisted.getValue().begin();
+        enlisted.getValue().rollback();
+        assertNull(dao.findByUsername("carol"), "rolled back users are deleted");
+    }
+
+    @Test
+    public void testProfileWritesReloadTheDirectoryInOneQuery() throws Exception {
+        JdbcDataSource ds = provisioningDatabase();
+        StatementRegistry statements = new StatementRegistry();
+        ExternalUserDao dao = new ExternalUserDao(ds, statements);
+        Path file = Files.createTempDirectory("fdp-directory").resolve("directory.bin");
+        try (UserDirectory directory = UserDirectory.open(file)) {
+            dao.setUserDirectory(directory);
+            int bob = dao.insertUser("bob");
+            int carol = dao.insertUser("carol");
+
+            long prepared = statements.getHits() + statements.getMisses();
+            assertEquals(2, dao.updateProfiles(Map.of(
+                    bob, adherent("bob", "bob@example.com", null),
+                    carol, adherent("carol", "carol@example.com", null))));
+            assertEquals(prepared + 2, statements.getHits() + statements.getMisses(), "one UPDATE batch, one SELECT");
+            assertEquals("bob@example.com", directory.findById(bob).getEmail());
+            assertEquals("carolLDAP", directory.findByEmail("carol@example.com").getLdapLogin());
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void testExportStreamsProjectedRowsAsNdjsonAndCsv() throws Exception {
+        try (Connection c = dataSource.getConnection()) {
+            c.createStatement().execute("UPDATE adherents SET mail = 'foo,\"bar\"@example.com' WHERE id = 2");
+            c.createStatement().execute("UPDATE adherents SET ldap_login = '=HYPERLINK(\"http://x\",\"y\")' WHERE id = 2");
+        }
+        UserExporter exporter = new UserExporter("comp",
+                AttributeMapping.compile(List.of("email=mail", "isNaina=is_naina", "ldapLogin=ldap_login")), 1);
+        assertEquals("SELECT id, login, mail, is_naina, ldap_login FROM adherents ORDER BY id",
+                StatementRegistry.exportUsers(List.of("mail", "is_naina", "ldap_login")), "only mapped columns are read");
+        assertThrows(IllegalArgumentException.class, () -> StatementRegistry.exportUsers(List.of("password")));
+
+        ByteArrayOutputStream ndjson = new ByteArrayOutputStream();
+        assertEquals(2, exporter.write(List.of(new ExternalUserDao(dataSource)), UserExporter.Format.NDJSON, ndjson));
+        assertEquals("""
+                {"id":"f:comp:1","username":"jdoe","email":"john@example.com","isNaina":"1","ldapLogin":"jdoeLDAP"}
+                {"id":"f:comp:2","username":"foo","email":"foo,\\"bar\\"@example.com","isNaina":"0","ldapLogin":"=HYPERLINK(\\"http://x\\",\\"y\\")"}
+                """, ndjson.toString(StandardCharsets.UTF_8));
+
+        ByteArrayOutputStream csv = new ByteArrayOutputStream();
+        exporter.write(List.of(new ExternalUserDao(dataSource)), UserExporter.Format.of("csv"), csv);
+        assertEquals("id,username,email,isNaina,ldapLogin\r\n"
+                        + "f:comp:1,jdoe,john@example.com,1,jdoeLDAP\r\n"
+                        + "f:comp:2,foo,\"foo,\"\"bar\"\"@example.com\",0,\"'=HYPERLINK(\"\"http://x\"\",\"\"y\"\")\"\r\n",
+                csv.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testOrphanSweepRemovesFederatedUsersMissingFromAdherents() throws Exception {
+        List<String> stored = List.of("f:comp:7", "f:comp:1", "f:comp:5", "f:other:9", "0b7e-local",
+                "f:comp:abc", "f:comp:5", "f:comp:2", "f:comp:1.4");
+        List<List<String>> removals = new ArrayList<>();
+        OrphanSweep.FederatedUsers federated = new OrphanSweep.FederatedUsers() {
+            @Override
+            public void forEachStoredId(Consumer<String> sink) {
+                stored.forEach(sink);
+            }
+
+            @Override
+            public void remove(List<String> ids) {
+                removals.add(ids);
+            }
+        };
+        OrphanSweep sweep = new OrphanSweep(2, 1, 100);
+        List<ExternalUserDao> shards = List.of(new ExternalUserDao(dataSource));
+
+        assertEquals(new OrphanSweep.Result(4, 2, 2), sweep.sweep("comp", shards, federated));
+        assertEquals(List.of(List.of("f:comp:5"), List.of("f:comp:7")), removals,
+                "only ids of this component missing from adherents, one batch at a time");
+
+        removals.clear();
+        OrphanSweep capped = new OrphanSweep(10, 10, 1);
+        assertEquals(new OrphanSweep.Result(4, 2, 1), capped.sweep("comp", shards, federated));
+        assertEquals(List.of(List.of("f:comp:5")), removals, "a run stops at its removal cap");
+        assertEquals(0, capped.getProgress());
+
+        try (Connection c = dataSource.getConnection()) {
+            c.createStatement().execute("DELETE FROM adherents");
+        }
+        removals.clear();
+        assertEquals(0, sweep.sweep("comp", shards, federated).removed(), "an empty table removes nothing");
+        assertTrue(removals.isEmpty());
+        assertEquals(2, sweep.getRemoved());
+    }
 }